@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.benchmark.server;
+
+import org.cometd.server.ext.BatchArrayQueue;
+import org.eclipse.jetty.util.ArrayQueue;
+
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Measures the throughput of the {@link BatchArrayQueue} used by the
+ * acknowledged messages extension, when a client acknowledges its batches
+ * with a delay, so that several batches of messages are unacknowledged.</p>
+ * <p>For every batch, the messages are offered, all the unacknowledged messages
+ * are exported to the session queue, as it happens when a {@code /meta/connect}
+ * is replied, and the oldest batch is acknowledged.</p>
+ * <p>Usage: {@code AckBatchBenchmark [messagesPerBatch] [batchesInFlight] [seconds]}</p>
+ */
+public class AckBatchBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int inFlight = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        AckBatchBenchmark benchmark = new AckBatchBenchmark();
+        // The first iteration is the warm up.
+        benchmark.run(messages, inFlight, Math.max(1, seconds / 2));
+        benchmark.run(messages, inFlight, seconds);
+    }
+
+    public void run(int messages, int inFlight, int seconds)
+    {
+        Object lock = new Object();
+        BatchArrayQueue<Object> queue = new BatchArrayQueue<>(16, lock);
+        Queue<Object> target = new ArrayQueue<>(messages * inFlight, messages, lock);
+        Object message = new Object();
+
+        long count = 0;
+        long exported = 0;
+        long begin = System.nanoTime();
+        long end = begin + TimeUnit.SECONDS.toNanos(seconds);
+        while (true)
+        {
+            for (int i = 0; i < messages; ++i)
+                queue.offer(message);
+            count += messages;
+
+            long batch = queue.getBatch();
+            queue.exportMessagesToBatch(target, batch);
+            exported += target.size();
+            target.clear();
+            queue.nextBatch();
+
+            // The client acknowledges the batches with a delay.
+            queue.clearToBatch(batch - inFlight);
+
+            if ((count & 0xFFFF) < messages && System.nanoTime() > end)
+                break;
+        }
+        long elapsed = System.nanoTime() - begin;
+
+        System.err.printf("messagesPerBatch=%d batchesInFlight=%d: %d messages/s, %d exports/s%n",
+                messages, inFlight,
+                count * TimeUnit.SECONDS.toNanos(1) / elapsed,
+                exported * TimeUnit.SECONDS.toNanos(1) / elapsed);
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.benchmark.server;
+
+import org.HdrHistogram.AtomicHistogram;
+import org.cometd.bayeux.server.LocalSession;
+import org.cometd.bayeux.server.ServerChannel;
+import org.cometd.bayeux.server.ServerMessage;
+import org.cometd.bayeux.server.ServerSession;
+import org.cometd.server.BayeuxServerImpl;
+import org.cometd.server.transport.JSONTransport;
+import org.eclipse.jetty.toolchain.perf.HistogramSnapshot;
+import org.eclipse.jetty.toolchain.perf.MeasureConverter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Measures the latency between the publish of a message on a broadcast
+ * channel and its delivery to the last subscriber, for increasing numbers
+ * of subscribers, with and without the parallel fan-out enabled.</p>
+ * <p>Usage: {@code FanOutBenchmark [subscribers,...] [messages] [fanOutThreshold]}</p>
+ */
+public class FanOutBenchmark implements MeasureConverter
+{
+    public static void main(String[] args) throws Exception
+    {
+        String subscribers = args.length > 0 ? args[0] : "1000,10000,100000";
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int threshold = args.length > 2 ? Integer.parseInt(args[2]) : 1024;
+
+        FanOutBenchmark benchmark = new FanOutBenchmark();
+        for (String token : subscribers.split(","))
+        {
+            int count = Integer.parseInt(token.trim());
+            benchmark.run(count, messages, 0);
+            benchmark.run(count, messages, threshold);
+        }
+    }
+
+    public void run(int subscribers, int messages, int threshold) throws Exception
+    {
+        BayeuxServerImpl bayeux = new BayeuxServerImpl();
+        bayeux.setOption(BayeuxServerImpl.FAN_OUT_THRESHOLD_OPTION, threshold);
+        // Only local sessions are used, avoid the default transports that need a ServletContext.
+        bayeux.addTransport(new JSONTransport(bayeux));
+        bayeux.start();
+        try
+        {
+            String channelName = "/benchmark";
+            ServerChannel channel = bayeux.createChannelIfAbsent(channelName).getReference();
+
+            final AtomicInteger pending = new AtomicInteger();
+            final AtomicLong lastDelivery = new AtomicLong();
+            ServerSession.MessageListener listener = new ServerSession.MessageListener()
+            {
+                public boolean onMessage(ServerSession to, ServerSession from, ServerMessage message)
+                {
+                    if (pending.decrementAndGet() == 0)
+                        lastDelivery.set(System.nanoTime());
+                    // Do not queue the message, only the delivery is measured.
+                    return false;
+                }
+            };
+
+            for (int i = 0; i < subscribers; ++i)
+            {
+                LocalSession session = bayeux.newLocalSession("subscriber");
+                session.handshake();
+                ServerSession serverSession = session.getServerSession();
+                serverSession.addListener(listener);
+                channel.subscribe(serverSession);
+            }
+
+            AtomicHistogram histogram = new AtomicHistogram(TimeUnit.MICROSECONDS.toNanos(1), TimeUnit.MINUTES.toNanos(1), 3);
+            // Warm up with the same number of messages.
+            for (int phase = 0; phase < 2; ++phase)
+            {
+                histogram.reset();
+                for (int i = 0; i < messages; ++i)
+                {
+                    pending.set(subscribers);
+                    lastDelivery.set(0);
+                    long begin = System.nanoTime();
+                    channel.publish(null, "data");
+                    long end;
+                    while ((end = lastDelivery.get()) == 0)
+                        Thread.yield();
+                    histogram.recordValue(end - begin);
+                }
+            }
+
+            String title = String.format("Publish to Last Delivery - %d subscribers - %s", subscribers,
+                    threshold > 0 ? "fan out threshold " + threshold : "no fan out");
+            System.err.println(new HistogramSnapshot(histogram.copy(), 20, title, "\u00B5s", this));
+        }
+        finally
+        {
+            bayeux.stop();
+        }
+    }
+
+    @Override
+    public long convert(long measure)
+    {
+        return TimeUnit.NANOSECONDS.toMicros(measure);
+    }
+}
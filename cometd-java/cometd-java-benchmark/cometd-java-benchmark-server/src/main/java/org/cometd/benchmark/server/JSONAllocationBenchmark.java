@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.benchmark.server;
+
+import org.cometd.bayeux.server.ServerMessage;
+import org.cometd.server.BayeuxServerImpl;
+import org.cometd.server.ServerMessageImpl;
+import org.cometd.server.transport.JSONTransport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Measures the bytes allocated to write a frozen message to many recipients,
+ * comparing the encoding of the JSON string for every recipient with the
+ * writing of the UTF-8 bytes cached by the frozen message.</p>
+ * <p>Usage: {@code JSONAllocationBenchmark [recipients] [dataSize]}</p>
+ */
+public class JSONAllocationBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        int recipients = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int dataSize = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+
+        JSONAllocationBenchmark benchmark = new JSONAllocationBenchmark();
+        // Warm up.
+        benchmark.run(recipients, dataSize);
+        benchmark.run(recipients, dataSize);
+    }
+
+    public void run(int recipients, int dataSize) throws Exception
+    {
+        BayeuxServerImpl bayeux = new BayeuxServerImpl();
+        // Avoid the default transports that need a ServletContext.
+        bayeux.addTransport(new JSONTransport(bayeux));
+        bayeux.start();
+        try
+        {
+            ServerMessage.Mutable message = bayeux.newMessage();
+            message.setChannel("/benchmark");
+            Map<String, Object> data = new HashMap<>();
+            StringBuilder builder = new StringBuilder(dataSize);
+            for (int i = 0; i < dataSize; ++i)
+                builder.append((char)('a' + i % 26));
+            data.put("payload", builder.toString());
+            message.setData(data);
+            bayeux.freeze(message);
+            ServerMessageImpl frozen = (ServerMessageImpl)message;
+
+            DiscardOutputStream output = new DiscardOutputStream();
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+            long threadId = Thread.currentThread().getId();
+
+            // Encoding the JSON string for every recipient.
+            long allocated = threads.getThreadAllocatedBytes(threadId);
+            long begin = System.nanoTime();
+            StringBuilder buffer = new StringBuilder(512);
+            for (int i = 0; i < recipients; ++i)
+            {
+                buffer.append(message.getJSON());
+                output.write(buffer.toString().getBytes("UTF-8"));
+                buffer.setLength(0);
+            }
+            long encodeNanos = System.nanoTime() - begin;
+            long encodeBytes = threads.getThreadAllocatedBytes(threadId) - allocated;
+
+            // Writing the cached UTF-8 bytes.
+            allocated = threads.getThreadAllocatedBytes(threadId);
+            begin = System.nanoTime();
+            for (int i = 0; i < recipients; ++i)
+                frozen.writeJSON(output);
+            long cachedNanos = System.nanoTime() - begin;
+            long cachedBytes = threads.getThreadAllocatedBytes(threadId) - allocated;
+
+            System.err.printf("recipients=%d message=%d bytes written=%d%n", recipients, frozen.getJSONBytes().remaining(), output.count);
+            System.err.printf("encode per recipient: allocated %d bytes (%d/recipient) in %d ms%n",
+                    encodeBytes, encodeBytes / recipients, TimeUnit.NANOSECONDS.toMillis(encodeNanos));
+            System.err.printf("cached UTF-8 bytes:   allocated %d bytes (%d/recipient) in %d ms%n",
+                    cachedBytes, cachedBytes / recipients, TimeUnit.NANOSECONDS.toMillis(cachedNanos));
+        }
+        finally
+        {
+            bayeux.stop();
+        }
+    }
+
+    private static class DiscardOutputStream extends OutputStream
+    {
+        private long count;
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            ++count;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException
+        {
+            count += length;
+        }
+    }
+}
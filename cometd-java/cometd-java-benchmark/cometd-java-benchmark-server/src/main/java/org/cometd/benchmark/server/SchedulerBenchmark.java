@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.benchmark.server;
+
+import org.cometd.server.ShardedScheduler;
+import org.eclipse.jetty.util.thread.ScheduledExecutorScheduler;
+import org.eclipse.jetty.util.thread.Scheduler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Measures the throughput of schedule and cancel operations, as performed
+ * for every {@code /meta/connect} that is held by the server, while a large
+ * number of long polls are outstanding.</p>
+ * <p>Compares the single-threaded scheduler used by default by the server with
+ * the {@link ShardedScheduler}.</p>
+ * <p>Usage: {@code SchedulerBenchmark [outstanding] [threads] [shards] [seconds]}</p>
+ */
+public class SchedulerBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        int outstanding = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        int shards = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+        SchedulerBenchmark benchmark = new SchedulerBenchmark();
+        for (int i = 0; i < 2; ++i)
+        {
+            // The first iteration is the warm up.
+            int duration = i == 0 ? Math.max(1, seconds / 2) : seconds;
+            benchmark.run(new ScheduledExecutorScheduler("benchmark", true), outstanding, threads, duration);
+            benchmark.run(new ShardedScheduler("benchmark", shards, 10), outstanding, threads, duration);
+        }
+    }
+
+    public void run(final Scheduler scheduler, int outstanding, int threads, int seconds) throws Exception
+    {
+        scheduler.start();
+        try
+        {
+            // The long polls held by the server, that expire after the
+            // max interval if they are not resumed by a message.
+            long timeout = TimeUnit.SECONDS.toMillis(30);
+            List<Scheduler.Task> held = new ArrayList<>(outstanding);
+            for (int i = 0; i < outstanding; ++i)
+                held.add(scheduler.schedule(new Noop(), timeout + i % 1000, TimeUnit.MILLISECONDS));
+
+            final AtomicBoolean running = new AtomicBoolean(true);
+            final AtomicLong operations = new AtomicLong();
+            final CountDownLatch latch = new CountDownLatch(threads);
+            for (int i = 0; i < threads; ++i)
+            {
+                new Thread()
+                {
+                    @Override
+                    public void run()
+                    {
+                        long count = 0;
+                        while (running.get())
+                        {
+                            // A long poll is held, then resumed by a message.
+                            Scheduler.Task task = scheduler.schedule(new Noop(), 30000, TimeUnit.MILLISECONDS);
+                            task.cancel();
+                            ++count;
+                        }
+                        operations.addAndGet(count);
+                        latch.countDown();
+                    }
+                }.start();
+            }
+
+            long begin = System.nanoTime();
+            TimeUnit.SECONDS.sleep(seconds);
+            running.set(false);
+            latch.await();
+            long elapsed = System.nanoTime() - begin;
+
+            for (Scheduler.Task task : held)
+                task.cancel();
+
+            System.err.printf("%s outstanding=%d threads=%d: %d schedule+cancel/s%n",
+                    scheduler.getClass().getSimpleName(), outstanding, threads,
+                    operations.get() * TimeUnit.SECONDS.toNanos(1) / elapsed);
+        }
+        finally
+        {
+            scheduler.stop();
+        }
+    }
+
+    private static class Noop implements Runnable
+    {
+        @Override
+        public void run()
+        {
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.benchmark.server;
+
+import org.HdrHistogram.AtomicHistogram;
+import org.cometd.bayeux.server.LocalSession;
+import org.cometd.bayeux.server.ServerChannel;
+import org.cometd.bayeux.server.ServerMessage;
+import org.cometd.bayeux.server.ServerSession;
+import org.cometd.server.BayeuxServerImpl;
+import org.cometd.server.transport.JSONTransport;
+import org.eclipse.jetty.toolchain.perf.HistogramSnapshot;
+import org.eclipse.jetty.toolchain.perf.MeasureConverter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Measures the latency of subscribe and unsubscribe operations on a channel
+ * with a large number of subscribers, while other threads publish to that channel.</p>
+ * <p>Usage: {@code SubscriptionChurnBenchmark [subscribers] [churnThreads] [publishThreads] [seconds]}</p>
+ */
+public class SubscriptionChurnBenchmark implements MeasureConverter
+{
+    public static void main(String[] args) throws Exception
+    {
+        int subscribers = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        int churnThreads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int publishThreads = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+        SubscriptionChurnBenchmark benchmark = new SubscriptionChurnBenchmark();
+        // Warm up.
+        benchmark.run(subscribers, churnThreads, publishThreads, Math.max(1, seconds / 2));
+        benchmark.run(subscribers, churnThreads, publishThreads, seconds);
+    }
+
+    public void run(int subscribers, int churnThreads, int publishThreads, int seconds) throws Exception
+    {
+        final BayeuxServerImpl bayeux = new BayeuxServerImpl();
+        // Only local sessions are used, avoid the default transports that need a ServletContext.
+        bayeux.addTransport(new JSONTransport(bayeux));
+        bayeux.start();
+        try
+        {
+            final ServerChannel channel = bayeux.createChannelIfAbsent("/churn").getReference();
+            channel.setPersistent(true);
+
+            final AtomicLong deliveries = new AtomicLong();
+            final ServerSession.MessageListener listener = new ServerSession.MessageListener()
+            {
+                public boolean onMessage(ServerSession to, ServerSession from, ServerMessage message)
+                {
+                    deliveries.incrementAndGet();
+                    // Do not queue the message, only the delivery is measured.
+                    return false;
+                }
+            };
+
+            for (int i = 0; i < subscribers; ++i)
+                channel.subscribe(newServerSession(bayeux, listener));
+
+            final AtomicHistogram subscribes = new AtomicHistogram(TimeUnit.MICROSECONDS.toNanos(1), TimeUnit.MINUTES.toNanos(1), 3);
+            final AtomicHistogram unsubscribes = new AtomicHistogram(TimeUnit.MICROSECONDS.toNanos(1), TimeUnit.MINUTES.toNanos(1), 3);
+            final AtomicBoolean running = new AtomicBoolean(true);
+            final CountDownLatch latch = new CountDownLatch(churnThreads + publishThreads);
+            List<Thread> threads = new ArrayList<>();
+
+            for (int i = 0; i < churnThreads; ++i)
+            {
+                final ServerSession session = newServerSession(bayeux, listener);
+                threads.add(new Thread()
+                {
+                    @Override
+                    public void run()
+                    {
+                        while (running.get())
+                        {
+                            long begin = System.nanoTime();
+                            channel.subscribe(session);
+                            long middle = System.nanoTime();
+                            channel.unsubscribe(session);
+                            long end = System.nanoTime();
+                            subscribes.recordValue(middle - begin);
+                            unsubscribes.recordValue(end - middle);
+                        }
+                        latch.countDown();
+                    }
+                });
+            }
+
+            final AtomicLong publishes = new AtomicLong();
+            for (int i = 0; i < publishThreads; ++i)
+            {
+                threads.add(new Thread()
+                {
+                    @Override
+                    public void run()
+                    {
+                        while (running.get())
+                        {
+                            channel.publish(null, "data");
+                            publishes.incrementAndGet();
+                        }
+                        latch.countDown();
+                    }
+                });
+            }
+
+            for (Thread thread : threads)
+                thread.start();
+            TimeUnit.SECONDS.sleep(seconds);
+            running.set(false);
+            latch.await();
+
+            System.err.printf("subscribers=%d churn threads=%d publish threads=%d: publishes=%d deliveries=%d%n",
+                    subscribers, churnThreads, publishThreads, publishes.get(), deliveries.get());
+            System.err.println(new HistogramSnapshot(subscribes.copy(), 20, "Subscribe - Latency", "\u00B5s", this));
+            System.err.println(new HistogramSnapshot(unsubscribes.copy(), 20, "Unsubscribe - Latency", "\u00B5s", this));
+        }
+        finally
+        {
+            bayeux.stop();
+        }
+    }
+
+    private ServerSession newServerSession(BayeuxServerImpl bayeux, ServerSession.MessageListener listener)
+    {
+        LocalSession session = bayeux.newLocalSession("churn");
+        session.handshake();
+        ServerSession serverSession = session.getServerSession();
+        serverSession.addListener(listener);
+        return serverSession;
+    }
+
+    @Override
+    public long convert(long measure)
+    {
+        return TimeUnit.NANOSECONDS.toMicros(measure);
+    }
+}
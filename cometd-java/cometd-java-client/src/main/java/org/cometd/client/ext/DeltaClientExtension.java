@@ -0,0 +1,319 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.client.ext;
+
+import org.cometd.bayeux.Channel;
+import org.cometd.bayeux.ChannelId;
+import org.cometd.bayeux.Message;
+import org.cometd.bayeux.client.ClientSession;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>This client-side extension enables the client to receive delta-encoded
+ * messages from the server, where the data of a message is replaced by the
+ * differences from the data of the previous message on the same channel.</p>
+ * <p>For delta-encoded messages to work, the server must be configured with the
+ * correspondent server-side delta extension. If both client and server support
+ * the delta extension, the data of the messages is rebuilt before listeners are
+ * notified, so that listeners always receive the whole data.</p>
+ * <p>When a delta cannot be applied, for example because a previous message was
+ * lost or because the number of key frames sent by the server on the channel is
+ * not the number of key frames received, the message is discarded and the client asks the server to send a key
+ * frame for that channel, in the next message sent to the server.</p>
+ * <p>The state of the channels that match a subscription is dropped when the
+ * unsubscription succeeds, as the server does, so that the next message on
+ * those channels is a key frame for both.</p>
+ */
+public class DeltaClientExtension extends ClientSession.Extension.Adapter
+{
+    public static final String DELTA_FIELD = "delta";
+    public static final String EPOCH_FIELD = "epoch";
+    public static final String SEQ_FIELD = "seq";
+    public static final String RESYNC_FIELD = "resync";
+
+    private final Map<String, Snapshot> _snapshots = new HashMap<>();
+    private final Set<String> _resyncs = new LinkedHashSet<>();
+    private volatile boolean _serverSupportsDeltas;
+
+    @Override
+    public boolean rcvMeta(ClientSession session, Message.Mutable message)
+    {
+        if (Channel.META_HANDSHAKE.equals(message.getChannel()))
+        {
+            Map<String, Object> ext = message.getExt();
+            _serverSupportsDeltas = ext != null && Boolean.TRUE.equals(ext.get(DELTA_FIELD));
+        }
+        else if (Channel.META_UNSUBSCRIBE.equals(message.getChannel()) && message.isSuccessful())
+        {
+            List<ChannelId> subscriptions = new ArrayList<>();
+            for (Object subscription : asList(message.get(Message.SUBSCRIPTION_FIELD)))
+                subscriptions.add(new ChannelId(String.valueOf(subscription)));
+            synchronized (_snapshots)
+            {
+                for (Iterator<String> iterator = _snapshots.keySet().iterator(); iterator.hasNext(); )
+                {
+                    ChannelId channelId = new ChannelId(iterator.next());
+                    for (ChannelId subscription : subscriptions)
+                    {
+                        if (subscription.equals(channelId) || subscription.matches(channelId))
+                        {
+                            iterator.remove();
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean rcv(ClientSession session, Message.Mutable message)
+    {
+        if (!_serverSupportsDeltas || message.isPublishReply())
+            return true;
+
+        String channel = message.getChannel();
+        Map<String, Object> ext = message.getExt();
+        Object delta = ext == null ? null : ext.get(DELTA_FIELD);
+        synchronized (_snapshots)
+        {
+            Snapshot snapshot = _snapshots.get(channel);
+            if (snapshot == null)
+            {
+                snapshot = new Snapshot();
+                _snapshots.put(channel, snapshot);
+            }
+
+            if (delta instanceof Map)
+            {
+                Map<?, ?> fields = (Map<?, ?>)delta;
+                Object epoch = fields.get(EPOCH_FIELD);
+                Object seq = fields.get(SEQ_FIELD);
+                if (snapshot.data != null &&
+                        epoch instanceof Number && ((Number)epoch).longValue() == snapshot.epoch &&
+                        seq instanceof Number && ((Number)seq).intValue() == snapshot.deltas + 1)
+                {
+                    try
+                    {
+                        apply(snapshot.data, message.getData());
+                        snapshot.deltas += 1;
+                        ext.remove(DELTA_FIELD);
+                        message.setData(copy(snapshot.data));
+                        return true;
+                    }
+                    catch (IllegalArgumentException x)
+                    {
+                        // Fall through to resynchronize.
+                    }
+                }
+                // Align with the key frames sent by the server,
+                // so that the key frame of the resync matches.
+                if (epoch instanceof Number)
+                    snapshot.epoch = ((Number)epoch).longValue();
+                snapshot.data = null;
+                _resyncs.add(channel);
+                return false;
+            }
+
+            // Messages with object data are key frames, and start a
+            // new sequence of deltas; messages with other data do not.
+            Object data = message.getData();
+            if (data instanceof Map)
+            {
+                snapshot.data = asMap(copy(data));
+                snapshot.deltas = 0;
+                snapshot.epoch += 1;
+            }
+            else
+            {
+                snapshot.data = null;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean sendMeta(ClientSession session, Message.Mutable message)
+    {
+        if (Channel.META_HANDSHAKE.equals(message.getChannel()))
+        {
+            message.getExt(true).put(DELTA_FIELD, Boolean.TRUE);
+            synchronized (_snapshots)
+            {
+                _snapshots.clear();
+                _resyncs.clear();
+            }
+        }
+        else
+        {
+            addResyncs(message);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean send(ClientSession session, Message.Mutable message)
+    {
+        addResyncs(message);
+        return true;
+    }
+
+    private void addResyncs(Message.Mutable message)
+    {
+        if (!_serverSupportsDeltas)
+            return;
+        List<String> resyncs;
+        synchronized (_snapshots)
+        {
+            if (_resyncs.isEmpty())
+                return;
+            resyncs = new ArrayList<>(_resyncs);
+            _resyncs.clear();
+        }
+        Map<String, Object> delta = new HashMap<>(1);
+        delta.put(RESYNC_FIELD, resyncs);
+        message.getExt(true).put(DELTA_FIELD, delta);
+    }
+
+    private void apply(Map<String, Object> data, Object patch)
+    {
+        if (patch instanceof Object[])
+        {
+            for (Object operation : (Object[])patch)
+                applyOperation(data, operation);
+        }
+        else if (patch instanceof Collection)
+        {
+            for (Object operation : (Collection<?>)patch)
+                applyOperation(data, operation);
+        }
+        else
+        {
+            throw new IllegalArgumentException("Invalid patch " + patch);
+        }
+    }
+
+    private void applyOperation(Map<String, Object> data, Object operation)
+    {
+        if (!(operation instanceof Map))
+            throw new IllegalArgumentException("Invalid operation " + operation);
+        Map<?, ?> fields = (Map<?, ?>)operation;
+        Object op = fields.get("op");
+        Object path = fields.get("path");
+        if (!(path instanceof String) || !((String)path).startsWith("/"))
+            throw new IllegalArgumentException("Invalid path " + path);
+
+        String[] segments = ((String)path).substring(1).split("/", -1);
+        Map<String, Object> target = data;
+        for (int i = 0; i < segments.length - 1; ++i)
+        {
+            Object child = target.get(unescape(segments[i]));
+            if (!(child instanceof Map))
+                throw new IllegalArgumentException("Invalid path " + path);
+            target = asMap(child);
+        }
+        String name = unescape(segments[segments.length - 1]);
+
+        if ("add".equals(op))
+        {
+            target.put(name, copy(fields.get("value")));
+        }
+        else if ("replace".equals(op))
+        {
+            if (!target.containsKey(name))
+                throw new IllegalArgumentException("Invalid path " + path);
+            target.put(name, copy(fields.get("value")));
+        }
+        else if ("remove".equals(op))
+        {
+            if (!target.containsKey(name))
+                throw new IllegalArgumentException("Invalid path " + path);
+            target.remove(name);
+        }
+        else
+        {
+            throw new IllegalArgumentException("Invalid operation " + op);
+        }
+    }
+
+    private String unescape(String segment)
+    {
+        // JSON Pointer (RFC 6901) unescaping.
+        return segment.replace("~1", "/").replace("~0", "~");
+    }
+
+    private Object copy(Object value)
+    {
+        if (value instanceof Map)
+        {
+            Map<String, Object> result = new HashMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>)value).entrySet())
+                result.put(String.valueOf(entry.getKey()), copy(entry.getValue()));
+            return result;
+        }
+        if (value instanceof Object[])
+        {
+            Object[] array = (Object[])value;
+            Object[] result = new Object[array.length];
+            for (int i = 0; i < array.length; ++i)
+                result[i] = copy(array[i]);
+            return result;
+        }
+        if (value instanceof Collection)
+        {
+            List<Object> result = new ArrayList<>();
+            for (Object item : (Collection<?>)value)
+                result.add(copy(item));
+            return result;
+        }
+        return value;
+    }
+
+    private List<?> asList(Object object)
+    {
+        if (object instanceof Object[])
+            return Arrays.asList((Object[])object);
+        if (object instanceof List)
+            return (List<?>)object;
+        if (object instanceof String)
+            return Collections.singletonList(object);
+        return Collections.emptyList();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> asMap(Object object)
+    {
+        return (Map<String, Object>)object;
+    }
+
+    private static class Snapshot
+    {
+        private Map<String, Object> data;
+        private int deltas;
+        private long epoch;
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.client.transport;
+
+import org.cometd.bayeux.Channel;
+import org.cometd.bayeux.Message;
+import org.cometd.common.TransportException;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.http.HttpMethod;
+import org.eclipse.jetty.http.HttpStatus;
+import org.eclipse.jetty.util.component.ContainerLifeCycle;
+
+import java.io.ByteArrayOutputStream;
+import java.net.HttpCookie;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>A transport that receives messages from a single, long-lived
+ * {@code text/event-stream} response, as specified by the Server-Sent
+ * Events specification.</p>
+ * <p>The first {@code /meta/connect} opens the stream, and the server
+ * replies to it with the first event of the stream; further messages
+ * are received as events, and are notified to the listener set with
+ * {@link #setMessageTransportListener(TransportListener)}.
+ * The following {@code /meta/connect} messages are not sent to the server,
+ * but wait for the {@code /meta/connect} reply that the server writes
+ * to the stream every timeout.</p>
+ * <p>All the other messages are sent with {@code POST} requests, as
+ * the {@link LongPollingTransport} does.</p>
+ */
+public class EventSourceTransport extends LongPollingTransport implements MessageClientTransport
+{
+    public static final String NAME = "event-source";
+    public static final String PREFIX = "event-source";
+    public static final String MIME_TYPE = "text/event-stream";
+
+    private volatile TransportListener _messageListener;
+    private Request _stream;
+    private TransportListener _connectListener;
+    private Message.Mutable _connect;
+    private volatile long _timeout = 30000;
+
+    public EventSourceTransport(Map<String, Object> options, HttpClient httpClient)
+    {
+        this(null, options, httpClient);
+    }
+
+    public EventSourceTransport(String url, Map<String, Object> options, HttpClient httpClient)
+    {
+        super(NAME, url, options, httpClient);
+        setOptionPrefix(PREFIX);
+    }
+
+    @Override
+    public void setMessageTransportListener(TransportListener listener)
+    {
+        _messageListener = listener;
+    }
+
+    @Override
+    public void abort()
+    {
+        super.abort();
+        Request stream;
+        synchronized (this)
+        {
+            stream = _stream;
+            _stream = null;
+        }
+        if (stream != null)
+            stream.abort(new Exception("Transport " + this + " aborted"));
+    }
+
+    @Override
+    public void terminate()
+    {
+        abort();
+        super.terminate();
+    }
+
+    @Override
+    public void send(TransportListener listener, List<Message.Mutable> messages)
+    {
+        if (messages.size() == 1 && Channel.META_CONNECT.equals(messages.get(0).getChannel()))
+            connect(listener, messages.get(0));
+        else
+            super.send(listener, messages);
+    }
+
+    protected void connect(TransportListener listener, Message.Mutable message)
+    {
+        Request stream = null;
+        synchronized (this)
+        {
+            _connectListener = listener;
+            _connect = message;
+            if (_stream == null)
+                stream = _stream = newStreamRequest(message);
+        }
+
+        listener.onSending(Collections.singletonList(message));
+
+        if (stream != null)
+        {
+            if (logger.isDebugEnabled())
+                logger.debug("Opening stream with {}", message);
+            stream.send(new StreamListener());
+        }
+    }
+
+    protected Request newStreamRequest(Message.Mutable message)
+    {
+        String url = getURL();
+        URI uri = URI.create(url);
+        Request request = getHttpClient().newRequest(url)
+                .method(HttpMethod.GET)
+                .header(HttpHeader.ACCEPT, MIME_TYPE)
+                .param("message", generateJSON(Collections.singletonList(message)));
+
+        StringBuilder builder = new StringBuilder();
+        for (HttpCookie cookie : getCookieStore().get(uri))
+        {
+            builder.setLength(0);
+            builder.append(cookie.getName()).append("=").append(cookie.getValue());
+            request.header(HttpHeader.COOKIE.asString(), builder.toString());
+        }
+
+        customize(request);
+
+        // The server writes a /meta/connect reply every timeout,
+        // so a longer silence means that the stream is broken.
+        request.idleTimeout(_timeout + getMaxNetworkDelay(), TimeUnit.MILLISECONDS);
+        return request;
+    }
+
+    protected void onEvent(String data)
+    {
+        List<Message.Mutable> messages;
+        try
+        {
+            messages = parseMessages(data);
+        }
+        catch (ParseException x)
+        {
+            Request stream;
+            synchronized (this)
+            {
+                stream = _stream;
+            }
+            // Completing the stream fails the pending /meta/connect.
+            if (stream != null)
+                stream.abort(x);
+            return;
+        }
+
+        if (logger.isDebugEnabled())
+            logger.debug("Received messages {}", messages);
+
+        List<Message.Mutable> unsolicited = new ArrayList<>(messages.size());
+        for (Message.Mutable message : messages)
+        {
+            if (Channel.META_CONNECT.equals(message.getChannel()))
+            {
+                notifyMessages(unsolicited);
+                unsolicited = new ArrayList<>(messages.size());
+                onMetaConnectReply(message);
+            }
+            else
+            {
+                unsolicited.add(message);
+            }
+        }
+        notifyMessages(unsolicited);
+    }
+
+    private void notifyMessages(List<Message.Mutable> messages)
+    {
+        TransportListener listener = _messageListener;
+        if (listener != null && !messages.isEmpty())
+            listener.onMessages(messages);
+    }
+
+    private void onMetaConnectReply(Message.Mutable reply)
+    {
+        Map<String, Object> advice = reply.getAdvice();
+        if (advice != null)
+        {
+            Object timeout = advice.get("timeout");
+            if (timeout instanceof Number)
+                _timeout = ((Number)timeout).longValue();
+        }
+
+        TransportListener listener;
+        Message.Mutable connect;
+        synchronized (this)
+        {
+            listener = _connectListener;
+            connect = _connect;
+            _connectListener = null;
+            _connect = null;
+        }
+
+        if (listener == null)
+        {
+            // The reply arrived before the next /meta/connect was sent;
+            // it only confirms that the session is still connected.
+            if (logger.isDebugEnabled())
+                logger.debug("Dropped /meta/connect reply {}", reply);
+            return;
+        }
+
+        // The replies written every timeout have no id.
+        reply.setId(connect.getId());
+        listener.onMessages(Collections.singletonList(reply));
+    }
+
+    private void failStream(Request stream, Throwable failure)
+    {
+        TransportListener listener;
+        Message.Mutable connect;
+        synchronized (this)
+        {
+            if (_stream != stream)
+                return;
+            _stream = null;
+            listener = _connectListener;
+            connect = _connect;
+            _connectListener = null;
+            _connect = null;
+        }
+        if (listener != null)
+            listener.onFailure(failure, Collections.singletonList(connect));
+    }
+
+    private class StreamListener extends Response.Listener.Adapter
+    {
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        private final StringBuilder data = new StringBuilder();
+
+        @Override
+        public void onContent(Response response, ByteBuffer content)
+        {
+            if (response.getStatus() != HttpStatus.OK_200)
+                return;
+            while (content.hasRemaining())
+            {
+                byte b = content.get();
+                if (b == '\n')
+                    onLine(new String(line.toByteArray(), StandardCharsets.UTF_8));
+                else if (b != '\r')
+                    line.write(b);
+            }
+        }
+
+        private void onLine(String text)
+        {
+            line.reset();
+            if (text.isEmpty())
+            {
+                // An empty line dispatches the event.
+                if (data.length() > 0)
+                {
+                    String event = data.toString();
+                    data.setLength(0);
+                    onEvent(event);
+                }
+            }
+            else if (text.startsWith("data:"))
+            {
+                if (data.length() > 0)
+                    data.append('\n');
+                int start = text.startsWith("data: ") ? 6 : 5;
+                data.append(text, start, text.length());
+            }
+            // Other fields and comments are ignored.
+        }
+
+        @Override
+        public void onComplete(Result result)
+        {
+            Throwable failure = result.getFailure();
+            if (failure == null)
+            {
+                Map<String, Object> info = new HashMap<>(2);
+                int status = result.getResponse().getStatus();
+                // A stream that ends normally is reported as no content.
+                info.put("httpCode", status == HttpStatus.OK_200 ? 204 : status);
+                failure = new TransportException(info);
+            }
+            if (logger.isDebugEnabled())
+                logger.debug("Stream closed", failure);
+            failStream(result.getRequest(), failure);
+        }
+    }
+
+    public static class Factory extends ContainerLifeCycle implements ClientTransport.Factory
+    {
+        private final HttpClient httpClient;
+
+        public Factory(HttpClient httpClient)
+        {
+            this.httpClient = httpClient;
+            addBean(httpClient);
+        }
+
+        @Override
+        public ClientTransport newClientTransport(String url, Map<String, Object> options)
+        {
+            return new EventSourceTransport(url, options, httpClient);
+        }
+    }
+}
@@ -41,6 +41,17 @@ import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+/**
+ * <p>The long-polling transport, that sends Bayeux messages with HTTP
+ * requests performed by Jetty's {@link HttpClient}.</p>
+ * <p>The {@link HttpClient} may be configured with any
+ * {@code org.eclipse.jetty.client.HttpClientTransport}, such as the HTTP/2
+ * one when it is available, so that the requests of many sessions are
+ * multiplexed on a single connection; in this case the server should be
+ * configured to treat the requests as multiplexed, so that it holds the
+ * {@code /meta/connect} of every session without the limits of HTTP/1.1
+ * connections.</p>
+ */
 public class LongPollingTransport extends HttpClientTransport
 {
     public static final String NAME = "long-polling";
@@ -62,11 +73,21 @@ public class LongPollingTransport extends HttpClientTransport
 
     public LongPollingTransport(String url, Map<String, Object> options, HttpClient httpClient)
     {
-        super(NAME, url, options);
-        _httpClient = httpClient;
+        this(NAME, url, options, httpClient);
         setOptionPrefix(PREFIX);
     }
 
+    protected LongPollingTransport(String name, String url, Map<String, Object> options, HttpClient httpClient)
+    {
+        super(name, url, options);
+        _httpClient = httpClient;
+    }
+
+    protected HttpClient getHttpClient()
+    {
+        return _httpClient;
+    }
+
     @Override
     public boolean accept(String bayeuxVersion)
     {
@@ -0,0 +1,505 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.client.transport;
+
+import org.cometd.bayeux.Channel;
+import org.cometd.bayeux.Message;
+import org.cometd.common.TransportException;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.client.util.BufferingResponseListener;
+import org.eclipse.jetty.client.util.StringContentProvider;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.http.HttpMethod;
+import org.eclipse.jetty.http.HttpStatus;
+import org.eclipse.jetty.util.component.ContainerLifeCycle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>A long-polling transport that shares the HTTP requests of many
+ * {@link org.cometd.client.BayeuxClient}s, for applications such as
+ * gateways that run many clients against the same server.</p>
+ * <p>The transports created by the same {@link Multiplexer} send the messages
+ * of all their clients in one request at a time, coalescing the messages sent
+ * while a request is outstanding; the {@code /meta/connect} messages sent within
+ * the {@link Multiplexer#setConnectDelay(long) connect delay} are sent in one
+ * request, that the server holds until any of the clients has messages.</p>
+ * <p>The server must enable the {@code multiplexedSessions} option of its HTTP
+ * transports. Cookies are not sent, since they are specific to each client.</p>
+ */
+public class MultiplexedLongPollingTransport extends HttpClientTransport
+{
+    public static final String NAME = LongPollingTransport.NAME;
+    public static final String PREFIX = LongPollingTransport.PREFIX;
+
+    private final Multiplexer _multiplexer;
+    private final List<Exchange> _exchanges = new ArrayList<>();
+    private volatile boolean _aborted;
+    private volatile Map<String, Object> _advice;
+
+    public MultiplexedLongPollingTransport(String url, Map<String, Object> options, Multiplexer multiplexer)
+    {
+        super(NAME, url, options);
+        setOptionPrefix(PREFIX);
+        _multiplexer = multiplexer;
+    }
+
+    @Override
+    public boolean accept(String bayeuxVersion)
+    {
+        return true;
+    }
+
+    @Override
+    public void init()
+    {
+        super.init();
+
+        _aborted = false;
+
+        long defaultMaxNetworkDelay = _multiplexer.getHttpClient().getIdleTimeout();
+        if (defaultMaxNetworkDelay <= 0)
+            defaultMaxNetworkDelay = 10000;
+        setMaxNetworkDelay(defaultMaxNetworkDelay);
+    }
+
+    @Override
+    public void abort()
+    {
+        List<Exchange> exchanges;
+        synchronized (this)
+        {
+            _aborted = true;
+            exchanges = new ArrayList<>(_exchanges);
+            _exchanges.clear();
+        }
+        // The requests are shared with other transports, so they
+        // are not aborted, but their responses are discarded.
+        for (Exchange exchange : exchanges)
+            exchange.fail(new Exception("Transport " + this + " aborted"));
+    }
+
+    @Override
+    public void send(TransportListener listener, List<Message.Mutable> messages)
+    {
+        Exchange exchange = new Exchange(this, listener, messages);
+        synchronized (this)
+        {
+            if (_aborted)
+                throw new IllegalStateException("Aborted");
+            _exchanges.add(exchange);
+        }
+        _multiplexer.send(getURL(), exchange);
+    }
+
+    private synchronized void remove(Exchange exchange)
+    {
+        _exchanges.remove(exchange);
+    }
+
+    /**
+     * <p>Shares HTTP requests among the {@link MultiplexedLongPollingTransport}s it creates.</p>
+     */
+    public static class Multiplexer extends ContainerLifeCycle implements ClientTransport.Factory
+    {
+        private static final Logger logger = LoggerFactory.getLogger(Multiplexer.class);
+
+        private final Map<String, Lane> _lanes = new HashMap<>();
+        private final AtomicLong _ids = new AtomicLong();
+        private final HttpClient _httpClient;
+        private volatile long _connectDelay = 10;
+        private volatile int _maxBufferSize = 1024 * 1024;
+
+        public Multiplexer(HttpClient httpClient)
+        {
+            _httpClient = httpClient;
+            addBean(httpClient);
+        }
+
+        public HttpClient getHttpClient()
+        {
+            return _httpClient;
+        }
+
+        /**
+         * @return the time, in milliseconds, that {@code /meta/connect} messages
+         * are collected before being sent in one request
+         */
+        public long getConnectDelay()
+        {
+            return _connectDelay;
+        }
+
+        public void setConnectDelay(long connectDelay)
+        {
+            _connectDelay = connectDelay;
+        }
+
+        public int getMaxBufferSize()
+        {
+            return _maxBufferSize;
+        }
+
+        public void setMaxBufferSize(int maxBufferSize)
+        {
+            _maxBufferSize = maxBufferSize;
+        }
+
+        @Override
+        public ClientTransport newClientTransport(String url, Map<String, Object> options)
+        {
+            return new MultiplexedLongPollingTransport(url, options, this);
+        }
+
+        private void send(final String url, Exchange exchange)
+        {
+            List<Exchange> exchanges = null;
+            boolean scheduleConnects = false;
+            synchronized (this)
+            {
+                Lane lane = _lanes.get(url);
+                if (lane == null)
+                {
+                    lane = new Lane();
+                    _lanes.put(url, lane);
+                }
+                if (exchange.isMetaConnect())
+                {
+                    lane.connects.add(exchange);
+                    scheduleConnects = lane.connects.size() == 1;
+                }
+                else if (lane.sending)
+                {
+                    lane.pending.add(exchange);
+                }
+                else
+                {
+                    lane.sending = true;
+                    exchanges = new ArrayList<>(1);
+                    exchanges.add(exchange);
+                }
+            }
+
+            if (exchanges != null)
+                send(url, exchanges, false);
+
+            if (scheduleConnects)
+            {
+                long delay = getConnectDelay();
+                if (delay > 0)
+                {
+                    _httpClient.getScheduler().schedule(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            sendConnects(url);
+                        }
+                    }, delay, TimeUnit.MILLISECONDS);
+                }
+                else
+                {
+                    sendConnects(url);
+                }
+            }
+        }
+
+        private void sendConnects(String url)
+        {
+            List<Exchange> exchanges;
+            synchronized (this)
+            {
+                Lane lane = _lanes.get(url);
+                exchanges = new ArrayList<>(lane.connects);
+                lane.connects.clear();
+            }
+            // The server holds the request until any of the clients has
+            // messages, so /meta/connect requests do not wait for each other.
+            if (!exchanges.isEmpty())
+                send(url, exchanges, true);
+        }
+
+        private void sendNext(String url)
+        {
+            List<Exchange> exchanges = null;
+            synchronized (this)
+            {
+                Lane lane = _lanes.get(url);
+                if (lane.pending.isEmpty())
+                {
+                    lane.sending = false;
+                }
+                else
+                {
+                    exchanges = new ArrayList<>(lane.pending);
+                    lane.pending.clear();
+                }
+            }
+            if (exchanges != null)
+                send(url, exchanges, false);
+        }
+
+        private void send(final String url, final List<Exchange> exchanges, final boolean metaConnect)
+        {
+            // Message ids are unique only within a client, so they are
+            // replaced by ids unique within this multiplexer, that are
+            // used to route the replies back to their client.
+            final Map<String, Sent> sent = new HashMap<>();
+            List<Message.Mutable> messages = new ArrayList<>();
+            long maxNetworkDelay = 0;
+            boolean singleTransport = true;
+            for (Exchange exchange : exchanges)
+            {
+                singleTransport &= exchange.transport == exchanges.get(0).transport;
+                maxNetworkDelay = Math.max(maxNetworkDelay, exchange.transport.getMaxNetworkDelay() + exchange.getTimeout());
+                for (Message.Mutable message : exchange.messages)
+                {
+                    String id = String.valueOf(_ids.incrementAndGet());
+                    sent.put(id, new Sent(exchange, message));
+                    message.setId(id);
+                    messages.add(message);
+                }
+            }
+
+            final MultiplexedLongPollingTransport transport = exchanges.get(0).transport;
+            String content;
+            try
+            {
+                content = transport.generateJSON(messages);
+            }
+            finally
+            {
+                for (Sent entry : sent.values())
+                    entry.restore();
+            }
+
+            Request request = _httpClient.newRequest(url).method(HttpMethod.POST);
+            request.header(HttpHeader.CONTENT_TYPE.asString(), "application/json;charset=UTF-8");
+            request.content(new StringContentProvider(content));
+            request.listener(new Request.Listener.Adapter()
+            {
+                @Override
+                public void onHeaders(Request request)
+                {
+                    for (Exchange exchange : exchanges)
+                        exchange.listener.onSending(exchange.messages);
+                }
+            });
+            // Set the idle timeout for this request larger than the total timeout
+            // so there are no races between the two timeouts
+            request.idleTimeout(maxNetworkDelay * 2, TimeUnit.MILLISECONDS);
+            request.timeout(maxNetworkDelay, TimeUnit.MILLISECONDS);
+
+            final Exchange single = singleTransport ? exchanges.get(0) : null;
+            request.send(new BufferingResponseListener(getMaxBufferSize())
+            {
+                @Override
+                public void onComplete(Result result)
+                {
+                    if (!metaConnect)
+                        sendNext(url);
+
+                    if (result.isFailed())
+                    {
+                        fail(result.getFailure());
+                        return;
+                    }
+
+                    Response response = result.getResponse();
+                    int status = response.getStatus();
+                    if (status != HttpStatus.OK_200)
+                    {
+                        Map<String, Object> failure = new HashMap<>(2);
+                        failure.put("httpCode", status);
+                        fail(new TransportException(failure));
+                        return;
+                    }
+
+                    try
+                    {
+                        String content = getContentAsString();
+                        List<Message.Mutable> messages = content == null || content.isEmpty() ?
+                                new ArrayList<Message.Mutable>() : transport.parseMessages(content);
+                        if (logger.isDebugEnabled())
+                            logger.debug("Received messages {}", messages);
+                        demultiplex(messages);
+                    }
+                    catch (ParseException x)
+                    {
+                        fail(x);
+                    }
+                }
+
+                private void demultiplex(List<Message.Mutable> messages)
+                {
+                    // Messages delivered to a client follow its /meta/connect reply,
+                    // unless all the messages of the request belong to one client.
+                    Exchange current = single;
+                    for (Message.Mutable message : messages)
+                    {
+                        Sent entry = isReply(message) ? sent.get(message.getId()) : null;
+                        if (entry != null)
+                        {
+                            Exchange exchange = entry.exchange;
+                            entry.restore(message);
+                            exchange.received.add(message);
+                            if (Channel.META_CONNECT.equals(message.getChannel()))
+                            {
+                                if (single == null)
+                                    current = exchange;
+                                if (message.isSuccessful())
+                                {
+                                    Map<String, Object> advice = message.getAdvice();
+                                    if (advice != null && advice.get("timeout") != null)
+                                        exchange.transport._advice = advice;
+                                }
+                            }
+                        }
+                        else if (current != null)
+                        {
+                            current.received.add(message);
+                        }
+                        else
+                        {
+                            logger.info("Could not demultiplex {}", message);
+                        }
+                    }
+                    for (Exchange exchange : exchanges)
+                        exchange.succeed();
+                }
+
+                private void fail(Throwable failure)
+                {
+                    for (Exchange exchange : exchanges)
+                        exchange.fail(failure);
+                }
+            });
+        }
+
+        private boolean isReply(Message message)
+        {
+            return message.isMeta() || message.containsKey(Message.SUCCESSFUL_FIELD);
+        }
+    }
+
+    private static class Lane
+    {
+        private final List<Exchange> pending = new ArrayList<>();
+        private final List<Exchange> connects = new ArrayList<>();
+        private boolean sending;
+    }
+
+    private static class Sent
+    {
+        private final Exchange exchange;
+        private final Message.Mutable message;
+        private final String id;
+
+        private Sent(Exchange exchange, Message.Mutable message)
+        {
+            this.exchange = exchange;
+            this.message = message;
+            this.id = message.getId();
+        }
+
+        private void restore()
+        {
+            restore(message);
+        }
+
+        private void restore(Message.Mutable message)
+        {
+            if (id == null)
+                message.remove(Message.ID_FIELD);
+            else
+                message.setId(id);
+        }
+    }
+
+    private static class Exchange
+    {
+        private final AtomicBoolean completed = new AtomicBoolean();
+        private final List<Message.Mutable> received = new ArrayList<>();
+        private final MultiplexedLongPollingTransport transport;
+        private final TransportListener listener;
+        private final List<Message.Mutable> messages;
+
+        private Exchange(MultiplexedLongPollingTransport transport, TransportListener listener, List<Message.Mutable> messages)
+        {
+            this.transport = transport;
+            this.listener = listener;
+            this.messages = messages;
+        }
+
+        private boolean isMetaConnect()
+        {
+            return messages.size() == 1 && Channel.META_CONNECT.equals(messages.get(0).getChannel());
+        }
+
+        private long getTimeout()
+        {
+            if (!isMetaConnect())
+                return 0;
+            Map<String, Object> advice = messages.get(0).getAdvice();
+            if (advice == null)
+                advice = transport._advice;
+            if (advice == null)
+                return 0;
+            Object timeout = advice.get("timeout");
+            if (timeout instanceof Number)
+                return ((Number)timeout).longValue();
+            return timeout == null ? 0 : Long.parseLong(timeout.toString());
+        }
+
+        private void succeed()
+        {
+            if (!completed.compareAndSet(false, true))
+                return;
+            transport.remove(this);
+            if (received.isEmpty())
+            {
+                Map<String, Object> failure = new HashMap<>(2);
+                // No reply for this client, as with an empty response.
+                failure.put("httpCode", 204);
+                listener.onFailure(new TransportException(failure), messages);
+            }
+            else
+            {
+                listener.onMessages(received);
+            }
+        }
+
+        private void fail(Throwable failure)
+        {
+            if (!completed.compareAndSet(false, true))
+                return;
+            transport.remove(this);
+            listener.onFailure(failure, messages);
+        }
+    }
+}
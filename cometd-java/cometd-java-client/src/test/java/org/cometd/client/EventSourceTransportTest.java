@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.client;
+
+import org.cometd.bayeux.Channel;
+import org.cometd.bayeux.Message;
+import org.cometd.bayeux.client.ClientSessionChannel;
+import org.cometd.bayeux.server.BayeuxServer;
+import org.cometd.bayeux.server.ServerMessage;
+import org.cometd.bayeux.server.ServerSession;
+import org.cometd.client.transport.EventSourceTransport;
+import org.cometd.server.BayeuxServerImpl;
+import org.cometd.server.ServerSessionImpl;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class EventSourceTransportTest extends ClientServerTest
+{
+    private final long timeout = 1000;
+
+    @Before
+    public void init() throws Exception
+    {
+        Map<String, String> params = new HashMap<>();
+        params.put("timeout", String.valueOf(timeout));
+        startServer(params);
+        // The server transport is not installed by default.
+        BayeuxServerImpl bayeuxServer = (BayeuxServerImpl)bayeux;
+        org.cometd.server.transport.EventSourceTransport transport = new org.cometd.server.transport.EventSourceTransport(bayeuxServer);
+        transport.init();
+        bayeuxServer.addTransport(transport);
+        List<String> allowed = new ArrayList<>(bayeuxServer.getAllowedTransports());
+        allowed.add(EventSourceTransport.NAME);
+        bayeuxServer.setAllowedTransports(allowed);
+    }
+
+    @Test
+    public void testMessagesAreStreamed() throws Exception
+    {
+        final AtomicInteger connects = new AtomicInteger();
+        bayeux.addExtension(new BayeuxServer.Extension.Adapter()
+        {
+            @Override
+            public boolean rcvMeta(ServerSession from, ServerMessage.Mutable message)
+            {
+                if (Channel.META_CONNECT.equals(message.getChannel()))
+                    connects.incrementAndGet();
+                return true;
+            }
+        });
+
+        BayeuxClient client = new BayeuxClient(cometdURL, new EventSourceTransport(null, httpClient));
+        final CountDownLatch metaConnects = new CountDownLatch(3);
+        client.getChannel(Channel.META_CONNECT).addListener(new ClientSessionChannel.MessageListener()
+        {
+            public void onMessage(ClientSessionChannel channel, Message message)
+            {
+                if (message.isSuccessful())
+                    metaConnects.countDown();
+            }
+        });
+        client.handshake();
+        Assert.assertTrue(client.waitFor(5000, BayeuxClient.State.CONNECTED));
+        Assert.assertEquals(EventSourceTransport.NAME, client.getTransport().getName());
+
+        int count = 10;
+        final String channelName = "/foo";
+        final CountDownLatch messages = new CountDownLatch(count);
+        final CountDownLatch subscribed = new CountDownLatch(1);
+        client.getChannel(channelName).subscribe(new ClientSessionChannel.MessageListener()
+        {
+            public void onMessage(ClientSessionChannel channel, Message message)
+            {
+                messages.countDown();
+            }
+        }, new ClientSessionChannel.MessageListener()
+        {
+            public void onMessage(ClientSessionChannel channel, Message message)
+            {
+                subscribed.countDown();
+            }
+        });
+        Assert.assertTrue(subscribed.await(5, TimeUnit.SECONDS));
+
+        BayeuxClient publisher = newBayeuxClient();
+        publisher.handshake();
+        Assert.assertTrue(publisher.waitFor(5000, BayeuxClient.State.CONNECTED));
+        for (int i = 0; i < count; ++i)
+            publisher.getChannel(channelName).publish(i);
+        Assert.assertTrue(messages.await(5, TimeUnit.SECONDS));
+
+        // The server replies to the /meta/connect every timeout on the
+        // same stream, so only the long-polling client sends them.
+        int publisherConnects = connects.get();
+        disconnectBayeuxClient(publisher);
+        Assert.assertTrue(metaConnects.await(timeout * 4, TimeUnit.MILLISECONDS));
+        Assert.assertTrue(client.isConnected());
+        Assert.assertEquals(publisherConnects, connects.get());
+
+        disconnectBayeuxClient(client);
+        Assert.assertTrue(client.waitFor(5000, BayeuxClient.State.DISCONNECTED));
+        Assert.assertTrue(bayeux.getSessions().isEmpty());
+    }
+
+    @Test
+    public void testReconnectAfterStreamFailure() throws Exception
+    {
+        BayeuxClient client = new BayeuxClient(cometdURL, new EventSourceTransport(null, httpClient));
+        client.handshake();
+        Assert.assertTrue(client.waitFor(5000, BayeuxClient.State.CONNECTED));
+        String clientId = client.getId();
+
+        // Wait for the next /meta/connect to be pending.
+        Thread.sleep(timeout / 2);
+
+        // Close the stream, the client opens a new one.
+        final CountDownLatch reconnected = new CountDownLatch(1);
+        client.getChannel(Channel.META_CONNECT).addListener(new ClientSessionChannel.MessageListener()
+        {
+            public void onMessage(ClientSessionChannel channel, Message message)
+            {
+                if (message.isSuccessful())
+                    reconnected.countDown();
+            }
+        });
+        ((ServerSessionImpl)bayeux.getSession(clientId)).cancelSchedule();
+
+        Assert.assertTrue(reconnected.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(clientId, client.getId());
+
+        disconnectBayeuxClient(client);
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.client;
+
+import org.cometd.bayeux.Channel;
+import org.cometd.bayeux.Message;
+import org.cometd.bayeux.client.ClientSessionChannel;
+import org.cometd.client.transport.MultiplexedLongPollingTransport;
+import org.cometd.server.transport.AbstractHttpTransport;
+import org.eclipse.jetty.client.api.Request;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MultiplexedLongPollingTransportTest extends ClientServerTest
+{
+    private final long timeout = 1000;
+    private final AtomicInteger requests = new AtomicInteger();
+    private MultiplexedLongPollingTransport.Multiplexer multiplexer;
+
+    @Before
+    public void init() throws Exception
+    {
+        Map<String, String> params = new HashMap<>();
+        params.put("timeout", String.valueOf(timeout));
+        params.put(AbstractHttpTransport.MULTIPLEXED_SESSIONS_OPTION, "true");
+        startServer(params);
+
+        httpClient.getRequestListeners().add(new Request.Listener.Adapter()
+        {
+            @Override
+            public void onBegin(Request request)
+            {
+                requests.incrementAndGet();
+            }
+        });
+        multiplexer = new MultiplexedLongPollingTransport.Multiplexer(httpClient);
+        multiplexer.start();
+    }
+
+    @After
+    public void dispose() throws Exception
+    {
+        if (multiplexer != null)
+            multiplexer.stop();
+    }
+
+    @Test
+    public void testClientsShareRequests() throws Exception
+    {
+        int count = 50;
+        final String channelName = "/foo";
+        final CountDownLatch subscribed = new CountDownLatch(count);
+        final CountDownLatch messages = new CountDownLatch(count);
+        List<BayeuxClient> clients = new ArrayList<>();
+        for (int i = 0; i < count; ++i)
+        {
+            BayeuxClient client = new BayeuxClient(cometdURL, multiplexer.newClientTransport(null, null));
+            clients.add(client);
+            client.handshake(new ClientSessionChannel.MessageListener()
+            {
+                public void onMessage(ClientSessionChannel channel, Message message)
+                {
+                    if (!message.isSuccessful())
+                        return;
+                    channel.getSession().getChannel(channelName).subscribe(new ClientSessionChannel.MessageListener()
+                    {
+                        public void onMessage(ClientSessionChannel channel, Message message)
+                        {
+                            messages.countDown();
+                        }
+                    }, new ClientSessionChannel.MessageListener()
+                    {
+                        public void onMessage(ClientSessionChannel channel, Message message)
+                        {
+                            if (message.isSuccessful())
+                                subscribed.countDown();
+                        }
+                    });
+                }
+            });
+        }
+
+        Assert.assertTrue(subscribed.await(5, TimeUnit.SECONDS));
+        for (BayeuxClient client : clients)
+            Assert.assertTrue(client.waitFor(5000, BayeuxClient.State.CONNECTED));
+
+        bayeux.createChannelIfAbsent(channelName).getReference().publish(null, "data");
+        Assert.assertTrue(messages.await(5, TimeUnit.SECONDS));
+
+        // Each client would need at least 3 requests without multiplexing.
+        Assert.assertTrue(String.valueOf(requests.get()), requests.get() < count);
+
+        // The clients keep working across the timeouts of the held requests.
+        Thread.sleep(timeout * 2);
+        for (BayeuxClient client : clients)
+            Assert.assertTrue(client.isConnected());
+
+        for (BayeuxClient client : clients)
+            client.disconnect();
+        for (BayeuxClient client : clients)
+            Assert.assertTrue(client.waitFor(5000, BayeuxClient.State.DISCONNECTED));
+        Assert.assertTrue(bayeux.getSessions().isEmpty());
+    }
+
+    @Test
+    public void testMessagesAreDeliveredToTheirClient() throws Exception
+    {
+        BayeuxClient client1 = new BayeuxClient(cometdURL, multiplexer.newClientTransport(null, null));
+        BayeuxClient client2 = new BayeuxClient(cometdURL, multiplexer.newClientTransport(null, null));
+        client1.handshake();
+        client2.handshake();
+        Assert.assertTrue(client1.waitFor(5000, BayeuxClient.State.CONNECTED));
+        Assert.assertTrue(client2.waitFor(5000, BayeuxClient.State.CONNECTED));
+
+        final CountDownLatch latch1 = new CountDownLatch(1);
+        final CountDownLatch latch2 = new CountDownLatch(1);
+        final AtomicInteger misrouted = new AtomicInteger();
+        client1.getChannel(Channel.SERVICE + "/test").addListener(new ClientSessionChannel.MessageListener()
+        {
+            public void onMessage(ClientSessionChannel channel, Message message)
+            {
+                if ("one".equals(message.getData()))
+                    latch1.countDown();
+                else
+                    misrouted.incrementAndGet();
+            }
+        });
+        client2.getChannel(Channel.SERVICE + "/test").addListener(new ClientSessionChannel.MessageListener()
+        {
+            public void onMessage(ClientSessionChannel channel, Message message)
+            {
+                if ("two".equals(message.getData()))
+                    latch2.countDown();
+                else
+                    misrouted.incrementAndGet();
+            }
+        });
+
+        // Wait for the /meta/connects to be held.
+        Thread.sleep(timeout / 2);
+        bayeux.getSession(client1.getId()).deliver(null, Channel.SERVICE + "/test", "one");
+        bayeux.getSession(client2.getId()).deliver(null, Channel.SERVICE + "/test", "two");
+
+        Assert.assertTrue(latch1.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(latch2.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(0, misrouted.get());
+
+        disconnectBayeuxClient(client1);
+        disconnectBayeuxClient(client2);
+    }
+}
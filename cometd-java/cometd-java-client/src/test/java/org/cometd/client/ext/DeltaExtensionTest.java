@@ -0,0 +1,330 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.client.ext;
+
+import org.cometd.bayeux.Channel;
+import org.cometd.bayeux.ChannelId;
+import org.cometd.bayeux.Message;
+import org.cometd.bayeux.client.ClientSession;
+import org.cometd.bayeux.client.ClientSessionChannel;
+import org.cometd.bayeux.server.ServerChannel;
+import org.cometd.bayeux.server.ServerMessage;
+import org.cometd.client.BayeuxClient;
+import org.cometd.client.ClientServerTest;
+import org.cometd.server.BayeuxServerImpl;
+import org.cometd.server.ext.DeltaExtension;
+import org.cometd.server.ext.DeltaSessionExtension;
+import org.eclipse.jetty.util.BlockingArrayQueue;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class DeltaExtensionTest extends ClientServerTest
+{
+    private final String channelName = "/snapshot";
+    private final List<Boolean> deltas = new CopyOnWriteArrayList<>();
+    private final BlockingQueue<Message> messages = new BlockingArrayQueue<>();
+
+    @Before
+    public void init() throws Exception
+    {
+        startServer(null);
+    }
+
+    @Test
+    public void testDeltasAreApplied() throws Exception
+    {
+        bayeux.addExtension(new DeltaExtension((BayeuxServerImpl)bayeux, 4, channelName));
+        BayeuxClient client = newBayeuxClient();
+        client.addExtension(new DeltaRecorder(-1));
+        client.addExtension(new DeltaClientExtension());
+        subscribe(client);
+
+        ServerChannel channel = bayeux.getChannel(channelName);
+        int count = 6;
+        for (int i = 0; i < count; ++i)
+            channel.publish(null, snapshot(i));
+
+        for (int i = 0; i < count; ++i)
+        {
+            Message message = messages.poll(5, TimeUnit.SECONDS);
+            Assert.assertNotNull(message);
+            Assert.assertEquals(snapshot(i), message.getDataAsMap());
+            Assert.assertNull(message.getExt() == null ? null : message.getExt().get(DeltaClientExtension.DELTA_FIELD));
+        }
+
+        // A key frame, 4 deltas and another key frame.
+        Assert.assertEquals(count, deltas.size());
+        Assert.assertFalse(deltas.get(0));
+        for (int i = 1; i < count - 1; ++i)
+            Assert.assertTrue(deltas.get(i));
+        Assert.assertFalse(deltas.get(count - 1));
+
+        disconnectBayeuxClient(client);
+    }
+
+    @Test
+    public void testMissingDeltaTriggersResync() throws Exception
+    {
+        bayeux.addExtension(new DeltaExtension((BayeuxServerImpl)bayeux, channelName));
+        final BayeuxClient client = newBayeuxClient();
+        // Lose the first delta.
+        client.addExtension(new DeltaRecorder(1));
+        client.addExtension(new DeltaClientExtension());
+        subscribe(client);
+
+        ServerChannel channel = bayeux.getChannel(channelName);
+        channel.publish(null, snapshot(0));
+        channel.publish(null, snapshot(1));
+        channel.publish(null, snapshot(2));
+
+        Message message = messages.poll(5, TimeUnit.SECONDS);
+        Assert.assertEquals(snapshot(0), message.getDataAsMap());
+        // The second delta cannot be applied.
+        Assert.assertNull(messages.poll(1, TimeUnit.SECONDS));
+
+        // The request to resynchronize is sent with the next message.
+        final CountDownLatch published = new CountDownLatch(1);
+        client.getChannel("/service/ping").publish("ping", new ClientSessionChannel.MessageListener()
+        {
+            public void onMessage(ClientSessionChannel channel, Message message)
+            {
+                published.countDown();
+            }
+        });
+        Assert.assertTrue(published.await(5, TimeUnit.SECONDS));
+
+        channel.publish(null, snapshot(3));
+        message = messages.poll(5, TimeUnit.SECONDS);
+        Assert.assertNotNull(message);
+        Assert.assertEquals(snapshot(3), message.getDataAsMap());
+        Assert.assertFalse(deltas.get(deltas.size() - 1));
+
+        disconnectBayeuxClient(client);
+    }
+
+    @Test
+    public void testMissingKeyFrameTriggersResync() throws Exception
+    {
+        bayeux.addExtension(new DeltaExtension((BayeuxServerImpl)bayeux, channelName));
+        final BayeuxClient client = newBayeuxClient();
+        // Lose the second key frame.
+        client.addExtension(new DeltaRecorder(1));
+        client.addExtension(new DeltaClientExtension());
+        subscribe(client);
+
+        ServerChannel channel = bayeux.getChannel(channelName);
+        channel.publish(null, fields("a"));
+        // The patch would be larger than the data, so this is a key frame.
+        channel.publish(null, fields("b"));
+        // This delta only adds a field, so it could be applied to
+        // the first key frame, but it refers to the second one.
+        channel.publish(null, fields("b", "c"));
+
+        Message message = messages.poll(5, TimeUnit.SECONDS);
+        Assert.assertEquals(fields("a"), message.getDataAsMap());
+        Assert.assertFalse(deltas.get(0));
+        Assert.assertNull(messages.poll(1, TimeUnit.SECONDS));
+        Assert.assertFalse(deltas.get(1));
+        Assert.assertTrue(deltas.get(2));
+
+        final CountDownLatch published = new CountDownLatch(1);
+        client.getChannel("/service/ping").publish("ping", new ClientSessionChannel.MessageListener()
+        {
+            public void onMessage(ClientSessionChannel channel, Message message)
+            {
+                published.countDown();
+            }
+        });
+        Assert.assertTrue(published.await(5, TimeUnit.SECONDS));
+
+        channel.publish(null, fields("b", "c", "d"));
+        message = messages.poll(5, TimeUnit.SECONDS);
+        Assert.assertNotNull(message);
+        Assert.assertEquals(fields("b", "c", "d"), message.getDataAsMap());
+        Assert.assertFalse(deltas.get(deltas.size() - 1));
+
+        disconnectBayeuxClient(client);
+    }
+
+    @Test
+    public void testKeyFramesAreTheOriginalMessages() throws Exception
+    {
+        DeltaSessionExtension extension = new DeltaSessionExtension((BayeuxServerImpl)bayeux, 4, Collections.<ChannelId>emptyList());
+        ServerMessage.Mutable keyFrame = bayeux.newMessage();
+        keyFrame.setChannel(channelName);
+        keyFrame.setData(fields("a"));
+        Assert.assertSame(keyFrame, extension.send(null, keyFrame));
+
+        ServerMessage.Mutable message = bayeux.newMessage();
+        message.setChannel(channelName);
+        message.setData(fields("a", "b"));
+        ServerMessage delta = extension.send(null, message);
+        Assert.assertNotSame(message, delta);
+        Map<String, Object> deltaExt = asMap(delta.getExt().get(DeltaClientExtension.DELTA_FIELD));
+        Assert.assertEquals(1L, ((Number)deltaExt.get(DeltaClientExtension.EPOCH_FIELD)).longValue());
+        Assert.assertEquals(1, ((Number)deltaExt.get(DeltaClientExtension.SEQ_FIELD)).intValue());
+        // The original message is not modified.
+        Assert.assertEquals(fields("a", "b"), message.getData());
+        Assert.assertNull(message.getExt());
+    }
+
+    @Test
+    public void testUnsubscribeDropsSnapshots() throws Exception
+    {
+        DeltaSessionExtension extension = new DeltaSessionExtension((BayeuxServerImpl)bayeux, 4, Collections.<ChannelId>emptyList());
+        ServerMessage.Mutable keyFrame = bayeux.newMessage();
+        keyFrame.setChannel(channelName + "/a");
+        keyFrame.setData(fields("a"));
+        Assert.assertSame(keyFrame, extension.send(null, keyFrame));
+
+        ServerMessage.Mutable unsubscribe = bayeux.newMessage();
+        unsubscribe.setChannel(Channel.META_UNSUBSCRIBE);
+        unsubscribe.put(Message.SUBSCRIPTION_FIELD, channelName + "/*");
+        unsubscribe.setSuccessful(true);
+        Assert.assertTrue(extension.sendMeta(null, unsubscribe));
+
+        // Without the snapshot, the same data is sent as a key frame.
+        ServerMessage.Mutable message = bayeux.newMessage();
+        message.setChannel(channelName + "/a");
+        message.setData(fields("a", "b"));
+        Assert.assertSame(message, extension.send(null, message));
+    }
+
+    @Test
+    public void testResubscribeStartsWithKeyFrame() throws Exception
+    {
+        bayeux.addExtension(new DeltaExtension((BayeuxServerImpl)bayeux, channelName));
+        BayeuxClient client = newBayeuxClient();
+        client.addExtension(new DeltaRecorder(-1));
+        client.addExtension(new DeltaClientExtension());
+        subscribe(client);
+
+        ServerChannel channel = bayeux.getChannel(channelName);
+        channel.publish(null, snapshot(0));
+        channel.publish(null, snapshot(1));
+        Assert.assertEquals(snapshot(0), messages.poll(5, TimeUnit.SECONDS).getDataAsMap());
+        Assert.assertEquals(snapshot(1), messages.poll(5, TimeUnit.SECONDS).getDataAsMap());
+
+        final CountDownLatch unsubscribed = new CountDownLatch(1);
+        client.getChannel(Channel.META_UNSUBSCRIBE).addListener(new ClientSessionChannel.MessageListener()
+        {
+            public void onMessage(ClientSessionChannel channel, Message message)
+            {
+                if (message.isSuccessful())
+                    unsubscribed.countDown();
+            }
+        });
+        client.getChannel(channelName).unsubscribe();
+        Assert.assertTrue(unsubscribed.await(5, TimeUnit.SECONDS));
+        subscribeChannel(client);
+
+        // Both sides dropped the snapshot, so no resynchronization is needed.
+        channel.publish(null, snapshot(2));
+        channel.publish(null, snapshot(3));
+        Assert.assertEquals(snapshot(2), messages.poll(5, TimeUnit.SECONDS).getDataAsMap());
+        Assert.assertEquals(snapshot(3), messages.poll(5, TimeUnit.SECONDS).getDataAsMap());
+        Assert.assertEquals(Arrays.asList(false, true, false, true), deltas);
+
+        disconnectBayeuxClient(client);
+    }
+
+    private void subscribe(BayeuxClient client) throws Exception
+    {
+        client.handshake();
+        Assert.assertTrue(client.waitFor(5000, BayeuxClient.State.CONNECTED));
+        subscribeChannel(client);
+    }
+
+    private void subscribeChannel(BayeuxClient client) throws Exception
+    {
+        final CountDownLatch subscribed = new CountDownLatch(1);
+        client.getChannel(channelName).subscribe(new ClientSessionChannel.MessageListener()
+        {
+            public void onMessage(ClientSessionChannel channel, Message message)
+            {
+                messages.offer(message);
+            }
+        }, new ClientSessionChannel.MessageListener()
+        {
+            public void onMessage(ClientSessionChannel channel, Message message)
+            {
+                if (message.isSuccessful())
+                    subscribed.countDown();
+            }
+        });
+        Assert.assertTrue(subscribed.await(5, TimeUnit.SECONDS));
+    }
+
+    private Map<String, Object> snapshot(int version)
+    {
+        Map<String, Object> nested = new HashMap<>();
+        nested.put("version", (long)version);
+        nested.put("unchanged", "value");
+        Map<String, Object> data = new HashMap<>();
+        data.put("name", "dashboard");
+        data.put("total", 1000L);
+        data.put("nested", nested);
+        if (version % 2 == 0)
+            data.put("even", true);
+        return data;
+    }
+
+    private Map<String, Object> fields(String... names)
+    {
+        Map<String, Object> data = new HashMap<>();
+        for (String name : names)
+            data.put(name, 1L);
+        return data;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> asMap(Object object)
+    {
+        return (Map<String, Object>)object;
+    }
+
+    private class DeltaRecorder extends ClientSession.Extension.Adapter
+    {
+        private final int drop;
+
+        private DeltaRecorder(int drop)
+        {
+            this.drop = drop;
+        }
+
+        @Override
+        public boolean rcv(ClientSession session, Message.Mutable message)
+        {
+            if (!channelName.equals(message.getChannel()) || message.isPublishReply())
+                return true;
+            Map<String, Object> ext = message.getExt();
+            Object delta = ext == null ? null : ext.get(DeltaClientExtension.DELTA_FIELD);
+            deltas.add(delta instanceof Map && ((Map<?, ?>)delta).containsKey(DeltaClientExtension.SEQ_FIELD));
+            return deltas.size() - 1 != drop;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.common;
+
+import org.cometd.bayeux.Message;
+import org.cometd.bayeux.server.ServerMessage;
+
+import java.text.ParseException;
+import java.util.List;
+
+/**
+ * <p>The counterpart of {@link JSONContext} for binary encodings of messages,
+ * that are carried by transports that support binary frames such as WebSocket.</p>
+ * <p>Each encoding is identified by a {@link BinaryParserGenerator#getProtocol() protocol name}
+ * that clients and servers use to negotiate it, for example as WebSocket subprotocol.</p>
+ */
+public interface BinaryContext
+{
+    public interface Client extends BinaryParserGenerator<Message.Mutable>
+    {
+    }
+
+    public interface Server extends BinaryParserGenerator<ServerMessage.Mutable>
+    {
+    }
+}
+
+interface BinaryParserGenerator<T extends Message.Mutable>
+{
+    /**
+     * @return the name that identifies this binary encoding
+     */
+    public String getProtocol();
+
+    /**
+     * @param bytes  the bytes to parse
+     * @param offset the offset of the bytes to parse
+     * @param length the number of bytes to parse
+     * @return the messages parsed
+     * @throws ParseException if the bytes do not represent messages
+     */
+    public T[] parse(byte[] bytes, int offset, int length) throws ParseException;
+
+    public byte[] generate(Message message);
+
+    public byte[] generate(List<? extends Message> messages);
+}
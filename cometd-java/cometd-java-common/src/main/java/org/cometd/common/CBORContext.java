@@ -0,0 +1,522 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.common;
+
+import org.cometd.bayeux.Message;
+
+import java.lang.reflect.Array;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>A binary encoding of messages in CBOR, as specified by RFC 7049.</p>
+ * <p>A list of messages is encoded as an array of maps, and values are encoded with the
+ * CBOR types equivalent to the JSON ones: integral numbers are encoded as integers, and
+ * other numbers as floating point values, in single precision when it is lossless.
+ * Values that have no JSON equivalent, other than byte arrays, are encoded as their
+ * string representation.</p>
+ * <p>Like {@link JettyJSONContext}, parsing produces {@link Long}s for integers,
+ * {@link Double}s for floating point values and {@code Object[]} for arrays.</p>
+ *
+ * @param <T> the type of the messages
+ */
+public abstract class CBORContext<T extends Message.Mutable>
+{
+    public static final String PROTOCOL = "cometd-cbor";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int UNSIGNED = 0;
+    private static final int NEGATIVE = 1;
+    private static final int BYTES = 2;
+    private static final int TEXT = 3;
+    private static final int ARRAY = 4;
+    private static final int MAP = 5;
+    private static final int TAG = 6;
+    private static final int FALSE = 0xF4;
+    private static final int TRUE = 0xF5;
+    private static final int NULL = 0xF6;
+    private static final int FLOAT = 0xFA;
+    private static final int DOUBLE = 0xFB;
+    private static final int BREAK = 0xFF;
+    private static final int INDEFINITE = 31;
+    // Bounds the recursion of the parser, that would otherwise
+    // overflow the stack with deeply nested arrays, maps or tags.
+    private static final int MAX_DEPTH = 128;
+
+    protected abstract T newRoot();
+
+    protected abstract T[] newRootArray(int size);
+
+    public String getProtocol()
+    {
+        return PROTOCOL;
+    }
+
+    public T[] parse(byte[] bytes, int offset, int length) throws ParseException
+    {
+        return new Parser(bytes, offset, length).parseMessages();
+    }
+
+    public byte[] generate(Message message)
+    {
+        Generator generator = new Generator();
+        generator.writeMap(message);
+        return generator.toByteArray();
+    }
+
+    public byte[] generate(List<? extends Message> messages)
+    {
+        Generator generator = new Generator();
+        generator.writeHeader(ARRAY, messages.size());
+        for (Message message : messages)
+            generator.writeMap(message);
+        return generator.toByteArray();
+    }
+
+    private class Parser
+    {
+        private final byte[] bytes;
+        private final int end;
+        private int index;
+        private int depth;
+
+        private Parser(byte[] bytes, int offset, int length)
+        {
+            this.bytes = bytes;
+            this.index = offset;
+            this.end = offset + length;
+        }
+
+        private T[] parseMessages() throws ParseException
+        {
+            T[] result;
+            int initial = read();
+            int major = initial >>> 5;
+            if (major == MAP)
+            {
+                result = newRootArray(1);
+                result[0] = parseMessage(initial);
+            }
+            else if (major == ARRAY)
+            {
+                long size = parseLength(initial & 0x1F);
+                List<T> messages = new ArrayList<>();
+                for (long i = 0; size < 0 || i < size; ++i)
+                {
+                    initial = read();
+                    if (size < 0 && initial == BREAK)
+                        break;
+                    messages.add(parseMessage(initial));
+                }
+                result = messages.toArray(newRootArray(messages.size()));
+            }
+            else
+            {
+                throw new ParseException("Invalid messages type " + major, index - 1);
+            }
+            if (index != end)
+                throw new ParseException("Invalid trailing bytes", index);
+            return result;
+        }
+
+        private T parseMessage(int initial) throws ParseException
+        {
+            if (initial >>> 5 != MAP)
+                throw new ParseException("Invalid message type " + (initial >>> 5), index - 1);
+            T message = newRoot();
+            parseMap(initial & 0x1F, message);
+            return message;
+        }
+
+        private Map<String, Object> parseMap(int info, Map<String, Object> map) throws ParseException
+        {
+            long size = parseLength(info);
+            for (long i = 0; size < 0 || i < size; ++i)
+            {
+                int initial = read();
+                if (size < 0 && initial == BREAK)
+                    break;
+                String key = String.valueOf(parseValue(initial));
+                map.put(key, parseValue(read()));
+            }
+            return map;
+        }
+
+        private Object parseValue(int initial) throws ParseException
+        {
+            if (++depth > MAX_DEPTH)
+                throw new ParseException("Invalid nesting depth " + depth, index - 1);
+            try
+            {
+                return parseItem(initial);
+            }
+            finally
+            {
+                --depth;
+            }
+        }
+
+        private Object parseItem(int initial) throws ParseException
+        {
+            int info = initial & 0x1F;
+            switch (initial >>> 5)
+            {
+                case UNSIGNED:
+                {
+                    long value = parseArgument(info);
+                    if (value < 0)
+                        throw new ParseException("Integer overflow", index);
+                    return value;
+                }
+                case NEGATIVE:
+                {
+                    long value = parseArgument(info);
+                    if (value < 0)
+                        throw new ParseException("Integer overflow", index);
+                    return -1 - value;
+                }
+                case BYTES:
+                {
+                    return parseBytes(BYTES, info);
+                }
+                case TEXT:
+                {
+                    return new String(parseBytes(TEXT, info), UTF_8);
+                }
+                case ARRAY:
+                {
+                    long size = parseLength(info);
+                    List<Object> list = new ArrayList<>();
+                    for (long i = 0; size < 0 || i < size; ++i)
+                    {
+                        int next = read();
+                        if (size < 0 && next == BREAK)
+                            break;
+                        list.add(parseValue(next));
+                    }
+                    return list.toArray();
+                }
+                case MAP:
+                {
+                    return parseMap(info, new HashMap<String, Object>());
+                }
+                case TAG:
+                {
+                    // Tags only add semantic to the tagged value.
+                    parseArgument(info);
+                    return parseValue(read());
+                }
+                default:
+                {
+                    return parseSimple(initial);
+                }
+            }
+        }
+
+        private Object parseSimple(int initial) throws ParseException
+        {
+            switch (initial)
+            {
+                case FALSE:
+                    return Boolean.FALSE;
+                case TRUE:
+                    return Boolean.TRUE;
+                case NULL:
+                case NULL + 1:
+                    // Undefined is also mapped to null.
+                    return null;
+                case FLOAT - 1:
+                    return halfToDouble((int)readBits(2));
+                case FLOAT:
+                    return (double)Float.intBitsToFloat((int)readBits(4));
+                case DOUBLE:
+                    return Double.longBitsToDouble(readBits(8));
+                default:
+                    throw new ParseException("Invalid simple value " + initial, index - 1);
+            }
+        }
+
+        private double halfToDouble(int half)
+        {
+            int exponent = (half >>> 10) & 0x1F;
+            int mantissa = half & 0x3FF;
+            double value;
+            if (exponent == 0)
+                value = mantissa * Math.pow(2, -24);
+            else if (exponent != 31)
+                value = (mantissa + 1024) * Math.pow(2, exponent - 25);
+            else
+                value = mantissa == 0 ? Double.POSITIVE_INFINITY : Double.NaN;
+            return (half & 0x8000) == 0 ? value : -value;
+        }
+
+        private byte[] parseBytes(int major, int info) throws ParseException
+        {
+            long length = parseLength(info);
+            if (length >= 0)
+            {
+                byte[] result = Arrays.copyOfRange(bytes, index, index + (int)length);
+                index += (int)length;
+                return result;
+            }
+
+            // Indefinite length strings are sequences of definite length chunks.
+            int begin = index;
+            int total = 0;
+            while (true)
+            {
+                int initial = read();
+                if (initial == BREAK)
+                    break;
+                if (initial >>> 5 != major)
+                    throw new ParseException("Invalid chunk type " + (initial >>> 5), index - 1);
+                long chunk = parseLength(initial & 0x1F);
+                if (chunk < 0)
+                    throw new ParseException("Invalid nested indefinite length", index - 1);
+                index += (int)chunk;
+                total += (int)chunk;
+            }
+            byte[] result = new byte[total];
+            int position = 0;
+            index = begin;
+            while (true)
+            {
+                int initial = read();
+                if (initial == BREAK)
+                    break;
+                int chunk = (int)parseLength(initial & 0x1F);
+                System.arraycopy(bytes, index, result, position, chunk);
+                index += chunk;
+                position += chunk;
+            }
+            return result;
+        }
+
+        private long parseLength(int info) throws ParseException
+        {
+            if (info == INDEFINITE)
+                return -1;
+            long length = parseArgument(info);
+            // Each item is at least one byte, so the length cannot exceed the remaining bytes.
+            if (length < 0 || length > end - index)
+                throw new ParseException("Invalid length " + length, index);
+            return length;
+        }
+
+        private long parseArgument(int info) throws ParseException
+        {
+            if (info < 24)
+                return info;
+            switch (info)
+            {
+                case 24:
+                    return readBits(1);
+                case 25:
+                    return readBits(2);
+                case 26:
+                    return readBits(4);
+                case 27:
+                    return readBits(8);
+                default:
+                    throw new ParseException("Invalid additional information " + info, index - 1);
+            }
+        }
+
+        private long readBits(int count) throws ParseException
+        {
+            long result = 0;
+            for (int i = 0; i < count; ++i)
+                result = (result << 8) | read();
+            return result;
+        }
+
+        private int read() throws ParseException
+        {
+            if (index >= end)
+                throw new ParseException("Unexpected end of input", index);
+            return bytes[index++] & 0xFF;
+        }
+    }
+
+    private static class Generator
+    {
+        private byte[] buffer = new byte[256];
+        private int size;
+
+        private void writeValue(Object value)
+        {
+            if (value == null)
+            {
+                write(NULL);
+            }
+            else if (value instanceof String)
+            {
+                writeBytes(TEXT, ((String)value).getBytes(UTF_8));
+            }
+            else if (value instanceof Map)
+            {
+                writeMap((Map<?, ?>)value);
+            }
+            else if (value instanceof Boolean)
+            {
+                write((Boolean)value ? TRUE : FALSE);
+            }
+            else if (value instanceof Number)
+            {
+                writeNumber((Number)value);
+            }
+            else if (value instanceof Collection)
+            {
+                Collection<?> collection = (Collection<?>)value;
+                writeHeader(ARRAY, collection.size());
+                for (Object item : collection)
+                    writeValue(item);
+            }
+            else if (value instanceof byte[])
+            {
+                writeBytes(BYTES, (byte[])value);
+            }
+            else if (value.getClass().isArray())
+            {
+                int length = Array.getLength(value);
+                writeHeader(ARRAY, length);
+                for (int i = 0; i < length; ++i)
+                    writeValue(Array.get(value, i));
+            }
+            else
+            {
+                writeBytes(TEXT, value.toString().getBytes(UTF_8));
+            }
+        }
+
+        private void writeMap(Map<?, ?> map)
+        {
+            writeHeader(MAP, map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet())
+            {
+                writeBytes(TEXT, String.valueOf(entry.getKey()).getBytes(UTF_8));
+                writeValue(entry.getValue());
+            }
+        }
+
+        private void writeNumber(Number number)
+        {
+            if (number instanceof Long || number instanceof Integer ||
+                    number instanceof Short || number instanceof Byte ||
+                    number instanceof AtomicLong || number instanceof AtomicInteger)
+            {
+                writeInteger(number.longValue());
+            }
+            else if (number instanceof BigInteger && ((BigInteger)number).bitLength() < 64)
+            {
+                writeInteger(number.longValue());
+            }
+            else
+            {
+                double value = number.doubleValue();
+                float single = (float)value;
+                if (single == value || Double.isNaN(value))
+                {
+                    write(FLOAT);
+                    writeBits(Float.floatToIntBits(single), 4);
+                }
+                else
+                {
+                    write(DOUBLE);
+                    writeBits(Double.doubleToLongBits(value), 8);
+                }
+            }
+        }
+
+        private void writeInteger(long value)
+        {
+            if (value >= 0)
+                writeHeader(UNSIGNED, value);
+            else
+                writeHeader(NEGATIVE, -1 - value);
+        }
+
+        private void writeBytes(int major, byte[] bytes)
+        {
+            writeHeader(major, bytes.length);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buffer, size, bytes.length);
+            size += bytes.length;
+        }
+
+        private void writeHeader(int major, long argument)
+        {
+            int type = major << 5;
+            if (argument < 24)
+            {
+                write(type | (int)argument);
+            }
+            else if (argument < 0x100)
+            {
+                write(type | 24);
+                writeBits(argument, 1);
+            }
+            else if (argument < 0x10000)
+            {
+                write(type | 25);
+                writeBits(argument, 2);
+            }
+            else if (argument < 0x100000000L)
+            {
+                write(type | 26);
+                writeBits(argument, 4);
+            }
+            else
+            {
+                write(type | 27);
+                writeBits(argument, 8);
+            }
+        }
+
+        private void writeBits(long bits, int count)
+        {
+            ensureCapacity(count);
+            for (int i = count - 1; i >= 0; --i)
+                buffer[size++] = (byte)(bits >>> (8 * i));
+        }
+
+        private void write(int value)
+        {
+            ensureCapacity(1);
+            buffer[size++] = (byte)value;
+        }
+
+        private void ensureCapacity(int length)
+        {
+            if (size + length > buffer.length)
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + length));
+        }
+
+        private byte[] toByteArray()
+        {
+            return Arrays.copyOf(buffer, size);
+        }
+    }
+}
@@ -33,6 +33,42 @@ public interface JSONContext
     {
     }
 
+    /**
+     * <p>A {@link Server} that can also parse messages incrementally,
+     * as chunks of bytes arrive, via a {@link StreamingParser}.</p>
+     */
+    public interface StreamingServer extends Server
+    {
+        /**
+         * @return a new parser for a single JSON text
+         */
+        public StreamingParser<ServerMessage.Mutable> newStreamingParser();
+    }
+
+    /**
+     * <p>A parser that is fed with the chunks of UTF-8 bytes of a JSON text as they arrive,
+     * so that the whole JSON text does not need to be accumulated before parsing.</p>
+     * <p>Instances are not thread safe and are used to parse only one JSON text.</p>
+     *
+     * @param <T> the type of the parsed messages
+     */
+    public interface StreamingParser<T extends Message.Mutable>
+    {
+        /**
+         * @param bytes  the bytes to parse
+         * @param offset the offset of the bytes to parse
+         * @param length the number of bytes to parse
+         * @throws ParseException if the bytes are not valid JSON
+         */
+        public void parse(byte[] bytes, int offset, int length) throws ParseException;
+
+        /**
+         * @return the messages parsed, or null if the JSON text was empty or null
+         * @throws ParseException if the JSON text is incomplete or does not represent messages
+         */
+        public T[] complete() throws ParseException;
+    }
+
     public interface Parser
     {
         public <T> T parse(Reader reader, Class<T> type) throws ParseException;
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.common;
+
+import org.cometd.bayeux.Message;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class CBORContextTest
+{
+    private final CBORContextClient context = new CBORContextClient();
+
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        Message.Mutable message = new HashMapMessage();
+        message.setChannel("/foo/bar");
+        message.setClientId("abcdef");
+        message.setId("1");
+        Map<String, Object> data = message.getDataAsMap(true);
+        data.put("text", "café €");
+        data.put("small", 7);
+        data.put("negative", -1000);
+        data.put("large", Long.MAX_VALUE);
+        data.put("single", 1.5);
+        data.put("double", 0.1);
+        data.put("flag", true);
+        data.put("null", null);
+        data.put("list", Arrays.asList(1, "two", false));
+        data.put("bytes", new byte[]{1, 2, 3});
+        Map<String, Object> nested = new HashMap<>();
+        nested.put("a", "b");
+        data.put("nested", nested);
+
+        byte[] bytes = context.generate(Arrays.asList(message, message));
+        Message.Mutable[] messages = context.parse(bytes, 0, bytes.length);
+
+        Assert.assertEquals(2, messages.length);
+        Message.Mutable parsed = messages[1];
+        Assert.assertEquals("/foo/bar", parsed.getChannel());
+        Assert.assertEquals("abcdef", parsed.getClientId());
+        Assert.assertEquals("1", parsed.getId());
+        Map<String, Object> result = parsed.getDataAsMap();
+        Assert.assertEquals("café €", result.get("text"));
+        Assert.assertEquals(7L, result.get("small"));
+        Assert.assertEquals(-1000L, result.get("negative"));
+        Assert.assertEquals(Long.MAX_VALUE, result.get("large"));
+        Assert.assertEquals(1.5D, result.get("single"));
+        Assert.assertEquals(0.1D, result.get("double"));
+        Assert.assertEquals(Boolean.TRUE, result.get("flag"));
+        Assert.assertTrue(result.containsKey("null"));
+        Assert.assertNull(result.get("null"));
+        Assert.assertArrayEquals(new Object[]{1L, "two", false}, (Object[])result.get("list"));
+        Assert.assertArrayEquals(new byte[]{1, 2, 3}, (byte[])result.get("bytes"));
+        Assert.assertEquals(nested, result.get("nested"));
+    }
+
+    @Test
+    public void testSingleMessage() throws Exception
+    {
+        Message.Mutable message = new HashMapMessage();
+        message.setChannel("/foo");
+        message.setData("data");
+
+        byte[] bytes = context.generate(message);
+        Message.Mutable[] messages = context.parse(bytes, 0, bytes.length);
+
+        Assert.assertEquals(1, messages.length);
+        Assert.assertEquals(message, messages[0]);
+    }
+
+    @Test
+    public void testParseIndefiniteLengthAndHalfFloat() throws Exception
+    {
+        // [_ {_ "channel": (_ "/f", "oo"), "data": [_ 1.0, h'01'] }]
+        byte[] bytes = new byte[]{
+                (byte)0x9F,
+                (byte)0xBF,
+                0x67, 'c', 'h', 'a', 'n', 'n', 'e', 'l',
+                0x7F, 0x62, '/', 'f', 0x62, 'o', 'o', (byte)0xFF,
+                0x64, 'd', 'a', 't', 'a',
+                (byte)0x9F, (byte)0xF9, 0x3C, 0x00, 0x41, 0x01, (byte)0xFF,
+                (byte)0xFF,
+                (byte)0xFF
+        };
+
+        Message.Mutable[] messages = context.parse(bytes, 0, bytes.length);
+
+        Assert.assertEquals(1, messages.length);
+        Assert.assertEquals("/foo", messages[0].getChannel());
+        Object[] data = (Object[])messages[0].getData();
+        Assert.assertEquals(1.0D, data[0]);
+        Assert.assertArrayEquals(new byte[]{1}, (byte[])data[1]);
+    }
+
+    @Test
+    public void testParseInvalid() throws Exception
+    {
+        Message.Mutable message = new HashMapMessage();
+        message.setChannel("/foo");
+        byte[] bytes = context.generate(message);
+
+        assertInvalid(bytes, 0, bytes.length - 1);
+        assertInvalid(new byte[]{0x01}, 0, 1);
+        // A huge length must not allocate memory.
+        assertInvalid(new byte[]{(byte)0x9B, 0x7F, -1, -1, -1, -1, -1, -1, -1}, 0, 9);
+    }
+
+    @Test
+    public void testParseDeepNesting() throws Exception
+    {
+        // A message whose "data" field is an array nested 100000 times.
+        String field = Message.DATA_FIELD;
+        int depth = 100000;
+        byte[] bytes = new byte[2 + field.length() + depth];
+        bytes[0] = (byte)0xA1;
+        bytes[1] = (byte)(0x60 + field.length());
+        for (int i = 0; i < field.length(); ++i)
+            bytes[2 + i] = (byte)field.charAt(i);
+        // Each array has one element, the next array; the innermost is empty.
+        Arrays.fill(bytes, 2 + field.length(), bytes.length - 1, (byte)0x81);
+        bytes[bytes.length - 1] = (byte)0x80;
+        assertInvalid(bytes, 0, bytes.length);
+    }
+
+    private void assertInvalid(byte[] bytes, int offset, int length)
+    {
+        try
+        {
+            context.parse(bytes, offset, length);
+            Assert.fail();
+        }
+        catch (ParseException expected)
+        {
+        }
+    }
+}
@@ -26,6 +26,7 @@ import org.slf4j.LoggerFactory;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * <p>The base class of all server transports.</p>
@@ -43,6 +44,8 @@ public abstract class AbstractServerTransport extends AbstractTransport implemen
     public static final String MAX_LAZY_TIMEOUT_OPTION = "maxLazyTimeout";
     public static final String META_CONNECT_DELIVERY_OPTION = "metaConnectDeliverOnly";
     public static final String MAX_QUEUE_OPTION = "maxQueue";
+    public static final String MAX_QUEUE_BYTES_OPTION = "maxQueueBytes";
+    public static final String SLOW_CONSUMER_POLICY_OPTION = "slowConsumerPolicy";
     public static final String JSON_CONTEXT_OPTION = "jsonContext";
 
     protected final Logger _logger = LoggerFactory.getLogger(getClass().getName());
@@ -52,6 +55,8 @@ public abstract class AbstractServerTransport extends AbstractTransport implemen
     private long _timeout = 30000;
     private long _maxLazyTimeout = 5000;
     private boolean _metaConnectDeliveryOnly = false;
+    private long _maxQueueBytes = -1;
+    private SlowConsumerPolicy _slowConsumerPolicy;
     private JSONContext.Server jsonContext;
 
     /**
@@ -110,6 +115,32 @@ public abstract class AbstractServerTransport extends AbstractTransport implemen
         return _timeout;
     }
 
+    /**
+     * @return the max number of bytes of the messages queued or pending to be written for a session
+     */
+    public long getMaxQueueBytes()
+    {
+        return _maxQueueBytes;
+    }
+
+    public void setMaxQueueBytes(long maxQueueBytes)
+    {
+        _maxQueueBytes = maxQueueBytes;
+    }
+
+    /**
+     * @return the policy applied to sessions that exceed their queue budgets, or null
+     */
+    public SlowConsumerPolicy getSlowConsumerPolicy()
+    {
+        return _slowConsumerPolicy;
+    }
+
+    public void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy)
+    {
+        _slowConsumerPolicy = slowConsumerPolicy;
+    }
+
     public boolean isMetaConnectDeliveryOnly()
     {
         return _metaConnectDeliveryOnly;
@@ -131,6 +162,49 @@ public abstract class AbstractServerTransport extends AbstractTransport implemen
         _maxLazyTimeout = getOption(MAX_LAZY_TIMEOUT_OPTION, _maxLazyTimeout);
         _metaConnectDeliveryOnly = getOption(META_CONNECT_DELIVERY_OPTION, _metaConnectDeliveryOnly);
         jsonContext = (JSONContext.Server)getOption(JSON_CONTEXT_OPTION);
+        _maxQueueBytes = getOption(MAX_QUEUE_BYTES_OPTION, _maxQueueBytes);
+        Object policy = getOption(SLOW_CONSUMER_POLICY_OPTION);
+        if (policy != null)
+            _slowConsumerPolicy = newSlowConsumerPolicy(policy);
+    }
+
+    /**
+     * <p>Creates the slow consumer policy from the given option value, either
+     * a {@link SlowConsumerPolicy} instance, or the name of one of the policies
+     * {@code dropOldest}, {@code dropLazy}, {@code conflate} and {@code disconnect},
+     * or the name of a {@link SlowConsumerPolicy} class.</p>
+     *
+     * @param option the option value
+     * @return a new slow consumer policy
+     */
+    protected SlowConsumerPolicy newSlowConsumerPolicy(Object option)
+    {
+        if (option instanceof SlowConsumerPolicy)
+            return (SlowConsumerPolicy)option;
+        String value = option.toString().trim();
+        switch (value)
+        {
+            case "dropOldest":
+                return new SlowConsumerPolicy.DropOldest();
+            case "dropLazy":
+                return new SlowConsumerPolicy.DropLazy();
+            case "conflate":
+                return new SlowConsumerPolicy.Conflate();
+            case "disconnect":
+                return new SlowConsumerPolicy.Disconnect();
+            default:
+                try
+                {
+                    Class<?> policyClass = Thread.currentThread().getContextClassLoader().loadClass(value);
+                    if (SlowConsumerPolicy.class.isAssignableFrom(policyClass))
+                        return (SlowConsumerPolicy)policyClass.newInstance();
+                }
+                catch (Exception x)
+                {
+                    throw new IllegalArgumentException("Invalid " + SLOW_CONSUMER_POLICY_OPTION + " option: " + value, x);
+                }
+                throw new IllegalArgumentException("Invalid " + SLOW_CONSUMER_POLICY_OPTION + " option: " + value);
+        }
     }
 
     public void destroy()
@@ -141,13 +215,35 @@ public abstract class AbstractServerTransport extends AbstractTransport implemen
     {
         if (jsonDebug)
             return parseMessages(IO.toString(reader));
-        else
+        BayeuxMetrics metrics = _bayeux.getMetrics();
+        if (metrics == null)
             return jsonContext.parse(reader);
+        long begin = System.nanoTime();
+        ServerMessage.Mutable[] messages = jsonContext.parse(reader);
+        metrics.getParseTime().record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - begin));
+        return messages;
     }
 
     protected ServerMessage.Mutable[] parseMessages(String json) throws ParseException
     {
-        return jsonContext.parse(json);
+        BayeuxMetrics metrics = _bayeux.getMetrics();
+        if (metrics == null)
+            return jsonContext.parse(json);
+        long begin = System.nanoTime();
+        ServerMessage.Mutable[] messages = jsonContext.parse(json);
+        metrics.getParseTime().record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - begin));
+        return messages;
+    }
+
+    /**
+     * @return a parser that parses messages from chunks of UTF-8 bytes, or null
+     * if the configured {@link JSONContext.Server} does not support streaming parsing
+     */
+    protected JSONContext.StreamingParser<ServerMessage.Mutable> newStreamingParser()
+    {
+        if (jsonContext instanceof JSONContext.StreamingServer)
+            return ((JSONContext.StreamingServer)jsonContext).newStreamingParser();
+        return null;
     }
 
     /**
@@ -0,0 +1,323 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server;
+
+import org.cometd.bayeux.server.ServerChannel;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>The metrics recorded by a {@link BayeuxServerImpl} when the
+ * {@link BayeuxServerImpl#METRICS_OPTION metrics option} is enabled.</p>
+ * <p>The metrics are recorded in the hot paths of the server, so they are
+ * striped by thread to avoid contention, and histograms have power-of-two
+ * buckets, so that recording a value is a few arithmetic operations and an
+ * uncontended atomic increment.</p>
+ * <p>Metrics are pulled with {@link #snapshot()}, which is also exposed
+ * via JMX by {@link org.cometd.server.jmx.BayeuxServerImplMBean}.</p>
+ */
+public class BayeuxMetrics
+{
+    private static final int STRIPES = stripes();
+
+    private final BayeuxServerImpl _bayeux;
+    private final Counter _publishes = new Counter();
+    private final Histogram _fanOut = new Histogram();
+    private final Histogram _queueDepth = new Histogram();
+    private final Histogram _deliveryLatency = new Histogram();
+    private final Histogram _parseTime = new Histogram();
+    private final Histogram _generateTime = new Histogram();
+    private final Histogram _metaConnectHoldTime = new Histogram();
+
+    public BayeuxMetrics(BayeuxServerImpl bayeux)
+    {
+        _bayeux = bayeux;
+    }
+
+    /**
+     * @return the number of messages published to broadcast channels
+     */
+    public Counter getPublishes()
+    {
+        return _publishes;
+    }
+
+    /**
+     * @return the distribution of the number of subscribers a broadcast message is delivered to
+     */
+    public Histogram getFanOut()
+    {
+        return _fanOut;
+    }
+
+    /**
+     * @return the distribution of the number of messages taken from a session queue to be written
+     */
+    public Histogram getQueueDepth()
+    {
+        return _queueDepth;
+    }
+
+    /**
+     * @return the distribution of the time, in microseconds, from the publish
+     * of a message to its being taken from a session queue to be written
+     */
+    public Histogram getDeliveryLatency()
+    {
+        return _deliveryLatency;
+    }
+
+    /**
+     * @return the distribution of the time, in microseconds, to parse the messages of a request
+     */
+    public Histogram getParseTime()
+    {
+        return _parseTime;
+    }
+
+    /**
+     * @return the distribution of the time, in microseconds, to generate the JSON of a message
+     */
+    public Histogram getGenerateTime()
+    {
+        return _generateTime;
+    }
+
+    /**
+     * @return the distribution of the time, in milliseconds, a {@code /meta/connect} is held by the server
+     */
+    public Histogram getMetaConnectHoldTime()
+    {
+        return _metaConnectHoldTime;
+    }
+
+    /**
+     * @return the number of messages published to each channel, for the channels with at least one publish
+     */
+    public Map<String, Long> getChannelPublishes()
+    {
+        Map<String, Long> result = new TreeMap<>();
+        for (ServerChannel channel : _bayeux.getChannels())
+        {
+            long publishes = ((ServerChannelImpl)channel).getPublishCount();
+            if (publishes > 0)
+                result.put(channel.getId(), publishes);
+        }
+        return result;
+    }
+
+    /**
+     * @return a snapshot of the metrics, as a map of metric names to values
+     */
+    public Map<String, Object> snapshot()
+    {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("publishes", _publishes.get());
+        result.put("fanOut", _fanOut.snapshot());
+        result.put("queueDepth", _queueDepth.snapshot());
+        result.put("deliveryLatency", _deliveryLatency.snapshot());
+        result.put("parseTime", _parseTime.snapshot());
+        result.put("generateTime", _generateTime.snapshot());
+        result.put("metaConnectHoldTime", _metaConnectHoldTime.snapshot());
+        return result;
+    }
+
+    public void reset()
+    {
+        _publishes.reset();
+        _fanOut.reset();
+        _queueDepth.reset();
+        _deliveryLatency.reset();
+        _parseTime.reset();
+        _generateTime.reset();
+        _metaConnectHoldTime.reset();
+        for (ServerChannel channel : _bayeux.getChannels())
+            ((ServerChannelImpl)channel).resetPublishCount();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s@%x%s", getClass().getSimpleName(), hashCode(), snapshot());
+    }
+
+    private static int stripes()
+    {
+        int processors = Runtime.getRuntime().availableProcessors();
+        int stripes = 1;
+        while (stripes < processors)
+            stripes <<= 1;
+        return stripes;
+    }
+
+    private static int stripe()
+    {
+        long id = Thread.currentThread().getId();
+        return (int)(id ^ (id >>> 16)) & (STRIPES - 1);
+    }
+
+    /**
+     * <p>A counter striped by thread, to avoid contention when incremented concurrently.</p>
+     */
+    public static class Counter
+    {
+        // Each stripe is padded to its own cache line.
+        private static final int PADDING = 8;
+
+        private final AtomicLongArray _stripes = new AtomicLongArray(STRIPES * PADDING);
+
+        public void add(long delta)
+        {
+            _stripes.addAndGet(stripe() * PADDING, delta);
+        }
+
+        public void increment()
+        {
+            add(1);
+        }
+
+        public long get()
+        {
+            long result = 0;
+            for (int i = 0; i < STRIPES; ++i)
+                result += _stripes.get(i * PADDING);
+            return result;
+        }
+
+        public void reset()
+        {
+            for (int i = 0; i < STRIPES; ++i)
+                _stripes.set(i * PADDING, 0);
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.valueOf(get());
+        }
+    }
+
+    /**
+     * <p>A histogram of non-negative values, with power-of-two buckets striped by thread.</p>
+     * <p>Bucket {@code i} counts the values {@code v} such that {@code 2^(i-1) <= v < 2^i},
+     * so that percentiles are reported with the upper bound of their bucket, which
+     * is at most twice the actual value.</p>
+     */
+    public static class Histogram
+    {
+        private static final int BUCKETS = 64;
+
+        // Each stripe holds all the buckets, so stripes do not share cache lines.
+        private final AtomicLongArray _buckets = new AtomicLongArray(STRIPES * BUCKETS);
+        private final Counter _sum = new Counter();
+        private final AtomicLong _max = new AtomicLong();
+
+        public void record(long value)
+        {
+            if (value < 0)
+                value = 0;
+            int bucket = BUCKETS - Long.numberOfLeadingZeros(value);
+            _buckets.incrementAndGet(stripe() * BUCKETS + bucket);
+            _sum.add(value);
+            while (true)
+            {
+                long max = _max.get();
+                if (value <= max || _max.compareAndSet(max, value))
+                    break;
+            }
+        }
+
+        public long getCount()
+        {
+            long result = 0;
+            for (int i = 0; i < _buckets.length(); ++i)
+                result += _buckets.get(i);
+            return result;
+        }
+
+        public long getMax()
+        {
+            return _max.get();
+        }
+
+        public double getMean()
+        {
+            long count = getCount();
+            return count == 0 ? 0 : (double)_sum.get() / count;
+        }
+
+        /**
+         * @param percentile the percentile, between 0 and 100
+         * @return the upper bound of the bucket that contains the given percentile
+         */
+        public long getValueAtPercentile(double percentile)
+        {
+            long[] counts = counts();
+            long total = 0;
+            for (long count : counts)
+                total += count;
+            if (total == 0)
+                return 0;
+            long rank = (long)Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100);
+            long seen = 0;
+            for (int bucket = 0; bucket < BUCKETS; ++bucket)
+            {
+                seen += counts[bucket];
+                if (seen >= rank && seen > 0)
+                    return Math.min(bucket == 0 ? 0 : (1L << bucket) - 1, getMax());
+            }
+            return getMax();
+        }
+
+        public Map<String, Object> snapshot()
+        {
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("count", getCount());
+            result.put("mean", getMean());
+            result.put("p50", getValueAtPercentile(50));
+            result.put("p99", getValueAtPercentile(99));
+            result.put("p999", getValueAtPercentile(99.9));
+            result.put("max", getMax());
+            return result;
+        }
+
+        public void reset()
+        {
+            for (int i = 0; i < _buckets.length(); ++i)
+                _buckets.set(i, 0);
+            _sum.reset();
+            _max.set(0);
+        }
+
+        private long[] counts()
+        {
+            long[] result = new long[BUCKETS];
+            for (int i = 0; i < _buckets.length(); ++i)
+                result[i % BUCKETS] += _buckets.get(i);
+            return result;
+        }
+
+        @Override
+        public String toString()
+        {
+            return snapshot().toString();
+        }
+    }
+}
@@ -46,6 +46,9 @@ import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 
 @ManagedObject("The CometD server")
@@ -83,6 +86,13 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer
     public static final String TRANSPORTS_OPTION = "transports";
     public static final String VALIDATE_MESSAGE_FIELDS_OPTION = "validateMessageFields";
     public static final String BROADCAST_TO_PUBLISHER_OPTION = "broadcastToPublisher";
+    public static final String FAN_OUT_THRESHOLD_OPTION = "fanOutThreshold";
+    public static final String FAN_OUT_PARALLELISM_OPTION = "fanOutParallelism";
+    public static final String COMPACT_MESSAGES_OPTION = "compactMessages";
+    public static final String SCHEDULER_SHARDS_OPTION = "schedulerShards";
+    public static final String SCHEDULER_TICK_OPTION = "schedulerTick";
+    public static final String METRICS_OPTION = "metrics";
+    private static final int SESSION_EXPIRY_BUCKETS = 512;
 
     private final Logger _logger = LoggerFactory.getLogger(getClass().getName() + "." + Integer.toHexString(System.identityHashCode(this)));
     private final SecureRandom _random = new SecureRandom();
@@ -90,15 +100,25 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer
     private final List<Extension> _extensions = new CopyOnWriteArrayList<>();
     private final ConcurrentMap<String, ServerSessionImpl> _sessions = new ConcurrentHashMap<>();
     private final ConcurrentMap<String, ServerChannelImpl> _channels = new ConcurrentHashMap<>();
+    private final Set<ServerChannelImpl> _sweepableChannels = Collections.newSetFromMap(new ConcurrentHashMap<ServerChannelImpl, Boolean>());
+    private final SubscriptionTrie _subscriptions = new SubscriptionTrie();
     private final Map<String, ServerTransport> _transports = new LinkedHashMap<>(); // Order is important
     private final List<String> _allowedTransports = new ArrayList<>();
     private final ThreadLocal<ServerTransport> _currentTransport = new ThreadLocal<>();
+    private final ThreadLocal<BayeuxContext> _currentContext = new ThreadLocal<>();
+    private final ThreadLocal<DeferredPublish> _deferredPublish = new ThreadLocal<>();
     private final Map<String, Object> _options = new TreeMap<>();
-    private final Scheduler _scheduler = new ScheduledExecutorScheduler("BayeuxServer" + hashCode() + " Scheduler", false);
     private SecurityPolicy _policy = new DefaultSecurityPolicy();
+    private Scheduler _scheduler;
     private JSONContext.Server _jsonContext;
     private boolean _validation;
     private boolean _broadcastToPublisher;
+    private volatile boolean _compactMessages;
+    private Executor _fanOutExecutor;
+    private ExecutorService _defaultFanOutExecutor;
+    private FanOut _fanOut;
+    private volatile HashedTimingWheel<ServerSessionImpl> _sessionExpiry;
+    private volatile BayeuxMetrics _metrics;
 
     @Override
     protected void doStart() throws Exception
@@ -108,14 +128,21 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer
         initializeMetaChannels();
         initializeJSONContext();
         initializeServerTransports();
-
-        _scheduler.start();
+        initializeScheduler();
 
         long defaultSweepPeriod = 997;
         long sweepPeriodOption = getOption(SWEEP_PERIOD_OPTION, defaultSweepPeriod);
         if (sweepPeriodOption < 0)
             sweepPeriodOption = defaultSweepPeriod;
         final long sweepPeriod = sweepPeriodOption;
+        _sessionExpiry = new HashedTimingWheel<ServerSessionImpl>(SESSION_EXPIRY_BUCKETS, sweepPeriod > 0 ? sweepPeriod : defaultSweepPeriod, System.currentTimeMillis())
+        {
+            @Override
+            protected boolean expire(ServerSessionImpl session, long now)
+            {
+                return expireServerSession(session, now);
+            }
+        };
         _scheduler.schedule(new Runnable()
         {
             @Override
@@ -128,6 +155,11 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer
 
         _validation = getOption(VALIDATE_MESSAGE_FIELDS_OPTION, true);
         _broadcastToPublisher = getOption(BROADCAST_TO_PUBLISHER_OPTION, true);
+        _compactMessages = getOption(COMPACT_MESSAGES_OPTION, false);
+        if (getOption(METRICS_OPTION, false))
+            _metrics = new BayeuxMetrics(this);
+
+        initializeFanOut();
     }
 
     @Override
@@ -146,10 +178,36 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer
         _extensions.clear();
         _sessions.clear();
         _channels.clear();
+        _sweepableChannels.clear();
+        _sessionExpiry = null;
+        _subscriptions.clear();
         _transports.clear();
         _allowedTransports.clear();
         _options.clear();
-        _scheduler.stop();
+        if (_scheduler != null)
+        {
+            _scheduler.stop();
+            _scheduler = null;
+        }
+
+        _fanOut = null;
+        _metrics = null;
+        if (_defaultFanOutExecutor != null)
+        {
+            _defaultFanOutExecutor.shutdown();
+            _defaultFanOutExecutor = null;
+        }
+    }
+
+    protected void initializeScheduler() throws Exception
+    {
+        String name = "BayeuxServer" + hashCode() + " Scheduler";
+        int shards = (int)getOption(SCHEDULER_SHARDS_OPTION, 1);
+        if (shards > 1)
+            _scheduler = new ShardedScheduler(name, shards, getOption(SCHEDULER_TICK_OPTION, 10L));
+        else
+            _scheduler = new ScheduledExecutorScheduler(name, false);
+        _scheduler.start();
     }
 
     protected void initializeMetaChannels()
@@ -190,6 +248,19 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer
         _options.put(AbstractServerTransport.JSON_CONTEXT_OPTION, _jsonContext);
     }
 
+    protected void initializeFanOut()
+    {
+        long threshold = getOption(FAN_OUT_THRESHOLD_OPTION, -1L);
+        if (threshold > 0)
+        {
+            int parallelism = (int)getOption(FAN_OUT_PARALLELISM_OPTION, Runtime.getRuntime().availableProcessors());
+            Executor executor = _fanOutExecutor;
+            if (executor == null)
+                executor = _defaultFanOutExecutor = new ForkJoinPool(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+            _fanOut = new FanOut(this, executor, (int)Math.min(threshold, Integer.MAX_VALUE), parallelism);
+        }
+    }
+
     protected void initializeServerTransports()
     {
         if (_transports.isEmpty())
@@ -310,6 +381,28 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer
         return _scheduler.schedule(task, delay, TimeUnit.MILLISECONDS);
     }
 
+    /**
+     * <p>Defers the publication of the given message, that is being received
+     * from a remote session.</p>
+     * <p>This method must be called by {@link Extension#rcv(ServerSession, Mutable) extensions},
+     * from the thread that handles the message: the message is still passed to
+     * the remaining extensions and authorized, and the reply reflects the result
+     * of the authorization, but the message is published to its channel only
+     * after the given delay, by the given executor.</p>
+     * <p>The deferred messages of a session are published in the order they have
+     * been received: a message whose delay expired waits for the deferred messages
+     * received before it, and so do the messages of the session that are not
+     * deferred, while deferred messages are still queued.</p>
+     *
+     * @param message  the message being received
+     * @param delay    the delay in milliseconds
+     * @param executor the executor that publishes the message
+     */
+    public void deferPublish(Mutable message, long delay, Executor executor)
+    {
+        _deferredPublish.set(new DeferredPublish(message, delay, executor));
+    }
+
     public ChannelId newChannelId(String id)
     {
         ServerChannelImpl channel = _channels.get(id);
@@ -381,10 +474,30 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer
 
     public BayeuxContext getContext()
     {
+        BayeuxContext context = _currentContext.get();
+        if (context != null)
+            return context;
         ServerTransport transport = _currentTransport.get();
         return transport == null ? null : transport.getContext();
     }
 
+    /**
+     * <p>Sets the context returned by {@link #getContext()} in the current thread,
+     * for threads that deliver messages on behalf of another thread.</p>
+     *
+     * @param context the context of the current thread, or null to use the one of the current transport
+     * @return the previous context of the current thread
+     */
+    BayeuxContext setCurrentContext(BayeuxContext context)
+    {
+        BayeuxContext result = _currentContext.get();
+        if (context == null)
+            _currentContext.remove();
+        else
+            _currentContext.set(context);
+        return result;
+    }
+
     public SecurityPolicy getSecurityPolicy()
     {
         return _policy;
@@ -404,6 +517,7 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer
                 // My candidate channel was added to the map, so I'd better initialize it
 
                 channel = candidate;
+                _subscriptions.add(channel);
                 if (_logger.isDebugEnabled())
                     _logger.debug("Added channel {}", channel);
 
@@ -429,6 +543,7 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer
                         notifyChannelAdded((ChannelListener)listener, channel);
                 }
 
+                sweepable(channel);
                 initialized = true;
             }
         }
@@ -438,7 +553,11 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer
             // Double check if the sweeper removed this channel between the check at the top and here.
             // This is not 100% fool proof (e.g. this thread is preempted long enough for the sweeper
             // to remove the channel, but the alternative is to have a global lock)
-            _channels.putIfAbsent(channelName, channel);
+            if (_channels.putIfAbsent(channelName, channel) == null)
+            {
+                _subscriptions.add(channel);
+                sweepable(channel);
+            }
 
         }
         // Another thread may add this channel concurrently, so wait until it is initialized
@@ -485,6 +604,7 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer
     protected void addServerSession(ServerSessionImpl session, ServerMessage message)
     {
         _sessions.put(session.getId(), session);
+        session.scheduleExpiry();
         for (BayeuxServerListener listener : _listeners)
         {
             if (listener instanceof BayeuxServer.SessionListener)
@@ -519,6 +639,10 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer
         if (removed != session)
             return false;
 
+        HashedTimingWheel<ServerSessionImpl> sessionExpiry = _sessionExpiry;
+        if (sessionExpiry != null)
+            sessionExpiry.cancel(removed);
+
         // Invoke BayeuxServer.SessionListener first, so that the application
         // can be "pre-notified" that a session is being removed before the
         // application gets notifications of channel unsubscriptions
@@ -555,6 +679,8 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer
 
     public ServerMessage.Mutable newMessage()
     {
+        if (_compactMessages)
+            return new CompactServerMessageImpl();
         return new ServerMessageImpl();
     }
 
@@ -563,6 +689,14 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer
         ServerMessage.Mutable mutable = newMessage();
         for (String key : tocopy.keySet())
             mutable.put(key, tocopy.get(key));
+        if (tocopy instanceof ServerMessageImpl && mutable instanceof ServerMessageImpl)
+        {
+            // Copies sent in place of the original are still conflated and measured like it.
+            ServerMessageImpl original = (ServerMessageImpl)tocopy;
+            ServerMessageImpl copy = (ServerMessageImpl)mutable;
+            copy.setConflationKey(original.getConflationKey());
+            copy.setPublishNanos(original.getPublishNanos());
+        }
         return mutable;
     }
 
@@ -631,16 +765,25 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer
             validateMessage(message);
 
         Mutable reply = createReply(message);
-        if (!extendRecv(session, message) || session != null && !session.extendRecv(message))
+        try
         {
-            error(reply, "404::message deleted");
+            if (!extendRecv(session, message) || session != null && !session.extendRecv(message))
+            {
+                // Extensions that delete the message may have already completed the reply.
+                if (reply.get(Message.SUCCESSFUL_FIELD) == null)
+                    error(reply, "404::message deleted");
+            }
+            else
+            {
+                if (_logger.isDebugEnabled())
+                    _logger.debug(">> {}", message);
+
+                handle(session, message, reply);
+            }
         }
-        else
+        finally
         {
-            if (_logger.isDebugEnabled())
-                _logger.debug(">> {}", message);
-
-            handle(session, message, reply);
+            _deferredPublish.remove();
         }
 
         if (_logger.isDebugEnabled())
@@ -710,7 +853,11 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer
                         }
                         else
                         {
-                            channel.publish(session, message);
+                            DeferredPublish deferred = _deferredPublish.get();
+                            if (deferred != null && deferred.message == message)
+                                deferred.schedule(session, channel);
+                            else if (!session.publishAfterDeferred(channel, message))
+                                channel.publish(session, message);
                             reply.setSuccessful(true);
                         }
                     }
@@ -849,6 +996,44 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer
         return result;
     }
 
+    void subscriptionsChanged(ServerChannelImpl channel)
+    {
+        _subscriptions.subscriptionsChanged(channel);
+    }
+
+    /**
+     * <p>Records that the given channel may have become eligible for removal,
+     * so that it is considered by the next {@link #sweep()}.</p>
+     *
+     * @param channel the channel to sweep
+     */
+    void sweepable(ServerChannelImpl channel)
+    {
+        _sweepableChannels.add(channel);
+    }
+
+    /**
+     * <p>Schedules the expiration of the given session at the given deadline.</p>
+     * <p>Must be called with the session lock held.</p>
+     *
+     * @param session  the session to expire
+     * @param deadline the time at which the session expires, or 0 if it does not expire
+     */
+    void scheduleExpiry(ServerSessionImpl session, long deadline)
+    {
+        HashedTimingWheel<ServerSessionImpl> sessionExpiry = _sessionExpiry;
+        if (sessionExpiry != null)
+            sessionExpiry.schedule(session, deadline);
+    }
+
+    private boolean expireServerSession(ServerSessionImpl session, long now)
+    {
+        if (_sessions.get(session.getId()) != session)
+            return false;
+        session.sweep(now);
+        return _sessions.get(session.getId()) == session;
+    }
+
     protected void doPublish(ServerSessionImpl from, ServerChannelImpl to, final ServerMessage.Mutable mutable)
     {
         List<String> wildChannels = to.getChannelId().getWilds();
@@ -869,41 +1054,57 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer
         // ((Map)serverMessage.getExt().get("map")).put().
         freeze(mutable);
 
-        // Call the wild subscribers, which can only get broadcast messages.
+        BayeuxMetrics metrics = _metrics;
+        if (metrics != null && mutable instanceof ServerMessageImpl)
+            ((ServerMessageImpl)mutable).setPublishNanos(System.nanoTime());
+
+        // Call the subscribers. Wild subscribers can only get broadcast messages.
         // We need a special treatment in case of subscription to /**, otherwise
         // we will deliver meta messages and service messages as if it could be
         // possible to subscribe to meta channels and service channels.
-        Set<String> wildSubscribers = null;
+        // For broadcast messages, the leaf and wild subscribers are resolved and
+        // deduplicated by the subscription trie, which caches the result until the
+        // subscriptions change, so that there is no lookup nor allocation per publish.
+        // If configured, large subscriber sets are fanned out in parallel.
         if (ChannelId.isBroadcast(mutable.getChannel()))
         {
-            for (int i = 0, size = wildChannels.size(); i < size; ++i)
+            ServerSession[][] subscribers;
+            ChannelHistory history = to.getHistory();
+            if (history != null)
             {
-                ServerChannelImpl wildChannel = _channels.get(wildChannels.get(i));
-                if (wildChannel == null)
-                    continue;
-                Set<ServerSession> subscribers = wildChannel.subscribers();
-                if (!subscribers.isEmpty())
+                // Retain the frozen message, so that its JSON is shared with the history.
+                // The message is recorded and the subscribers resolved atomically with
+                // respect to the subscriptions that replay the history, see replay(),
+                // so that new subscribers get each message either replayed or live.
+                synchronized (history)
                 {
-                    for (ServerSession session : subscribers)
-                    {
-                        if (wildSubscribers == null)
-                            wildSubscribers = new HashSet<>();
-                        if (wildSubscribers.add(session.getId()))
-                            ((ServerSessionImpl)session).doDeliver(from, mutable);
-                    }
+                    history.add(mutable);
+                    subscribers = _subscriptions.subscribers(to);
                 }
             }
-        }
-
-        // Call the leaf subscribers
-        Set<ServerSession> subscribers = to.subscribers();
-        if (!subscribers.isEmpty())
-        {
-            for (ServerSession session : subscribers)
+            else
+            {
+                subscribers = _subscriptions.subscribers(to);
+            }
+            if (metrics != null)
             {
-                if (wildSubscribers == null || !wildSubscribers.contains(session.getId()))
-                    ((ServerSessionImpl)session).doDeliver(from, mutable);
+                metrics.getPublishes().increment();
+                metrics.getFanOut().record(SubscriberSet.size(subscribers));
+                to.incrementPublishCount();
             }
+            FanOut fanOut = _fanOut;
+            if (fanOut != null)
+            {
+                fanOut.deliver(from, subscribers, mutable);
+            }
+            else
+            {
+                deliver(from, subscribers, mutable);
+            }
+        }
+        else
+        {
+            deliver(from, to.subscribersSnapshot(), mutable);
         }
 
         // Meta handlers
@@ -911,6 +1112,33 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer
             notifyHandlerListeners(from, to, mutable);
     }
 
+    private void deliver(ServerSessionImpl from, ServerSession[][] subscribers, Mutable mutable)
+    {
+        for (int i = 0; i < subscribers.length; ++i)
+        {
+            ServerSession[] chunk = subscribers[i];
+            for (int j = 0; j < chunk.length; ++j)
+                deliver(from, (ServerSessionImpl)chunk[j], mutable);
+        }
+    }
+
+    /**
+     * <p>Delivers a message to a single session, after the messages
+     * that are still being fanned out to that session, if any.</p>
+     *
+     * @param from    the session that sends the message
+     * @param to      the session that receives the message
+     * @param mutable the message to deliver
+     */
+    void deliver(ServerSession from, ServerSessionImpl to, Mutable mutable)
+    {
+        FanOut fanOut = _fanOut;
+        if (fanOut == null)
+            to.doDeliver(from, mutable);
+        else
+            fanOut.deliver(from, to, mutable);
+    }
+
     private boolean notifyListeners(ServerSessionImpl from, ServerChannelImpl to, Mutable mutable, List<String> wildChannels)
     {
         for (int i = 0, size = wildChannels.size(); i <= size; ++i)
@@ -920,6 +1148,11 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer
                 continue;
             if (channel.isLazy())
                 mutable.setLazy(true);
+            if (channel.isConflated() && mutable instanceof ServerMessageImpl)
+            {
+                String key = channel.getConflationKey();
+                ((ServerMessageImpl)mutable).setConflationKey(key == null ? "" : key);
+            }
             List<ServerChannelListener> listeners = channel.listeners();
             if (!listeners.isEmpty())
             {
@@ -954,7 +1187,15 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer
         ServerMessageImpl message = (ServerMessageImpl)mutable;
         if (message.isFrozen())
             return;
+        // Heartbeat replies are the most common messages, so they
+        // are serialized without the JSONContext when possible.
+        if (MetaConnectReplyTemplate.freeze(message))
+            return;
+        BayeuxMetrics metrics = _metrics;
+        long begin = metrics == null ? 0 : System.nanoTime();
         String json = _jsonContext.generate(message);
+        if (metrics != null)
+            metrics.getGenerateTime().record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - begin));
         message.freeze(json);
     }
 
@@ -1102,6 +1343,8 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer
     {
         if (_channels.remove(channel.getId(), channel))
         {
+            _subscriptions.remove(channel);
+            _sweepableChannels.remove(channel);
             if (_logger.isDebugEnabled())
                 _logger.debug("Removed channel {}", channel);
             for (BayeuxServerListener listener : _listeners)
@@ -1209,12 +1452,56 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer
             _logger.debug("allowedTransports {}", _allowedTransports);
     }
 
+    /**
+     * @return the executor used to fan out messages to large sets of subscribers,
+     * or null if the default executor is used
+     * @see #setFanOutExecutor(Executor)
+     */
+    public Executor getFanOutExecutor()
+    {
+        return _fanOutExecutor;
+    }
+
+    /**
+     * <p>Sets the executor used to deliver messages in parallel to sets of subscribers
+     * that are larger than the {@link #FAN_OUT_THRESHOLD_OPTION fan out threshold}.</p>
+     * <p>If not set, a {@link ForkJoinPool} with parallelism equal to the
+     * {@link #FAN_OUT_PARALLELISM_OPTION fan out parallelism} is created when
+     * this server is started, and shut down when this server is stopped.</p>
+     * <p>Messages fanned out in parallel are delivered from threads of the
+     * executor, where {@link #getCurrentTransport()} and {@link #getContext()}
+     * return those of the thread that published the message.</p>
+     *
+     * @param executor the executor for parallel fan out
+     */
+    public void setFanOutExecutor(Executor executor)
+    {
+        if (isStarted())
+            throw new IllegalStateException();
+        _fanOutExecutor = executor;
+    }
+
+    @ManagedAttribute(value = "The number of subscribers above which messages are delivered in parallel", readonly = true)
+    public int getFanOutThreshold()
+    {
+        FanOut fanOut = _fanOut;
+        return fanOut == null ? -1 : fanOut.getThreshold();
+    }
+
     @ManagedAttribute(value = "Whether this server broadcast messages to the publisher", readonly = true)
     public boolean isBroadcastToPublisher()
     {
         return _broadcastToPublisher;
     }
 
+    /**
+     * @return the metrics of this server, or null if the {@link #METRICS_OPTION metrics option} is not enabled
+     */
+    public BayeuxMetrics getMetrics()
+    {
+        return _metrics;
+    }
+
     protected void unknownSession(Mutable reply)
     {
         error(reply, "402::Unknown client");
@@ -1248,8 +1535,16 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer
     @ManagedOperation(value = "Sweeps channels and sessions of this BayeuxServer", impact = "ACTION")
     public void sweep()
     {
-        for (ServerChannelImpl channel : _channels.values())
-            channel.sweep();
+        // Only sweep the channels that may have become eligible for removal.
+        for (ServerChannelImpl channel : _sweepableChannels)
+        {
+            // Remove before sweeping, so that a concurrent
+            // change that makes the channel sweepable again
+            // either is seen by the sweep or adds it back.
+            _sweepableChannels.remove(channel);
+            if (channel.sweep())
+                _sweepableChannels.add(channel);
+        }
 
         for (ServerTransport transport : _transports.values())
         {
@@ -1257,9 +1552,10 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer
                 ((AbstractServerTransport)transport).sweep();
         }
 
-        long now = System.currentTimeMillis();
-        for (ServerSessionImpl session : _sessions.values())
-            session.sweep(now);
+        // Only visit the sessions that may have expired.
+        HashedTimingWheel<ServerSessionImpl> sessionExpiry = _sessionExpiry;
+        if (sessionExpiry != null)
+            sessionExpiry.advance(System.currentTimeMillis());
     }
 
     @ManagedOperation(value = "Dumps the BayeuxServer state", impact = "INFO")
@@ -1474,7 +1770,7 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer
                         // fact that the channel references it.
                         if (!isSessionUnknown(from))
                         {
-                            if (channel.subscribe(from, message))
+                            if (subscribe(from, channel, message))
                             {
                                 reply.setSuccessful(true);
                             }
@@ -1495,6 +1791,61 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer
         }
     }
 
+    /**
+     * <p>Subscribes the given session to the given channel, replaying the
+     * retained messages of the channel if the session was not subscribed.</p>
+     * <p>The subscription and the replay happen while holding the history lock,
+     * which publishers hold while recording a message and resolving its
+     * subscribers, so that the session receives each message either replayed
+     * or live, but not both, and the replayed messages before the live ones.</p>
+     *
+     * @param session the session that subscribes
+     * @param channel the channel to subscribe to
+     * @param message the subscribe message
+     * @return whether the subscription succeeded
+     */
+    private boolean subscribe(ServerSessionImpl session, ServerChannelImpl channel, ServerMessage message)
+    {
+        ChannelHistory history = channel.getHistory();
+        if (history == null)
+            return channel.subscribe(session, message);
+
+        synchronized (history)
+        {
+            boolean replay = !session.getSubscriptions().contains(channel);
+            if (!channel.subscribe(session, message))
+                return false;
+            if (replay)
+                replay(session, history);
+            return true;
+        }
+    }
+
+    /**
+     * <p>Delivers the retained messages of a channel to a session that subscribed to it.</p>
+     *
+     * @param session the session that subscribed
+     * @param history the history of the channel
+     */
+    private void replay(ServerSessionImpl session, ChannelHistory history)
+    {
+        List<ServerMessage.Mutable> messages = history.snapshot();
+        if (messages.isEmpty())
+            return;
+        if (_logger.isDebugEnabled())
+            _logger.debug("Replaying {} messages to {}", messages.size(), session);
+        session.startBatch();
+        try
+        {
+            for (ServerMessage.Mutable message : messages)
+                session.doDeliver(null, message);
+        }
+        finally
+        {
+            session.endBatch();
+        }
+    }
+
     private class UnsubscribeHandler extends HandlerListener
     {
         public void onMessage(final ServerSessionImpl from, final Mutable message)
@@ -1572,4 +1923,35 @@ public class BayeuxServerImpl extends AbstractLifeCycle implements BayeuxServer
             session.flush();
         }
     }
+
+    private class DeferredPublish
+    {
+        private final Mutable message;
+        private final long delay;
+        private final Executor executor;
+
+        private DeferredPublish(Mutable message, long delay, Executor executor)
+        {
+            this.message = message;
+            this.delay = delay;
+            this.executor = executor;
+        }
+
+        private void schedule(ServerSessionImpl session, ServerChannelImpl channel)
+        {
+            // Queue the message now, so that it is published after
+            // the messages of the session that have been deferred before.
+            final DeferredPublishQueue queue = session.getDeferredPublishQueue();
+            final DeferredPublishQueue.Entry entry = queue.offer(channel, message);
+            // Only the timer runs in the scheduler thread, the publish runs in the executor.
+            BayeuxServerImpl.this.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    queue.expire(entry, executor);
+                }
+            }, delay);
+        }
+    }
 }
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server;
+
+import org.cometd.bayeux.server.ServerMessage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * <p>The bounded history of the messages published to a channel.</p>
+ * <p>The history holds the frozen messages, so that their JSON representation
+ * is shared with the deliveries to the subscribers and not duplicated.
+ * When the history is full, the oldest messages are discarded.</p>
+ * <p>The monitor of the history is also held by {@link BayeuxServerImpl} while
+ * recording a message and resolving its subscribers, and while subscribing a
+ * session and replaying the history to it.</p>
+ *
+ * @see ServerChannelImpl#setHistorySize(int)
+ */
+class ChannelHistory
+{
+    private final Deque<ServerMessage.Mutable> _messages = new ArrayDeque<>();
+    private int _maxMessages;
+    private long _maxBytes;
+    private long _bytes;
+
+    /**
+     * @param maxMessages the max number of messages, or a non-positive value for no limit
+     * @param maxBytes    the max number of bytes of the messages, or a non-positive value for no limit
+     */
+    synchronized void configure(int maxMessages, long maxBytes)
+    {
+        _maxMessages = maxMessages;
+        _maxBytes = maxBytes;
+        trim();
+    }
+
+    /**
+     * @param message the frozen message to record
+     */
+    synchronized void add(ServerMessage.Mutable message)
+    {
+        _messages.addLast(message);
+        _bytes += SessionMessageQueue.sizeOf(message);
+        trim();
+    }
+
+    /**
+     * @return the recorded messages, oldest first
+     */
+    synchronized List<ServerMessage.Mutable> snapshot()
+    {
+        return new ArrayList<>(_messages);
+    }
+
+    synchronized int size()
+    {
+        return _messages.size();
+    }
+
+    synchronized long bytes()
+    {
+        return _bytes;
+    }
+
+    private void trim()
+    {
+        while (!_messages.isEmpty() &&
+                (_maxMessages > 0 && _messages.size() > _maxMessages || _maxBytes > 0 && _bytes > _maxBytes))
+        {
+            _bytes -= SessionMessageQueue.sizeOf(_messages.removeFirst());
+        }
+    }
+}
@@ -0,0 +1,459 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * <p>A {@link ServerMessageImpl} that stores the most common Bayeux fields
+ * ({@code channel}, {@code id}, {@code clientId}, {@code successful},
+ * {@code advice}, {@code ext} and {@code data}) in dedicated fields.</p>
+ * <p>Only the other fields are stored in a separate hash table, which is
+ * therefore not allocated at all for most messages, such as the
+ * {@code /meta/connect} replies. The hash table inherited from
+ * {@link java.util.HashMap} is never used.</p>
+ * <p>Instances are created by {@link BayeuxServerImpl#newMessage()} when the
+ * {@link BayeuxServerImpl#COMPACT_MESSAGES_OPTION} is enabled.</p>
+ * <p>All the fields are seen by the {@link Map} methods available in Java 7,
+ * and by {@code getOrDefault()}, {@code putIfAbsent()}, {@code remove(key, value)}
+ * and {@code replace()}, which are overridden here as plain methods.
+ * The {@code forEach()}, {@code compute*()}, {@code merge()} and {@code replaceAll()}
+ * methods added to {@link Map} by Java 8 cannot be overridden without Java 8 types,
+ * and are implemented by {@link java.util.HashMap} on the inherited hash table, so
+ * they must not be used: {@code forEach()} and {@code replaceAll()} see no fields,
+ * while the fields stored by the other methods make this message throw
+ * {@link IllegalStateException} when it is accessed.</p>
+ */
+public class CompactServerMessageImpl extends ServerMessageImpl
+{
+    private static final long serialVersionUID = -2717574396542738254L;
+    private static final String[] FIELDS = {CHANNEL_FIELD, ID_FIELD, CLIENT_ID_FIELD, SUCCESSFUL_FIELD, ADVICE_FIELD, EXT_FIELD, DATA_FIELD};
+
+    private int _present;
+    private Object _channel;
+    private Object _id;
+    private Object _clientId;
+    private Object _successful;
+    private Object _advice;
+    private Object _ext;
+    private Object _data;
+    private Map<String, Object> _others;
+
+    private static int index(Object key)
+    {
+        if (!(key instanceof String))
+            return -1;
+        switch ((String)key)
+        {
+            case CHANNEL_FIELD:
+                return 0;
+            case ID_FIELD:
+                return 1;
+            case CLIENT_ID_FIELD:
+                return 2;
+            case SUCCESSFUL_FIELD:
+                return 3;
+            case ADVICE_FIELD:
+                return 4;
+            case EXT_FIELD:
+                return 5;
+            case DATA_FIELD:
+                return 6;
+            default:
+                return -1;
+        }
+    }
+
+    private Object field(int index)
+    {
+        switch (index)
+        {
+            case 0:
+                return _channel;
+            case 1:
+                return _id;
+            case 2:
+                return _clientId;
+            case 3:
+                return _successful;
+            case 4:
+                return _advice;
+            case 5:
+                return _ext;
+            case 6:
+                return _data;
+            default:
+                throw new IllegalArgumentException();
+        }
+    }
+
+    private Object field(int index, Object value)
+    {
+        Object result = field(index);
+        switch (index)
+        {
+            case 0:
+                _channel = value;
+                break;
+            case 1:
+                _id = value;
+                break;
+            case 2:
+                _clientId = value;
+                break;
+            case 3:
+                _successful = value;
+                break;
+            case 4:
+                _advice = value;
+                break;
+            case 5:
+                _ext = value;
+                break;
+            case 6:
+                _data = value;
+                break;
+            default:
+                throw new IllegalArgumentException();
+        }
+        return result;
+    }
+
+    private boolean isPresent(int index)
+    {
+        return (_present & (1 << index)) != 0;
+    }
+
+    private Object removeField(int index)
+    {
+        _present &= ~(1 << index);
+        return field(index, null);
+    }
+
+    private Map<String, Object> others()
+    {
+        // Fields stored in the inherited hash table, by the Java 8
+        // methods of HashMap, would otherwise be silently ignored.
+        if (super.size() > 0)
+            throw new IllegalStateException("Unsupported Java 8 Map method used on " + getClass().getSimpleName());
+        Map<String, Object> others = _others;
+        return others == null ? Collections.<String, Object>emptyMap() : others;
+    }
+
+    @Override
+    public Object get(Object key)
+    {
+        int index = index(key);
+        return index < 0 ? others().get(key) : field(index);
+    }
+
+    @Override
+    public boolean containsKey(Object key)
+    {
+        int index = index(key);
+        return index < 0 ? others().containsKey(key) : isPresent(index);
+    }
+
+    @Override
+    public Object put(String key, Object value)
+    {
+        if (isFrozen())
+            throw new UnsupportedOperationException();
+        int index = index(key);
+        if (index < 0)
+        {
+            others();
+            if (_others == null)
+                _others = new HashMap<>();
+            return _others.put(key, value);
+        }
+        _present |= 1 << index;
+        return field(index, value);
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ?> map)
+    {
+        for (Map.Entry<? extends String, ?> entry : map.entrySet())
+            put(entry.getKey(), entry.getValue());
+    }
+
+    @Override
+    public Object remove(Object key)
+    {
+        int index = index(key);
+        return index < 0 ? others().remove(key) : removeField(index);
+    }
+
+    @Override
+    public boolean containsValue(Object value)
+    {
+        for (int i = 0; i < FIELDS.length; ++i)
+        {
+            if (isPresent(i) && Objects.equals(field(i), value))
+                return true;
+        }
+        return others().containsValue(value);
+    }
+
+    @Override
+    public int size()
+    {
+        return Integer.bitCount(_present) + others().size();
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return _present == 0 && others().isEmpty();
+    }
+
+    @Override
+    public void clear()
+    {
+        for (int i = 0; i < FIELDS.length; ++i)
+            removeField(i);
+        others().clear();
+    }
+
+    // The methods below are declared by Map since Java 8, and override
+    // the HashMap implementations that would otherwise only see the
+    // inherited hash table. They have no @Override to compile on Java 7.
+
+    public Object getOrDefault(Object key, Object defaultValue)
+    {
+        return containsKey(key) ? get(key) : defaultValue;
+    }
+
+    public Object putIfAbsent(String key, Object value)
+    {
+        Object result = get(key);
+        if (result == null)
+            result = put(key, value);
+        return result;
+    }
+
+    public boolean remove(Object key, Object value)
+    {
+        if (containsKey(key) && Objects.equals(get(key), value))
+        {
+            remove(key);
+            return true;
+        }
+        return false;
+    }
+
+    public Object replace(String key, Object value)
+    {
+        return containsKey(key) ? put(key, value) : null;
+    }
+
+    public boolean replace(String key, Object oldValue, Object newValue)
+    {
+        if (containsKey(key) && Objects.equals(get(key), oldValue))
+        {
+            put(key, newValue);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public Set<String> keySet()
+    {
+        return new KeySet();
+    }
+
+    @Override
+    public Collection<Object> values()
+    {
+        return new Values();
+    }
+
+    @Override
+    Set<Map.Entry<String, Object>> entries()
+    {
+        return new EntrySet();
+    }
+
+    private class EntrySet extends AbstractSet<Map.Entry<String, Object>>
+    {
+        @Override
+        public Iterator<Map.Entry<String, Object>> iterator()
+        {
+            return new EntryIterator();
+        }
+
+        @Override
+        public int size()
+        {
+            return CompactServerMessageImpl.this.size();
+        }
+    }
+
+    private class EntryIterator implements Iterator<Map.Entry<String, Object>>
+    {
+        private final Iterator<Map.Entry<String, Object>> others = others().entrySet().iterator();
+        private int next = nextField(0);
+        private int last = -1;
+
+        private int nextField(int index)
+        {
+            while (index < FIELDS.length && !isPresent(index))
+                ++index;
+            return index;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return next < FIELDS.length || others.hasNext();
+        }
+
+        @Override
+        public Map.Entry<String, Object> next()
+        {
+            if (next < FIELDS.length)
+            {
+                last = next;
+                next = nextField(next + 1);
+                return new FieldEntry(last);
+            }
+            if (!others.hasNext())
+                throw new NoSuchElementException();
+            last = FIELDS.length;
+            return others.next();
+        }
+
+        @Override
+        public void remove()
+        {
+            if (last < 0)
+                throw new IllegalStateException();
+            if (last < FIELDS.length)
+                removeField(last);
+            else
+                others.remove();
+            last = -1;
+        }
+    }
+
+    private class FieldEntry extends AbstractMap.SimpleEntry<String, Object>
+    {
+        private final int index;
+
+        private FieldEntry(int index)
+        {
+            super(FIELDS[index], field(index));
+            this.index = index;
+        }
+
+        @Override
+        public Object setValue(Object value)
+        {
+            if (isFrozen())
+                throw new UnsupportedOperationException();
+            field(index, value);
+            return super.setValue(value);
+        }
+    }
+
+    private class KeySet extends AbstractSet<String>
+    {
+        @Override
+        public Iterator<String> iterator()
+        {
+            final Iterator<Map.Entry<String, Object>> entries = entries().iterator();
+            return new Iterator<String>()
+            {
+                @Override
+                public boolean hasNext()
+                {
+                    return entries.hasNext();
+                }
+
+                @Override
+                public String next()
+                {
+                    return entries.next().getKey();
+                }
+
+                @Override
+                public void remove()
+                {
+                    entries.remove();
+                }
+            };
+        }
+
+        @Override
+        public boolean contains(Object key)
+        {
+            return containsKey(key);
+        }
+
+        @Override
+        public int size()
+        {
+            return CompactServerMessageImpl.this.size();
+        }
+    }
+
+    private class Values extends AbstractCollection<Object>
+    {
+        @Override
+        public Iterator<Object> iterator()
+        {
+            final Iterator<Map.Entry<String, Object>> entries = entries().iterator();
+            return new Iterator<Object>()
+            {
+                @Override
+                public boolean hasNext()
+                {
+                    return entries.hasNext();
+                }
+
+                @Override
+                public Object next()
+                {
+                    return entries.next().getValue();
+                }
+
+                @Override
+                public void remove()
+                {
+                    entries.remove();
+                }
+            };
+        }
+
+        @Override
+        public int size()
+        {
+            return CompactServerMessageImpl.this.size();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server;
+
+import org.cometd.bayeux.server.ServerMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>The queue of the messages of a session whose publication has been
+ * {@link BayeuxServerImpl#deferPublish(ServerMessage.Mutable, long, Executor) deferred}.</p>
+ * <p>Messages are queued in the order they are received, and published
+ * in the same order when their delay expires: a message whose delay
+ * expired waits for the messages queued before it, and only one thread
+ * at a time publishes the messages of the session, so that concurrent
+ * threads of the executor cannot reorder them.</p>
+ */
+class DeferredPublishQueue
+{
+    private static final Logger _logger = LoggerFactory.getLogger(DeferredPublishQueue.class);
+
+    private final Queue<Entry> _entries = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean _publishing = new AtomicBoolean();
+    private final ServerSessionImpl _session;
+
+    DeferredPublishQueue(ServerSessionImpl session)
+    {
+        _session = session;
+    }
+
+    /**
+     * <p>Queues the given message, to be published after its delay expires.</p>
+     *
+     * @param channel the channel to publish the message to
+     * @param message the message to publish
+     * @return the entry to pass to {@link #expire(Entry, Executor)} when the delay expires
+     */
+    Entry offer(ServerChannelImpl channel, ServerMessage.Mutable message)
+    {
+        Entry entry = new Entry(channel, message);
+        _entries.offer(entry);
+        return entry;
+    }
+
+    /**
+     * <p>Publishes the given message, that is not deferred, after the
+     * deferred messages still queued, if any.</p>
+     * <p>The message is queued as already expired, and it is published
+     * by the calling thread, unless another thread is publishing the
+     * messages of the session, in which case that thread publishes it.</p>
+     *
+     * @param channel the channel to publish the message to
+     * @param message the message to publish
+     * @return false if no deferred messages are pending, and the caller must publish the message
+     */
+    boolean publishAfter(ServerChannelImpl channel, ServerMessage.Mutable message)
+    {
+        // A message being published by another thread has already been
+        // removed from the queue, but still holds the publishing flag.
+        if (_entries.isEmpty() && !_publishing.get())
+            return false;
+        Entry entry = new Entry(channel, message);
+        entry._expired = true;
+        _entries.offer(entry);
+        publish();
+        return true;
+    }
+
+    /**
+     * <p>Marks the given entry as expired and publishes, using the given
+     * executor, the expired messages at the head of the queue.</p>
+     *
+     * @param entry    the entry whose delay expired
+     * @param executor the executor that publishes the messages
+     */
+    void expire(Entry entry, Executor executor)
+    {
+        entry._expired = true;
+        try
+        {
+            executor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    publish();
+                }
+            });
+        }
+        catch (RejectedExecutionException x)
+        {
+            _logger.info("Could not publish deferred message " + entry._message, x);
+            // Drop the message, so that it does not hold the following ones.
+            entry._message = null;
+        }
+    }
+
+    private void publish()
+    {
+        while (true)
+        {
+            if (!_publishing.compareAndSet(false, true))
+                return;
+            try
+            {
+                while (true)
+                {
+                    Entry entry = _entries.peek();
+                    if (entry == null || !entry._expired)
+                        break;
+                    _entries.poll();
+                    ServerMessage.Mutable message = entry._message;
+                    if (message == null)
+                        continue;
+                    try
+                    {
+                        entry._channel.publish(_session, message);
+                    }
+                    catch (Throwable x)
+                    {
+                        _logger.info("Exception while publishing deferred message " + message, x);
+                    }
+                }
+            }
+            finally
+            {
+                _publishing.set(false);
+            }
+            // The head may have expired after it has been checked, while
+            // its own task failed to acquire the publishing flag.
+            Entry head = _entries.peek();
+            if (head == null || !head._expired)
+                return;
+        }
+    }
+
+    static class Entry
+    {
+        private final ServerChannelImpl _channel;
+        private volatile ServerMessage.Mutable _message;
+        private volatile boolean _expired;
+
+        private Entry(ServerChannelImpl channel, ServerMessage.Mutable message)
+        {
+            _channel = channel;
+            _message = message;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server;
+
+import org.cometd.bayeux.server.BayeuxContext;
+import org.cometd.bayeux.server.ServerMessage;
+import org.cometd.bayeux.server.ServerSession;
+import org.cometd.bayeux.server.ServerTransport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Delivers a published message to its subscribers, splitting large
+ * subscriber sets in chunks that are delivered in parallel by an
+ * {@link Executor}.</p>
+ * <p>Sessions are hashed to a fixed number of stripes, and each stripe
+ * delivers its chunks serially and in order, so that messages published
+ * by the same thread are delivered to each session in the same order
+ * they have been published, whether they have been fanned out in parallel
+ * or delivered inline because they had less subscribers than the threshold.
+ * Messages delivered directly to a session, such as service channel replies,
+ * also go through the stripe of the session while it is busy, so that they
+ * do not overtake the messages published before them.</p>
+ * <p>Deliveries run by the {@link Executor} see the current transport and the
+ * {@link BayeuxContext} of the thread that published the message.</p>
+ */
+class FanOut
+{
+    private static final Logger _logger = LoggerFactory.getLogger(FanOut.class);
+
+    private final BayeuxServerImpl _bayeux;
+    private final Executor _executor;
+    private final int _threshold;
+    private final Stripe[] _stripes;
+
+    FanOut(BayeuxServerImpl bayeux, Executor executor, int threshold, int parallelism)
+    {
+        if (threshold <= 0)
+            throw new IllegalArgumentException("Invalid threshold " + threshold);
+        if (parallelism <= 0)
+            throw new IllegalArgumentException("Invalid parallelism " + parallelism);
+        _bayeux = bayeux;
+        _executor = executor;
+        _threshold = threshold;
+        _stripes = new Stripe[parallelism];
+        for (int i = 0; i < parallelism; ++i)
+            _stripes[i] = new Stripe();
+    }
+
+    int getThreshold()
+    {
+        return _threshold;
+    }
+
+    void deliver(ServerSession from, ServerSessionImpl session, ServerMessage.Mutable message)
+    {
+        Stripe stripe = stripe(session);
+        // Preserve ordering with respect to previous messages
+        // that are still being fanned out to this session.
+        if (stripe.isIdle())
+            session.doDeliver(from, message);
+        else
+            stripe.offer(new Delivery(from, message, new ServerSession[]{session}));
+    }
+
+    void deliver(ServerSession from, ServerSession[][] subscribers, ServerMessage.Mutable message)
+    {
+        int size = SubscriberSet.size(subscribers);
+        if (size < _threshold)
+        {
+            for (int i = 0; i < subscribers.length; ++i)
+            {
+                ServerSession[] chunk = subscribers[i];
+                for (int j = 0; j < chunk.length; ++j)
+                    deliver(from, (ServerSessionImpl)chunk[j], message);
+            }
+        }
+        else
+        {
+            int parallelism = _stripes.length;
+            int[] indexes = new int[size];
+            int[] counts = new int[parallelism];
+            for (int i = 0, k = 0; i < subscribers.length; ++i)
+            {
+                ServerSession[] chunk = subscribers[i];
+                for (int j = 0; j < chunk.length; ++j)
+                {
+                    int index = index(chunk[j]);
+                    indexes[k++] = index;
+                    ++counts[index];
+                }
+            }
+
+            ServerSession[][] stripes = new ServerSession[parallelism][];
+            for (int i = 0; i < parallelism; ++i)
+                stripes[i] = new ServerSession[counts[i]];
+            for (int i = subscribers.length, k = size; i-- > 0; )
+            {
+                ServerSession[] chunk = subscribers[i];
+                for (int j = chunk.length; j-- > 0; )
+                {
+                    int index = indexes[--k];
+                    stripes[index][--counts[index]] = chunk[j];
+                }
+            }
+
+            for (int i = 0; i < parallelism; ++i)
+            {
+                ServerSession[] stripe = stripes[i];
+                if (stripe.length > 0)
+                    _stripes[i].offer(new Delivery(from, message, stripe));
+            }
+        }
+    }
+
+    private Stripe stripe(ServerSession session)
+    {
+        return _stripes[index(session)];
+    }
+
+    private int index(ServerSession session)
+    {
+        int hash = session.getId().hashCode();
+        // Spread the bits, as session ids may have poor low bits distribution.
+        hash ^= (hash >>> 16);
+        return (hash & 0x7FFFFFFF) % _stripes.length;
+    }
+
+    private class Stripe implements Runnable
+    {
+        private final Queue<Delivery> _deliveries = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger _pending = new AtomicInteger();
+
+        private boolean isIdle()
+        {
+            return _pending.get() == 0;
+        }
+
+        private void offer(Delivery delivery)
+        {
+            _deliveries.offer(delivery);
+            if (_pending.getAndIncrement() == 0)
+            {
+                try
+                {
+                    _executor.execute(this);
+                }
+                catch (RejectedExecutionException x)
+                {
+                    if (_logger.isDebugEnabled())
+                        _logger.debug("Fan out rejected, delivering inline", x);
+                    run();
+                }
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            do
+            {
+                Delivery delivery = _deliveries.poll();
+                delivery.run();
+            }
+            while (_pending.decrementAndGet() > 0);
+        }
+    }
+
+    private class Delivery implements Runnable
+    {
+        private final ServerSession _from;
+        private final ServerMessage.Mutable _message;
+        private final ServerSession[] _sessions;
+        private final ServerTransport _transport;
+        private final BayeuxContext _context;
+
+        private Delivery(ServerSession from, ServerMessage.Mutable message, ServerSession[] sessions)
+        {
+            _from = from;
+            _message = message;
+            _sessions = sessions;
+            // Deliveries are created by the publishing thread.
+            _transport = _bayeux.getCurrentTransport();
+            _context = _bayeux.getContext();
+        }
+
+        @Override
+        public void run()
+        {
+            ServerTransport transport = _bayeux.getCurrentTransport();
+            BayeuxContext context = _bayeux.setCurrentContext(_context);
+            _bayeux.setCurrentTransport(_transport);
+            try
+            {
+                for (int i = 0; i < _sessions.length; ++i)
+                {
+                    try
+                    {
+                        ((ServerSessionImpl)_sessions[i]).doDeliver(_from, _message);
+                    }
+                    catch (Throwable x)
+                    {
+                        _logger.info("Exception while delivering " + _message + " to " + _sessions[i], x);
+                    }
+                }
+            }
+            finally
+            {
+                _bayeux.setCurrentTransport(transport);
+                _bayeux.setCurrentContext(context);
+            }
+        }
+    }
+}
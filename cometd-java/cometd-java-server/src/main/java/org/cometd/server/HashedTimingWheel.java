@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>A hashed timing wheel that tracks the deadlines of items, so that
+ * {@link #advance(long) advancing} the wheel only visits the items whose
+ * deadline falls in the elapsed ticks, rather than all the items.</p>
+ * <p>Items are hashed by the tick of their deadline into a fixed number of
+ * buckets; items whose deadline is more than one wheel rotation away share
+ * the bucket with nearer items and are visited once per rotation, so
+ * {@link #expire(Object, long)} must verify whether the item is really
+ * expired.</p>
+ * <p>{@link #schedule(Object, long)} and {@link #cancel(Object)} are thread
+ * safe, but calls for the same item must not be concurrent.</p>
+ *
+ * @param <T> the type of the scheduled items
+ */
+abstract class HashedTimingWheel<T>
+{
+    private final ConcurrentMap<T, Integer> _scheduled = new ConcurrentHashMap<>();
+    private final Set<T>[] _buckets;
+    private final long _tick;
+    private volatile long _nextTick;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    HashedTimingWheel(int buckets, long tick, long now)
+    {
+        if (buckets <= 0)
+            throw new IllegalArgumentException("Invalid buckets " + buckets);
+        if (tick <= 0)
+            throw new IllegalArgumentException("Invalid tick " + tick);
+        _buckets = new Set[buckets];
+        for (int i = 0; i < buckets; ++i)
+            _buckets[i] = Collections.newSetFromMap(new ConcurrentHashMap<T, Boolean>());
+        _tick = tick;
+        _nextTick = now / tick;
+    }
+
+    /**
+     * <p>Schedules the given item to be {@link #expire(Object, long) expired}
+     * after the given deadline, replacing any previous deadline.</p>
+     *
+     * @param item     the item to schedule
+     * @param deadline the deadline in milliseconds, or a non-positive value to cancel
+     */
+    void schedule(T item, long deadline)
+    {
+        if (deadline <= 0)
+        {
+            cancel(item);
+            return;
+        }
+
+        // Never schedule in a bucket that will not be advanced over
+        // again before a full rotation of the wheel.
+        long tick = Math.max(deadline / _tick, _nextTick);
+        int bucket = (int)(tick % _buckets.length);
+        Integer previous = _scheduled.put(item, bucket);
+        if (previous == null || previous != bucket)
+        {
+            _buckets[bucket].add(item);
+            if (previous != null)
+                _buckets[previous].remove(item);
+        }
+    }
+
+    /**
+     * @param item the item to cancel
+     */
+    void cancel(T item)
+    {
+        Integer bucket = _scheduled.remove(item);
+        if (bucket != null)
+            _buckets[bucket].remove(item);
+    }
+
+    /**
+     * @return the number of scheduled items
+     */
+    int size()
+    {
+        return _scheduled.size();
+    }
+
+    /**
+     * <p>Advances the wheel up to the given time, calling {@link #expire(Object, long)}
+     * for the items in the buckets of the elapsed ticks, including the current tick.</p>
+     * <p>The bucket of the current tick is advanced over again by the next call,
+     * since it may contain items whose deadline is later in the current tick.</p>
+     *
+     * @param now the current time in milliseconds
+     */
+    synchronized void advance(long now)
+    {
+        long current = now / _tick;
+        long from = Math.max(_nextTick, current - _buckets.length + 1);
+        // Update before advancing, so that items scheduled concurrently
+        // go to buckets that will be advanced over by the next call.
+        _nextTick = Math.max(_nextTick, current);
+        for (long tick = from; tick <= current; ++tick)
+        {
+            int bucket = (int)(tick % _buckets.length);
+            for (Iterator<T> iterator = _buckets[bucket].iterator(); iterator.hasNext();)
+            {
+                T item = iterator.next();
+                if (!expire(item, now))
+                {
+                    iterator.remove();
+                    _scheduled.remove(item, bucket);
+                }
+            }
+        }
+    }
+
+    /**
+     * <p>Called when the wheel advances over the bucket of the given item.</p>
+     *
+     * @param item the item to expire
+     * @param now  the current time in milliseconds
+     * @return true if the item must remain scheduled, false if it must be removed
+     */
+    protected abstract boolean expire(T item, long now);
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server;
+
+import org.cometd.bayeux.Channel;
+import org.cometd.bayeux.Message;
+
+import java.nio.charset.Charset;
+
+/**
+ * <p>Serializes the common, successful {@code /meta/connect} reply, that has no
+ * advice and no extension fields, from a precomputed template of bytes plus
+ * the variable {@code id} and {@code clientId} fields.</p>
+ * <p>Replies that have any other field, for example added by extensions, or
+ * whose variable fields would need escaping, are not matched by the template
+ * and must be serialized by the {@link org.cometd.common.JSONContext}.</p>
+ */
+class MetaConnectReplyTemplate
+{
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final byte[] PREFIX = ("{\"" + Message.CHANNEL_FIELD + "\":\"" + Channel.META_CONNECT + "\",\"" + Message.SUCCESSFUL_FIELD + "\":true").getBytes(ASCII);
+    private static final byte[] ID = (",\"" + Message.ID_FIELD + "\":\"").getBytes(ASCII);
+    private static final byte[] CLIENT_ID = (",\"" + Message.CLIENT_ID_FIELD + "\":\"").getBytes(ASCII);
+
+    private MetaConnectReplyTemplate()
+    {
+    }
+
+    /**
+     * <p>Freezes the given reply with the JSON generated from the template,
+     * if the reply matches the template.</p>
+     *
+     * @param reply the reply to freeze
+     * @return whether the reply matched the template and has been frozen
+     */
+    static boolean freeze(ServerMessageImpl reply)
+    {
+        if (!Channel.META_CONNECT.equals(reply.getChannel()))
+            return false;
+        if (!Boolean.TRUE.equals(reply.get(Message.SUCCESSFUL_FIELD)))
+            return false;
+
+        Object id = reply.get(Message.ID_FIELD);
+        Object clientId = reply.get(Message.CLIENT_ID_FIELD);
+        int fields = 2;
+        int length = PREFIX.length + 1;
+        if (id != null)
+        {
+            if (!isVerbatim(id))
+                return false;
+            ++fields;
+            length += ID.length + ((String)id).length() + 1;
+        }
+        if (clientId != null)
+        {
+            if (!isVerbatim(clientId))
+                return false;
+            ++fields;
+            length += CLIENT_ID.length + ((String)clientId).length() + 1;
+        }
+        // Any other field, or a field with a null value, needs the JSONContext.
+        if (reply.size() != fields)
+            return false;
+
+        byte[] bytes = new byte[length];
+        int index = append(bytes, 0, PREFIX);
+        if (id != null)
+            index = append(bytes, index, ID, (String)id);
+        if (clientId != null)
+            index = append(bytes, index, CLIENT_ID, (String)clientId);
+        bytes[index] = '}';
+        reply.freeze(new String(bytes, ASCII), bytes);
+        return true;
+    }
+
+    private static boolean isVerbatim(Object value)
+    {
+        if (!(value instanceof String))
+            return false;
+        String string = (String)value;
+        for (int i = 0; i < string.length(); ++i)
+        {
+            char c = string.charAt(i);
+            // Printable ASCII characters that do not need escaping.
+            if (c < 0x20 || c > 0x7E || c == '"' || c == '\\' || c == '/')
+                return false;
+        }
+        return true;
+    }
+
+    private static int append(byte[] bytes, int index, byte[] template)
+    {
+        System.arraycopy(template, 0, bytes, index, template.length);
+        return index + template.length;
+    }
+
+    private static int append(byte[] bytes, int index, byte[] template, String value)
+    {
+        index = append(bytes, index, template);
+        for (int i = 0; i < value.length(); ++i)
+            bytes[index++] = (byte)value.charAt(i);
+        bytes[index++] = '"';
+        return index;
+    }
+}
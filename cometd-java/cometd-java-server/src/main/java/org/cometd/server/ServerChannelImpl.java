@@ -26,10 +26,11 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 public class ServerChannelImpl implements ServerChannel
 {
@@ -37,14 +38,24 @@ public class ServerChannelImpl implements ServerChannel
     private final BayeuxServerImpl _bayeux;
     private final ChannelId _id;
     private final AttributesMap _attributes = new AttributesMap();
-    private final Set<ServerSession> _subscribers = new CopyOnWriteArraySet<>();
+    private final SubscriberSet _subscribers = new SubscriberSet();
     private final List<ServerChannelListener> _listeners = new CopyOnWriteArrayList<>();
     private final List<Authorizer> _authorizers = new CopyOnWriteArrayList<>();
     private final CountDownLatch _initialized = new CountDownLatch(1);
+    private static final AtomicLongFieldUpdater<ServerChannelImpl> PUBLISH_COUNT = AtomicLongFieldUpdater.newUpdater(ServerChannelImpl.class, "_publishCount");
+    private static final AtomicReferenceFieldUpdater<ServerChannelImpl, BayeuxMetrics.Counter> PUBLISHES = AtomicReferenceFieldUpdater.newUpdater(ServerChannelImpl.class, BayeuxMetrics.Counter.class, "_publishes");
     private final AtomicInteger _sweeperPasses = new AtomicInteger();
     private boolean _lazy;
     private long _lazyTimeout = -1;
+    private boolean _conflated;
+    private String _conflationKey;
+    private int _historySize;
+    private long _historyBytes;
+    private volatile ChannelHistory _history;
+    private volatile long _publishCount;
+    private volatile BayeuxMetrics.Counter _publishes;
     private boolean _persistent;
+    private volatile SubscriptionTrie.Node _subscriptionNode;
 
     protected ServerChannelImpl(BayeuxServerImpl bayeux, ChannelId id)
     {
@@ -87,6 +98,16 @@ public class ServerChannelImpl implements ServerChannel
         _sweeperPasses.set(0);
     }
 
+    SubscriptionTrie.Node getSubscriptionNode()
+    {
+        return _subscriptionNode;
+    }
+
+    void setSubscriptionNode(SubscriptionTrie.Node node)
+    {
+        _subscriptionNode = node;
+    }
+
     public boolean subscribe(ServerSession session)
     {
         return subscribe((ServerSessionImpl)session, null);
@@ -108,7 +129,12 @@ public class ServerChannelImpl implements ServerChannel
 
         if (_subscribers.add(session))
         {
+            _bayeux.subscriptionsChanged(this);
             session.subscribedTo(this);
+            // The session may have been removed concurrently, and
+            // not have unsubscribed from this channel, sweep it.
+            if (!session.isHandshook())
+                _bayeux.sweepable(this);
             for (ServerChannelListener listener : _listeners)
                 if (listener instanceof SubscriptionListener)
                     notifySubscribed((SubscriptionListener)listener, session, this, message);
@@ -163,6 +189,8 @@ public class ServerChannelImpl implements ServerChannel
 
         if (_subscribers.remove(session))
         {
+            _bayeux.subscriptionsChanged(this);
+            _bayeux.sweepable(this);
             session.unsubscribedFrom(this);
             for (ServerChannelListener listener : _listeners)
                 if (listener instanceof SubscriptionListener)
@@ -209,6 +237,15 @@ public class ServerChannelImpl implements ServerChannel
         return _subscribers;
     }
 
+    /**
+     * @return a point in time view of the subscribers of this channel, in chunks that must not be modified
+     * @see SubscriberSet#snapshot()
+     */
+    ServerSession[][] subscribersSnapshot()
+    {
+        return _subscribers.snapshot();
+    }
+
     public boolean isBroadcast()
     {
         return !isMeta() && !isService();
@@ -241,6 +278,40 @@ public class ServerChannelImpl implements ServerChannel
             _lazyTimeout = -1;
     }
 
+    /**
+     * @return the number of messages published to this channel while metrics are enabled
+     * @see BayeuxMetrics#getChannelPublishes()
+     */
+    public long getPublishCount()
+    {
+        BayeuxMetrics.Counter publishes = _publishes;
+        return _publishCount + (publishes == null ? 0 : publishes.get());
+    }
+
+    void incrementPublishCount()
+    {
+        BayeuxMetrics.Counter publishes = _publishes;
+        if (publishes == null)
+        {
+            long count = _publishCount;
+            if (PUBLISH_COUNT.compareAndSet(this, count, count + 1))
+                return;
+            // Contended: from now on, count the publishes with a counter
+            // striped by thread, that is only allocated for hot channels.
+            PUBLISHES.compareAndSet(this, null, new BayeuxMetrics.Counter());
+            publishes = _publishes;
+        }
+        publishes.increment();
+    }
+
+    void resetPublishCount()
+    {
+        _publishCount = 0;
+        BayeuxMetrics.Counter publishes = _publishes;
+        if (publishes != null)
+            publishes.reset();
+    }
+
     public long getLazyTimeout()
     {
         return _lazyTimeout;
@@ -252,10 +323,126 @@ public class ServerChannelImpl implements ServerChannel
         setLazy(lazyTimeout > 0);
     }
 
+    /**
+     * @return whether a message published to this channel replaces the
+     * messages of this channel that are queued and not yet delivered
+     * @see #getConflationKey()
+     */
+    public boolean isConflated()
+    {
+        return _conflated;
+    }
+
+    /**
+     * @param conflated whether messages published to this channel are conflated
+     */
+    public void setConflated(boolean conflated)
+    {
+        _conflated = conflated;
+        if (!conflated)
+            _conflationKey = null;
+    }
+
+    /**
+     * <p>Returns the name of the data field whose value, together with the channel,
+     * identifies the messages that replace each other when this channel
+     * {@link #isConflated() is conflated}.</p>
+     * <p>When null, any newer message on this channel replaces the queued one.</p>
+     *
+     * @return the name of the data field used as conflation key, or null
+     */
+    public String getConflationKey()
+    {
+        return _conflationKey;
+    }
+
+    /**
+     * @param conflationKey the name of the data field used as conflation key, or null;
+     *                      a non-null value makes this channel conflated
+     */
+    public void setConflationKey(String conflationKey)
+    {
+        _conflationKey = conflationKey;
+        setConflated(conflationKey != null);
+    }
+
+    /**
+     * @return the max number of messages published to this channel that are
+     * retained and replayed to new subscribers, or 0 if there is no message limit
+     * @see #getHistoryBytes()
+     */
+    public int getHistorySize()
+    {
+        return _historySize;
+    }
+
+    /**
+     * <p>Sets the max number of messages published to this channel that are
+     * retained and delivered to sessions when they subscribe to this channel.</p>
+     * <p>Channels that retain messages are not swept.</p>
+     *
+     * @param historySize the max number of retained messages, or 0 to not limit the number of messages
+     */
+    public void setHistorySize(int historySize)
+    {
+        _historySize = Math.max(0, historySize);
+        updateHistory();
+    }
+
+    /**
+     * @return the max number of bytes of the retained messages, or 0 if there is no byte limit
+     * @see #getHistorySize()
+     */
+    public long getHistoryBytes()
+    {
+        return _historyBytes;
+    }
+
+    /**
+     * @param historyBytes the max number of bytes of the retained messages, measured as
+     *                     the length of their JSON representation, or 0 to not limit the bytes
+     */
+    public void setHistoryBytes(long historyBytes)
+    {
+        _historyBytes = Math.max(0, historyBytes);
+        updateHistory();
+    }
+
+    private synchronized void updateHistory()
+    {
+        if (_historySize == 0 && _historyBytes == 0)
+        {
+            if (_history != null)
+            {
+                _history = null;
+                _bayeux.sweepable(this);
+            }
+        }
+        else
+        {
+            resetSweeperPasses();
+            ChannelHistory history = _history;
+            if (history == null)
+                history = new ChannelHistory();
+            history.configure(_historySize, _historyBytes);
+            _history = history;
+        }
+    }
+
+    /**
+     * @return the history of this channel, or null if this channel does not retain messages
+     */
+    ChannelHistory getHistory()
+    {
+        return _history;
+    }
+
     public void setPersistent(boolean persistent)
     {
         resetSweeperPasses();
         _persistent = persistent;
+        if (!persistent)
+            _bayeux.sweepable(this);
     }
 
     public void addListener(ServerChannelListener listener)
@@ -266,7 +453,8 @@ public class ServerChannelImpl implements ServerChannel
 
     public void removeListener(ServerChannelListener listener)
     {
-        _listeners.remove(listener);
+        if (_listeners.remove(listener))
+            _bayeux.sweepable(this);
     }
 
     public List<ServerChannelListener> getListeners()
@@ -333,41 +521,55 @@ public class ServerChannelImpl implements ServerChannel
         publish(from, mutable);
     }
 
-    protected void sweep()
+    /**
+     * <p>Sweeps this channel, removing it if it has been eligible for removal
+     * for enough sweeps.</p>
+     *
+     * @return whether this channel must be swept again, because it is eligible
+     * for removal but has not been removed yet
+     */
+    protected boolean sweep()
     {
         waitForInitialized();
 
-        if (!_subscribers.isEmpty())
+        ServerSession[][] subscribers = _subscribers.snapshot();
+        for (int i = 0; i < subscribers.length; ++i)
         {
-            for (ServerSession session : _subscribers)
+            ServerSession[] chunk = subscribers[i];
+            for (int j = 0; j < chunk.length; ++j)
             {
+                ServerSession session = chunk[j];
                 if (!session.isHandshook())
                     unsubscribe(session);
             }
         }
 
         if (isPersistent())
-            return;
+            return false;
+
+        if (_history != null)
+            return false;
 
         if (!_subscribers.isEmpty())
-            return;
+            return false;
 
         if (!_authorizers.isEmpty())
-            return;
+            return false;
 
         if (!_listeners.isEmpty())
         {
             for (ServerChannelListener listener : _listeners)
             {
                 if (!(listener instanceof ServerChannelListener.Weak))
-                    return;
+                    return false;
             }
         }
 
         if (_sweeperPasses.incrementAndGet() < 3)
-            return;
+            return true;
 
         remove();
+        return false;
     }
 
     public void remove()
@@ -377,6 +579,7 @@ public class ServerChannelImpl implements ServerChannel
             for (ServerSession subscriber : _subscribers)
                 ((ServerSessionImpl)subscriber).unsubscribedFrom(this);
             _subscribers.clear();
+            _bayeux.subscriptionsChanged(this);
         }
 
         _listeners.clear();
@@ -408,6 +611,9 @@ public class ServerChannelImpl implements ServerChannel
     {
         b.append(toString());
         b.append(isLazy() ? " lazy" : "");
+        b.append(isConflated() ? " conflated" : "");
+        ChannelHistory history = _history;
+        b.append(history != null ? " history=" + history.size() : "");
         b.append('\n');
 
         int leaves = _subscribers.size() + _listeners.size() + _authorizers.size();
@@ -441,7 +647,8 @@ public class ServerChannelImpl implements ServerChannel
 
     public void removeAuthorizer(Authorizer authorizer)
     {
-        _authorizers.remove(authorizer);
+        if (_authorizers.remove(authorizer))
+            _bayeux.sweepable(this);
     }
 
     public List<Authorizer> getAuthorizers()
@@ -19,15 +19,23 @@ import org.cometd.bayeux.server.ServerMessage;
 import org.cometd.common.HashMapMessage;
 import org.cometd.common.JSONContext;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.*;
 
 public class ServerMessageImpl extends HashMapMessage implements ServerMessage.Mutable
 {
     private static final long serialVersionUID = 6412048662640296067L;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
 
     private volatile transient ServerMessage.Mutable _associated;
     private volatile boolean _lazy = false;
+    private volatile transient String _conflationKey;
+    private transient long _publishNanos;
     private volatile String _json;
+    private volatile transient byte[] _jsonBytes;
 
     public ServerMessage.Mutable getAssociated()
     {
@@ -49,12 +57,48 @@ public class ServerMessageImpl extends HashMapMessage implements ServerMessage.M
         _lazy = lazy;
     }
 
+    /**
+     * @return the data field used as conflation key, the empty string to
+     * conflate by channel only, or null if this message is not conflated
+     * @see ServerChannelImpl#isConflated()
+     */
+    String getConflationKey()
+    {
+        return _conflationKey;
+    }
+
+    void setConflationKey(String conflationKey)
+    {
+        _conflationKey = conflationKey;
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} at which this message was published,
+     * or 0 if metrics are not enabled
+     * @see BayeuxMetrics#getDeliveryLatency()
+     */
+    long getPublishNanos()
+    {
+        return _publishNanos;
+    }
+
+    void setPublishNanos(long publishNanos)
+    {
+        _publishNanos = publishNanos;
+    }
+
     protected void freeze(String json)
     {
         assert _json == null;
         _json = json;
     }
 
+    void freeze(String json, byte[] jsonBytes)
+    {
+        freeze(json);
+        _jsonBytes = jsonBytes;
+    }
+
     protected boolean isFrozen()
     {
         return _json != null;
@@ -68,6 +112,48 @@ public class ServerMessageImpl extends HashMapMessage implements ServerMessage.M
         return _json;
     }
 
+    /**
+     * <p>Returns the UTF-8 bytes of the JSON representation of this message.</p>
+     * <p>For frozen messages the bytes are encoded only once and then shared
+     * among all the recipients of the message, so the returned buffer is
+     * read-only.</p>
+     *
+     * @return a read-only buffer with the UTF-8 bytes of the JSON representation of this message
+     * @see #writeJSON(OutputStream)
+     */
+    public ByteBuffer getJSONBytes()
+    {
+        return ByteBuffer.wrap(jsonBytes()).asReadOnlyBuffer();
+    }
+
+    /**
+     * <p>Writes the UTF-8 bytes of the JSON representation of this message
+     * to the given stream, without copying them when the message is frozen.</p>
+     *
+     * @param output the stream to write to
+     * @throws IOException if the write fails
+     * @see #getJSONBytes()
+     */
+    public void writeJSON(OutputStream output) throws IOException
+    {
+        output.write(jsonBytes());
+    }
+
+    byte[] jsonBytes()
+    {
+        byte[] bytes = _jsonBytes;
+        if (bytes == null)
+        {
+            String json = _json;
+            if (json == null)
+                return getJSON().getBytes(UTF_8);
+            // Benign race, concurrent callers encode the same bytes.
+            bytes = json.getBytes(UTF_8);
+            _jsonBytes = bytes;
+        }
+        return bytes;
+    }
+
     @Override
     public Object getData()
     {
@@ -89,7 +175,15 @@ public class ServerMessageImpl extends HashMapMessage implements ServerMessage.M
     public Set<Map.Entry<String, Object>> entrySet()
     {
         if (isFrozen())
-            return new ImmutableEntrySet(super.entrySet());
+            return new ImmutableEntrySet(entries());
+        return entries();
+    }
+
+    /**
+     * @return the mutable entries of this message
+     */
+    Set<Map.Entry<String, Object>> entries()
+    {
         return super.entrySet();
     }
 
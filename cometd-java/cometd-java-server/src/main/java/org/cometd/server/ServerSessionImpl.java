@@ -22,7 +22,6 @@ import org.cometd.bayeux.server.*;
 import org.cometd.common.HashMapMessage;
 import org.cometd.server.AbstractServerTransport.Scheduler;
 import org.cometd.server.transport.AbstractHttpTransport;
-import org.eclipse.jetty.util.ArrayQueue;
 import org.eclipse.jetty.util.AttributesMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,6 +31,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 public class ServerSessionImpl implements ServerSession
@@ -43,7 +43,8 @@ public class ServerSessionImpl implements ServerSession
     private final String _id;
     private final List<ServerSessionListener> _listeners = new CopyOnWriteArrayList<>();
     private final List<Extension> _extensions = new CopyOnWriteArrayList<>();
-    private final ArrayQueue<ServerMessage> _queue = new ArrayQueue<>(8, 16, this);
+    private final SessionMessageQueue _queue = new SessionMessageQueue();
+    private final AtomicInteger[] _offerings = {new AtomicInteger(), new AtomicInteger()};
     private final LocalSessionImpl _localSession;
     private final AttributesMap _attributes = new AttributesMap();
     private final AtomicBoolean _connected = new AtomicBoolean();
@@ -51,9 +52,13 @@ public class ServerSessionImpl implements ServerSession
     private final AtomicBoolean _handshook = new AtomicBoolean();
     private final Map<ServerChannelImpl, Boolean> _subscribedTo = new ConcurrentHashMap<>();
     private final LazyTask _lazyTask = new LazyTask();
+    private final AtomicLong _pendingWriteBytes = new AtomicLong();
     private AbstractServerTransport.Scheduler _scheduler;
+    private long _heldNanos;
     private ServerTransport _advisedTransport;
     private int _maxQueue = -1;
+    private volatile long _maxQueueBytes = -1;
+    private volatile SlowConsumerPolicy _slowConsumerPolicy;
     private long _transientTimeout = -1;
     private long _transientInterval = -1;
     private long _timeout = -1;
@@ -62,12 +67,15 @@ public class ServerSessionImpl implements ServerSession
     private long _maxServerInterval = -1;
     private long _maxLazy = -1;
     private boolean _metaConnectDelivery;
-    private int _batch;
+    private volatile boolean _queueListeners;
+    private volatile int _offeringPhase;
+    private volatile int _batch;
     private String _userAgent;
     private long _connectTimestamp = -1;
     private long _intervalTimestamp;
-    private boolean _nonLazyMessages;
+    private volatile boolean _nonLazyMessages;
     private boolean _broadcastToPublisher;
+    private volatile DeferredPublishQueue _deferredPublishes;
 
     protected ServerSessionImpl(BayeuxServerImpl bayeux)
     {
@@ -203,7 +211,7 @@ public class ServerSessionImpl implements ServerSession
         if (!_bayeux.extendSend(session, this, message))
             return;
 
-        doDeliver(session, message);
+        _bayeux.deliver(session, this, message);
     }
 
     public void deliver(Session sender, String channelId, Object data)
@@ -252,6 +260,38 @@ public class ServerSessionImpl implements ServerSession
 
     private Boolean enqueueMessage(ServerSession sender, ServerMessage.Mutable message)
     {
+        // Without queue listeners there is nothing to notify atomically
+        // with the enqueueing, so the message can be offered lock free.
+        // The counter of the current phase lets addListener() wait for
+        // the offers that did not see a queue listener being added.
+        AtomicInteger offering = _offerings[_offeringPhase];
+        offering.incrementAndGet();
+        String conflationKey = message instanceof ServerMessageImpl ? ((ServerMessageImpl)message).getConflationKey() : null;
+        SlowConsumerPolicy policy = _slowConsumerPolicy;
+        if (!_queueListeners && conflationKey == null)
+        {
+            // With a slow consumer policy, the message is offered lock free
+            // only if it fits the budgets, otherwise the policy is applied.
+            boolean queued = true;
+            try
+            {
+                if (policy == null)
+                    addMessage(message);
+                else
+                    queued = offerWithinBudgets(message, null);
+            }
+            finally
+            {
+                offering.decrementAndGet();
+            }
+            if (queued)
+                return _batch == 0;
+        }
+        else
+        {
+            offering.decrementAndGet();
+        }
+
         synchronized (getLock())
         {
             if (!_listeners.isEmpty())
@@ -270,7 +310,31 @@ public class ServerSessionImpl implements ServerSession
 
                 }
             }
-            addMessage(message);
+            // Conflate before applying the budgets, since
+            // conflation may make room for the new message.
+            Object key = conflationKey == null ? null : conflationKey(message, conflationKey);
+            if (key != null)
+                _queue.conflate(key);
+            if (policy == null)
+            {
+                addMessage(message, key);
+            }
+            else
+            {
+                while (!offerWithinBudgets(message, key))
+                {
+                    if (!notifySlowConsumer(policy, sender, message))
+                        return null;
+                    // The policy decided to enqueue the message beyond the budgets.
+                    if (isQueueExceeded(message))
+                    {
+                        addMessage(message, key);
+                        break;
+                    }
+                    // Otherwise the policy made room for the message, but
+                    // lock free offers may take it before the reservation.
+                }
+            }
             if (!_listeners.isEmpty())
             {
                 for (ServerSessionListener listener : _listeners)
@@ -311,6 +375,45 @@ public class ServerSessionImpl implements ServerSession
         }
     }
 
+    /**
+     * <p>Returns the key that identifies the queued message that the given
+     * message replaces: the message of the same channel and, if the conflation
+     * key is not empty, with the same value of the data field named by the
+     * conflation key.</p>
+     *
+     * @param message       the new message
+     * @param conflationKey the conflation key of the new message
+     * @return the key of the message to replace, or null if the message does not replace others
+     */
+    private Object conflationKey(ServerMessage message, String conflationKey)
+    {
+        if (conflationKey.isEmpty())
+            return Arrays.asList(message.getChannel(), conflationKey);
+        Object value = conflationValue(message, conflationKey);
+        if (value == null)
+            return null;
+        return Arrays.asList(message.getChannel(), conflationKey, value);
+    }
+
+    private Object conflationValue(ServerMessage message, String field)
+    {
+        Object data = message.getData();
+        return data instanceof Map ? ((Map<?, ?>)data).get(field) : null;
+    }
+
+    private boolean notifySlowConsumer(SlowConsumerPolicy policy, ServerSession sender, ServerMessage message)
+    {
+        try
+        {
+            return policy.onSlowConsumer(this, _queue, sender, message);
+        }
+        catch (Throwable x)
+        {
+            _logger.info("Exception while invoking slow consumer policy " + policy, x);
+            return true;
+        }
+    }
+
     private boolean notifyOnMessage(MessageListener listener, ServerSession from, ServerMessage message)
     {
         try
@@ -344,6 +447,8 @@ public class ServerSessionImpl implements ServerSession
         if (transport != null)
         {
             _maxQueue = transport.getOption(AbstractServerTransport.MAX_QUEUE_OPTION, -1);
+            _maxQueueBytes = transport.getMaxQueueBytes();
+            _slowConsumerPolicy = transport.getSlowConsumerPolicy();
             _maxInterval = _interval >= 0 ? _interval + transport.getMaxInterval() : transport.getMaxInterval();
             _maxServerInterval = transport.getOption("maxServerInterval", -1);
             _maxLazy = transport.getMaxLazyTimeout();
@@ -402,7 +507,42 @@ public class ServerSessionImpl implements ServerSession
 
     public void addListener(ServerSessionListener listener)
     {
-        _listeners.add(listener);
+        if (isQueueListener(listener))
+        {
+            synchronized (getLock())
+            {
+                _listeners.add(listener);
+                _queueListeners = true;
+            }
+            // Offers that start after the phase flip count on the other
+            // counter and see the listener, so only the lock free offers
+            // already in progress, that may not have seen the listener,
+            // are waited for, and the wait is bounded even when messages
+            // are delivered continuously.
+            // The wait is performed without holding the session lock, so
+            // that it does not block the delivery of the queued messages,
+            // but holding the lock of the counters, so that concurrent
+            // additions do not flip the phase back before the offers of
+            // the previous phase complete. The session lock is never
+            // acquired while holding the lock of the counters.
+            synchronized (_offerings)
+            {
+                int phase = _offeringPhase;
+                _offeringPhase = 1 - phase;
+                AtomicInteger offering = _offerings[phase];
+                while (offering.get() > 0)
+                    Thread.yield();
+            }
+        }
+        else
+        {
+            _listeners.add(listener);
+        }
+    }
+
+    private boolean isQueueListener(ServerSessionListener listener)
+    {
+        return listener instanceof QueueListener || listener instanceof MaxQueueListener;
     }
 
     public String getId()
@@ -410,6 +550,17 @@ public class ServerSessionImpl implements ServerSession
         return _id;
     }
 
+    /**
+     * <p>Returns the lock that guards the state of this session.</p>
+     * <p>Messages are enqueued without holding this lock when the session has no
+     * {@link QueueListener}s or {@link MaxQueueListener}s; when it has, they are
+     * enqueued and the listeners notified while holding this lock.
+     * Messages are always dequeued, and {@link DeQueueListener}s notified, while
+     * holding this lock.
+     * Listeners and extensions need not to hold this lock to protect their own state.</p>
+     *
+     * @return the lock of this session
+     */
     public Object getLock()
     {
         return this;
@@ -420,27 +571,180 @@ public class ServerSessionImpl implements ServerSession
         return _queue;
     }
 
-    public boolean hasNonLazyMessages()
+    /**
+     * <p>Returns whether queueing the given message exceeds the budgets of
+     * this session: the max number of queued messages, and the max number
+     * of bytes of the queued messages plus the messages whose write to the
+     * remote client is pending.</p>
+     * <p>Messages are measured by the length of the UTF-8 bytes of their
+     * frozen JSON representation.</p>
+     *
+     * @param message the message to queue, or null
+     * @return whether the queue budgets are exceeded
+     * @see SlowConsumerPolicy
+     */
+    public boolean isQueueExceeded(ServerMessage message)
     {
-        synchronized (getLock())
+        int maxQueue = _maxQueue;
+        if (maxQueue > 0 && _queue.size() + (message == null ? 0 : 1) > maxQueue)
+            return true;
+        long maxQueueBytes = _maxQueueBytes;
+        if (maxQueueBytes > 0)
         {
-            return _nonLazyMessages;
+            long bytes = _queue.bytes() + _pendingWriteBytes.get();
+            if (message != null)
+                bytes += SessionMessageQueue.sizeOf(message);
+            return bytes > maxQueueBytes;
         }
+        return false;
     }
 
-    private void clearQueue()
+    /**
+     * @return the max number of bytes of queued and pending messages, or a non-positive value for no limit
+     * @see AbstractServerTransport#MAX_QUEUE_BYTES_OPTION
+     */
+    public long getMaxQueueBytes()
     {
-        _queue.clear();
-        _nonLazyMessages = false;
+        return _maxQueueBytes;
     }
 
-    protected void addMessage(ServerMessage message)
+    public void setMaxQueueBytes(long maxQueueBytes)
     {
-        synchronized (getLock())
+        _maxQueueBytes = maxQueueBytes;
+    }
+
+    /**
+     * @return the policy applied when the queue budgets are exceeded, or null
+     * @see AbstractServerTransport#SLOW_CONSUMER_POLICY_OPTION
+     */
+    public SlowConsumerPolicy getSlowConsumerPolicy()
+    {
+        return _slowConsumerPolicy;
+    }
+
+    public void setSlowConsumerPolicy(SlowConsumerPolicy policy)
+    {
+        _slowConsumerPolicy = policy;
+    }
+
+    /**
+     * <p>Called by transports when the given messages, taken from the queue,
+     * are about to be written to the remote client, so that they are
+     * accounted in the queue budgets until {@link #writeComplete(long)}.</p>
+     * <p>Messages are measured only if the session has a byte budget.</p>
+     *
+     * @param messages the messages to write
+     * @return the number of bytes accounted, to be passed to {@link #writeComplete(long)}
+     */
+    public long writePending(List<ServerMessage> messages)
+    {
+        if (_maxQueueBytes <= 0)
+            return 0;
+        long bytes = 0;
+        for (int i = 0; i < messages.size(); ++i)
+            bytes += SessionMessageQueue.sizeOf(messages.get(i));
+        if (bytes > 0)
+            _pendingWriteBytes.addAndGet(bytes);
+        return bytes;
+    }
+
+    /**
+     * <p>Called by transports when the write of messages accounted
+     * with {@link #writePending(List)} completed, either successfully
+     * or not.</p>
+     *
+     * @param bytes the number of bytes returned by {@link #writePending(List)}
+     */
+    public void writeComplete(long bytes)
+    {
+        if (bytes > 0)
+            _pendingWriteBytes.addAndGet(-bytes);
+    }
+
+    /**
+     * @return the number of bytes of the messages whose write is pending
+     */
+    public long getPendingWriteBytes()
+    {
+        return _pendingWriteBytes.get();
+    }
+
+    BayeuxServerImpl getBayeux()
+    {
+        return _bayeux;
+    }
+
+    /**
+     * <p>Publishes the given message after the deferred messages of this session
+     * that are still queued, if any.</p>
+     *
+     * @param channel the channel to publish the message to
+     * @param message the message to publish
+     * @return false if no deferred messages are queued, and the caller must publish the message
+     */
+    boolean publishAfterDeferred(ServerChannelImpl channel, ServerMessage.Mutable message)
+    {
+        DeferredPublishQueue queue = _deferredPublishes;
+        return queue != null && queue.publishAfter(channel, message);
+    }
+
+    /**
+     * @return the queue of the messages of this session whose publication has been deferred
+     */
+    DeferredPublishQueue getDeferredPublishQueue()
+    {
+        DeferredPublishQueue result = _deferredPublishes;
+        if (result == null)
         {
-            _queue.add(message);
-            _nonLazyMessages |= !message.isLazy();
+            // Only sessions whose messages are deferred allocate the queue.
+            synchronized (getLock())
+            {
+                result = _deferredPublishes;
+                if (result == null)
+                    result = _deferredPublishes = new DeferredPublishQueue(this);
+            }
         }
+        return result;
+    }
+
+    public boolean hasNonLazyMessages()
+    {
+        return _nonLazyMessages;
+    }
+
+    protected void addMessage(ServerMessage message)
+    {
+        addMessage(message, null);
+    }
+
+    private void addMessage(ServerMessage message, Object conflationKey)
+    {
+        // Queued messages are measured by their frozen JSON.
+        if (message instanceof ServerMessageImpl)
+            _bayeux.freeze((ServerMessage.Mutable)message);
+        // Without limiting it, measure the message if there is
+        // a byte budget, as it counts against the following offers.
+        long maxBytes = _maxQueueBytes > 0 ? Long.MAX_VALUE : 0;
+        _queue.offer(message, conflationKey, 0, maxBytes, 0);
+        queued(message);
+    }
+
+    private boolean offerWithinBudgets(ServerMessage message, Object conflationKey)
+    {
+        if (message instanceof ServerMessageImpl)
+            _bayeux.freeze((ServerMessage.Mutable)message);
+        if (!_queue.offer(message, conflationKey, _maxQueue, _maxQueueBytes, _pendingWriteBytes.get()))
+            return false;
+        queued(message);
+        return true;
+    }
+
+    private void queued(ServerMessage message)
+    {
+        // Set the flag after offering the message, so that
+        // a concurrent drain may only see it spuriously set.
+        if (!message.isLazy())
+            _nonLazyMessages = true;
     }
 
     public List<ServerMessage> takeQueue()
@@ -459,17 +763,41 @@ public class ServerSessionImpl implements ServerSession
                 }
             }
 
-            int size = _queue.size();
-            if (size > 0)
+            // Clear the flag before draining the queue, see addMessage().
+            _nonLazyMessages = false;
+            ServerMessage message = _queue.poll();
+            if (message != null)
             {
-                copy = new ArrayList<>(size);
-                copy.addAll(_queue);
+                copy = new ArrayList<>(_queue.size() + 1);
+                while (message != null)
+                {
+                    copy.add(message);
+                    message = _queue.poll();
+                }
             }
-            clearQueue();
         }
+        BayeuxMetrics metrics = _bayeux.getMetrics();
+        if (metrics != null && !copy.isEmpty())
+            recordDequeue(metrics, copy);
         return copy;
     }
 
+    private void recordDequeue(BayeuxMetrics metrics, List<ServerMessage> messages)
+    {
+        metrics.getQueueDepth().record(messages.size());
+        long now = System.nanoTime();
+        for (int i = 0; i < messages.size(); ++i)
+        {
+            ServerMessage message = messages.get(i);
+            if (message instanceof ServerMessageImpl)
+            {
+                long published = ((ServerMessageImpl)message).getPublishNanos();
+                if (published != 0)
+                    metrics.getDeliveryLatency().record(TimeUnit.NANOSECONDS.toMicros(now - published));
+            }
+        }
+    }
+
     private void notifyDeQueue(DeQueueListener listener, ServerSession serverSession, Queue<ServerMessage> queue)
     {
         try
@@ -484,7 +812,21 @@ public class ServerSessionImpl implements ServerSession
 
     public void removeListener(ServerSessionListener listener)
     {
-        _listeners.remove(listener);
+        if (isQueueListener(listener))
+        {
+            synchronized (getLock())
+            {
+                _listeners.remove(listener);
+                boolean queueListeners = false;
+                for (ServerSessionListener l : _listeners)
+                    queueListeners |= isQueueListener(l);
+                _queueListeners = queueListeners;
+            }
+        }
+        else
+        {
+            _listeners.remove(listener);
+        }
     }
 
     public void setScheduler(AbstractServerTransport.Scheduler newScheduler)
@@ -496,7 +838,10 @@ public class ServerSessionImpl implements ServerSession
             {
                 oldScheduler = _scheduler;
                 if (oldScheduler != null)
+                {
                     _scheduler = null;
+                    metaConnectReleased();
+                }
             }
             if (oldScheduler != null)
                 oldScheduler.cancel();
@@ -515,6 +860,10 @@ public class ServerSessionImpl implements ServerSession
                     if (newScheduler instanceof AbstractHttpTransport.HttpScheduler)
                         _scheduler = null;
                 }
+                else
+                {
+                    metaConnectHeld();
+                }
             }
             if (oldScheduler != null && oldScheduler != newScheduler)
                 oldScheduler.cancel();
@@ -536,6 +885,7 @@ public class ServerSessionImpl implements ServerSession
             {
                 if (scheduler instanceof AbstractHttpTransport.HttpScheduler)
                     _scheduler = null;
+                metaConnectReleased();
             }
         }
         if (scheduler != null)
@@ -579,12 +929,56 @@ public class ServerSessionImpl implements ServerSession
         {
             scheduler = _scheduler;
             if (scheduler != null)
+            {
                 _scheduler = null;
+                metaConnectReleased();
+            }
         }
         if (scheduler != null)
             scheduler.cancel();
     }
 
+    /**
+     * <p>Cancels the given scheduler only if it is the current scheduler
+     * of this session, so that a scheduler that has been replaced does not
+     * cancel its replacement.</p>
+     *
+     * @param expected the scheduler to cancel
+     * @return whether the given scheduler was the current scheduler
+     */
+    public boolean cancelSchedule(Scheduler expected)
+    {
+        synchronized (getLock())
+        {
+            if (_scheduler != expected)
+                return false;
+            _scheduler = null;
+            metaConnectReleased();
+        }
+        expected.cancel();
+        return true;
+    }
+
+    // Guarded by the session lock.
+    private void metaConnectHeld()
+    {
+        if (_bayeux.getMetrics() != null)
+            _heldNanos = System.nanoTime();
+    }
+
+    // Guarded by the session lock.
+    private void metaConnectReleased()
+    {
+        long held = _heldNanos;
+        if (held != 0)
+        {
+            _heldNanos = 0;
+            BayeuxMetrics metrics = _bayeux.getMetrics();
+            if (metrics != null)
+                metrics.getMetaConnectHoldTime().record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - held));
+        }
+    }
+
     public void cancelIntervalTimeout()
     {
         long now = System.currentTimeMillis();
@@ -592,6 +986,7 @@ public class ServerSessionImpl implements ServerSession
         {
             _connectTimestamp = now;
             _intervalTimestamp = 0;
+            scheduleExpiry();
         }
     }
 
@@ -602,6 +997,25 @@ public class ServerSessionImpl implements ServerSession
         synchronized (getLock())
         {
             _intervalTimestamp = now + interval + _maxInterval;
+            scheduleExpiry();
+        }
+    }
+
+    /**
+     * <p>Schedules the expiration of this session at the time it would be
+     * swept by {@link #sweep(long)}, so that the server does not need to
+     * check every session on every sweep.</p>
+     */
+    void scheduleExpiry()
+    {
+        if (isLocalSession())
+            return;
+        synchronized (getLock())
+        {
+            long deadline = _intervalTimestamp;
+            if (deadline == 0 && _maxServerInterval > 0)
+                deadline = _connectTimestamp + _maxServerInterval;
+            _bayeux.scheduleExpiry(this, deadline);
         }
     }
 
@@ -0,0 +1,362 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server;
+
+import org.cometd.bayeux.server.ServerMessage;
+
+import java.util.AbstractQueue;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>The message queue of a {@link ServerSessionImpl}.</p>
+ * <p>Many publisher threads may {@link #offer(ServerMessage) offer} messages
+ * concurrently without locking, while a single consumer drains the queue.
+ * Operations that remove messages (polling, removing, iterator removal,
+ * conflation) must be performed by one thread at a time, which
+ * {@link ServerSessionImpl} guarantees by performing them while holding
+ * the session lock.</p>
+ * <p>Unlike {@link ConcurrentLinkedQueue}, {@link #size()} is O(1), as it is
+ * checked on every delivery when the session has a maximum queue size.</p>
+ * <p>When offered with a byte budget, messages are measured as the length
+ * of the UTF-8 bytes of their frozen JSON representation, which are encoded
+ * only once and then shared with the transports that write them, and the
+ * queue tracks the {@link #bytes() size} of the measured messages it holds.
+ * Without a byte budget messages are not measured, so that they are not
+ * encoded before the transports need them.</p>
+ * <p>{@link #offer(ServerMessage, Object, int, long, long)} checks the budgets
+ * and reserves the room for the message atomically, so that concurrent offers
+ * cannot exceed the budgets.</p>
+ * <p>Measured messages are queued in an entry that holds their size, so that
+ * removing them subtracts exactly the bytes that were added.</p>
+ * <p>Messages offered with a conflation key are indexed by that key, so that
+ * {@link #conflate(Object)} removes the message they replace in O(1): the
+ * replaced message is cleared from its entry, which is then skipped and
+ * eventually purged.</p>
+ */
+class SessionMessageQueue extends AbstractQueue<ServerMessage>
+{
+    private final Queue<Object> _messages = new ConcurrentLinkedQueue<>();
+    private final Map<Object, Entry> _conflated = new HashMap<>();
+    private final AtomicInteger _size = new AtomicInteger();
+    private final AtomicLong _bytes = new AtomicLong();
+    private int _cleared;
+
+    /**
+     * @param message the message to measure
+     * @return the length of the UTF-8 bytes of the JSON representation of the
+     * given message if it is frozen, or 0 since the JSON of a mutable message
+     * is not cached and may change while the message is queued
+     */
+    static long sizeOf(ServerMessage message)
+    {
+        if (message instanceof ServerMessageImpl && ((ServerMessageImpl)message).isFrozen())
+            return ((ServerMessageImpl)message).jsonBytes().length;
+        return 0;
+    }
+
+    @Override
+    public boolean offer(ServerMessage message)
+    {
+        return offer(message, null, 0, 0, 0);
+    }
+
+    /**
+     * <p>Offers the given message only if, after the offer, this queue does
+     * not exceed the given budgets.</p>
+     * <p>The message is measured only if {@code maxBytes} is positive;
+     * {@link Long#MAX_VALUE} measures the message without limiting it.</p>
+     * <p>Messages with a conflation key must be offered by the consumer thread,
+     * after {@link #conflate(Object) conflating} the message they replace.</p>
+     *
+     * @param message       the message to offer
+     * @param conflationKey the conflation key of the message, or null
+     * @param maxSize       the max number of messages, or a non-positive value for no limit
+     * @param maxBytes      the max number of bytes, or a non-positive value for no limit
+     * @param extraBytes    the bytes accounted outside this queue against {@code maxBytes}
+     * @return whether the message has been offered
+     */
+    boolean offer(ServerMessage message, Object conflationKey, int maxSize, long maxBytes, long extraBytes)
+    {
+        if (!reserveSize(maxSize))
+            return false;
+        long bytes = 0;
+        if (maxBytes > 0)
+        {
+            bytes = sizeOf(message);
+            if (!reserveBytes(bytes, maxBytes - extraBytes))
+            {
+                _size.decrementAndGet();
+                return false;
+            }
+        }
+        if (conflationKey == null && bytes == 0)
+        {
+            _messages.offer(message);
+        }
+        else
+        {
+            Entry entry = new Entry(conflationKey, message, bytes);
+            if (conflationKey != null)
+                _conflated.put(conflationKey, entry);
+            _messages.offer(entry);
+        }
+        return true;
+    }
+
+    private boolean reserveSize(int maxSize)
+    {
+        if (maxSize <= 0)
+        {
+            _size.incrementAndGet();
+            return true;
+        }
+        while (true)
+        {
+            int size = _size.get();
+            if (size >= maxSize)
+                return false;
+            if (_size.compareAndSet(size, size + 1))
+                return true;
+        }
+    }
+
+    private boolean reserveBytes(long bytes, long maxBytes)
+    {
+        if (bytes == 0)
+            return true;
+        while (true)
+        {
+            long current = _bytes.get();
+            if (current + bytes > maxBytes)
+                return false;
+            if (_bytes.compareAndSet(current, current + bytes))
+                return true;
+        }
+    }
+
+    /**
+     * <p>Removes the queued message that was offered with the given conflation key.</p>
+     *
+     * @param conflationKey the conflation key
+     * @return the removed message, or null if no message with the given conflation key is queued
+     */
+    ServerMessage conflate(Object conflationKey)
+    {
+        Entry entry = _conflated.remove(conflationKey);
+        if (entry == null)
+            return null;
+        ServerMessage message = entry._message;
+        entry._message = null;
+        removed(entry);
+        // Purge the cleared entries once they outnumber the messages,
+        // so that the purge cost is amortized over the conflations.
+        if (++_cleared > size() + 16)
+            purge();
+        return message;
+    }
+
+    private void purge()
+    {
+        for (Iterator<Object> iterator = _messages.iterator(); iterator.hasNext(); )
+        {
+            Object element = iterator.next();
+            if (element instanceof Entry && ((Entry)element)._message == null)
+                iterator.remove();
+        }
+        _cleared = 0;
+    }
+
+    @Override
+    public ServerMessage poll()
+    {
+        while (true)
+        {
+            Object element = _messages.poll();
+            if (element == null)
+                return null;
+            ServerMessage message = unwrap(element);
+            if (message == null)
+            {
+                --_cleared;
+                continue;
+            }
+            dequeued(element);
+            return message;
+        }
+    }
+
+    @Override
+    public ServerMessage peek()
+    {
+        for (Object element : _messages)
+        {
+            ServerMessage message = unwrap(element);
+            if (message != null)
+                return message;
+        }
+        return null;
+    }
+
+    @Override
+    public boolean remove(Object message)
+    {
+        for (Iterator<ServerMessage> iterator = iterator(); iterator.hasNext(); )
+        {
+            if (iterator.next().equals(message))
+            {
+                iterator.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return peek() == null;
+    }
+
+    @Override
+    public int size()
+    {
+        // The counter is updated before the message is offered, to reserve
+        // its room, so it may transiently be ahead of a concurrent offer.
+        return _size.get();
+    }
+
+    /**
+     * @return the size of the measured messages in this queue, see {@link #sizeOf(ServerMessage)}
+     */
+    long bytes()
+    {
+        // Like size(), may transiently be ahead of concurrent offers.
+        return _bytes.get();
+    }
+
+    private ServerMessage unwrap(Object element)
+    {
+        return element instanceof Entry ? ((Entry)element)._message : (ServerMessage)element;
+    }
+
+    private void dequeued(Object element)
+    {
+        if (element instanceof Entry)
+        {
+            Entry entry = (Entry)element;
+            if (entry._key != null && _conflated.get(entry._key) == entry)
+                _conflated.remove(entry._key);
+            removed(entry);
+        }
+        else
+        {
+            _size.decrementAndGet();
+        }
+    }
+
+    private void removed(Entry entry)
+    {
+        _size.decrementAndGet();
+        if (entry._bytes > 0)
+            _bytes.addAndGet(-entry._bytes);
+    }
+
+    @Override
+    public Iterator<ServerMessage> iterator()
+    {
+        final Iterator<Object> iterator = _messages.iterator();
+        return new Iterator<ServerMessage>()
+        {
+            private Object nextElement;
+            private ServerMessage next;
+            private Object lastElement;
+            private ServerMessage last;
+            private boolean advanced;
+
+            @Override
+            public boolean hasNext()
+            {
+                while (next == null && iterator.hasNext())
+                {
+                    nextElement = iterator.next();
+                    next = unwrap(nextElement);
+                    advanced = true;
+                }
+                return next != null;
+            }
+
+            @Override
+            public ServerMessage next()
+            {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                lastElement = nextElement;
+                last = next;
+                next = null;
+                advanced = false;
+                return last;
+            }
+
+            @Override
+            public void remove()
+            {
+                if (last == null)
+                    throw new IllegalStateException();
+                if (advanced)
+                    removeElement(lastElement);
+                else
+                    iterator.remove();
+                dequeued(lastElement);
+                last = null;
+            }
+        };
+    }
+
+    private void removeElement(Object element)
+    {
+        // The underlying iterator moved past the element to
+        // remove, which must be then looked up by identity.
+        for (Iterator<Object> iterator = _messages.iterator(); iterator.hasNext(); )
+        {
+            if (iterator.next() == element)
+            {
+                iterator.remove();
+                return;
+            }
+        }
+    }
+
+    private static class Entry
+    {
+        private final Object _key;
+        private final long _bytes;
+        private volatile ServerMessage _message;
+
+        private Entry(Object key, ServerMessage message, long bytes)
+        {
+            _key = key;
+            _message = message;
+            _bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.thread.Scheduler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>A {@link Scheduler} made of a set of hashed timing wheels, called shards,
+ * each advanced by its own thread.</p>
+ * <p>Tasks are hashed to a shard by their identity, so that the same task object,
+ * for example the lazy task of a session, is always scheduled on the same shard,
+ * while different tasks spread over the shards.</p>
+ * <p>Scheduling and cancelling a task only append the task to a lock-free queue
+ * of its shard, so that they are O(1) and do not contend on a single delay queue
+ * even when hundreds of thousands of long polls are outstanding; the thread of
+ * the shard moves the tasks in and out of the wheel at every tick.</p>
+ * <p>Expired tasks are run by the thread of their shard, and are run up to one
+ * tick later than their delay.</p>
+ */
+public class ShardedScheduler extends AbstractLifeCycle implements Scheduler
+{
+    private static final Logger logger = LoggerFactory.getLogger(ShardedScheduler.class);
+    private static final int MAX_TRANSFERS_PER_TICK = 100000;
+
+    private final String _name;
+    private final int _shardCount;
+    private final long _tick;
+    private final int _buckets;
+    private volatile Shard[] _shards;
+
+    /**
+     * @param name   the name prefix of the threads of the shards
+     * @param shards the number of shards
+     * @param tick   the duration of a tick, in milliseconds
+     */
+    public ShardedScheduler(String name, int shards, long tick)
+    {
+        this(name, shards, tick, 512);
+    }
+
+    /**
+     * @param name    the name prefix of the threads of the shards
+     * @param shards  the number of shards
+     * @param tick    the duration of a tick, in milliseconds
+     * @param buckets the number of buckets of each wheel, rounded up to a power of two
+     */
+    public ShardedScheduler(String name, int shards, long tick, int buckets)
+    {
+        if (shards <= 0)
+            throw new IllegalArgumentException("Invalid shards " + shards);
+        if (tick <= 0)
+            throw new IllegalArgumentException("Invalid tick " + tick);
+        if (buckets <= 0 || buckets > (1 << 30))
+            throw new IllegalArgumentException("Invalid buckets " + buckets);
+        _name = name;
+        _shardCount = shards;
+        _tick = TimeUnit.MILLISECONDS.toNanos(tick);
+        int powerOfTwo = 1;
+        while (powerOfTwo < buckets)
+            powerOfTwo <<= 1;
+        _buckets = powerOfTwo;
+    }
+
+    /**
+     * @return the number of shards
+     */
+    public int getShards()
+    {
+        return _shardCount;
+    }
+
+    /**
+     * @return the duration of a tick, in milliseconds
+     */
+    public long getTick()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(_tick);
+    }
+
+    @Override
+    protected void doStart() throws Exception
+    {
+        Shard[] shards = new Shard[_shardCount];
+        for (int i = 0; i < shards.length; ++i)
+            shards[i] = new Shard(_name + "-" + i);
+        for (Shard shard : shards)
+            shard._thread.start();
+        _shards = shards;
+        super.doStart();
+    }
+
+    @Override
+    protected void doStop() throws Exception
+    {
+        Shard[] shards = _shards;
+        _shards = null;
+        if (shards != null)
+        {
+            for (Shard shard : shards)
+                shard.stop();
+            for (Shard shard : shards)
+                shard._thread.join();
+        }
+        super.doStop();
+    }
+
+    @Override
+    public Task schedule(Runnable task, long delay, TimeUnit unit)
+    {
+        Shard[] shards = _shards;
+        if (shards == null)
+            throw new RejectedExecutionException(this + " is not running");
+        int hash = System.identityHashCode(task);
+        hash ^= hash >>> 16;
+        Shard shard = shards[(hash & 0x7FFFFFFF) % shards.length];
+        return shard.schedule(task, unit.toNanos(Math.max(0, delay)));
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s@%x[shards=%d,tick=%dms,buckets=%d]", getClass().getSimpleName(), hashCode(), _shardCount, getTick(), _buckets);
+    }
+
+    private class Shard implements Runnable
+    {
+        private final Queue<WheelTask> _pending = new ConcurrentLinkedQueue<>();
+        private final Queue<WheelTask> _cancelled = new ConcurrentLinkedQueue<>();
+        private final Bucket[] _wheel = new Bucket[_buckets];
+        private final int _mask = _buckets - 1;
+        private final long _start = System.nanoTime();
+        private final Thread _thread;
+        private volatile boolean _running = true;
+        private long _ticks;
+
+        private Shard(String name)
+        {
+            for (int i = 0; i < _wheel.length; ++i)
+                _wheel[i] = new Bucket();
+            _thread = new Thread(this, name);
+            _thread.setDaemon(true);
+        }
+
+        private Task schedule(Runnable task, long delay)
+        {
+            WheelTask result = new WheelTask(this, task, System.nanoTime() - _start + delay);
+            _pending.offer(result);
+            return result;
+        }
+
+        private void stop()
+        {
+            _running = false;
+            LockSupport.unpark(_thread);
+        }
+
+        @Override
+        public void run()
+        {
+            while (_running)
+            {
+                awaitTick();
+                if (!_running)
+                    break;
+                removeCancelled();
+                transferPending();
+                _wheel[(int)(_ticks & _mask)].expire();
+                ++_ticks;
+            }
+            // Drop the tasks that did not expire.
+            _pending.clear();
+            _cancelled.clear();
+        }
+
+        private void awaitTick()
+        {
+            long deadline = _tick * (_ticks + 1);
+            while (_running)
+            {
+                long remaining = deadline - (System.nanoTime() - _start);
+                if (remaining <= 0)
+                    break;
+                LockSupport.parkNanos(this, remaining);
+            }
+        }
+
+        private void removeCancelled()
+        {
+            while (true)
+            {
+                WheelTask task = _cancelled.poll();
+                if (task == null)
+                    return;
+                if (task._bucket != null)
+                    task._bucket.remove(task);
+            }
+        }
+
+        private void transferPending()
+        {
+            for (int i = 0; i < MAX_TRANSFERS_PER_TICK; ++i)
+            {
+                WheelTask task = _pending.poll();
+                if (task == null)
+                    return;
+                // Tasks cancelled while pending are just dropped.
+                if (!WheelTask.STATE.compareAndSet(task, WheelTask.PENDING, WheelTask.SCHEDULED))
+                    continue;
+                long calculated = task._deadline / _tick;
+                task._rounds = (calculated - _ticks) / _wheel.length;
+                // Tasks that are already due go to the current bucket.
+                long ticks = Math.max(calculated, _ticks);
+                _wheel[(int)(ticks & _mask)].add(task);
+            }
+        }
+    }
+
+    private static class Bucket
+    {
+        private WheelTask _head;
+        private WheelTask _tail;
+
+        private void add(WheelTask task)
+        {
+            task._bucket = this;
+            if (_head == null)
+            {
+                _head = _tail = task;
+            }
+            else
+            {
+                _tail._next = task;
+                task._prev = _tail;
+                _tail = task;
+            }
+        }
+
+        private WheelTask remove(WheelTask task)
+        {
+            WheelTask next = task._next;
+            if (task._prev != null)
+                task._prev._next = next;
+            if (next != null)
+                next._prev = task._prev;
+            if (task == _head)
+                _head = next;
+            if (task == _tail)
+                _tail = task._prev;
+            task._prev = null;
+            task._next = null;
+            task._bucket = null;
+            return next;
+        }
+
+        private void expire()
+        {
+            WheelTask task = _head;
+            while (task != null)
+            {
+                if (task._state != WheelTask.SCHEDULED)
+                {
+                    task = remove(task);
+                }
+                else if (task._rounds <= 0)
+                {
+                    WheelTask next = remove(task);
+                    task.expire();
+                    task = next;
+                }
+                else
+                {
+                    --task._rounds;
+                    task = task._next;
+                }
+            }
+        }
+    }
+
+    private static class WheelTask implements Task
+    {
+        private static final int PENDING = 0;
+        private static final int SCHEDULED = 1;
+        private static final int CANCELLED = 2;
+        private static final int EXPIRED = 3;
+        private static final AtomicIntegerFieldUpdater<WheelTask> STATE = AtomicIntegerFieldUpdater.newUpdater(WheelTask.class, "_state");
+
+        private final Shard _shard;
+        private final Runnable _task;
+        private final long _deadline;
+        private volatile int _state;
+        // Fields below are only accessed by the thread of the shard.
+        private long _rounds;
+        private Bucket _bucket;
+        private WheelTask _prev;
+        private WheelTask _next;
+
+        private WheelTask(Shard shard, Runnable task, long deadline)
+        {
+            _shard = shard;
+            _task = task;
+            _deadline = deadline;
+        }
+
+        @Override
+        public boolean cancel()
+        {
+            while (true)
+            {
+                int state = _state;
+                if (state != PENDING && state != SCHEDULED)
+                    return false;
+                if (STATE.compareAndSet(this, state, CANCELLED))
+                {
+                    // Only tasks already in the wheel need to be unlinked by the shard.
+                    if (state == SCHEDULED)
+                        _shard._cancelled.offer(this);
+                    return true;
+                }
+            }
+        }
+
+        private void expire()
+        {
+            if (STATE.compareAndSet(this, SCHEDULED, EXPIRED))
+            {
+                try
+                {
+                    _task.run();
+                }
+                catch (Throwable x)
+                {
+                    logger.warn("Exception while running task " + _task, x);
+                }
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%s@%x[%s]", getClass().getSimpleName(), hashCode(), _task);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server;
+
+import org.cometd.bayeux.server.ServerMessage;
+import org.cometd.bayeux.server.ServerSession;
+
+import java.util.Iterator;
+import java.util.Queue;
+
+/**
+ * <p>A policy applied when a message is delivered to a session whose queue
+ * exceeds its budgets, see {@link ServerSessionImpl#isQueueExceeded(ServerMessage)}.</p>
+ * <p>A session exceeds its budgets when the remote client does not consume
+ * messages as fast as they are delivered, either because it does not poll
+ * or because the network does not drain the pending writes; in both cases
+ * the policy bounds the memory retained by the server for that session.</p>
+ * <p>Policies are invoked while holding the {@link ServerSessionImpl#getLock()
+ * session lock}, and may remove messages from the queue.
+ * Meta messages are never removed by the policies provided here.</p>
+ *
+ * @see AbstractServerTransport#SLOW_CONSUMER_POLICY_OPTION
+ */
+public interface SlowConsumerPolicy
+{
+    /**
+     * @param session the session whose queue exceeds its budgets
+     * @param queue   the session message queue
+     * @param sender  the session that sent the message, may be null
+     * @param message the message being delivered
+     * @return true to enqueue the message, false to discard it
+     */
+    boolean onSlowConsumer(ServerSessionImpl session, Queue<ServerMessage> queue, ServerSession sender, ServerMessage message);
+
+    /**
+     * <p>Discards the oldest queued messages until the new message fits the budgets.</p>
+     */
+    class DropOldest implements SlowConsumerPolicy
+    {
+        @Override
+        public boolean onSlowConsumer(ServerSessionImpl session, Queue<ServerMessage> queue, ServerSession sender, ServerMessage message)
+        {
+            for (Iterator<ServerMessage> iterator = queue.iterator(); iterator.hasNext(); )
+            {
+                if (!session.isQueueExceeded(message))
+                    return true;
+                if (!iterator.next().isMeta())
+                    iterator.remove();
+            }
+            // Writes pending on the network may still exceed the budgets.
+            return message.isMeta() || !session.isQueueExceeded(message);
+        }
+
+        @Override
+        public String toString()
+        {
+            return "dropOldest";
+        }
+    }
+
+    /**
+     * <p>Discards the oldest queued lazy messages, and then the oldest
+     * queued messages, until the new message fits the budgets.</p>
+     */
+    class DropLazy extends DropOldest
+    {
+        @Override
+        public boolean onSlowConsumer(ServerSessionImpl session, Queue<ServerMessage> queue, ServerSession sender, ServerMessage message)
+        {
+            for (Iterator<ServerMessage> iterator = queue.iterator(); iterator.hasNext(); )
+            {
+                if (!session.isQueueExceeded(message))
+                    return true;
+                ServerMessage queued = iterator.next();
+                if (queued.isLazy() && !queued.isMeta())
+                    iterator.remove();
+            }
+            return super.onSlowConsumer(session, queue, sender, message);
+        }
+
+        @Override
+        public String toString()
+        {
+            return "dropLazy";
+        }
+    }
+
+    /**
+     * <p>Discards the queued messages of the same channel of the new message,
+     * so that only the most recent message of each channel is queued, and
+     * then the oldest queued messages, until the new message fits the budgets.</p>
+     */
+    class Conflate extends DropOldest
+    {
+        @Override
+        public boolean onSlowConsumer(ServerSessionImpl session, Queue<ServerMessage> queue, ServerSession sender, ServerMessage message)
+        {
+            String channel = message.getChannel();
+            if (!message.isMeta() && channel != null)
+            {
+                for (Iterator<ServerMessage> iterator = queue.iterator(); iterator.hasNext(); )
+                {
+                    if (channel.equals(iterator.next().getChannel()))
+                        iterator.remove();
+                }
+            }
+            return super.onSlowConsumer(session, queue, sender, message);
+        }
+
+        @Override
+        public String toString()
+        {
+            return "conflate";
+        }
+    }
+
+    /**
+     * <p>Discards the queued messages and disconnects the session.</p>
+     */
+    class Disconnect implements SlowConsumerPolicy
+    {
+        @Override
+        public boolean onSlowConsumer(final ServerSessionImpl session, Queue<ServerMessage> queue, ServerSession sender, ServerMessage message)
+        {
+            if (message.isMeta())
+                return true;
+            for (Iterator<ServerMessage> iterator = queue.iterator(); iterator.hasNext(); )
+            {
+                if (!iterator.next().isMeta())
+                    iterator.remove();
+            }
+            // Disconnect outside of the session lock, since
+            // disconnecting notifies listeners and delivers messages.
+            session.getBayeux().schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    session.disconnect();
+                }
+            }, 0);
+            return false;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "disconnect";
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server;
+
+import org.cometd.bayeux.server.ServerMessage;
+import org.cometd.common.JSONContext;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+
+/**
+ * <p>A {@link JSONContext.Server} that parses messages incrementally from
+ * chunks of UTF-8 bytes, without first accumulating the whole JSON text.</p>
+ * <p>Transports that read bytes, such as the asynchronous long-polling transport,
+ * feed the request content to the parser as it arrives; the generation of JSON
+ * and the parsing from {@link java.io.Reader}s and {@link String}s is performed
+ * as in {@link JettyJSONContextServer}.</p>
+ */
+public class StreamingJSONContextServer extends JettyJSONContextServer implements JSONContext.StreamingServer
+{
+    @Override
+    public JSONContext.StreamingParser<ServerMessage.Mutable> newStreamingParser()
+    {
+        return new StreamingJSONParser()
+        {
+            @Override
+            protected ServerMessage.Mutable newRoot()
+            {
+                return StreamingJSONContextServer.this.newRoot();
+            }
+        };
+    }
+
+    @Override
+    public ServerMessage.Mutable[] parse(InputStream stream) throws ParseException
+    {
+        try
+        {
+            JSONContext.StreamingParser<ServerMessage.Mutable> parser = newStreamingParser();
+            byte[] buffer = new byte[1024];
+            while (true)
+            {
+                int read = stream.read(buffer);
+                if (read < 0)
+                    break;
+                parser.parse(buffer, 0, read);
+            }
+            return parser.complete();
+        }
+        catch (IOException x)
+        {
+            throw (ParseException)new ParseException("", -1).initCause(x);
+        }
+    }
+}
@@ -0,0 +1,623 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server;
+
+import org.cometd.bayeux.Channel;
+import org.cometd.bayeux.Message;
+import org.cometd.bayeux.server.ServerMessage;
+import org.cometd.common.JSONContext;
+
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>A push parser that builds Bayeux messages directly from chunks of UTF-8 bytes.</p>
+ * <p>The parser keeps only the bytes of the token being parsed, so that the
+ * JSON text of a request is never accumulated in memory, and resolves the
+ * Bayeux field names, the meta channel names and repeated object keys to
+ * shared strings, so that they are not allocated for every message.</p>
+ * <p>The parsed values have the same types produced by {@link JettyJSONContextServer}:
+ * objects are {@link Map}s, arrays are {@code Object[]}, integers are {@link Long}s
+ * and other numbers are {@link Double}s.</p>
+ */
+class StreamingJSONParser implements JSONContext.StreamingParser<ServerMessage.Mutable>
+{
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String[][] KNOWN_STRINGS = knownStrings(
+            Message.CHANNEL_FIELD, Message.ID_FIELD, Message.CLIENT_ID_FIELD, Message.DATA_FIELD,
+            Message.EXT_FIELD, Message.ADVICE_FIELD, Message.SUCCESSFUL_FIELD, Message.SUBSCRIPTION_FIELD,
+            Message.CONNECTION_TYPE_FIELD, Message.VERSION_FIELD, Message.MIN_VERSION_FIELD,
+            Message.SUPPORTED_CONNECTION_TYPES_FIELD, Message.TIMEOUT_FIELD, Message.INTERVAL_FIELD,
+            Message.RECONNECT_FIELD, Message.ERROR_FIELD, Message.TIMESTAMP_FIELD,
+            Channel.META_HANDSHAKE, Channel.META_CONNECT, Channel.META_SUBSCRIBE,
+            Channel.META_UNSUBSCRIBE, Channel.META_DISCONNECT,
+            "long-polling", "callback-polling", "websocket", "1.0", "ack");
+    private static final int KEY_CACHE_SIZE = 64;
+    private static final int MAX_CACHED_KEY_LENGTH = 32;
+
+    private static final int VALUE = 0;
+    private static final int OBJECT_FIRST = 1;
+    private static final int OBJECT_KEY = 2;
+    private static final int COLON = 3;
+    private static final int OBJECT_NEXT = 4;
+    private static final int ARRAY_FIRST = 5;
+    private static final int ARRAY_NEXT = 6;
+    private static final int STRING = 7;
+    private static final int ESCAPE = 8;
+    private static final int UNICODE = 9;
+    private static final int NUMBER = 10;
+    private static final int LITERAL = 11;
+    private static final int END = 12;
+
+    private static final byte[] TRUE = {'t', 'r', 'u', 'e'};
+    private static final byte[] FALSE = {'f', 'a', 'l', 's', 'e'};
+    private static final byte[] NULL = {'n', 'u', 'l', 'l'};
+
+    private final String[] _keyCache = new String[KEY_CACHE_SIZE];
+    private Object[] _containers = new Object[8];
+    private String[] _keys = new String[8];
+    private int _depth;
+    private int _state = VALUE;
+    private boolean _rootArray;
+    private Object _root;
+    private boolean _empty = true;
+    private long _position;
+    private byte[] _buffer = new byte[64];
+    private int _length;
+    private boolean _key;
+    private boolean _decimal;
+    private int _unicode;
+    private int _hexDigits;
+    private int _highSurrogate;
+    private byte[] _literal;
+    private int _literalIndex;
+
+    private static String[][] knownStrings(String... strings)
+    {
+        int max = 0;
+        for (String string : strings)
+            max = Math.max(max, string.length());
+        String[][] result = new String[max + 1][];
+        for (String string : strings)
+        {
+            String[] sameLength = result[string.length()];
+            if (sameLength == null)
+            {
+                sameLength = new String[]{string};
+            }
+            else
+            {
+                String[] copy = new String[sameLength.length + 1];
+                System.arraycopy(sameLength, 0, copy, 0, sameLength.length);
+                copy[sameLength.length] = string;
+                sameLength = copy;
+            }
+            result[string.length()] = sameLength;
+        }
+        return result;
+    }
+
+    protected ServerMessage.Mutable newRoot()
+    {
+        return new ServerMessageImpl();
+    }
+
+    public void parse(byte[] bytes, int offset, int length) throws ParseException
+    {
+        int end = offset + length;
+        int index = offset;
+        long base = _position - offset;
+        while (index < end)
+        {
+            byte b = bytes[index];
+            switch (_state)
+            {
+                case STRING:
+                {
+                    // Scan the run of plain bytes at once, multi-byte
+                    // UTF-8 sequences are decoded when the string ends.
+                    int start = index;
+                    while (index < end)
+                    {
+                        b = bytes[index];
+                        if (b == '"' || b == '\\')
+                            break;
+                        if (b >= 0 && b < 0x20)
+                            throw error("Invalid control character in string", base + index);
+                        ++index;
+                    }
+                    append(bytes, start, index - start);
+                    if (index < end)
+                    {
+                        ++index;
+                        if (b == '"')
+                            endString();
+                        else
+                            _state = ESCAPE;
+                    }
+                    break;
+                }
+                case ESCAPE:
+                {
+                    ++index;
+                    _state = STRING;
+                    switch (b)
+                    {
+                        case '"':
+                        case '\\':
+                        case '/':
+                            append(b);
+                            break;
+                        case 'b':
+                            append((byte)'\b');
+                            break;
+                        case 'f':
+                            append((byte)'\f');
+                            break;
+                        case 'n':
+                            append((byte)'\n');
+                            break;
+                        case 'r':
+                            append((byte)'\r');
+                            break;
+                        case 't':
+                            append((byte)'\t');
+                            break;
+                        case 'u':
+                            _state = UNICODE;
+                            _unicode = 0;
+                            _hexDigits = 0;
+                            break;
+                        default:
+                            throw error("Invalid escape", base + index);
+                    }
+                    break;
+                }
+                case UNICODE:
+                {
+                    ++index;
+                    int digit = Character.digit(b, 16);
+                    if (digit < 0)
+                        throw error("Invalid unicode escape", base + index);
+                    _unicode = (_unicode << 4) | digit;
+                    if (++_hexDigits == 4)
+                    {
+                        appendUnicode(_unicode);
+                        _state = STRING;
+                    }
+                    break;
+                }
+                case NUMBER:
+                {
+                    if (b >= '0' && b <= '9' || b == '-' || b == '+')
+                    {
+                        append(b);
+                        ++index;
+                    }
+                    else if (b == '.' || b == 'e' || b == 'E')
+                    {
+                        _decimal = true;
+                        append(b);
+                        ++index;
+                    }
+                    else
+                    {
+                        // The byte that terminates the number is parsed in the next state.
+                        endNumber(base + index);
+                    }
+                    break;
+                }
+                case LITERAL:
+                {
+                    ++index;
+                    if (b != _literal[_literalIndex])
+                        throw error("Invalid literal", base + index);
+                    if (++_literalIndex == _literal.length)
+                        value(_literal == TRUE ? Boolean.TRUE : _literal == FALSE ? Boolean.FALSE : null);
+                    break;
+                }
+                default:
+                {
+                    ++index;
+                    if (b == ' ' || b == '\n' || b == '\r' || b == '\t')
+                        break;
+                    _empty = false;
+                    parseStructural(b, base + index);
+                    break;
+                }
+            }
+        }
+        _position += length;
+    }
+
+    private void parseStructural(byte b, long position) throws ParseException
+    {
+        switch (_state)
+        {
+            case ARRAY_FIRST:
+                if (b == ']')
+                    endArray();
+                else
+                    startValue(b, position);
+                break;
+            case VALUE:
+                startValue(b, position);
+                break;
+            case OBJECT_FIRST:
+                if (b == '}')
+                    endObject();
+                else if (b == '"')
+                    startString(true);
+                else
+                    throw error("Expected object key", position);
+                break;
+            case OBJECT_KEY:
+                if (b == '"')
+                    startString(true);
+                else
+                    throw error("Expected object key", position);
+                break;
+            case COLON:
+                if (b == ':')
+                    _state = VALUE;
+                else
+                    throw error("Expected ':'", position);
+                break;
+            case OBJECT_NEXT:
+                if (b == ',')
+                    _state = OBJECT_KEY;
+                else if (b == '}')
+                    endObject();
+                else
+                    throw error("Expected ',' or '}'", position);
+                break;
+            case ARRAY_NEXT:
+                if (b == ',')
+                    _state = VALUE;
+                else if (b == ']')
+                    endArray();
+                else
+                    throw error("Expected ',' or ']'", position);
+                break;
+            default:
+                throw error("Unexpected content after JSON", position);
+        }
+    }
+
+    private void startValue(byte b, long position) throws ParseException
+    {
+        boolean message = _depth == 0 || _depth == 1 && _rootArray;
+        if (_depth == 1 && _rootArray && b != '{')
+            throw error("Expected message object", position);
+        switch (b)
+        {
+            case '{':
+                push(message ? newRoot() : new HashMap<String, Object>());
+                _state = OBJECT_FIRST;
+                break;
+            case '[':
+                if (_depth == 0)
+                    _rootArray = true;
+                push(new ArrayList<Object>());
+                _state = ARRAY_FIRST;
+                break;
+            case '"':
+                startString(false);
+                break;
+            case 't':
+                startLiteral(TRUE);
+                break;
+            case 'f':
+                startLiteral(FALSE);
+                break;
+            case 'n':
+                startLiteral(NULL);
+                break;
+            default:
+                if (b == '-' || b >= '0' && b <= '9')
+                {
+                    _length = 0;
+                    _decimal = false;
+                    append(b);
+                    _state = NUMBER;
+                    break;
+                }
+                throw error("Unexpected character '" + (char)b + "'", position);
+        }
+    }
+
+    private void startString(boolean key)
+    {
+        _key = key;
+        _length = 0;
+        _highSurrogate = 0;
+        _state = STRING;
+    }
+
+    private void startLiteral(byte[] literal)
+    {
+        _literal = literal;
+        _literalIndex = 1;
+        _state = LITERAL;
+    }
+
+    private void endString()
+    {
+        flushSurrogate();
+        if (_key)
+        {
+            _keys[_depth - 1] = key();
+            _state = COLON;
+        }
+        else
+        {
+            String known = known();
+            value(known != null ? known : new String(_buffer, 0, _length, UTF_8));
+        }
+    }
+
+    private String known()
+    {
+        if (_length >= KNOWN_STRINGS.length)
+            return null;
+        String[] candidates = KNOWN_STRINGS[_length];
+        if (candidates == null)
+            return null;
+        for (String candidate : candidates)
+        {
+            if (matches(candidate))
+                return candidate;
+        }
+        return null;
+    }
+
+    private String key()
+    {
+        String known = known();
+        if (known != null)
+            return known;
+        if (_length > MAX_CACHED_KEY_LENGTH)
+            return new String(_buffer, 0, _length, UTF_8);
+
+        int hash = 0;
+        for (int i = 0; i < _length; ++i)
+        {
+            byte b = _buffer[i];
+            // Only ASCII keys are cached, since they are compared byte by char.
+            if (b < 0)
+                return new String(_buffer, 0, _length, UTF_8);
+            hash = 31 * hash + b;
+        }
+        int slot = hash & (KEY_CACHE_SIZE - 1);
+        String cached = _keyCache[slot];
+        if (cached != null && cached.length() == _length && matches(cached))
+            return cached;
+        String key = new String(_buffer, 0, _length, UTF_8);
+        _keyCache[slot] = key;
+        return key;
+    }
+
+    private boolean matches(String string)
+    {
+        for (int i = 0; i < _length; ++i)
+        {
+            if (string.charAt(i) != _buffer[i])
+                return false;
+        }
+        return true;
+    }
+
+    private void endNumber(long position) throws ParseException
+    {
+        if (!_decimal && _length <= 18)
+        {
+            boolean negative = _buffer[0] == '-';
+            int start = negative ? 1 : 0;
+            if (start == _length)
+                throw error("Invalid number", position);
+            long result = 0;
+            for (int i = start; i < _length; ++i)
+            {
+                int digit = _buffer[i] - '0';
+                if (digit < 0 || digit > 9)
+                    throw error("Invalid number", position);
+                result = result * 10 + digit;
+            }
+            value(negative ? -result : result);
+        }
+        else
+        {
+            try
+            {
+                value(Double.parseDouble(new String(_buffer, 0, _length, UTF_8)));
+            }
+            catch (NumberFormatException x)
+            {
+                throw (ParseException)error("Invalid number", position).initCause(x);
+            }
+        }
+    }
+
+    private void push(Object container)
+    {
+        if (_depth == _containers.length)
+        {
+            Object[] containers = new Object[_depth * 2];
+            System.arraycopy(_containers, 0, containers, 0, _depth);
+            _containers = containers;
+            String[] keys = new String[_depth * 2];
+            System.arraycopy(_keys, 0, keys, 0, _depth);
+            _keys = keys;
+        }
+        _containers[_depth++] = container;
+    }
+
+    private Object pop()
+    {
+        Object container = _containers[--_depth];
+        _containers[_depth] = null;
+        _keys[_depth] = null;
+        return container;
+    }
+
+    private void endObject()
+    {
+        value(pop());
+    }
+
+    private void endArray()
+    {
+        @SuppressWarnings("unchecked")
+        List<Object> list = (List<Object>)pop();
+        if (_depth == 0)
+            value(list.toArray(new ServerMessage.Mutable[list.size()]));
+        else
+            value(list.toArray(new Object[list.size()]));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void value(Object value)
+    {
+        if (_depth == 0)
+        {
+            _root = value;
+            _state = END;
+            return;
+        }
+        Object container = _containers[_depth - 1];
+        if (container instanceof List)
+        {
+            ((List<Object>)container).add(value);
+            _state = ARRAY_NEXT;
+        }
+        else
+        {
+            ((Map<String, Object>)container).put(_keys[_depth - 1], value);
+            _state = OBJECT_NEXT;
+        }
+    }
+
+    private void append(byte[] bytes, int offset, int length)
+    {
+        if (length == 0)
+            return;
+        flushSurrogate();
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, _buffer, _length, length);
+        _length += length;
+    }
+
+    private void append(byte b)
+    {
+        flushSurrogate();
+        ensureCapacity(1);
+        _buffer[_length++] = b;
+    }
+
+    private void appendUnicode(int c)
+    {
+        if (Character.isHighSurrogate((char)c))
+        {
+            flushSurrogate();
+            _highSurrogate = c;
+        }
+        else if (Character.isLowSurrogate((char)c) && _highSurrogate != 0)
+        {
+            encode(Character.toCodePoint((char)_highSurrogate, (char)c));
+            _highSurrogate = 0;
+        }
+        else
+        {
+            flushSurrogate();
+            encode(c);
+        }
+    }
+
+    private void flushSurrogate()
+    {
+        if (_highSurrogate != 0)
+        {
+            // A lone surrogate cannot be encoded in UTF-8.
+            _highSurrogate = 0;
+            encode('?');
+        }
+    }
+
+    private void encode(int codePoint)
+    {
+        ensureCapacity(4);
+        if (codePoint < 0x80)
+        {
+            _buffer[_length++] = (byte)codePoint;
+        }
+        else if (codePoint < 0x800)
+        {
+            _buffer[_length++] = (byte)(0xC0 | (codePoint >> 6));
+            _buffer[_length++] = (byte)(0x80 | (codePoint & 0x3F));
+        }
+        else if (codePoint < 0x10000)
+        {
+            _buffer[_length++] = (byte)(0xE0 | (codePoint >> 12));
+            _buffer[_length++] = (byte)(0x80 | ((codePoint >> 6) & 0x3F));
+            _buffer[_length++] = (byte)(0x80 | (codePoint & 0x3F));
+        }
+        else
+        {
+            _buffer[_length++] = (byte)(0xF0 | (codePoint >> 18));
+            _buffer[_length++] = (byte)(0x80 | ((codePoint >> 12) & 0x3F));
+            _buffer[_length++] = (byte)(0x80 | ((codePoint >> 6) & 0x3F));
+            _buffer[_length++] = (byte)(0x80 | (codePoint & 0x3F));
+        }
+    }
+
+    private void ensureCapacity(int length)
+    {
+        int capacity = _buffer.length;
+        if (_length + length <= capacity)
+            return;
+        while (capacity < _length + length)
+            capacity <<= 1;
+        byte[] buffer = new byte[capacity];
+        System.arraycopy(_buffer, 0, buffer, 0, _length);
+        _buffer = buffer;
+    }
+
+    public ServerMessage.Mutable[] complete() throws ParseException
+    {
+        if (_state == NUMBER)
+            endNumber(_position);
+        if (_empty)
+            return null;
+        if (_state != END)
+            throw error("Incomplete JSON", _position);
+        if (_root == null)
+            return null;
+        if (_root instanceof ServerMessage.Mutable[])
+            return (ServerMessage.Mutable[])_root;
+        if (_root instanceof ServerMessage.Mutable)
+            return new ServerMessage.Mutable[]{(ServerMessage.Mutable)_root};
+        throw error("Invalid messages", _position);
+    }
+
+    private ParseException error(String message, long position)
+    {
+        return new ParseException(message + " at position " + position, (int)Math.min(position, Integer.MAX_VALUE));
+    }
+}
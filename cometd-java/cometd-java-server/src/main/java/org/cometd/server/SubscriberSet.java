@@ -0,0 +1,305 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server;
+
+import org.cometd.bayeux.server.ServerSession;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * <p>The set of subscribers of a {@link ServerChannelImpl}.</p>
+ * <p>Subscribers are stored in chunks of bounded size, each one copied on write,
+ * so that channels with a large number of subscribers can sustain bursts of
+ * subscriptions and unsubscriptions without copying the whole set every time,
+ * like {@link java.util.concurrent.CopyOnWriteArraySet} does.
+ * New subscribers are appended to the last chunk, so that subscribers are
+ * iterated in subscription order.</p>
+ * <p>A modification copies the chunk it touches, which is O(chunk size), and
+ * clones the array of chunks, which is an O(number of chunks) array copy of
+ * references. Each chunk knows its position, so that it is replaced in the
+ * cloned array without looking it up; only when a chunk is removed or merged
+ * into a neighbour the positions of the chunks after it are renumbered.</p>
+ * <p>The {@link #snapshot() snapshot} is the array of chunks itself, so that
+ * publishers never copy the subscribers, nor contend on the lock, even when
+ * the subscribers change between publishes.</p>
+ */
+class SubscriberSet extends AbstractSet<ServerSession>
+{
+    private static final ServerSession[][] NO_SUBSCRIBERS = new ServerSession[0][];
+
+    private final Map<ServerSession, Chunk> _index = new HashMap<>();
+    private final List<Chunk> _chunks = new ArrayList<>();
+    private final int _chunkSize;
+    private volatile ServerSession[][] _snapshot = NO_SUBSCRIBERS;
+
+    public SubscriberSet()
+    {
+        this(256);
+    }
+
+    public SubscriberSet(int chunkSize)
+    {
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("Invalid chunk size " + chunkSize);
+        _chunkSize = chunkSize;
+    }
+
+    @Override
+    public boolean add(ServerSession session)
+    {
+        synchronized (this)
+        {
+            if (_index.containsKey(session))
+                return false;
+
+            int size = _chunks.size();
+            Chunk last = size == 0 ? null : _chunks.get(size - 1);
+            if (last == null || last._sessions.length == _chunkSize)
+            {
+                last = new Chunk(size, new ServerSession[]{session});
+                _chunks.add(last);
+                ServerSession[][] snapshot = Arrays.copyOf(_snapshot, size + 1);
+                snapshot[size] = last._sessions;
+                _snapshot = snapshot;
+            }
+            else
+            {
+                ServerSession[] sessions = Arrays.copyOf(last._sessions, last._sessions.length + 1);
+                sessions[last._sessions.length] = session;
+                last._sessions = sessions;
+                publish(last);
+            }
+            _index.put(session, last);
+            return true;
+        }
+    }
+
+    @Override
+    public boolean remove(Object session)
+    {
+        synchronized (this)
+        {
+            Chunk chunk = _index.remove(session);
+            if (chunk == null)
+                return false;
+
+            ServerSession[] sessions = chunk._sessions;
+            int position = chunk._position;
+            if (sessions.length == 1)
+            {
+                removeChunk(position);
+                publish();
+            }
+            else
+            {
+                ServerSession[] result = new ServerSession[sessions.length - 1];
+                for (int i = 0, j = 0; i < sessions.length; ++i)
+                {
+                    if (sessions[i] != session)
+                        result[j++] = sessions[i];
+                }
+                chunk._sessions = result;
+
+                // Merge small neighbour chunks, so that the number of
+                // chunks stays proportional to the number of subscribers.
+                boolean merged = false;
+                if (position + 1 < _chunks.size())
+                    merged = merge(position);
+                if (position > 0)
+                    merged |= merge(position - 1);
+                if (merged)
+                    publish();
+                else
+                    publish(chunk);
+            }
+            return true;
+        }
+    }
+
+    private boolean merge(int position)
+    {
+        Chunk chunk = _chunks.get(position);
+        Chunk next = _chunks.get(position + 1);
+        int length = chunk._sessions.length;
+        int nextLength = next._sessions.length;
+        if (length + nextLength > _chunkSize)
+            return false;
+        ServerSession[] sessions = new ServerSession[length + nextLength];
+        System.arraycopy(chunk._sessions, 0, sessions, 0, length);
+        System.arraycopy(next._sessions, 0, sessions, length, nextLength);
+        chunk._sessions = sessions;
+        for (ServerSession session : next._sessions)
+            _index.put(session, chunk);
+        removeChunk(position + 1);
+        return true;
+    }
+
+    private void removeChunk(int position)
+    {
+        _chunks.remove(position);
+        for (int i = position; i < _chunks.size(); ++i)
+            _chunks.get(i)._position = i;
+    }
+
+    private void publish(Chunk chunk)
+    {
+        // The number of chunks did not change, only replace the modified one.
+        ServerSession[][] snapshot = _snapshot.clone();
+        snapshot[chunk._position] = chunk._sessions;
+        _snapshot = snapshot;
+    }
+
+    private void publish()
+    {
+        ServerSession[][] snapshot = new ServerSession[_chunks.size()][];
+        for (int i = 0; i < snapshot.length; ++i)
+            snapshot[i] = _chunks.get(i)._sessions;
+        _snapshot = snapshot;
+    }
+
+    @Override
+    public void clear()
+    {
+        synchronized (this)
+        {
+            _index.clear();
+            _chunks.clear();
+            _snapshot = NO_SUBSCRIBERS;
+        }
+    }
+
+    @Override
+    public boolean contains(Object session)
+    {
+        synchronized (this)
+        {
+            return _index.containsKey(session);
+        }
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return _snapshot.length == 0;
+    }
+
+    @Override
+    public int size()
+    {
+        synchronized (this)
+        {
+            return _index.size();
+        }
+    }
+
+    /**
+     * <p>Returns a point in time view of the subscribers, in subscription order,
+     * as an array of non-empty chunks.</p>
+     * <p>The returned arrays are shared and must not be modified.</p>
+     *
+     * @return the subscribers at the time of the call
+     */
+    public ServerSession[][] snapshot()
+    {
+        return _snapshot;
+    }
+
+    /**
+     * @param snapshot a {@link #snapshot() snapshot} of subscribers
+     * @return the number of subscribers in the given snapshot
+     */
+    static int size(ServerSession[][] snapshot)
+    {
+        int result = 0;
+        for (int i = 0; i < snapshot.length; ++i)
+            result += snapshot[i].length;
+        return result;
+    }
+
+    /**
+     * <p>Returns an iterator over a {@link #snapshot() snapshot} of the subscribers,
+     * that is not affected by concurrent modifications, and that supports removal.</p>
+     *
+     * @return an iterator over the subscribers
+     */
+    @Override
+    public Iterator<ServerSession> iterator()
+    {
+        return new SnapshotIterator(snapshot());
+    }
+
+    private static class Chunk
+    {
+        private int _position;
+        private ServerSession[] _sessions;
+
+        private Chunk(int position, ServerSession[] sessions)
+        {
+            _position = position;
+            _sessions = sessions;
+        }
+    }
+
+    private class SnapshotIterator implements Iterator<ServerSession>
+    {
+        private final ServerSession[][] _chunks;
+        private int _chunk;
+        private int _index;
+        private ServerSession _last;
+
+        private SnapshotIterator(ServerSession[][] chunks)
+        {
+            _chunks = chunks;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return _chunk < _chunks.length;
+        }
+
+        @Override
+        public ServerSession next()
+        {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            ServerSession[] sessions = _chunks[_chunk];
+            _last = sessions[_index++];
+            if (_index == sessions.length)
+            {
+                ++_chunk;
+                _index = 0;
+            }
+            return _last;
+        }
+
+        @Override
+        public void remove()
+        {
+            if (_last == null)
+                throw new IllegalStateException();
+            SubscriberSet.this.remove(_last);
+            _last = null;
+        }
+    }
+}
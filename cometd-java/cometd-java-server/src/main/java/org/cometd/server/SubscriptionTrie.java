@@ -0,0 +1,391 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server;
+
+import org.cometd.bayeux.ChannelId;
+import org.cometd.bayeux.server.ServerSession;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * <p>A trie of channel segments that indexes the subscriptions of {@link ServerChannelImpl}s,
+ * so that the subscribers of a broadcast channel, including the subscribers of the matching
+ * wild channels, can be resolved without looking up the wild channels by name and without
+ * deduplicating the subscribers on every publish.</p>
+ * <p>Each node of the trie represents a channel path and holds references to the non-wild,
+ * shallow wild ({@code /path/*}) and deep wild ({@code /path/**}) channels for that path,
+ * along with a version for each of them that is updated every time their subscribers change.
+ * The resolved subscribers of a non-wild channel are cached in its node together with the
+ * maximum of the versions they depend on; publishing only walks up the parent chain of the
+ * node to recompute that maximum and, if it did not change, reuses the cached subscribers.</p>
+ * <p>Structural modifications (channels added or removed) are serialized, while the
+ * resolution of subscribers is lock free.</p>
+ */
+class SubscriptionTrie
+{
+    private static final ServerSession[][] NO_SUBSCRIBERS = new ServerSession[0][];
+    private static final Pattern VAR = Pattern.compile("\\{\\w+\\}");
+
+    private final AtomicLong _versions = new AtomicLong();
+    private final Node _root = new Node(null, null);
+
+    /**
+     * <p>Adds the given channel to this trie, creating the nodes along its path if necessary.</p>
+     *
+     * @param channel the channel to add
+     */
+    void add(ServerChannelImpl channel)
+    {
+        ChannelId id = channel.getChannelId();
+        int depth;
+        try
+        {
+            depth = id.isWild() ? id.depth() - 1 : id.depth();
+        }
+        catch (IllegalArgumentException x)
+        {
+            // Channels with invalid ids (for example wild channels with
+            // template segments) cannot match any channel, skip them.
+            return;
+        }
+        synchronized (this)
+        {
+            Node node = _root;
+            for (int i = 0; i < depth; ++i)
+                node = node.child(id.getSegment(i));
+
+            if (id.isDeepWild())
+                node._deepWild = channel;
+            else if (id.isWild())
+                node._wild = channel;
+            else
+                node._channel = channel;
+            channel.setSubscriptionNode(node);
+            changed(node, id);
+        }
+    }
+
+    /**
+     * <p>Removes the given channel from this trie, pruning the nodes that are left empty.</p>
+     *
+     * @param channel the channel to remove
+     */
+    void remove(ServerChannelImpl channel)
+    {
+        ChannelId id = channel.getChannelId();
+        synchronized (this)
+        {
+            Node node = channel.getSubscriptionNode();
+            if (node == null)
+                return;
+
+            if (id.isDeepWild())
+            {
+                if (node._deepWild == channel)
+                    node._deepWild = null;
+            }
+            else if (id.isWild())
+            {
+                if (node._wild == channel)
+                    node._wild = null;
+            }
+            else
+            {
+                if (node._channel == channel)
+                    node._channel = null;
+            }
+            changed(node, id);
+
+            while (node != _root && node.isEmpty())
+            {
+                node._pruned = true;
+                node._parent._children.remove(node._segment);
+                node = node._parent;
+            }
+        }
+    }
+
+    /**
+     * <p>Removes all the channels from this trie.</p>
+     */
+    void clear()
+    {
+        synchronized (this)
+        {
+            for (Node child : _root._children.values())
+                child.prune();
+            _root._children.clear();
+            _root._channel = null;
+            _root._wild = null;
+            _root._deepWild = null;
+            _root._resolved = null;
+        }
+    }
+
+    /**
+     * <p>Records that the subscribers of the given channel changed.</p>
+     * <p>Must be called <em>after</em> the subscribers have been modified.</p>
+     *
+     * @param channel the channel whose subscribers changed
+     */
+    void subscriptionsChanged(ServerChannelImpl channel)
+    {
+        Node node = channel.getSubscriptionNode();
+        if (node != null)
+            changed(node, channel.getChannelId());
+    }
+
+    private void changed(Node node, ChannelId id)
+    {
+        long version = _versions.incrementAndGet();
+        if (id.isDeepWild())
+            update(node._deepWildVersion, version);
+        else if (id.isWild())
+            update(node._wildVersion, version);
+        else
+            update(node._version, version);
+    }
+
+    private void update(AtomicLong field, long version)
+    {
+        // Versions must only grow, so that a version seen by a
+        // cached resolution cannot be seen again after a change.
+        while (true)
+        {
+            long current = field.get();
+            if (current >= version || field.compareAndSet(current, version))
+                return;
+        }
+    }
+
+    /**
+     * <p>Returns the deduplicated subscribers of the given non-wild channel,
+     * including the subscribers of the wild channels that match it.</p>
+     * <p>The returned chunks are shared and must not be modified.</p>
+     *
+     * @param channel the non-wild channel to resolve the subscribers for
+     * @return the subscribers of the given channel
+     * @see SubscriberSet#snapshot()
+     */
+    ServerSession[][] subscribers(ServerChannelImpl channel)
+    {
+        Node node = channel.getSubscriptionNode();
+        long version = version(node);
+        if (version < 0)
+        {
+            // The channel has been removed and (part of) its path pruned,
+            // resolve the subscribers by looking up the current nodes.
+            return resolve(channel, lookup(channel.getChannelId()));
+        }
+
+        Resolved resolved = node._resolved;
+        if (resolved == null || resolved._version != version || resolved._channel != channel)
+        {
+            resolved = new Resolved(channel, version, resolve(channel, path(node)));
+            node._resolved = resolved;
+        }
+        return resolved._subscribers;
+    }
+
+    private long version(Node node)
+    {
+        if (node == null || node._pruned)
+            return -1;
+        long result = node._version.get();
+        Node parent = node._parent;
+        if (parent != null)
+            result = Math.max(result, parent._wildVersion.get());
+        while (parent != null)
+        {
+            if (parent._pruned)
+                return -1;
+            result = Math.max(result, parent._deepWildVersion.get());
+            parent = parent._parent;
+        }
+        return result;
+    }
+
+    private Node[] path(Node node)
+    {
+        int depth = 0;
+        for (Node n = node; n._parent != null; n = n._parent)
+            ++depth;
+        Node[] path = new Node[depth + 1];
+        for (Node n = node; n != null; n = n._parent)
+            path[depth--] = n;
+        return path;
+    }
+
+    private Node[] lookup(ChannelId id)
+    {
+        synchronized (this)
+        {
+            int depth = id.depth();
+            Node[] path = new Node[depth + 1];
+            Node node = _root;
+            for (int i = 0; node != null && i <= depth; ++i)
+            {
+                path[i] = node;
+                if (i < depth)
+                    node = node._children.get(id.getSegment(i));
+            }
+            return path;
+        }
+    }
+
+    private ServerSession[][] resolve(ServerChannelImpl channel, Node[] path)
+    {
+        // Mirrors the semantic of ChannelId.getWilds(): the deep wild channels
+        // of the ancestors match up to the first template segment included,
+        // and the shallow wild channel of the parent matches only if there
+        // is no template segment or the template segment is the last one.
+        int depth = path.length - 1;
+        int deepWilds = depth;
+        for (int i = 1; i <= depth; ++i)
+        {
+            if (VAR.matcher(channel.getChannelId().getSegment(i - 1)).matches())
+            {
+                deepWilds = i;
+                break;
+            }
+        }
+
+        List<ServerChannelImpl> channels = new ArrayList<>(depth + 1);
+        if (deepWilds == depth)
+        {
+            Node parent = path[depth - 1];
+            if (parent != null)
+                addChannel(channels, parent._wild);
+        }
+        for (int i = Math.min(deepWilds, depth) - 1; i >= 0; --i)
+        {
+            Node ancestor = path[i];
+            if (ancestor != null)
+                addChannel(channels, ancestor._deepWild);
+        }
+        addChannel(channels, channel);
+
+        ServerSession[][] first = null;
+        Set<ServerSession> result = null;
+        for (ServerChannelImpl subscribed : channels)
+        {
+            ServerSession[][] subscribers = subscribed.subscribersSnapshot();
+            if (subscribers.length == 0)
+                continue;
+            if (first == null)
+            {
+                // Common case of only one channel with subscribers,
+                // its snapshot needs no deduplication and can be shared.
+                first = subscribers;
+                continue;
+            }
+            if (result == null)
+            {
+                result = new LinkedHashSet<>();
+                addAll(result, first);
+            }
+            addAll(result, subscribers);
+        }
+
+        if (result != null)
+            return new ServerSession[][]{result.toArray(new ServerSession[result.size()])};
+        return first == null ? NO_SUBSCRIBERS : first;
+    }
+
+    private void addAll(Set<ServerSession> result, ServerSession[][] subscribers)
+    {
+        for (ServerSession[] chunk : subscribers)
+            result.addAll(Arrays.asList(chunk));
+    }
+
+    private void addChannel(List<ServerChannelImpl> channels, ServerChannelImpl channel)
+    {
+        if (channel != null)
+            channels.add(channel);
+    }
+
+    static class Node
+    {
+        private final Map<String, Node> _children = new HashMap<>();
+        private final Node _parent;
+        private final String _segment;
+        private volatile ServerChannelImpl _channel;
+        private volatile ServerChannelImpl _wild;
+        private volatile ServerChannelImpl _deepWild;
+        private final AtomicLong _version = new AtomicLong();
+        private final AtomicLong _wildVersion = new AtomicLong();
+        private final AtomicLong _deepWildVersion = new AtomicLong();
+        private volatile boolean _pruned;
+        private volatile Resolved _resolved;
+
+        private Node(Node parent, String segment)
+        {
+            _parent = parent;
+            _segment = segment;
+        }
+
+        private Node child(String segment)
+        {
+            Node child = _children.get(segment);
+            if (child == null)
+            {
+                child = new Node(this, segment);
+                _children.put(segment, child);
+            }
+            return child;
+        }
+
+        private boolean isEmpty()
+        {
+            return _channel == null && _wild == null && _deepWild == null && _children.isEmpty();
+        }
+
+        private void prune()
+        {
+            _pruned = true;
+            for (Node child : _children.values())
+                child.prune();
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%s@%x[%s]", getClass().getSimpleName(), hashCode(), _segment);
+        }
+    }
+
+    private static class Resolved
+    {
+        private final ServerChannelImpl _channel;
+        private final long _version;
+        private final ServerSession[][] _subscribers;
+
+        private Resolved(ServerChannelImpl channel, long version, ServerSession[][] subscribers)
+        {
+            _channel = channel;
+            _version = version;
+            _subscribers = subscribers;
+        }
+    }
+}
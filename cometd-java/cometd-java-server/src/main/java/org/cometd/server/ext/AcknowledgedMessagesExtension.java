@@ -33,10 +33,34 @@ import java.util.Map;
  * <p>The main role of this extension is to install the
  * {@link AcknowledgedMessagesSessionExtension} on the {@link ServerSession}
  * instances created during successful handshakes.</p>
+ * <p>By default unacknowledged messages are kept in memory by each session;
+ * a {@link MappedMessageLog} may be provided to store them off-heap in
+ * memory-mapped files shared by all sessions. The log must be started
+ * before messages are delivered.</p>
  */
 public class AcknowledgedMessagesExtension extends Extension.Adapter
 {
     private final Logger _logger = LoggerFactory.getLogger(getClass().getName());
+    private final MappedMessageLog _log;
+
+    public AcknowledgedMessagesExtension()
+    {
+        this(null);
+    }
+
+    /**
+     * @param log the log where the unacknowledged messages of all sessions are stored,
+     *            or null to store them in memory in each session
+     */
+    public AcknowledgedMessagesExtension(MappedMessageLog log)
+    {
+        _log = log;
+    }
+
+    public MappedMessageLog getMappedMessageLog()
+    {
+        return _log;
+    }
 
     @Override
     public boolean sendMeta(ServerSession remote, Mutable message)
@@ -54,7 +78,7 @@ public class AcknowledgedMessagesExtension extends Extension.Adapter
                 if (_logger.isDebugEnabled())
                     _logger.debug("Enabled message acknowledgement for session {}", session);
 
-                AcknowledgedMessagesSessionExtension extension = new AcknowledgedMessagesSessionExtension(session);
+                AcknowledgedMessagesSessionExtension extension = new AcknowledgedMessagesSessionExtension(session, _log);
 
                 // Make sure that adding the extension and importing the queue is atomic.
                 synchronized (session.getLock())
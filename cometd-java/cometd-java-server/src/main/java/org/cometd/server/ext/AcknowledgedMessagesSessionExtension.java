@@ -15,7 +15,7 @@
  */
 package org.cometd.server.ext;
 
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.Queue;
 
@@ -30,21 +30,43 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Tracks the batch id of messages sent to a client.
+ * <p>Tracks the batch id of messages sent to a client.</p>
+ * <p>The state of this extension is guarded by its own lock, as {@link ServerSessionImpl}
+ * already notifies {@link ServerSession.QueueListener}s atomically with the enqueueing
+ * of messages, and {@link ServerSession.DeQueueListener}s atomically with their dequeueing.</p>
+ * <p>Unacknowledged messages are stored in a {@link BatchArrayQueue}, or in a
+ * {@link MappedMessageLog} if one is provided.</p>
  */
-public class AcknowledgedMessagesSessionExtension implements Extension, ServerSession.DeQueueListener, ServerSession.QueueListener
+public class AcknowledgedMessagesSessionExtension implements Extension, ServerSession.DeQueueListener, ServerSession.QueueListener, ServerSession.RemoveListener
 {
     private static final Logger _logger = LoggerFactory.getLogger(AcknowledgedMessagesSessionExtension.class);
 
-    private final Map<Long, Long> _batches = new HashMap<>();
+    private final Object _lock = new Object();
+    // The batch sent by each thread replying to a /meta/connect, keyed by thread id.
+    // There are rarely more than a couple of such threads, so a linear scan of
+    // primitive arrays is used instead of a map, to avoid boxing.
+    private long[] _threads = new long[2];
+    private long[] _threadBatches = new long[2];
+    private int _threadCount;
     private final ServerSessionImpl _session;
     private final BatchArrayQueue<ServerMessage> _queue;
+    private final MappedMessageLog.Cursor _cursor;
     private long _lastBatch;
 
     public AcknowledgedMessagesSessionExtension(ServerSession session)
+    {
+        this(session, null);
+    }
+
+    /**
+     * @param session the session to track
+     * @param log     the log where unacknowledged messages are stored, or null to store them in memory
+     */
+    public AcknowledgedMessagesSessionExtension(ServerSession session, MappedMessageLog log)
     {
         _session = (ServerSessionImpl)session;
-        _queue = new BatchArrayQueue<>(16, _session.getLock());
+        _queue = log == null ? new BatchArrayQueue<ServerMessage>(16, _lock) : null;
+        _cursor = log == null ? null : log.newCursor();
         _session.setMetaConnectDeliveryOnly(true);
         _session.addListener(this);
     }
@@ -74,9 +96,9 @@ public class AcknowledgedMessagesSessionExtension implements Extension, ServerSe
 
     private void updateAdvice(Mutable message)
     {
-        synchronized (_session.getLock())
+        synchronized (_lock)
         {
-            if (!_session.hasNonLazyMessages() && _session.getQueue().size() != _queue.size())
+            if (!_session.hasNonLazyMessages() && _session.getQueue().size() != size())
             {
                 Map<String, Object> advice = message.getAdvice(true);
                 if (advice.get(Message.TIMEOUT_FIELD) == null)
@@ -91,12 +113,15 @@ public class AcknowledgedMessagesSessionExtension implements Extension, ServerSe
 
     protected void processBatch(long batch)
     {
-        synchronized (_session.getLock())
+        synchronized (_lock)
         {
             if (_logger.isDebugEnabled())
-                _logger.debug("Processing batch: last={}, client={}, server={} for {}", _lastBatch, batch, _queue.getBatch(), _session);
+                _logger.debug("Processing batch: last={}, client={}, server={} for {}", _lastBatch, batch, getBatch(), _session);
             _lastBatch = batch;
-            _queue.clearToBatch(batch);
+            if (_cursor != null)
+                _cursor.clearToBatch(batch);
+            else
+                _queue.clearToBatch(batch);
         }
     }
 
@@ -111,11 +136,11 @@ public class AcknowledgedMessagesSessionExtension implements Extension, ServerSe
     {
         // This method is called after all the extensions and the other
         // listeners, so only here are sure that the message is not vetoed.
-        synchronized (_session.getLock())
+        synchronized (_lock)
         {
-            _queue.offer(message);
+            offer(message);
             if (_logger.isDebugEnabled())
-                _logger.debug("Stored at batch {} {} for {}", _queue.getBatch(), message, _session);
+                _logger.debug("Stored at batch {} {} for {}", getBatch(), message, _session);
         }
     }
 
@@ -123,15 +148,18 @@ public class AcknowledgedMessagesSessionExtension implements Extension, ServerSe
     {
         if (message.getChannel().equals(Channel.META_CONNECT))
         {
-            synchronized (_session.getLock())
+            synchronized (_lock)
             {
                 Map<String, Object> ext = message.getExt(true);
-                long batch = _queue.getBatch();
-                _batches.put(Thread.currentThread().getId(), batch);
+                long batch = getBatch();
+                putThreadBatch(Thread.currentThread().getId(), batch);
                 if (_logger.isDebugEnabled())
                     _logger.debug("Sending batch {} for {}", batch, _session);
                 ext.put("ack", batch);
-                _queue.nextBatch();
+                if (_cursor != null)
+                    _cursor.nextBatch();
+                else
+                    _queue.nextBatch();
             }
         }
         return true;
@@ -139,24 +167,98 @@ public class AcknowledgedMessagesSessionExtension implements Extension, ServerSe
 
     public void deQueue(ServerSession session, Queue<ServerMessage> queue)
     {
-        synchronized (_session.getLock())
+        synchronized (_lock)
         {
-            Long batch = _batches.remove(Thread.currentThread().getId());
+            long batch = removeThreadBatch(Thread.currentThread().getId());
             if (_logger.isDebugEnabled())
-                _logger.debug("Dequeuing {}/{} messages until batch {} for {}", queue.size(), _queue.size(), batch, _session);
+                _logger.debug("Dequeuing {}/{} messages until batch {} for {}", queue.size(), size(), batch, _session);
             queue.clear();
-            _queue.exportMessagesToBatch(queue, batch);
+            if (_cursor != null)
+                _cursor.exportMessagesToBatch(queue, batch);
+            else
+                _queue.exportMessagesToBatch(queue, batch);
+        }
+    }
+
+    private void putThreadBatch(long thread, long batch)
+    {
+        for (int i = 0; i < _threadCount; ++i)
+        {
+            if (_threads[i] == thread)
+            {
+                _threadBatches[i] = batch;
+                return;
+            }
+        }
+        if (_threadCount == _threads.length)
+        {
+            _threads = Arrays.copyOf(_threads, _threadCount * 2);
+            _threadBatches = Arrays.copyOf(_threadBatches, _threadCount * 2);
+        }
+        _threads[_threadCount] = thread;
+        _threadBatches[_threadCount] = batch;
+        ++_threadCount;
+    }
+
+    /**
+     * @param thread the thread id
+     * @return the batch sent by the given thread, or 0 (which exports no message) if none was sent
+     */
+    private long removeThreadBatch(long thread)
+    {
+        for (int i = 0; i < _threadCount; ++i)
+        {
+            if (_threads[i] == thread)
+            {
+                long batch = _threadBatches[i];
+                --_threadCount;
+                _threads[i] = _threads[_threadCount];
+                _threadBatches[i] = _threadBatches[_threadCount];
+                return batch;
+            }
+        }
+        return 0;
+    }
+
+    public void removed(ServerSession session, boolean timeout)
+    {
+        // Release the log entries of the unacknowledged messages.
+        if (_cursor != null)
+        {
+            synchronized (_lock)
+            {
+                _cursor.clear();
+            }
         }
     }
 
     protected void importMessages(ServerSessionImpl session)
     {
-        synchronized (_session.getLock())
+        synchronized (_lock)
         {
-            _queue.addAll(session.getQueue());
+            for (ServerMessage message : session.getQueue())
+                offer(message);
         }
     }
 
+    private void offer(ServerMessage message)
+    {
+        if (_cursor != null)
+            _cursor.offer(message);
+        else
+            _queue.offer(message);
+    }
+
+    private long getBatch()
+    {
+        return _cursor != null ? _cursor.getBatch() : _queue.getBatch();
+    }
+
+    private int size()
+    {
+        return _cursor != null ? _cursor.size() : _queue.size();
+    }
+
     BatchArrayQueue<ServerMessage> getBatchArrayQueue()
     {
         return _queue;
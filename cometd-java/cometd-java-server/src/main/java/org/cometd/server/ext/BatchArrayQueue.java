@@ -21,6 +21,13 @@ import java.util.Arrays;
 import java.util.NoSuchElementException;
 import java.util.Queue;
 
+/**
+ * <p>A queue of elements, each tagged with the batch it has been offered in.</p>
+ * <p>Batches only increase, so the batches of the elements of the queue are
+ * sorted: the elements of a batch are located with a binary search on the
+ * primitive ring of batches, and removed or exported in at most two
+ * contiguous ranges of the ring, without per-element index arithmetic.</p>
+ */
 public class BatchArrayQueue<T> extends ArrayQueue<T>
 {
     private long[] batches;
@@ -41,11 +48,9 @@ public class BatchArrayQueue<T> extends ArrayQueue<T>
             boolean result = super.offer(t);
             if (result)
             {
-                // We need to access the old tail to assign the batch to the given element.
-                int newHead = _nextE; // May have changed by super.offer() because of grow().
-                int newSize = _size; // Surely changed by super.offer().
-                int oldTail = (newHead + newSize - 1) % getCapacity();
-                batches[oldTail] = batch;
+                // The slot of the new element, just before the next slot.
+                int tail = _nextSlot == 0 ? batches.length - 1 : _nextSlot - 1;
+                batches[tail] = batch;
             }
             return result;
         }
@@ -76,19 +81,6 @@ public class BatchArrayQueue<T> extends ArrayQueue<T>
         throw new UnsupportedOperationException();
     }
 
-    @Override
-    public T poll()
-    {
-        synchronized (_lock)
-        {
-            int head = _nextE;
-            T result = super.poll();
-            if (result != null)
-                batches[head] = 0;
-            return result;
-        }
-    }
-
     @Override
     public T remove()
     {
@@ -104,7 +96,6 @@ public class BatchArrayQueue<T> extends ArrayQueue<T>
         synchronized (_lock)
         {
             super.clear();
-            Arrays.fill(batches, 0);
             batch = 1;
         }
     }
@@ -135,14 +126,17 @@ public class BatchArrayQueue<T> extends ArrayQueue<T>
     {
         synchronized (_lock)
         {
-            while (true)
-            {
-                int head = _nextE;
-                if (batches[head] > batch)
-                    break;
-                if (poll() == null)
-                    break;
-            }
+            int count = countToBatch(batch);
+            if (count == 0)
+                return;
+            int head = _nextE;
+            int capacity = _elements.length;
+            int first = Math.min(count, capacity - head);
+            Arrays.fill(_elements, head, head + first, null);
+            if (count > first)
+                Arrays.fill(_elements, 0, count - first, null);
+            _nextE = slot(count);
+            _size -= count;
         }
     }
 
@@ -150,19 +144,50 @@ public class BatchArrayQueue<T> extends ArrayQueue<T>
     {
         synchronized (_lock)
         {
-            if (isEmpty())
+            int count = countToBatch(batch);
+            if (count == 0)
                 return;
-            int index = 0;
-            while (index < _size)
-            {
-                int cursor = (_nextE + index) % getCapacity();
-                if (batches[cursor] > batch)
-                    break;
-                T element = getUnsafe(index);
-                target.offer(element);
-                ++index;
-            }
+            int head = _nextE;
+            int capacity = _elements.length;
+            int first = Math.min(count, capacity - head);
+            export(target, head, head + first);
+            if (count > first)
+                export(target, 0, count - first);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void export(Queue<T> target, int from, int to)
+    {
+        Object[] elements = _elements;
+        for (int i = from; i < to; ++i)
+            target.offer((T)elements[i]);
+    }
+
+    /**
+     * @param batch the batch
+     * @return the number of elements, from the head, with a batch less than or equal to the given batch
+     */
+    private int countToBatch(long batch)
+    {
+        int low = 0;
+        int high = _size;
+        while (low < high)
+        {
+            int middle = (low + high) >>> 1;
+            if (batches[slot(middle)] <= batch)
+                low = middle + 1;
+            else
+                high = middle;
         }
+        return low;
+    }
+
+    private int slot(int index)
+    {
+        int slot = _nextE + index;
+        int capacity = _elements.length;
+        return slot < capacity ? slot : slot - capacity;
     }
 
     @Override
@@ -170,21 +195,20 @@ public class BatchArrayQueue<T> extends ArrayQueue<T>
     {
         synchronized (_lock)
         {
+            // Double the capacity, so that the copies are amortized.
+            int capacity = _elements.length;
             int head = _nextE;
-            int tail = _nextSlot;
-
-            if (!super.grow())
-                return false;
-
-            long[] newIds = new long[_elements.length];
-            int length = batches.length - head;
-            // Copy from head to end of array.
-            if (length > 0)
-                System.arraycopy(batches, head, newIds, 0, length);
-            // Copy from 0 to tail if we have not done it yet.
-            if (head != 0)
-                System.arraycopy(batches, 0, newIds, length, tail);
-            batches = newIds;
+            int length = capacity - head;
+            Object[] newElements = new Object[capacity * 2];
+            long[] newBatches = new long[capacity * 2];
+            System.arraycopy(_elements, head, newElements, 0, length);
+            System.arraycopy(_elements, 0, newElements, length, head);
+            System.arraycopy(batches, head, newBatches, 0, length);
+            System.arraycopy(batches, 0, newBatches, length, head);
+            _elements = newElements;
+            batches = newBatches;
+            _nextE = 0;
+            _nextSlot = _size;
             return true;
         }
     }
@@ -194,8 +218,7 @@ public class BatchArrayQueue<T> extends ArrayQueue<T>
     {
         synchronized (_lock)
         {
-            int cursor = (_nextE + index) % getCapacity();
-            return batches[cursor];
+            return batches[slot(index)];
         }
     }
 }
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server.ext;
+
+import org.cometd.bayeux.Channel;
+import org.cometd.bayeux.ChannelId;
+import org.cometd.bayeux.Message;
+import org.cometd.bayeux.server.BayeuxServer;
+import org.cometd.bayeux.server.ServerMessage;
+import org.cometd.bayeux.server.ServerSession;
+import org.cometd.server.BayeuxServerImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Installing this extension in a {@link BayeuxServer} provides support for
+ * delta-encoded messages if a client also supports it.</p>
+ * <p>Clients that receive frequent snapshots of a state, where only few fields
+ * change between snapshots, receive only the differences between the data of a
+ * message and the data of the previous message on the same channel, while
+ * periodic key frames carry the whole data.</p>
+ * <p>The main role of this extension is to install the {@link DeltaSessionExtension}
+ * on the {@link ServerSession} instances created during successful handshakes.</p>
+ */
+public class DeltaExtension extends BayeuxServer.Extension.Adapter
+{
+    public static final String DELTA_FIELD = "delta";
+
+    private final Logger _logger = LoggerFactory.getLogger(getClass().getName());
+    private final BayeuxServerImpl _bayeux;
+    private final int _keyFrameInterval;
+    private final List<ChannelId> _channels;
+
+    /**
+     * @param bayeux   the server that creates the delta-encoded messages
+     * @param channels the channels, possibly wild, whose messages are delta-encoded,
+     *                 or no channels to delta-encode the messages of all channels
+     */
+    public DeltaExtension(BayeuxServerImpl bayeux, String... channels)
+    {
+        this(bayeux, 16, channels);
+    }
+
+    /**
+     * @param bayeux           the server that creates the delta-encoded messages
+     * @param keyFrameInterval the max number of delta-encoded messages between key frames
+     * @param channels         the channels, possibly wild, whose messages are delta-encoded,
+     *                         or no channels to delta-encode the messages of all channels
+     */
+    public DeltaExtension(BayeuxServerImpl bayeux, int keyFrameInterval, String... channels)
+    {
+        _bayeux = bayeux;
+        _keyFrameInterval = keyFrameInterval;
+        List<ChannelId> channelIds = new ArrayList<>(channels.length);
+        for (String channel : channels)
+            channelIds.add(new ChannelId(channel));
+        _channels = Collections.unmodifiableList(channelIds);
+    }
+
+    /**
+     * @return the max number of delta-encoded messages between key frames
+     */
+    public int getKeyFrameInterval()
+    {
+        return _keyFrameInterval;
+    }
+
+    /**
+     * @return the channels whose messages are delta-encoded, or an empty list for all channels
+     */
+    public List<ChannelId> getChannels()
+    {
+        return _channels;
+    }
+
+    @Override
+    public boolean sendMeta(ServerSession to, ServerMessage.Mutable message)
+    {
+        if (Channel.META_HANDSHAKE.equals(message.getChannel()) && message.isSuccessful())
+        {
+            Map<String, Object> rcvExt = message.getAssociated().getExt();
+            boolean clientRequestedDeltas = rcvExt != null && rcvExt.get(DELTA_FIELD) == Boolean.TRUE;
+            if (clientRequestedDeltas && to != null)
+            {
+                if (_logger.isDebugEnabled())
+                    _logger.debug("Enabled delta-encoded messages for session {}", to);
+                to.addExtension(newSessionExtension(to, message));
+            }
+            message.getExt(true).put(DELTA_FIELD, Boolean.TRUE);
+        }
+        return true;
+    }
+
+    /**
+     * @param session        the session that receives delta-encoded messages
+     * @param handshakeReply the handshake reply message
+     * @return a new {@link ServerSession.Extension} that delta-encodes the messages sent to the session
+     */
+    protected ServerSession.Extension newSessionExtension(ServerSession session, Message handshakeReply)
+    {
+        return new DeltaSessionExtension(_bayeux, getKeyFrameInterval(), getChannels());
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server.ext;
+
+import org.cometd.bayeux.Channel;
+import org.cometd.bayeux.ChannelId;
+import org.cometd.bayeux.Message;
+import org.cometd.bayeux.server.ServerMessage;
+import org.cometd.bayeux.server.ServerSession;
+import org.cometd.server.BayeuxServerImpl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>A {@link ServerSession.Extension} that replaces the data of the messages sent
+ * to a session with the differences from the data of the previous message sent
+ * on the same channel, when both are objects.</p>
+ * <p>The differences are a list of JSON Patch (RFC 6902) {@code add}, {@code replace}
+ * and {@code remove} operations, sent as the {@code data} of the message, along with
+ * the number of key frames sent on the channel in the {@code ext.delta.epoch} field
+ * and the sequence number of the delta since the last key frame in the
+ * {@code ext.delta.seq} field; the client compares the epoch with the number of key
+ * frames it received, so that it does not apply deltas to an older key frame.</p>
+ * <p>Key frames are the messages sent unmodified, so that their JSON representation
+ * is still shared among sessions: they are sent for the first message on a channel,
+ * every {@link #getKeyFrameInterval() key frame interval} messages, when the patch
+ * would be larger than the data, and after the client asks to resynchronize a channel
+ * with the {@code ext.delta.resync} field, typically because it missed a message.</p>
+ * <p>The state of the channels that match a subscription is dropped when the session
+ * unsubscribes, on both sides, so that it is kept only for the channels the session
+ * receives messages from; the next message on those channels is a key frame.</p>
+ */
+public class DeltaSessionExtension extends ServerSession.Extension.Adapter
+{
+    public static final String EPOCH_FIELD = "epoch";
+    public static final String SEQ_FIELD = "seq";
+    public static final String RESYNC_FIELD = "resync";
+
+    private final Map<String, Snapshot> _snapshots = new HashMap<>();
+    private final BayeuxServerImpl _bayeux;
+    private final int _keyFrameInterval;
+    private final List<ChannelId> _channels;
+
+    public DeltaSessionExtension(BayeuxServerImpl bayeux, int keyFrameInterval, List<ChannelId> channels)
+    {
+        _bayeux = bayeux;
+        _keyFrameInterval = keyFrameInterval;
+        _channels = channels;
+    }
+
+    public int getKeyFrameInterval()
+    {
+        return _keyFrameInterval;
+    }
+
+    @Override
+    public boolean rcv(ServerSession session, ServerMessage.Mutable message)
+    {
+        resync(message);
+        return true;
+    }
+
+    @Override
+    public boolean rcvMeta(ServerSession session, ServerMessage.Mutable message)
+    {
+        resync(message);
+        return true;
+    }
+
+    @Override
+    public boolean sendMeta(ServerSession session, ServerMessage.Mutable message)
+    {
+        if (Channel.META_UNSUBSCRIBE.equals(message.getChannel()) && message.isSuccessful())
+        {
+            List<ChannelId> subscriptions = new ArrayList<>();
+            for (Object subscription : asList(message.get(Message.SUBSCRIPTION_FIELD)))
+                subscriptions.add(new ChannelId(String.valueOf(subscription)));
+            synchronized (_snapshots)
+            {
+                for (Iterator<String> iterator = _snapshots.keySet().iterator(); iterator.hasNext(); )
+                {
+                    ChannelId channelId = new ChannelId(iterator.next());
+                    for (ChannelId subscription : subscriptions)
+                    {
+                        if (subscription.equals(channelId) || subscription.matches(channelId))
+                        {
+                            iterator.remove();
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private void resync(Message message)
+    {
+        Map<String, Object> ext = message.getExt();
+        if (ext == null)
+            return;
+        Object delta = ext.get(DeltaExtension.DELTA_FIELD);
+        if (!(delta instanceof Map))
+            return;
+        List<?> resync = asList(((Map)delta).get(RESYNC_FIELD));
+        if (resync.isEmpty())
+            return;
+        synchronized (_snapshots)
+        {
+            for (Object channel : resync)
+            {
+                // Keep counting the key frames of the channel.
+                Snapshot snapshot = _snapshots.get(String.valueOf(channel));
+                if (snapshot != null)
+                    snapshot.data = null;
+            }
+        }
+    }
+
+    @Override
+    public ServerMessage send(ServerSession session, ServerMessage message)
+    {
+        String channel = message.getChannel();
+        if (!isDeltaChannel(message.getChannelId()) || message.isPublishReply())
+            return message;
+
+        Object data = message.getData();
+        List<Map<String, Object>> patch = null;
+        long epoch;
+        int seq = 0;
+        synchronized (_snapshots)
+        {
+            Snapshot snapshot = _snapshots.get(channel);
+            if (snapshot == null)
+            {
+                snapshot = new Snapshot();
+                _snapshots.put(channel, snapshot);
+            }
+
+            if (!(data instanceof Map))
+            {
+                snapshot.data = null;
+                return message;
+            }
+
+            Map<String, Object> current = asMap(data);
+            if (snapshot.data != null && snapshot.deltas < getKeyFrameInterval())
+            {
+                patch = new ArrayList<>();
+                diff("", snapshot.data, current, patch);
+                if (patch.size() <= current.size())
+                    seq = ++snapshot.deltas;
+                else
+                    patch = null;
+            }
+
+            snapshot.data = current;
+            if (patch == null)
+            {
+                snapshot.deltas = 0;
+                ++snapshot.epoch;
+            }
+            epoch = snapshot.epoch;
+        }
+
+        if (patch == null)
+            return message;
+
+        ServerMessage.Mutable result = _bayeux.newMessage(message);
+        result.setData(patch);
+        result.setLazy(message.isLazy());
+        Map<String, Object> ext = new HashMap<>();
+        Map<String, Object> messageExt = message.getExt();
+        if (messageExt != null)
+            ext.putAll(messageExt);
+        Map<String, Object> delta = new HashMap<>(2);
+        delta.put(EPOCH_FIELD, epoch);
+        delta.put(SEQ_FIELD, seq);
+        ext.put(DeltaExtension.DELTA_FIELD, delta);
+        result.put(Message.EXT_FIELD, ext);
+        return result;
+    }
+
+    private boolean isDeltaChannel(ChannelId channelId)
+    {
+        if (channelId.isMeta())
+            return false;
+        if (_channels.isEmpty())
+            return true;
+        for (ChannelId channel : _channels)
+        {
+            if (channel.matches(channelId))
+                return true;
+        }
+        return false;
+    }
+
+    private void diff(String path, Map<String, Object> previous, Map<String, Object> current, List<Map<String, Object>> patch)
+    {
+        for (Map.Entry<String, Object> entry : current.entrySet())
+        {
+            String name = entry.getKey();
+            String fieldPath = path + "/" + escape(name);
+            Object value = entry.getValue();
+            if (!previous.containsKey(name))
+            {
+                patch.add(operation("add", fieldPath, value));
+            }
+            else
+            {
+                Object previousValue = previous.get(name);
+                if (previousValue instanceof Map && value instanceof Map)
+                    diff(fieldPath, asMap(previousValue), asMap(value), patch);
+                else if (!equal(previousValue, value))
+                    patch.add(operation("replace", fieldPath, value));
+            }
+        }
+        for (String name : previous.keySet())
+        {
+            if (!current.containsKey(name))
+                patch.add(operation("remove", path + "/" + escape(name), null));
+        }
+    }
+
+    private String escape(String name)
+    {
+        // JSON Pointer (RFC 6901) escaping.
+        return name.replace("~", "~0").replace("/", "~1");
+    }
+
+    private boolean equal(Object previous, Object current)
+    {
+        if (previous == current)
+            return true;
+        if (previous == null || current == null)
+            return false;
+        if (previous instanceof Object[] && current instanceof Object[])
+            return Arrays.deepEquals((Object[])previous, (Object[])current);
+        return previous.equals(current);
+    }
+
+    private Map<String, Object> operation(String op, String path, Object value)
+    {
+        Map<String, Object> result = new HashMap<>(4);
+        result.put("op", op);
+        result.put("path", path);
+        if (!"remove".equals(op))
+            result.put("value", value);
+        return result;
+    }
+
+    private List<?> asList(Object object)
+    {
+        if (object instanceof Object[])
+            return Arrays.asList((Object[])object);
+        if (object instanceof List)
+            return (List<?>)object;
+        if (object instanceof String)
+            return Collections.singletonList(object);
+        return Collections.emptyList();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> asMap(Object object)
+    {
+        return (Map<String, Object>)object;
+    }
+
+    private static class Snapshot
+    {
+        private Map<String, Object> data;
+        private int deltas;
+        private long epoch;
+    }
+}
@@ -0,0 +1,518 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server.ext;
+
+import org.cometd.bayeux.server.ServerMessage;
+import org.cometd.common.JSONContext;
+import org.cometd.server.JettyJSONContextServer;
+import org.cometd.server.ServerMessageImpl;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>An append-only log of the JSON bytes of messages, stored in memory-mapped
+ * segment files and shared by all the sessions that use the
+ * {@link AcknowledgedMessagesExtension}.</p>
+ * <p>A message delivered to many sessions is appended only once: each session
+ * holds a {@link Cursor} that records only the positions of its unacknowledged
+ * messages in the log, so that the unacknowledged messages do not live on the
+ * Java heap.</p>
+ * <p>Each segment counts the cursor entries that refer to it; a segment that
+ * has been filled is deleted as soon as all the sessions have acknowledged
+ * (or have been removed with) the messages it contains, and its mapping is
+ * released at the same time.</p>
+ * <p>Appends reserve their space in the current segment with a compare-and-set
+ * and the reference counts are atomic, so that sessions only contend on the
+ * lock of this log when a new segment is created.</p>
+ * <p>Sessions do not survive a restart of the server, so the segments left
+ * by a previous run are deleted when this log is started.</p>
+ */
+public class MappedMessageLog extends AbstractLifeCycle
+{
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final Logger logger = LoggerFactory.getLogger(MappedMessageLog.class);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String SEGMENT_SUFFIX = ".segment";
+
+    private final ConcurrentNavigableMap<Long, Segment> _segments = new ConcurrentSkipListMap<>();
+    private final ThreadLocal<Appended> _lastAppended = new ThreadLocal<>();
+    private final File _directory;
+    private final int _segmentSize;
+    private final JSONContext.Server _jsonContext;
+    private volatile Segment _current;
+    // Guarded by this log.
+    private long _nextBase;
+
+    public MappedMessageLog(File directory)
+    {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public MappedMessageLog(File directory, int segmentSize)
+    {
+        this(directory, segmentSize, new JettyJSONContextServer());
+    }
+
+    /**
+     * @param directory   the directory where the segment files are stored
+     * @param segmentSize the size in bytes of the segment files
+     * @param jsonContext the JSONContext used to parse the messages read from the log
+     */
+    public MappedMessageLog(File directory, int segmentSize, JSONContext.Server jsonContext)
+    {
+        if (segmentSize <= 4)
+            throw new IllegalArgumentException("Invalid segment size " + segmentSize);
+        _directory = directory;
+        _segmentSize = segmentSize;
+        _jsonContext = jsonContext;
+    }
+
+    public File getDirectory()
+    {
+        return _directory;
+    }
+
+    public int getSegmentSize()
+    {
+        return _segmentSize;
+    }
+
+    /**
+     * @return the number of segments currently stored
+     */
+    public int getSegmentCount()
+    {
+        return _segments.size();
+    }
+
+    @Override
+    protected void doStart() throws Exception
+    {
+        if (!_directory.isDirectory() && !_directory.mkdirs())
+            throw new IOException("Could not create directory " + _directory);
+        File[] stale = _directory.listFiles();
+        if (stale != null)
+        {
+            for (File file : stale)
+            {
+                if (file.getName().endsWith(SEGMENT_SUFFIX))
+                    delete(file);
+            }
+        }
+        super.doStart();
+    }
+
+    @Override
+    protected void doStop() throws Exception
+    {
+        super.doStop();
+        synchronized (this)
+        {
+            Segment current = _current;
+            _current = null;
+            if (current != null)
+                release(current);
+            // The segments still referenced by cursors are only deleted:
+            // their mapping is released when they are garbage collected,
+            // as they may still be read by sessions that are being removed.
+            for (Segment segment : _segments.values())
+                delete(segment.file);
+            _segments.clear();
+        }
+    }
+
+    /**
+     * @return a new cursor over this log, to be used by a single session
+     */
+    public Cursor newCursor()
+    {
+        return new Cursor();
+    }
+
+    /**
+     * <p>Appends the given message to this log, or retains the position where
+     * the same message has already been appended by the same thread, which is
+     * the common case of a message published to many subscribers.</p>
+     *
+     * @param message the message to append
+     * @return the position of the message in this log
+     */
+    protected long append(ServerMessage message)
+    {
+        Appended last = _lastAppended.get();
+        if (last != null && last.message == message && retain(last.position))
+            return last.position;
+
+        ByteBuffer bytes = bytesOf(message);
+        while (true)
+        {
+            Segment segment = _current;
+            if (segment != null && segment.retain())
+            {
+                long position = segment.append(bytes);
+                if (position >= 0)
+                {
+                    _lastAppended.set(new Appended(message, position));
+                    return position;
+                }
+                release(segment);
+            }
+            roll(segment, 4 + bytes.remaining());
+        }
+    }
+
+    /**
+     * @param position the position of the message
+     * @return the message at the given position
+     */
+    protected ServerMessage.Mutable read(long position)
+    {
+        Map.Entry<Long, Segment> entry = _segments.floorEntry(position);
+        if (entry == null)
+            throw new IllegalStateException("No segment for position " + position);
+        String json = entry.getValue().read((int)(position - entry.getKey()));
+        try
+        {
+            return _jsonContext.parse(json)[0];
+        }
+        catch (ParseException x)
+        {
+            throw new IllegalStateException(x);
+        }
+    }
+
+    private boolean retain(long position)
+    {
+        Map.Entry<Long, Segment> entry = _segments.floorEntry(position);
+        if (entry == null)
+            return false;
+        Segment segment = entry.getValue();
+        // The segment of the position may have been deleted.
+        if (position >= segment.base + segment.buffer.capacity())
+            return false;
+        return segment.retain();
+    }
+
+    protected void release(long position)
+    {
+        Map.Entry<Long, Segment> entry = _segments.floorEntry(position);
+        if (entry != null)
+            release(entry.getValue());
+    }
+
+    private void release(Segment segment)
+    {
+        if (segment.release())
+        {
+            _segments.remove(segment.base, segment);
+            segment.close();
+        }
+    }
+
+    private synchronized void roll(Segment full, int minCapacity)
+    {
+        if (!isRunning())
+            throw new IllegalStateException("Log not running " + this);
+        // Another thread may have already replaced the full segment.
+        if (_current != full)
+            return;
+        _current = newSegment(minCapacity);
+        // Drop the reference owned by the log while the segment was current.
+        if (full != null)
+            release(full);
+    }
+
+    private Segment newSegment(int minCapacity)
+    {
+        int capacity = Math.max(_segmentSize, minCapacity);
+        long base = _nextBase;
+        _nextBase += capacity;
+        File file = new File(_directory, String.format("%020d%s", base, SEGMENT_SUFFIX));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+        {
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            Segment segment = new Segment(base, file, buffer);
+            _segments.put(base, segment);
+            if (logger.isDebugEnabled())
+                logger.debug("Created {}", segment);
+            return segment;
+        }
+        catch (IOException x)
+        {
+            delete(file);
+            throw new IllegalStateException(x);
+        }
+    }
+
+    private ByteBuffer bytesOf(ServerMessage message)
+    {
+        if (message instanceof ServerMessageImpl)
+            return ((ServerMessageImpl)message).getJSONBytes();
+        return ByteBuffer.wrap(message.getJSON().getBytes(UTF_8));
+    }
+
+    private static void delete(File file)
+    {
+        if (!file.delete() && file.exists())
+            logger.info("Could not delete {}", file);
+    }
+
+    private static void unmap(MappedByteBuffer buffer)
+    {
+        try
+        {
+            try
+            {
+                // JDK 9 and later.
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field unsafe = unsafeClass.getDeclaredField("theUnsafe");
+                unsafe.setAccessible(true);
+                unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(unsafe.get(null), buffer);
+            }
+            catch (NoSuchMethodException x)
+            {
+                // JDK 7 and 8.
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        }
+        catch (Throwable x)
+        {
+            // The mapping is released when the buffer is garbage collected.
+            logger.debug("Could not unmap " + buffer, x);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s@%x[%s,segments=%d]", getClass().getSimpleName(), hashCode(), _directory, getSegmentCount());
+    }
+
+    private static class Appended
+    {
+        private final ServerMessage message;
+        private final long position;
+
+        private Appended(ServerMessage message, long position)
+        {
+            this.message = message;
+            this.position = position;
+        }
+    }
+
+    private static class Segment
+    {
+        private final AtomicInteger tail = new AtomicInteger();
+        // The log owns one reference while the segment is current.
+        private final AtomicInteger references = new AtomicInteger(1);
+        private final long base;
+        private final File file;
+        private final MappedByteBuffer buffer;
+
+        private Segment(long base, File file, MappedByteBuffer buffer)
+        {
+            this.base = base;
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        private boolean retain()
+        {
+            while (true)
+            {
+                int count = references.get();
+                // A segment without references is closed for good.
+                if (count == 0)
+                    return false;
+                if (references.compareAndSet(count, count + 1))
+                    return true;
+            }
+        }
+
+        /**
+         * @return whether the last reference has been released
+         */
+        private boolean release()
+        {
+            return references.decrementAndGet() == 0;
+        }
+
+        /**
+         * <p>Reserves the space for the given bytes and copies them,
+         * so that concurrent appends only contend on the reservation.</p>
+         * <p>The caller must hold a reference to this segment.</p>
+         *
+         * @param bytes the bytes to append
+         * @return the position of the bytes, or -1 if this segment is full
+         */
+        private long append(ByteBuffer bytes)
+        {
+            int length = bytes.remaining();
+            while (true)
+            {
+                int offset = tail.get();
+                if (offset + 4 + length > buffer.capacity())
+                    return -1;
+                if (tail.compareAndSet(offset, offset + 4 + length))
+                {
+                    ByteBuffer view = buffer.duplicate();
+                    view.position(offset);
+                    view.putInt(length);
+                    view.put(bytes);
+                    return base + offset;
+                }
+            }
+        }
+
+        private String read(int offset)
+        {
+            ByteBuffer view = buffer.duplicate();
+            int length = view.getInt(offset);
+            byte[] bytes = new byte[length];
+            view.position(offset + 4);
+            view.get(bytes);
+            return new String(bytes, UTF_8);
+        }
+
+        private void close()
+        {
+            // Nothing refers to this segment anymore, so it can be unmapped
+            // right away, rather than when the buffer is garbage collected.
+            unmap(buffer);
+            delete(file);
+            if (logger.isDebugEnabled())
+                logger.debug("Deleted {}", this);
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%s[%s,references=%d]", getClass().getSimpleName(), file, references.get());
+        }
+    }
+
+    /**
+     * <p>The positions in the log of the unacknowledged messages of a session,
+     * with the batch each message has been sent with.</p>
+     * <p>A cursor is not thread safe, and it is guarded by the lock of the
+     * {@link AcknowledgedMessagesSessionExtension} that uses it.</p>
+     *
+     * @see BatchArrayQueue
+     */
+    public class Cursor
+    {
+        private long[] _positions = new long[16];
+        private long[] _batches = new long[16];
+        private int _head;
+        private int _size;
+        private long _batch = 1;
+
+        public void offer(ServerMessage message)
+        {
+            long position = append(message);
+            if (_size == _positions.length)
+                grow();
+            int tail = (_head + _size) % _positions.length;
+            _positions[tail] = position;
+            _batches[tail] = _batch;
+            ++_size;
+        }
+
+        public int size()
+        {
+            return _size;
+        }
+
+        public long getBatch()
+        {
+            return _batch;
+        }
+
+        public void nextBatch()
+        {
+            ++_batch;
+        }
+
+        public void clearToBatch(long batch)
+        {
+            while (_size > 0 && _batches[_head] <= batch)
+            {
+                release(_positions[_head]);
+                _head = (_head + 1) % _positions.length;
+                --_size;
+            }
+        }
+
+        public void exportMessagesToBatch(Queue<ServerMessage> target, long batch)
+        {
+            for (int i = 0; i < _size; ++i)
+            {
+                int index = (_head + i) % _positions.length;
+                if (_batches[index] > batch)
+                    break;
+                target.offer(read(_positions[index]));
+            }
+        }
+
+        public void clear()
+        {
+            clearToBatch(Long.MAX_VALUE);
+            _head = 0;
+            _batch = 1;
+        }
+
+        private void grow()
+        {
+            int capacity = _positions.length;
+            long[] positions = new long[capacity * 2];
+            long[] batches = new long[capacity * 2];
+            int length = capacity - _head;
+            System.arraycopy(_positions, _head, positions, 0, length);
+            System.arraycopy(_positions, 0, positions, length, _head);
+            System.arraycopy(_batches, _head, batches, 0, length);
+            System.arraycopy(_batches, 0, batches, length, _head);
+            _positions = positions;
+            _batches = batches;
+            _head = 0;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%s[size=%d,batch=%d]", getClass().getSimpleName(), _size, _batch);
+        }
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server.ext;
+
+import org.cometd.bayeux.ChannelId;
+import org.cometd.bayeux.Message;
+import org.cometd.bayeux.server.BayeuxServer;
+import org.cometd.bayeux.server.ServerChannel;
+import org.cometd.bayeux.server.ServerMessage;
+import org.cometd.bayeux.server.ServerSession;
+import org.cometd.server.BayeuxServerImpl;
+import org.cometd.server.ServerSessionImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Installing this extension in a {@link BayeuxServer} limits the rate
+ * of the messages that remote sessions publish to the channels that match
+ * the channel patterns of the configured {@link Rule}s.</p>
+ * <p>Each rule is a token bucket, with a rate and a burst, that is shared by
+ * all sessions or that is specific to each session; messages that exceed the
+ * rate are either rejected with a {@code 429} error reply, or delayed until
+ * the bucket allows them, depending on the {@link Policy} of the rule.</p>
+ * <p>Buckets are updated with a single compare-and-set of their state, so that
+ * no lock is taken when messages are published.</p>
+ * <p>Delayed messages go on through the other extensions and the authorizers
+ * as usual, so that the publisher receives the reply of the authorization
+ * immediately, and they are published to their channel by the
+ * {@link #setExecutor(Executor) executor} of this extension when the delay
+ * expires, in the order they have been published by each session.</p>
+ */
+public class RateLimitExtension extends BayeuxServer.Extension.Adapter
+{
+    private static final Logger logger = LoggerFactory.getLogger(RateLimitExtension.class);
+
+    private final List<Rule> _rules = new CopyOnWriteArrayList<>();
+    private final String _attribute = RateLimitExtension.class.getName() + "@" + Integer.toHexString(hashCode());
+    private final BayeuxServerImpl _bayeux;
+    private volatile Executor _executor;
+
+    public RateLimitExtension(BayeuxServerImpl bayeux)
+    {
+        _bayeux = bayeux;
+    }
+
+    /**
+     * @return the executor that publishes the delayed messages
+     */
+    public Executor getExecutor()
+    {
+        Executor executor = _executor;
+        if (executor == null)
+        {
+            synchronized (this)
+            {
+                executor = _executor;
+                if (executor == null)
+                    executor = _executor = newExecutor();
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * <p>Sets the executor that publishes the delayed messages.</p>
+     * <p>If not set, a pool of daemon threads, as many as the processors,
+     * is created when the first message is delayed; its threads exit
+     * when they are idle.</p>
+     *
+     * @param executor the executor that publishes the delayed messages
+     */
+    public void setExecutor(Executor executor)
+    {
+        _executor = executor;
+    }
+
+    public void addRule(Rule rule)
+    {
+        _rules.add(rule);
+    }
+
+    public boolean removeRule(Rule rule)
+    {
+        return _rules.remove(rule);
+    }
+
+    public List<Rule> getRules()
+    {
+        return _rules;
+    }
+
+    @Override
+    public boolean rcv(ServerSession from, ServerMessage.Mutable message)
+    {
+        if (from == null || from.isLocalSession())
+            return true;
+        if (_rules.isEmpty())
+            return true;
+
+        ChannelId channelId = channelIdOf(message.getChannel());
+        long now = System.nanoTime();
+        for (Rule rule : _rules)
+        {
+            if (!rule.matches(channelId))
+                continue;
+
+            AtomicLong bucket = rule.isPerSession() ? sessionBucket(from, rule) : rule._bucket;
+            long delay = rule.acquire(bucket, now);
+            if (delay == 0)
+                continue;
+
+            if (delay > 0)
+                return delay(from, message, rule, delay);
+            return reject(from, message, rule);
+        }
+        return true;
+    }
+
+    protected boolean reject(ServerSession session, ServerMessage.Mutable message, Rule rule)
+    {
+        if (logger.isDebugEnabled())
+            logger.debug("Rejecting {} from {} by {}", message, session, rule);
+        ServerMessage.Mutable reply = message.getAssociated();
+        if (reply != null)
+        {
+            reply.put(Message.ERROR_FIELD, "429::rate limited");
+            reply.setSuccessful(false);
+        }
+        return false;
+    }
+
+    protected boolean delay(ServerSession session, ServerMessage.Mutable message, Rule rule, long delay)
+    {
+        if (logger.isDebugEnabled())
+            logger.debug("Delaying by {} ns {} from {} by {}", delay, message, session, rule);
+        _bayeux.deferPublish(message, Math.max(1, TimeUnit.NANOSECONDS.toMillis(delay)), getExecutor());
+        return true;
+    }
+
+    private Executor newExecutor()
+    {
+        int threads = Runtime.getRuntime().availableProcessors();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+        {
+            private final AtomicInteger ids = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable task)
+            {
+                Thread thread = new Thread(task, "RateLimitExtension-" + ids.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private ChannelId channelIdOf(String channel)
+    {
+        // Use the cached ChannelId of existing channels.
+        ServerChannel serverChannel = _bayeux.getChannel(channel);
+        return serverChannel != null ? serverChannel.getChannelId() : new ChannelId(channel);
+    }
+
+    private AtomicLong sessionBucket(ServerSession session, Rule rule)
+    {
+        @SuppressWarnings("unchecked")
+        ConcurrentMap<Rule, AtomicLong> buckets = (ConcurrentMap<Rule, AtomicLong>)session.getAttribute(_attribute);
+        if (buckets == null)
+        {
+            // Only the first message of a session creates its buckets.
+            synchronized (((ServerSessionImpl)session).getLock())
+            {
+                buckets = (ConcurrentMap<Rule, AtomicLong>)session.getAttribute(_attribute);
+                if (buckets == null)
+                {
+                    buckets = new ConcurrentHashMap<>();
+                    session.setAttribute(_attribute, buckets);
+                }
+            }
+        }
+        AtomicLong bucket = buckets.get(rule);
+        if (bucket == null)
+        {
+            bucket = rule.newBucket();
+            AtomicLong existing = buckets.putIfAbsent(rule, bucket);
+            if (existing != null)
+                bucket = existing;
+        }
+        return bucket;
+    }
+
+    /**
+     * <p>The policy applied to the messages that exceed the rate of a {@link Rule}.</p>
+     */
+    public enum Policy
+    {
+        /**
+         * <p>Messages are deleted, and the publisher receives an error reply.</p>
+         */
+        REJECT,
+        /**
+         * <p>Messages are delayed until the rate allows them, up to the max delay
+         * of the rule; messages that would be delayed more are rejected.</p>
+         */
+        DELAY
+    }
+
+    /**
+     * <p>A token bucket that limits the rate of the messages published to
+     * the channels that match a channel pattern, such as {@code /chat/**}.</p>
+     * <p>The bucket is implemented with the generic cell rate algorithm:
+     * its whole state is the theoretical arrival time of the next message,
+     * updated with a compare-and-set.</p>
+     */
+    public static class Rule
+    {
+        private final long _origin = System.nanoTime();
+        private final AtomicLong _bucket = newBucket();
+        private final ChannelId _pattern;
+        private final long _interval;
+        private final long _tolerance;
+        private volatile boolean _perSession = true;
+        private volatile Policy _policy = Policy.REJECT;
+        private volatile long _maxDelay = TimeUnit.SECONDS.toNanos(1);
+
+        /**
+         * @param channelPattern    the channel, or wild channel pattern, to limit
+         * @param messagesPerSecond the sustained rate of messages
+         * @param burst             the number of messages that may be published at once
+         */
+        public Rule(String channelPattern, double messagesPerSecond, int burst)
+        {
+            if (messagesPerSecond <= 0)
+                throw new IllegalArgumentException("Invalid rate " + messagesPerSecond);
+            if (burst < 1)
+                throw new IllegalArgumentException("Invalid burst " + burst);
+            _pattern = new ChannelId(channelPattern);
+            _interval = Math.max(1, (long)(TimeUnit.SECONDS.toNanos(1) / messagesPerSecond));
+            _tolerance = _interval * (burst - 1);
+        }
+
+        public ChannelId getChannelPattern()
+        {
+            return _pattern;
+        }
+
+        /**
+         * @return whether each session has its own bucket, or all sessions share one bucket
+         */
+        public boolean isPerSession()
+        {
+            return _perSession;
+        }
+
+        public void setPerSession(boolean perSession)
+        {
+            _perSession = perSession;
+        }
+
+        public Policy getPolicy()
+        {
+            return _policy;
+        }
+
+        public void setPolicy(Policy policy)
+        {
+            _policy = policy;
+        }
+
+        /**
+         * @return the max delay, in milliseconds, of messages when the policy is {@link Policy#DELAY}
+         */
+        public long getMaxDelay()
+        {
+            return TimeUnit.NANOSECONDS.toMillis(_maxDelay);
+        }
+
+        public void setMaxDelay(long maxDelay)
+        {
+            _maxDelay = TimeUnit.MILLISECONDS.toNanos(maxDelay);
+        }
+
+        private boolean matches(ChannelId channelId)
+        {
+            return _pattern.equals(channelId) || _pattern.matches(channelId);
+        }
+
+        private AtomicLong newBucket()
+        {
+            return new AtomicLong();
+        }
+
+        /**
+         * @param bucket the bucket state
+         * @param nanoTime the current {@link System#nanoTime()}
+         * @return 0 if the message is allowed, a positive delay in nanoseconds
+         * if the message is allowed after the delay, or -1 if the message is rejected
+         */
+        private long acquire(AtomicLong bucket, long nanoTime)
+        {
+            // Relative to the origin, so that times are positive.
+            long now = nanoTime - _origin;
+            while (true)
+            {
+                long arrival = bucket.get();
+                long delay = arrival - _tolerance - now;
+                long next;
+                if (delay <= 0)
+                {
+                    delay = 0;
+                    next = Math.max(arrival, now) + _interval;
+                }
+                else
+                {
+                    if (_policy != Policy.DELAY || delay > _maxDelay)
+                        return -1;
+                    // Reserve the slot of the delayed message.
+                    next = arrival + _interval;
+                }
+                if (bucket.compareAndSet(arrival, next))
+                    return delay;
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%s@%x[%s,interval=%dns,burst=%d,%s,%s]",
+                    getClass().getSimpleName(),
+                    hashCode(),
+                    _pattern,
+                    _interval,
+                    _tolerance / _interval + 1,
+                    _perSession ? "session" : "shared",
+                    _policy);
+        }
+    }
+}
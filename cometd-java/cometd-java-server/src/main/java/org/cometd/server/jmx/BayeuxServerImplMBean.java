@@ -16,11 +16,13 @@
 package org.cometd.server.jmx;
 
 import org.cometd.bayeux.server.ServerChannel;
+import org.cometd.server.BayeuxMetrics;
 import org.cometd.server.BayeuxServerImpl;
 import org.eclipse.jetty.jmx.ObjectMBean;
 import org.eclipse.jetty.util.annotation.ManagedAttribute;
 import org.eclipse.jetty.util.annotation.ManagedObject;
 
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -57,6 +59,20 @@ public class BayeuxServerImplMBean extends ObjectMBean
         return new TreeSet<>(bayeux.getKnownTransportNames());
     }
 
+    @ManagedAttribute(value = "The metrics of this server, if enabled", readonly = true)
+    public Map<String, Object> getMetrics()
+    {
+        BayeuxMetrics metrics = bayeux.getMetrics();
+        return metrics == null ? null : metrics.snapshot();
+    }
+
+    @ManagedAttribute(value = "The number of messages published to each channel, if metrics are enabled", readonly = true)
+    public Map<String, Long> getChannelPublishes()
+    {
+        BayeuxMetrics metrics = bayeux.getMetrics();
+        return metrics == null ? null : metrics.getChannelPublishes();
+    }
+
     // Replicated here because ConcurrentMap.KeySet is not serializable
     @ManagedAttribute(value = "The configuration option names", readonly = true)
     public Set<String> getOptionNames()
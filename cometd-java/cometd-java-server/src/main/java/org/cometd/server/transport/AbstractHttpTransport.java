@@ -22,6 +22,7 @@ import org.cometd.bayeux.server.ServerMessage;
 import org.cometd.bayeux.server.ServerSession;
 import org.cometd.server.AbstractServerTransport;
 import org.cometd.server.BayeuxServerImpl;
+import org.cometd.server.ServerMessageImpl;
 import org.cometd.server.ServerSessionImpl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,8 +33,10 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.security.Principal;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
@@ -60,6 +63,9 @@ public abstract class AbstractHttpTransport extends AbstractServerTransport
     public final static String MULTI_SESSION_INTERVAL_OPTION = "multiSessionInterval";
     public final static String AUTOBATCH_OPTION = "autoBatch";
     public final static String ALLOW_MULTI_SESSIONS_NO_BROWSER_OPTION = "allowMultiSessionsNoBrowser";
+    public final static String MULTIPLEXED_OPTION = "multiplexed";
+    public final static String MULTIPLEXED_SESSIONS_OPTION = "multiplexedSessions";
+    private static final String MULTI_SESSION_ATTRIBUTE = "org.cometd.multiSession";
 
     protected final Logger _logger = LoggerFactory.getLogger(getClass());
     private final ThreadLocal<HttpServletRequest> _currentRequest = new ThreadLocal<>();
@@ -74,6 +80,8 @@ public abstract class AbstractHttpTransport extends AbstractServerTransport
     private long _multiSessionInterval;
     private boolean _autoBatch;
     private boolean _allowMultiSessionsNoBrowser;
+    private boolean _multiplexed;
+    private boolean _multiplexedSessions;
     private long _lastSweep;
 
     protected AbstractHttpTransport(BayeuxServerImpl bayeux, String name)
@@ -95,6 +103,8 @@ public abstract class AbstractHttpTransport extends AbstractServerTransport
         _multiSessionInterval = getOption(MULTI_SESSION_INTERVAL_OPTION, 2000);
         _autoBatch = getOption(AUTOBATCH_OPTION, true);
         _allowMultiSessionsNoBrowser = getOption(ALLOW_MULTI_SESSIONS_NO_BROWSER_OPTION, false);
+        _multiplexed = getOption(MULTIPLEXED_OPTION, false);
+        _multiplexedSessions = getOption(MULTIPLEXED_SESSIONS_OPTION, false);
     }
 
     protected long getMultiSessionInterval()
@@ -112,6 +122,35 @@ public abstract class AbstractHttpTransport extends AbstractServerTransport
         return _allowMultiSessionsNoBrowser;
     }
 
+    /**
+     * <p>Returns whether the given request is carried by a connection that multiplexes
+     * concurrent requests, so that there is no per-host connection limit that
+     * concurrent long polls from the same browser may exhaust.</p>
+     * <p>Multiplexed requests do not need the browser cookie, and their
+     * {@code /meta/connect} requests are always held, regardless of the
+     * {@link #MAX_SESSIONS_PER_BROWSER_OPTION max sessions per browser}.</p>
+     *
+     * @param request the HTTP request
+     * @return true if the {@link #MULTIPLEXED_OPTION multiplexed option} is enabled,
+     * or if the request protocol is HTTP/2
+     */
+    protected boolean isMultiplexed(HttpServletRequest request)
+    {
+        if (_multiplexed)
+            return true;
+        String protocol = request.getProtocol();
+        return protocol != null && protocol.startsWith("HTTP/2");
+    }
+
+    /**
+     * @return whether requests may carry the messages of multiple sessions
+     * @see #processMultiSessionMessages(HttpServletRequest, HttpServletResponse, ServerMessage.Mutable[])
+     */
+    protected boolean isMultiplexedSessions()
+    {
+        return _multiplexedSessions;
+    }
+
     public void setCurrentRequest(HttpServletRequest request)
     {
         _currentRequest.set(request);
@@ -132,6 +171,12 @@ public abstract class AbstractHttpTransport extends AbstractServerTransport
 
     protected void processMessages(HttpServletRequest request, HttpServletResponse response, ServerMessage.Mutable[] messages) throws IOException
     {
+        if (isMultiplexedSessions() && isMultiSession(messages))
+        {
+            processMultiSessionMessages(request, response, messages);
+            return;
+        }
+
         boolean autoBatch = isAutoBatch();
         ServerSessionImpl session = null;
         boolean batch = false;
@@ -211,13 +256,125 @@ public abstract class AbstractHttpTransport extends AbstractServerTransport
         }
     }
 
+    private boolean isMultiSession(ServerMessage.Mutable[] messages)
+    {
+        String clientId = null;
+        for (int i = 0; i < messages.length; ++i)
+        {
+            ServerMessage.Mutable message = messages[i];
+            // Only multi-session requests may carry a handshake along with other messages.
+            if (Channel.META_HANDSHAKE.equals(message.getChannel()))
+                return messages.length > 1;
+            String messageClientId = message.getClientId();
+            if (i == 0)
+                clientId = messageClientId;
+            else if (clientId == null ? messageClientId != null : !clientId.equals(messageClientId))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * <p>Processes the messages of a request that carries the messages of multiple
+     * sessions, typically sent by a gateway that multiplexes many clients on few
+     * connections.</p>
+     * <p>Each message is processed with the session of its {@code clientId}.
+     * The {@code /meta/connect} messages of all the sessions are held together,
+     * and the request is resumed as soon as any of the sessions has messages
+     * to deliver, or when the shortest timeout expires.</p>
+     * <p>The response carries, for each session, its {@code /meta/connect} reply
+     * followed by the messages delivered to that session, so that the client can
+     * demultiplex the messages; the other replies follow.</p>
+     *
+     * @param request  the HTTP request
+     * @param response the HTTP response
+     * @param messages the messages of multiple sessions
+     * @throws IOException if the processing fails
+     */
+    protected void processMultiSessionMessages(HttpServletRequest request, HttpServletResponse response, ServerMessage.Mutable[] messages) throws IOException
+    {
+        boolean autoBatch = isAutoBatch();
+        List<ServerSessionImpl> batched = new ArrayList<>();
+        MultiSessionConnect connect = new MultiSessionConnect(request, response, messages);
+        boolean hold = true;
+        long timeout = Long.MAX_VALUE;
+        try
+        {
+            for (int i = 0; i < messages.length; ++i)
+            {
+                ServerMessage.Mutable message = messages[i];
+                if (_logger.isDebugEnabled())
+                    _logger.debug("Processing multi-session {}", message);
+
+                ServerSessionImpl session = (ServerSessionImpl)getBayeux().getSession(message.getClientId());
+                if (session != null && !session.isHandshook())
+                    session = null;
+                if (session != null && autoBatch && !batched.contains(session))
+                {
+                    batched.add(session);
+                    session.startBatch();
+                }
+
+                switch (message.getChannel())
+                {
+                    case Channel.META_HANDSHAKE:
+                    {
+                        ServerMessage.Mutable reply = bayeuxServerHandle(session, message);
+                        if (reply != null)
+                            session = (ServerSessionImpl)getBayeux().getSession(reply.getClientId());
+                        messages[i] = processReply(session, reply);
+                        break;
+                    }
+                    case Channel.META_CONNECT:
+                    {
+                        if (session != null)
+                            session.setScheduler(null);
+                        boolean wasConnected = session != null && session.isConnected();
+                        ServerMessage.Mutable reply = bayeuxServerHandle(session, message);
+                        if (reply != null && session != null)
+                        {
+                            long sessionTimeout = session.calculateTimeout(getTimeout());
+                            // Support old clients that do not send advice:{timeout:0} on the first connect.
+                            hold &= reply.isSuccessful() && !session.hasNonLazyMessages() &&
+                                    sessionTimeout > 0 && wasConnected && session.isConnected();
+                            timeout = Math.min(timeout, sessionTimeout);
+                            connect.add(session, reply);
+                            messages[i] = null;
+                        }
+                        else
+                        {
+                            messages[i] = processReply(session, reply);
+                        }
+                        break;
+                    }
+                    default:
+                    {
+                        ServerMessage.Mutable reply = bayeuxServerHandle(session, message);
+                        messages[i] = processReply(session, reply);
+                        break;
+                    }
+                }
+            }
+
+            if (hold && !connect.isEmpty())
+                connect.suspend(timeout);
+            else
+                connect.flush(null, false);
+        }
+        finally
+        {
+            for (ServerSessionImpl session : batched)
+                session.endBatch();
+        }
+    }
+
     protected ServerMessage.Mutable processMetaHandshake(HttpServletRequest request, HttpServletResponse response, ServerSessionImpl session, ServerMessage.Mutable message)
     {
         ServerMessage.Mutable reply = bayeuxServerHandle(session, message);
         if (reply != null)
         {
             session = (ServerSessionImpl)getBayeux().getSession(reply.getClientId());
-            if (session != null)
+            if (session != null && !isMultiplexed(request))
             {
                 String browserId = findBrowserId(request);
                 if (browserId == null)
@@ -245,9 +402,13 @@ public abstract class AbstractHttpTransport extends AbstractServerTransport
                 // Detect if we have multiple sessions from the same browser
                 // Note that CORS requests do not send cookies, so we need to handle them specially
                 // CORS requests always have the Origin header
-                String browserId = findBrowserId(request);
+                // Multiplexed requests do not count against the browser connection limit
+                boolean multiplexed = isMultiplexed(request);
+                String browserId = multiplexed ? null : findBrowserId(request);
                 boolean allowSuspendConnect;
-                if (browserId != null)
+                if (multiplexed)
+                    allowSuspendConnect = true;
+                else if (browserId != null)
                     allowSuspendConnect = incBrowserId(browserId, session);
                 else
                     allowSuspendConnect = isAllowMultiSessionsNoBrowser() || request.getHeader("Origin") != null;
@@ -317,6 +478,22 @@ public abstract class AbstractHttpTransport extends AbstractServerTransport
         return reply;
     }
 
+    /**
+     * <p>Writes the UTF-8 bytes of the JSON representation of the given message,
+     * reusing the bytes that frozen messages encode only once for all recipients.</p>
+     *
+     * @param output  the stream to write to
+     * @param message the message to write
+     * @throws IOException if the write fails
+     */
+    protected void writeJSON(OutputStream output, ServerMessage message) throws IOException
+    {
+        if (message instanceof ServerMessageImpl)
+            ((ServerMessageImpl)message).writeJSON(output);
+        else
+            output.write(message.getJSON().getBytes("UTF-8"));
+    }
+
     protected void flush(HttpServletRequest request, HttpServletResponse response, ServerSessionImpl session, boolean sendQueue, boolean startInterval, ServerMessage.Mutable... replies)
     {
         List<ServerMessage> messages = Collections.emptyList();
@@ -332,6 +509,17 @@ public abstract class AbstractHttpTransport extends AbstractServerTransport
 
     protected void resume(HttpServletRequest request, HttpServletResponse response, AsyncContext asyncContext, ServerSessionImpl session, ServerMessage.Mutable reply)
     {
+        if (session == null)
+        {
+            // A held multi-session /meta/connect has no session of its own.
+            MultiSessionConnect connect = (MultiSessionConnect)request.getAttribute(MULTI_SESSION_ATTRIBUTE);
+            if (connect != null)
+            {
+                connect.flush(asyncContext, true);
+                return;
+            }
+        }
+
         metaConnectResumed(request, response, asyncContext, session);
         Map<String, Object> advice = session.takeAdvice(this);
         if (advice != null)
@@ -757,7 +945,8 @@ public abstract class AbstractHttpTransport extends AbstractServerTransport
         {
             if (cancelTimeout())
             {
-                session.setScheduler(null);
+                if (session != null)
+                    session.setScheduler(null);
                 if (_logger.isDebugEnabled())
                     _logger.debug("Resuming /meta/connect after timeout");
                 resume();
@@ -799,4 +988,146 @@ public abstract class AbstractHttpTransport extends AbstractServerTransport
             AbstractHttpTransport.this.error(getRequest(), getResponse(), getAsyncContext(), code);
         }
     }
+
+    /**
+     * <p>The {@code /meta/connect} messages of the sessions of a multi-session request,
+     * that are replied together when any of the sessions has messages to deliver.</p>
+     */
+    protected class MultiSessionConnect
+    {
+        private final List<SessionScheduler> _schedulers = new ArrayList<>();
+        private final HttpServletRequest _request;
+        private final HttpServletResponse _response;
+        private final ServerMessage.Mutable[] _replies;
+        private HttpScheduler _scheduler;
+        private boolean _resumed;
+
+        protected MultiSessionConnect(HttpServletRequest request, HttpServletResponse response, ServerMessage.Mutable[] replies)
+        {
+            _request = request;
+            _response = response;
+            _replies = replies;
+        }
+
+        private void add(ServerSessionImpl session, ServerMessage.Mutable reply)
+        {
+            _schedulers.add(new SessionScheduler(session, reply));
+        }
+
+        private boolean isEmpty()
+        {
+            return _schedulers.isEmpty();
+        }
+
+        private void suspend(long timeout)
+        {
+            _request.setAttribute(MULTI_SESSION_ATTRIBUTE, this);
+            // No session owns the held request, it is resumed via resume().
+            _scheduler = AbstractHttpTransport.this.suspend(_request, _response, null, null, null, timeout);
+            for (SessionScheduler scheduler : _schedulers)
+            {
+                ServerSessionImpl session = scheduler._session;
+                metaConnectSuspended(_request, _response, _scheduler.getAsyncContext(), session);
+                // Setting the scheduler may resume the /meta/connect.
+                session.setScheduler(scheduler);
+                if (isResumed())
+                    session.cancelSchedule(scheduler);
+            }
+        }
+
+        private synchronized boolean isResumed()
+        {
+            return _resumed;
+        }
+
+        private void flush(AsyncContext asyncContext, boolean resumed)
+        {
+            List<SessionScheduler> schedulers;
+            synchronized (this)
+            {
+                _resumed = true;
+                schedulers = new ArrayList<>(_schedulers);
+            }
+
+            List<ServerMessage> messages = new ArrayList<>();
+            for (SessionScheduler scheduler : schedulers)
+            {
+                ServerSessionImpl session = scheduler._session;
+                ServerMessage.Mutable reply = scheduler._reply;
+                if (resumed)
+                {
+                    session.cancelSchedule(scheduler);
+                    metaConnectResumed(_request, _response, asyncContext, session);
+                    Map<String, Object> advice = session.takeAdvice(AbstractHttpTransport.this);
+                    if (advice != null)
+                        reply.put(Message.ADVICE_FIELD, advice);
+                }
+                if (session.isDisconnected())
+                    reply.getAdvice(true).put(Message.RECONNECT_FIELD, Message.RECONNECT_NONE_VALUE);
+                reply = processReply(session, reply);
+                // Without the reply, the client cannot demultiplex the
+                // messages, so they stay in the queue for the next connect.
+                if (reply == null)
+                    continue;
+                messages.add(reply);
+                messages.addAll(session.takeQueue());
+                if (session.isConnected())
+                    session.startIntervalTimeout(getInterval());
+            }
+
+            write(_request, _response, null, false, messages, _replies);
+        }
+
+        private synchronized void cancel(SessionScheduler scheduler)
+        {
+            if (_resumed)
+                return;
+            // The session sent another /meta/connect.
+            _schedulers.remove(scheduler);
+            if (_schedulers.isEmpty() && _scheduler != null)
+                _scheduler.cancel();
+        }
+
+        private class SessionScheduler implements HttpScheduler
+        {
+            private final ServerSessionImpl _session;
+            private final ServerMessage.Mutable _reply;
+
+            private SessionScheduler(ServerSessionImpl session, ServerMessage.Mutable reply)
+            {
+                _session = session;
+                _reply = reply;
+            }
+
+            @Override
+            public HttpServletRequest getRequest()
+            {
+                return _request;
+            }
+
+            @Override
+            public HttpServletResponse getResponse()
+            {
+                return _response;
+            }
+
+            @Override
+            public AsyncContext getAsyncContext()
+            {
+                return _scheduler.getAsyncContext();
+            }
+
+            @Override
+            public void schedule()
+            {
+                _scheduler.schedule();
+            }
+
+            @Override
+            public void cancel()
+            {
+                MultiSessionConnect.this.cancel(this);
+            }
+        }
+    }
 }
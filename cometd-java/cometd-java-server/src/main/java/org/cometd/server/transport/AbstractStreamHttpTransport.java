@@ -175,7 +175,11 @@ public abstract class AbstractStreamHttpTransport extends AbstractHttpTransport
 
     protected void writeMessage(HttpServletResponse response, ServletOutputStream output, ServerSessionImpl session, ServerMessage message) throws IOException
     {
-        output.write(message.getJSON().getBytes(response.getCharacterEncoding()));
+        String encoding = response.getCharacterEncoding();
+        if ("UTF-8".equalsIgnoreCase(encoding))
+            writeJSON(output, message);
+        else
+            output.write(message.getJSON().getBytes(encoding));
     }
 
     protected abstract ServletOutputStream beginWrite(HttpServletRequest request, HttpServletResponse response) throws IOException;
@@ -16,6 +16,8 @@
 package org.cometd.server.transport;
 
 import org.cometd.bayeux.server.ServerMessage;
+import org.cometd.common.JSONContext;
+import org.cometd.server.BayeuxMetrics;
 import org.cometd.server.BayeuxServerImpl;
 import org.cometd.server.ServerSessionImpl;
 import org.eclipse.jetty.util.Utf8StringBuilder;
@@ -27,6 +29,7 @@ import java.io.IOException;
 import java.nio.charset.Charset;
 import java.text.ParseException;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public class AsyncJSONTransport extends AbstractHttpTransport
 {
@@ -35,10 +38,15 @@ public class AsyncJSONTransport extends AbstractHttpTransport
 
     public AsyncJSONTransport(BayeuxServerImpl bayeux)
     {
-        super(bayeux, NAME);
+        this(bayeux, NAME);
         setOptionPrefix(PREFIX);
     }
 
+    protected AsyncJSONTransport(BayeuxServerImpl bayeux, String name)
+    {
+        super(bayeux, name);
+    }
+
     @Override
     public boolean accept(HttpServletRequest request)
     {
@@ -57,8 +65,17 @@ public class AsyncJSONTransport extends AbstractHttpTransport
         // that the timeout fires in case of slow reads.
         asyncContext.setTimeout(0);
         Charset charset = Charset.forName(encoding);
-        ReadListener reader = "UTF-8".equals(charset.name()) ? new UTF8Reader(request, response, asyncContext) :
-                new CharsetReader(request, response, asyncContext, charset);
+        ReadListener reader;
+        if ("UTF-8".equals(charset.name()))
+        {
+            JSONContext.StreamingParser<ServerMessage.Mutable> parser = newStreamingParser();
+            reader = parser == null ? new UTF8Reader(request, response, asyncContext) :
+                    new StreamingReader(request, response, asyncContext, parser);
+        }
+        else
+        {
+            reader = new CharsetReader(request, response, asyncContext, charset);
+        }
         ServletInputStream input = request.getInputStream();
         input.setReadListener(reader);
     }
@@ -98,8 +115,8 @@ public class AsyncJSONTransport extends AbstractHttpTransport
         protected static final int CAPACITY = 512;
 
         private final byte[] buffer = new byte[CAPACITY];
-        private final HttpServletRequest request;
-        private final HttpServletResponse response;
+        protected final HttpServletRequest request;
+        protected final HttpServletResponse response;
         protected final AsyncContext asyncContext;
 
         protected AbstractReader(HttpServletRequest request, HttpServletResponse response, AsyncContext asyncContext)
@@ -150,13 +167,7 @@ public class AsyncJSONTransport extends AbstractHttpTransport
             setCurrentRequest(request);
             try
             {
-                ServerMessage.Mutable[] messages = parseMessages(json);
-                if (_logger.isDebugEnabled())
-                    _logger.debug("Parsed {} messages", messages == null ? -1 : messages.length);
-                if (messages != null)
-                    processMessages(request, response, messages);
-                else
-                    asyncContext.complete();
+                process(parseMessages(json));
             }
             catch (ParseException x)
             {
@@ -170,6 +181,16 @@ public class AsyncJSONTransport extends AbstractHttpTransport
             }
         }
 
+        protected void process(ServerMessage.Mutable[] messages) throws IOException
+        {
+            if (_logger.isDebugEnabled())
+                _logger.debug("Parsed {} messages", messages == null ? -1 : messages.length);
+            if (messages != null)
+                processMessages(request, response, messages);
+            else
+                asyncContext.complete();
+        }
+
         @Override
         public void onError(Throwable throwable)
         {
@@ -177,6 +198,92 @@ public class AsyncJSONTransport extends AbstractHttpTransport
         }
     }
 
+    /**
+     * <p>Parses the messages while the request content is read,
+     * without accumulating the request content.</p>
+     */
+    protected class StreamingReader extends AbstractReader
+    {
+        private final JSONContext.StreamingParser<ServerMessage.Mutable> parser;
+        private final BayeuxMetrics metrics;
+        private ParseException failure;
+        // The parse time is accumulated over the chunks of content,
+        // excluding the time spent waiting for the content to arrive.
+        private long parseTime;
+
+        protected StreamingReader(HttpServletRequest request, HttpServletResponse response, AsyncContext asyncContext, JSONContext.StreamingParser<ServerMessage.Mutable> parser)
+        {
+            super(request, response, asyncContext);
+            this.parser = parser;
+            this.metrics = getBayeux().getMetrics();
+        }
+
+        @Override
+        protected void append(byte[] buffer, int offset, int length)
+        {
+            // After a failure, the rest of the content is just consumed.
+            if (failure != null)
+                return;
+            long begin = metrics == null ? 0 : System.nanoTime();
+            try
+            {
+                parser.parse(buffer, offset, length);
+            }
+            catch (ParseException x)
+            {
+                failure = x;
+            }
+            finally
+            {
+                if (metrics != null)
+                    parseTime += System.nanoTime() - begin;
+            }
+        }
+
+        private ServerMessage.Mutable[] completeParse() throws ParseException
+        {
+            if (metrics == null)
+                return parser.complete();
+            long begin = System.nanoTime();
+            ServerMessage.Mutable[] messages = parser.complete();
+            parseTime += System.nanoTime() - begin;
+            metrics.getParseTime().record(TimeUnit.NANOSECONDS.toMicros(parseTime));
+            return messages;
+        }
+
+        @Override
+        protected String finish()
+        {
+            return null;
+        }
+
+        @Override
+        public void onAllDataRead() throws IOException
+        {
+            if (_logger.isDebugEnabled())
+                _logger.debug("Asynchronous read end from {}", request.getInputStream());
+            getBayeux().setCurrentTransport(AsyncJSONTransport.this);
+            setCurrentRequest(request);
+            try
+            {
+                if (failure != null)
+                    throw failure;
+                process(completeParse());
+            }
+            catch (ParseException x)
+            {
+                // The JSON text is not retained, only the failure is reported.
+                handleJSONParseException(request, response, null, x);
+                asyncContext.complete();
+            }
+            finally
+            {
+                setCurrentRequest(null);
+                getBayeux().setCurrentTransport(null);
+            }
+        }
+    }
+
     protected class UTF8Reader extends AbstractReader
     {
         private final Utf8StringBuilder content = new Utf8StringBuilder(CAPACITY);
@@ -242,7 +349,6 @@ public class AsyncJSONTransport extends AbstractHttpTransport
 
     protected class Writer implements WriteListener
     {
-        private final StringBuilder buffer = new StringBuilder(512);
         private final HttpServletRequest request;
         private final HttpServletResponse response;
         private final AsyncContext asyncContext;
@@ -250,8 +356,12 @@ public class AsyncJSONTransport extends AbstractHttpTransport
         private final boolean startInterval;
         private final List<ServerMessage> messages;
         private final ServerMessage.Mutable[] replies;
+        private long pendingBytes;
         private int messageIndex = -1;
         private int replyIndex;
+        private boolean needsComma;
+        private boolean separated;
+        private boolean closed;
 
         protected Writer(HttpServletRequest request, HttpServletResponse response, AsyncContext asyncContext, ServerSessionImpl session, boolean startInterval, List<ServerMessage> messages, ServerMessage.Mutable[] replies)
         {
@@ -262,6 +372,11 @@ public class AsyncJSONTransport extends AbstractHttpTransport
             this.startInterval = startInterval;
             this.messages = messages;
             this.replies = replies;
+            // Account the messages in the session budgets until they
+            // are written, so that a stalled client cannot make the
+            // server buffer an unbounded amount of messages.
+            if (session != null)
+                this.pendingBytes = session.writePending(messages);
         }
 
         @Override
@@ -278,9 +393,18 @@ public class AsyncJSONTransport extends AbstractHttpTransport
             if (!writeReplies(output))
                 return;
 
+            writeComplete();
             asyncContext.complete();
         }
 
+        private void writeComplete()
+        {
+            long bytes = pendingBytes;
+            pendingBytes = 0;
+            if (bytes > 0)
+                session.writeComplete(bytes);
+        }
+
         private boolean writeMessages(ServletOutputStream output) throws IOException
         {
             try
@@ -288,19 +412,20 @@ public class AsyncJSONTransport extends AbstractHttpTransport
                 if (messageIndex < 0)
                 {
                     messageIndex = 0;
-                    buffer.append("[");
+                    output.write('[');
+                    if (!output.isReady())
+                        return false;
                 }
 
                 if (_logger.isDebugEnabled())
                     _logger.debug("Messages to write for session {}: {}", session, messages.size());
                 while (messageIndex < messages.size())
                 {
-                    if (messageIndex > 0)
-                        buffer.append(",");
-
-                    buffer.append(messages.get(messageIndex++).getJSON());
-                    output.write(buffer.toString().getBytes("UTF-8"));
-                    buffer.setLength(0);
+                    if (!writeSeparator(output))
+                        return false;
+                    // Frozen messages are written from their shared UTF-8 bytes,
+                    // so they are not encoded again for every recipient.
+                    writeJSON(output, messages.get(messageIndex++));
                     if (!output.isReady())
                         return false;
                 }
@@ -318,33 +443,58 @@ public class AsyncJSONTransport extends AbstractHttpTransport
 
         private boolean writeReplies(ServletOutputStream output) throws IOException
         {
-            boolean needsComma = messageIndex > 0;
             while (replyIndex < replies.length)
             {
-                ServerMessage.Mutable reply = replies[replyIndex++];
+                ServerMessage.Mutable reply = replies[replyIndex];
                 if (reply == null)
+                {
+                    ++replyIndex;
                     continue;
+                }
 
-                if (needsComma)
-                    buffer.append(",");
-                needsComma = true;
-
-                buffer.append(reply.getJSON());
-
-                if (replyIndex == replies.length)
-                    buffer.append("]");
+                if (!writeSeparator(output))
+                    return false;
+                ++replyIndex;
+                writeJSON(output, reply);
+                if (!output.isReady())
+                    return false;
+            }
 
-                output.write(buffer.toString().getBytes("UTF-8"));
-                buffer.setLength(0);
+            if (!closed)
+            {
+                closed = true;
+                output.write(']');
                 if (!output.isReady())
                     return false;
             }
             return true;
         }
 
+        private boolean writeSeparator(ServletOutputStream output) throws IOException
+        {
+            if (!needsComma)
+            {
+                needsComma = true;
+                return true;
+            }
+            if (separated)
+            {
+                // The comma has already been written, but
+                // the output was not ready to write the message.
+                separated = false;
+                return true;
+            }
+            output.write(',');
+            if (output.isReady())
+                return true;
+            separated = true;
+            return false;
+        }
+
         @Override
         public void onError(Throwable throwable)
         {
+            writeComplete();
             error(request, response, asyncContext, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
         }
     }
@@ -0,0 +1,466 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server.transport;
+
+import org.cometd.bayeux.Channel;
+import org.cometd.bayeux.Message;
+import org.cometd.bayeux.server.ServerMessage;
+import org.cometd.server.AbstractServerTransport;
+import org.cometd.server.BayeuxServerImpl;
+import org.cometd.server.ServerSessionImpl;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>A transport that streams messages to the client over a single,
+ * long-lived {@code text/event-stream} response, as specified by
+ * the Server-Sent Events specification.</p>
+ * <p>The client opens the stream with a {@code GET} request that carries
+ * its {@code /meta/connect} message in the {@code message} parameter; the
+ * reply to the {@code /meta/connect} is the first event of the stream, and
+ * the messages delivered to the session are written as further events,
+ * without completing the response.
+ * Every {@link #getTimeout() timeout} milliseconds the server writes another
+ * {@code /meta/connect} reply, that keeps the session connected and that
+ * carries the advices of the server.</p>
+ * <p>Messages other than {@code /meta/connect}, such as publishes, are sent
+ * by the client with normal {@code POST} requests handled by the long-polling
+ * transport, so that the stream is the only long-lived request.</p>
+ * <p>Each event is a JSON array of messages, as for the long-polling transport.</p>
+ * <p>This transport extends {@link AsyncJSONTransport} for its configuration and
+ * its message processing, but its requests are handled by
+ * {@link #handle(HttpServletRequest, HttpServletResponse)} and never suspended
+ * as long-polling {@code /meta/connect}s: the {@link EventStream} stays open instead.</p>
+ * <p>This transport is not installed by default; it must be added with
+ * {@link BayeuxServerImpl#addTransport(org.cometd.bayeux.server.ServerTransport)}
+ * or listed in the {@link BayeuxServerImpl#TRANSPORTS_OPTION} option.</p>
+ */
+public class EventSourceTransport extends AsyncJSONTransport
+{
+    public final static String PREFIX = "long-polling.event-source";
+    public final static String NAME = "event-source";
+    public final static String MIME_TYPE = "text/event-stream";
+
+    private final static byte[] EVENT_BEGIN = "data: [".getBytes(StandardCharsets.UTF_8);
+    private final static byte[] EVENT_END = "]\n\n".getBytes(StandardCharsets.UTF_8);
+    private final static String STREAM_ATTRIBUTE = EventSourceTransport.class.getName() + ".stream";
+
+    public EventSourceTransport(BayeuxServerImpl bayeux)
+    {
+        super(bayeux, NAME);
+        setOptionPrefix(PREFIX);
+    }
+
+    @Override
+    public boolean accept(HttpServletRequest request)
+    {
+        if (!"GET".equals(request.getMethod()))
+            return false;
+        String accept = request.getHeader("Accept");
+        return accept != null && accept.contains(MIME_TYPE);
+    }
+
+    @Override
+    public void handle(HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException
+    {
+        getBayeux().setCurrentTransport(this);
+        setCurrentRequest(request);
+        try
+        {
+            ServerMessage.Mutable[] messages = parseMessages(request.getParameter(MESSAGE_PARAM));
+            if (messages == null || messages.length != 1 || !Channel.META_CONNECT.equals(messages[0].getChannel()))
+            {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+                return;
+            }
+            process(request, response, messages[0]);
+        }
+        catch (ParseException x)
+        {
+            handleJSONParseException(request, response, x.getMessage(), x.getCause());
+        }
+        finally
+        {
+            setCurrentRequest(null);
+            getBayeux().setCurrentTransport(null);
+        }
+    }
+
+    protected void process(HttpServletRequest request, HttpServletResponse response, ServerMessage.Mutable message) throws IOException
+    {
+        ServerSessionImpl session = (ServerSessionImpl)getBayeux().getSession(message.getClientId());
+        // Close the previous stream of the session, if any.
+        if (session != null)
+            session.setScheduler(null);
+
+        ServerMessage.Mutable reply = bayeuxServerHandle(session, message);
+        if (reply == null)
+        {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        response.setContentType(MIME_TYPE + ";charset=UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+
+        if (session == null || !reply.isSuccessful() || session.isDisconnected())
+        {
+            if (session != null && session.isDisconnected())
+                reply.getAdvice(true).put(Message.RECONNECT_FIELD, Message.RECONNECT_NONE_VALUE);
+            ServletOutputStream output = response.getOutputStream();
+            writeEvent(output, Collections.<ServerMessage>emptyList(), processReply(session, reply));
+            output.flush();
+            return;
+        }
+
+        AsyncContext asyncContext = request.startAsync(request, response);
+        asyncContext.setTimeout(0);
+        EventStream stream = newEventStream(request, response, asyncContext, session);
+        stream.open(processReply(session, reply));
+    }
+
+    protected EventStream newEventStream(HttpServletRequest request, HttpServletResponse response, AsyncContext asyncContext, ServerSessionImpl session)
+    {
+        return new EventStream(request, response, asyncContext, session);
+    }
+
+    /**
+     * <p>Requests of this transport carry only the {@code /meta/connect}
+     * of a single session, so they are never multiplexed.</p>
+     *
+     * @return false
+     */
+    @Override
+    protected boolean isMultiplexedSessions()
+    {
+        return false;
+    }
+
+    @Override
+    protected void write(HttpServletRequest request, HttpServletResponse response, ServerSessionImpl session, boolean startInterval, List<ServerMessage> messages, ServerMessage.Mutable[] replies)
+    {
+        try
+        {
+            ServletOutputStream output = response.getOutputStream();
+            writeEvent(output, messages, replies);
+            output.flush();
+        }
+        catch (IOException x)
+        {
+            if (_logger.isDebugEnabled())
+                _logger.debug("Exception while writing messages", x);
+        }
+    }
+
+    protected void writeEvent(OutputStream output, List<ServerMessage> messages, ServerMessage.Mutable... replies) throws IOException
+    {
+        output.write(EVENT_BEGIN);
+        boolean needsComma = false;
+        for (int i = 0; i < messages.size(); ++i)
+        {
+            if (needsComma)
+                output.write(',');
+            needsComma = true;
+            writeJSON(output, messages.get(i));
+        }
+        for (ServerMessage.Mutable reply : replies)
+        {
+            if (reply == null)
+                continue;
+            if (needsComma)
+                output.write(',');
+            needsComma = true;
+            writeJSON(output, reply);
+        }
+        output.write(EVENT_END);
+    }
+
+    /**
+     * <p>The scheduler of a session that has an open stream.</p>
+     * <p>Events are written with asynchronous I/O by the thread that delivers
+     * the messages, so that it is never blocked by a slow client.
+     * Messages are taken from the session queue only when the stream is
+     * writable, so that while a slow client is not reading they stay in the
+     * session queue, where they are subject to its limits.</p>
+     */
+    protected class EventStream implements AbstractServerTransport.Scheduler, AsyncListener, WriteListener, Runnable
+    {
+        private final HttpServletRequest request;
+        private final HttpServletResponse response;
+        private final AsyncContext asyncContext;
+        private final ServerSessionImpl session;
+        private volatile org.eclipse.jetty.util.thread.Scheduler.Task task;
+        private volatile boolean closed;
+        private ServerMessage.Mutable reply;
+        private boolean metaConnectDeliveryOnly;
+        private boolean needsFlush;
+        private boolean closing;
+
+        protected EventStream(HttpServletRequest request, HttpServletResponse response, AsyncContext asyncContext, ServerSessionImpl session)
+        {
+            this.request = request;
+            this.response = response;
+            this.asyncContext = asyncContext;
+            this.session = session;
+            asyncContext.addListener(this);
+        }
+
+        public ServerSessionImpl getServerSession()
+        {
+            return session;
+        }
+
+        protected void open(ServerMessage.Mutable reply) throws IOException
+        {
+            synchronized (this)
+            {
+                this.reply = reply;
+            }
+            metaConnectSuspended(request, response, asyncContext, session);
+            // Writes start when the stream is writable.
+            response.getOutputStream().setWriteListener(this);
+            // The stream is the /meta/connect, so that the responses
+            // to the POSTs carry only replies, not messages.
+            synchronized (session.getLock())
+            {
+                // A stream that replaces another restores the value that was
+                // set before the first stream, when the last stream closes.
+                EventStream previous = (EventStream)session.getAttribute(STREAM_ATTRIBUTE);
+                metaConnectDeliveryOnly = previous == null ? session.isMetaConnectDeliveryOnly() : previous.metaConnectDeliveryOnly;
+                session.setAttribute(STREAM_ATTRIBUTE, this);
+                session.setMetaConnectDeliveryOnly(true);
+            }
+            // Setting the scheduler may write the queued messages.
+            session.setScheduler(this);
+            scheduleHeartbeat();
+        }
+
+        @Override
+        public void schedule()
+        {
+            synchronized (this)
+            {
+                if (closed || closing)
+                    return;
+                if (session.isDisconnected())
+                {
+                    // The session has been disconnected, reply to the /meta/connect and close.
+                    ServerMessage.Mutable reply = newMetaConnectReply();
+                    reply.getAdvice(true).put(Message.RECONNECT_FIELD, Message.RECONNECT_NONE_VALUE);
+                    this.reply = processReply(session, reply);
+                    closing = true;
+                }
+                write();
+            }
+        }
+
+        @Override
+        public void cancel()
+        {
+            close();
+        }
+
+        /**
+         * <p>Writes a {@code /meta/connect} reply, that keeps the session
+         * connected and carries the advices of the server.</p>
+         */
+        @Override
+        public void run()
+        {
+            synchronized (this)
+            {
+                if (closed || closing)
+                    return;
+                ServerMessage.Mutable reply = newMetaConnectReply();
+                Map<String, Object> advice = session.takeAdvice(EventSourceTransport.this);
+                if (advice != null)
+                    reply.put(Message.ADVICE_FIELD, advice);
+                if (session.isDisconnected())
+                {
+                    reply.getAdvice(true).put(Message.RECONNECT_FIELD, Message.RECONNECT_NONE_VALUE);
+                    closing = true;
+                }
+                else
+                {
+                    session.cancelIntervalTimeout();
+                }
+                // A heartbeat not yet written is superseded by this one.
+                this.reply = processReply(session, reply);
+                write();
+            }
+            scheduleHeartbeat();
+        }
+
+        private void scheduleHeartbeat()
+        {
+            if (!closed && !closing)
+                task = getBayeux().schedule(this, session.calculateTimeout(getTimeout()));
+        }
+
+        private ServerMessage.Mutable newMetaConnectReply()
+        {
+            ServerMessage.Mutable reply = getBayeux().newMessage();
+            reply.setChannel(Channel.META_CONNECT);
+            reply.setClientId(session.getId());
+            reply.setSuccessful(true);
+            return reply;
+        }
+
+        @Override
+        public void onWritePossible() throws IOException
+        {
+            synchronized (this)
+            {
+                write();
+            }
+        }
+
+        // Guarded by this.
+        private void write()
+        {
+            try
+            {
+                ServletOutputStream output = response.getOutputStream();
+                // When the stream is not ready, onWritePossible() is
+                // called when it becomes ready, and writes continue.
+                while (!closed && output.isReady())
+                {
+                    // After the closing reply, no more messages are written.
+                    List<ServerMessage> messages = closing && reply == null ?
+                            Collections.<ServerMessage>emptyList() : session.takeQueue();
+                    if (reply != null || !messages.isEmpty())
+                    {
+                        // Asynchronous writes must be checked with isReady()
+                        // one by one, so the event is written in one call.
+                        ByteArrayOutputStream event = new ByteArrayOutputStream();
+                        writeEvent(event, messages, reply);
+                        reply = null;
+                        output.write(event.toByteArray());
+                        needsFlush = true;
+                    }
+                    else if (needsFlush)
+                    {
+                        needsFlush = false;
+                        output.flush();
+                    }
+                    else
+                    {
+                        if (closing)
+                            close();
+                        break;
+                    }
+                }
+            }
+            catch (Throwable x)
+            {
+                onError(x);
+            }
+        }
+
+        @Override
+        public void onError(Throwable failure)
+        {
+            if (_logger.isDebugEnabled())
+                _logger.debug("Failure writing to stream of " + session, failure);
+            fail();
+        }
+
+        private void fail()
+        {
+            if (closed)
+                return;
+            close();
+            // The stream may have been replaced by a new one, detach only this stream.
+            session.cancelSchedule(this);
+            session.startIntervalTimeout(getInterval());
+        }
+
+        private void close()
+        {
+            synchronized (this)
+            {
+                if (closed)
+                    return;
+                closed = true;
+                reply = null;
+            }
+            org.eclipse.jetty.util.thread.Scheduler.Task task = this.task;
+            if (task != null)
+                task.cancel();
+            // Without the stream, for example when the client falls back to
+            // long-polling, messages are delivered as they were before.
+            synchronized (session.getLock())
+            {
+                if (session.getAttribute(STREAM_ATTRIBUTE) == this)
+                {
+                    session.removeAttribute(STREAM_ATTRIBUTE);
+                    session.setMetaConnectDeliveryOnly(metaConnectDeliveryOnly);
+                }
+            }
+            metaConnectResumed(request, response, asyncContext, session);
+            try
+            {
+                asyncContext.complete();
+            }
+            catch (Throwable x)
+            {
+                _logger.trace("Could not complete stream", x);
+            }
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) throws IOException
+        {
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) throws IOException
+        {
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) throws IOException
+        {
+        }
+
+        @Override
+        public void onError(AsyncEvent event) throws IOException
+        {
+            fail();
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%s@%x[%s,closed=%b]", getClass().getSimpleName(), hashCode(), session.getId(), closed);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server;
+
+import org.cometd.bayeux.server.ServerChannel;
+import org.cometd.server.jmx.BayeuxServerImplMBean;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class BayeuxMetricsTest
+{
+    private final BayeuxServerImpl _bayeux = new BayeuxServerImpl();
+
+    @Before
+    public void init() throws Exception
+    {
+        _bayeux.setOption(BayeuxServerImpl.METRICS_OPTION, true);
+        _bayeux.start();
+    }
+
+    @After
+    public void destroy() throws Exception
+    {
+        _bayeux.stop();
+    }
+
+    @Test
+    public void testMetricsDisabledByDefault() throws Exception
+    {
+        BayeuxServerImpl bayeux = new BayeuxServerImpl();
+        bayeux.start();
+        try
+        {
+            Assert.assertNull(bayeux.getMetrics());
+        }
+        finally
+        {
+            bayeux.stop();
+        }
+    }
+
+    @Test
+    public void testHistogram() throws Exception
+    {
+        BayeuxMetrics.Histogram histogram = new BayeuxMetrics.Histogram();
+        Assert.assertEquals(0, histogram.getValueAtPercentile(99));
+
+        for (int i = 1; i <= 100; ++i)
+            histogram.record(i);
+
+        Assert.assertEquals(100, histogram.getCount());
+        Assert.assertEquals(100, histogram.getMax());
+        Assert.assertEquals(50.5, histogram.getMean(), 0.001);
+        // Percentiles are the upper bound of power-of-two buckets.
+        Assert.assertEquals(63, histogram.getValueAtPercentile(50));
+        Assert.assertEquals(100, histogram.getValueAtPercentile(99));
+        Assert.assertEquals(1, histogram.getValueAtPercentile(1));
+
+        histogram.reset();
+        Assert.assertEquals(0, histogram.getCount());
+        Assert.assertEquals(0, histogram.getMax());
+    }
+
+    @Test
+    public void testPublishAndDeliveryMetrics() throws Exception
+    {
+        BayeuxMetrics metrics = _bayeux.getMetrics();
+        ServerChannel channel = _bayeux.createChannelIfAbsent("/foo").getReference();
+        ServerSessionImpl session1 = newServerSession();
+        ServerSessionImpl session2 = newServerSession();
+        channel.subscribe(session1);
+        channel.subscribe(session2);
+
+        for (int i = 0; i < 3; ++i)
+            channel.publish(null, i);
+
+        Assert.assertEquals(3, metrics.getPublishes().get());
+        Assert.assertEquals(3, metrics.getFanOut().getCount());
+        Assert.assertEquals(2, metrics.getFanOut().getMax());
+        Assert.assertEquals(3, metrics.getGenerateTime().getCount());
+        Assert.assertEquals(3L, metrics.getChannelPublishes().get("/foo").longValue());
+
+        Assert.assertEquals(3, session1.takeQueue().size());
+        Assert.assertEquals(1, metrics.getQueueDepth().getCount());
+        Assert.assertEquals(3, metrics.getQueueDepth().getMax());
+        Assert.assertEquals(3, metrics.getDeliveryLatency().getCount());
+
+        metrics.reset();
+        Assert.assertEquals(0, metrics.getPublishes().get());
+        Assert.assertTrue(metrics.getChannelPublishes().isEmpty());
+    }
+
+    @Test
+    public void testConcurrentChannelPublishes() throws Exception
+    {
+        final ServerChannel channel = _bayeux.createChannelIfAbsent("/foo").getReference();
+        Assert.assertEquals(0, ((ServerChannelImpl)channel).getPublishCount());
+
+        final int publishes = 1000;
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; ++i)
+        {
+            threads[i] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for (int j = 0; j < publishes; ++j)
+                        channel.publish(null, j);
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        Assert.assertEquals(threads.length * publishes, ((ServerChannelImpl)channel).getPublishCount());
+        Assert.assertEquals(threads.length * publishes, _bayeux.getMetrics().getPublishes().get());
+    }
+
+    @Test
+    public void testParseTime() throws Exception
+    {
+        AbstractServerTransport transport = (AbstractServerTransport)_bayeux.getTransport("long-polling");
+        transport.parseMessages("[{\"channel\":\"/foo\",\"data\":\"bar\"}]");
+        Assert.assertEquals(1, _bayeux.getMetrics().getParseTime().getCount());
+    }
+
+    @Test
+    public void testMetaConnectHoldTime() throws Exception
+    {
+        ServerSessionImpl session = newServerSession();
+        session.endBatch();
+        session.setScheduler(new AbstractServerTransport.Scheduler()
+        {
+            public void cancel()
+            {
+            }
+
+            public void schedule()
+            {
+            }
+        });
+        TimeUnit.MILLISECONDS.sleep(100);
+        session.deliver(null, "/foo", "data");
+
+        BayeuxMetrics.Histogram holdTime = _bayeux.getMetrics().getMetaConnectHoldTime();
+        Assert.assertEquals(1, holdTime.getCount());
+        Assert.assertTrue(holdTime.getMax() >= 100);
+
+        // A further flush does not release the /meta/connect again.
+        session.flush();
+        Assert.assertEquals(1, holdTime.getCount());
+    }
+
+    @Test
+    public void testJMX() throws Exception
+    {
+        BayeuxServerImplMBean mbean = new BayeuxServerImplMBean(_bayeux);
+        ServerChannel channel = _bayeux.createChannelIfAbsent("/foo").getReference();
+        channel.publish(null, "data");
+
+        Map<String, Object> snapshot = mbean.getMetrics();
+        Assert.assertEquals(1L, snapshot.get("publishes"));
+        Assert.assertTrue(snapshot.get("fanOut") instanceof Map);
+        Assert.assertEquals(1L, mbean.getChannelPublishes().get("/foo").longValue());
+    }
+
+    private ServerSessionImpl newServerSession()
+    {
+        ServerSessionImpl session = _bayeux.newServerSession();
+        _bayeux.addServerSession(session, _bayeux.newMessage());
+        session.handshake();
+        session.connected();
+        // Batch, so that deliveries do not flush.
+        session.startBatch();
+        return session;
+    }
+}
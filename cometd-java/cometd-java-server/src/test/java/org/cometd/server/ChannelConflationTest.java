@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server;
+
+import org.cometd.bayeux.server.ConfigurableServerChannel;
+import org.cometd.bayeux.server.ServerChannel;
+import org.cometd.bayeux.server.ServerMessage;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ChannelConflationTest
+{
+    private final BayeuxServerImpl _bayeux = new BayeuxServerImpl();
+
+    @Before
+    public void init() throws Exception
+    {
+        _bayeux.start();
+    }
+
+    @After
+    public void destroy() throws Exception
+    {
+        _bayeux.stop();
+    }
+
+    @Test
+    public void testNewerMessageReplacesQueuedMessage() throws Exception
+    {
+        ServerChannel channel = _bayeux.createChannelIfAbsent("/price", new ConfigurableServerChannel.Initializer()
+        {
+            public void configureChannel(ConfigurableServerChannel channel)
+            {
+                channel.setLazy(true);
+                ((ServerChannelImpl)channel).setConflated(true);
+            }
+        }).getReference();
+        ServerChannel other = _bayeux.createChannelIfAbsent("/other").getReference();
+        ServerSessionImpl session = newServerSession();
+        channel.subscribe(session);
+        other.subscribe(session);
+
+        for (int i = 0; i < 10; ++i)
+        {
+            channel.publish(null, i);
+            other.publish(null, i);
+        }
+
+        List<ServerMessage> queue = session.takeQueue();
+        // All the messages of the non conflated channel, plus the last one of the conflated channel.
+        Assert.assertEquals(11, queue.size());
+        // The conflated message is queued after the messages it replaced.
+        ServerMessage last = queue.get(queue.size() - 2);
+        Assert.assertEquals("/price", last.getChannel());
+        Assert.assertEquals(9, ((Number)last.getData()).intValue());
+        Assert.assertTrue(last.isLazy());
+
+        // Messages already taken from the queue are not replaced.
+        channel.publish(null, 10);
+        Assert.assertEquals(1, session.takeQueue().size());
+    }
+
+    @Test
+    public void testConflationByDataKey() throws Exception
+    {
+        ServerChannelImpl channel = (ServerChannelImpl)_bayeux.createChannelIfAbsent("/prices/*", new ConfigurableServerChannel.Initializer()
+        {
+            public void configureChannel(ConfigurableServerChannel channel)
+            {
+                ((ServerChannelImpl)channel).setConflationKey("symbol");
+            }
+        }).getReference();
+        Assert.assertTrue(channel.isConflated());
+        ServerSessionImpl session = newServerSession();
+        channel.subscribe(session);
+
+        ServerChannel stocks = _bayeux.createChannelIfAbsent("/prices/stocks").getReference();
+        stocks.publish(null, price("AAPL", 1));
+        stocks.publish(null, price("GOOG", 2));
+        stocks.publish(null, price("AAPL", 3));
+        // Messages without the key are not conflated.
+        stocks.publish(null, "no_key");
+        stocks.publish(null, price("GOOG", 4));
+
+        List<ServerMessage> queue = session.takeQueue();
+        Assert.assertEquals(3, queue.size());
+        Assert.assertEquals(3, ((Number)queue.get(0).getDataAsMap().get("price")).intValue());
+        Assert.assertEquals("no_key", queue.get(1).getData());
+        Assert.assertEquals(4, ((Number)queue.get(2).getDataAsMap().get("price")).intValue());
+    }
+
+    @Test
+    public void testDisableConflation() throws Exception
+    {
+        ServerChannelImpl channel = (ServerChannelImpl)_bayeux.createChannelIfAbsent("/price").getReference();
+        channel.setConflationKey("symbol");
+        channel.setConflated(false);
+        Assert.assertNull(channel.getConflationKey());
+
+        ServerSessionImpl session = newServerSession();
+        channel.subscribe(session);
+        channel.publish(null, price("AAPL", 1));
+        channel.publish(null, price("AAPL", 2));
+
+        Assert.assertEquals(2, session.takeQueue().size());
+    }
+
+    private Map<String, Object> price(String symbol, int price)
+    {
+        Map<String, Object> data = new HashMap<>();
+        data.put("symbol", symbol);
+        data.put("price", price);
+        return data;
+    }
+
+    private ServerSessionImpl newServerSession()
+    {
+        ServerSessionImpl session = _bayeux.newServerSession();
+        _bayeux.addServerSession(session, _bayeux.newMessage());
+        session.handshake();
+        session.connected();
+        // Batch, so that deliveries do not flush.
+        session.startBatch();
+        return session;
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server;
+
+import org.cometd.bayeux.Channel;
+import org.cometd.bayeux.Message;
+import org.cometd.bayeux.client.ClientSessionChannel;
+import org.cometd.bayeux.server.ConfigurableServerChannel;
+import org.cometd.bayeux.server.LocalSession;
+import org.cometd.bayeux.server.ServerChannel;
+import org.cometd.bayeux.server.ServerMessage;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ChannelHistoryTest
+{
+    private final BayeuxServerImpl _bayeux = new BayeuxServerImpl();
+
+    @Before
+    public void init() throws Exception
+    {
+        _bayeux.start();
+    }
+
+    @After
+    public void destroy() throws Exception
+    {
+        _bayeux.stop();
+    }
+
+    @Test
+    public void testHistoryIsBoundedByCount() throws Exception
+    {
+        ChannelHistory history = new ChannelHistory();
+        history.configure(3, 0);
+        for (int i = 0; i < 5; ++i)
+            history.add(newFrozenMessage(i));
+
+        List<ServerMessage.Mutable> messages = history.snapshot();
+        Assert.assertEquals(3, messages.size());
+        Assert.assertEquals(2, ((Number)messages.get(0).getData()).intValue());
+
+        // Shrinking trims the oldest messages.
+        history.configure(1, 0);
+        Assert.assertEquals(1, history.size());
+        Assert.assertEquals(4, ((Number)history.snapshot().get(0).getData()).intValue());
+    }
+
+    @Test
+    public void testHistoryIsBoundedByBytes() throws Exception
+    {
+        long size = SessionMessageQueue.sizeOf(newFrozenMessage(0));
+        ChannelHistory history = new ChannelHistory();
+        history.configure(0, 2 * size);
+        for (int i = 0; i < 5; ++i)
+            history.add(newFrozenMessage(i));
+
+        Assert.assertEquals(2, history.size());
+        Assert.assertEquals(2 * size, history.bytes());
+    }
+
+    @Test
+    public void testHistoryIsReplayedOnSubscribe() throws Exception
+    {
+        String channelName = "/history";
+        ServerChannel channel = _bayeux.createChannelIfAbsent(channelName, new ConfigurableServerChannel.Initializer()
+        {
+            public void configureChannel(ConfigurableServerChannel channel)
+            {
+                ((ServerChannelImpl)channel).setHistorySize(3);
+            }
+        }).getReference();
+        for (int i = 0; i < 5; ++i)
+            channel.publish(null, i);
+
+        LocalSession session = _bayeux.newLocalSession("history");
+        session.handshake();
+        final List<Object> received = new CopyOnWriteArrayList<>();
+        session.getChannel(channelName).subscribe(new ClientSessionChannel.MessageListener()
+        {
+            public void onMessage(ClientSessionChannel channel, Message message)
+            {
+                received.add(message.getData());
+            }
+        });
+
+        Assert.assertEquals(3, received.size());
+        Assert.assertEquals(2, ((Number)received.get(0)).intValue());
+        Assert.assertEquals(4, ((Number)received.get(2)).intValue());
+
+        // New messages are delivered normally, without replay.
+        channel.publish(null, 5);
+        Assert.assertEquals(4, received.size());
+        session.disconnect();
+    }
+
+    @Test
+    public void testSubscriptionDuringPublishesReceivesEachMessageOnceInOrder() throws Exception
+    {
+        final String channelName = "/history";
+        final int count = 20000;
+        final ServerChannel channel = _bayeux.createChannelIfAbsent(channelName, new ConfigurableServerChannel.Initializer()
+        {
+            public void configureChannel(ConfigurableServerChannel channel)
+            {
+                ((ServerChannelImpl)channel).setHistorySize(count);
+            }
+        }).getReference();
+
+        final CountDownLatch published = new CountDownLatch(1);
+        Thread publisher = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                for (int i = 0; i < count; ++i)
+                {
+                    channel.publish(null, i);
+                    if (i == count / 4)
+                        published.countDown();
+                }
+            }
+        };
+        publisher.start();
+
+        ServerSessionImpl session = _bayeux.newServerSession();
+        _bayeux.addServerSession(session, _bayeux.newMessage());
+        session.handshake();
+        session.connected();
+        // Batch, so that deliveries do not flush.
+        session.startBatch();
+
+        Assert.assertTrue(published.await(5, TimeUnit.SECONDS));
+        ServerMessage.Mutable subscribe = _bayeux.newMessage();
+        subscribe.setChannel(Channel.META_SUBSCRIBE);
+        subscribe.setClientId(session.getId());
+        subscribe.put(Message.SUBSCRIPTION_FIELD, channelName);
+        Assert.assertTrue(_bayeux.handle(session, subscribe).isSuccessful());
+
+        publisher.join(TimeUnit.SECONDS.toMillis(5));
+        List<ServerMessage> queue = session.takeQueue();
+        Assert.assertEquals(count, queue.size());
+        for (int i = 0; i < count; ++i)
+            Assert.assertEquals(i, ((Number)queue.get(i).getData()).intValue());
+    }
+
+    @Test
+    public void testChannelWithHistoryIsNotSwept() throws Exception
+    {
+        String channelName = "/history";
+        ServerChannelImpl channel = (ServerChannelImpl)_bayeux.createChannelIfAbsent(channelName).getReference();
+        channel.setPersistent(false);
+        channel.setHistorySize(10);
+        channel.publish(null, "data");
+
+        for (int i = 0; i < 5; ++i)
+            _bayeux.sweep();
+        Assert.assertNotNull(_bayeux.getChannel(channelName));
+
+        channel.setHistorySize(0);
+        Assert.assertNull(channel.getHistory());
+        for (int i = 0; i < 5; ++i)
+            _bayeux.sweep();
+        long begin = System.nanoTime();
+        while (_bayeux.getChannel(channelName) != null && System.nanoTime() - begin < TimeUnit.SECONDS.toNanos(5))
+            _bayeux.sweep();
+        Assert.assertNull(_bayeux.getChannel(channelName));
+    }
+
+    private ServerMessage.Mutable newFrozenMessage(Object data)
+    {
+        ServerMessage.Mutable message = _bayeux.newMessage();
+        message.setChannel("/history");
+        message.setData(data);
+        _bayeux.freeze(message);
+        return message;
+    }
+}
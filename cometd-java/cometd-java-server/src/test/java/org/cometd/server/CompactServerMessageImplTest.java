@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server;
+
+import org.cometd.bayeux.Channel;
+import org.cometd.bayeux.Message;
+import org.cometd.bayeux.server.ServerMessage;
+import org.cometd.server.transport.JSONTransport;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+public class CompactServerMessageImplTest
+{
+    @Test
+    public void testBehavesLikeHashMap() throws Exception
+    {
+        CompactServerMessageImpl message = new CompactServerMessageImpl();
+        Map<String, Object> expected = new HashMap<>();
+        Assert.assertTrue(message.isEmpty());
+
+        populate(message);
+        populate(expected);
+        Assert.assertEquals(expected, message);
+        Assert.assertEquals(message, expected);
+        Assert.assertEquals(expected.hashCode(), message.hashCode());
+        Assert.assertEquals(expected.size(), message.size());
+        Assert.assertEquals(expected.keySet(), message.keySet());
+        Assert.assertTrue(message.containsKey(Message.SUCCESSFUL_FIELD));
+        Assert.assertNull(message.get(Message.SUCCESSFUL_FIELD));
+        Assert.assertTrue(message.containsValue("bar"));
+        Assert.assertEquals("/foo", message.getChannel());
+        Assert.assertEquals("42", message.getId());
+
+        Assert.assertEquals("/foo", message.remove(Message.CHANNEL_FIELD));
+        Assert.assertFalse(message.containsKey(Message.CHANNEL_FIELD));
+        Assert.assertEquals("bar", message.remove("custom"));
+        Assert.assertEquals(expected.size() - 2, message.size());
+
+        // Removal via iterators.
+        for (Iterator<Map.Entry<String, Object>> iterator = message.entrySet().iterator(); iterator.hasNext(); )
+        {
+            Map.Entry<String, Object> entry = iterator.next();
+            if (Message.DATA_FIELD.equals(entry.getKey()) || "other".equals(entry.getKey()))
+                iterator.remove();
+        }
+        Assert.assertFalse(message.containsKey(Message.DATA_FIELD));
+        Assert.assertFalse(message.containsKey("other"));
+
+        // Update via entries.
+        for (Map.Entry<String, Object> entry : message.entrySet())
+        {
+            if (Message.CLIENT_ID_FIELD.equals(entry.getKey()))
+                entry.setValue("xyz");
+        }
+        Assert.assertEquals("xyz", message.getClientId());
+
+        message.clear();
+        Assert.assertTrue(message.isEmpty());
+        Assert.assertEquals(0, message.size());
+    }
+
+    @Test
+    public void testBulkMethodsSeeDedicatedFields() throws Exception
+    {
+        Map<String, Object> expected = new HashMap<>();
+        populate(expected);
+        CompactServerMessageImpl message = new CompactServerMessageImpl();
+        message.putAll(expected);
+        Assert.assertEquals(expected, message);
+        Assert.assertEquals("/foo", message.getChannel());
+
+        Map<String, Object> copy = new HashMap<>(message);
+        Assert.assertEquals(expected, copy);
+        Assert.assertEquals(expected.size(), message.values().size());
+        Assert.assertTrue(message.values().contains("/foo"));
+
+        // Removal via the views.
+        message.keySet().remove(Message.CHANNEL_FIELD);
+        message.values().remove("bar");
+        Assert.assertNull(message.getChannel());
+        Assert.assertFalse(message.containsKey(Message.CHANNEL_FIELD));
+        Assert.assertFalse(message.containsKey("custom"));
+        Assert.assertEquals(expected.size() - 2, message.size());
+    }
+
+    @Test
+    public void testConditionalMethodsSeeDedicatedFields() throws Exception
+    {
+        CompactServerMessageImpl message = new CompactServerMessageImpl();
+        populate(message);
+        int size = message.size();
+
+        Assert.assertEquals("/foo", message.getOrDefault(Message.CHANNEL_FIELD, "/bar"));
+        Assert.assertNull(message.getOrDefault(Message.SUCCESSFUL_FIELD, true));
+        Assert.assertEquals("none", message.getOrDefault("missing", "none"));
+
+        Assert.assertNotNull(message.putIfAbsent(Message.DATA_FIELD, "other"));
+        Assert.assertEquals(size, message.size());
+        Assert.assertNull(message.putIfAbsent(Message.SUCCESSFUL_FIELD, true));
+        Assert.assertTrue(message.isSuccessful());
+        Assert.assertEquals(size, message.size());
+
+        Assert.assertFalse(message.replace(Message.CHANNEL_FIELD, "/bar", "/baz"));
+        Assert.assertTrue(message.replace(Message.CHANNEL_FIELD, "/foo", "/bar"));
+        Assert.assertEquals("/bar", message.getChannel());
+        Assert.assertEquals("/bar", message.replace(Message.CHANNEL_FIELD, "/baz"));
+        Assert.assertEquals("/baz", message.getChannel());
+        Assert.assertNull(message.replace(Message.ADVICE_FIELD, "x"));
+        Assert.assertEquals(size, message.size());
+
+        Assert.assertFalse(message.remove(Message.CHANNEL_FIELD, "/foo"));
+        Assert.assertTrue(message.remove(Message.CHANNEL_FIELD, "/baz"));
+        Assert.assertNull(message.getChannel());
+        Assert.assertEquals(size - 1, message.size());
+        Assert.assertEquals(size - 1, message.entrySet().size());
+    }
+
+    @Test
+    public void testJava8MethodsFailLoudly() throws Exception
+    {
+        Class<?> functionClass;
+        try
+        {
+            functionClass = Class.forName("java.util.function.Function");
+        }
+        catch (ClassNotFoundException x)
+        {
+            Assume.assumeNoException(x);
+            return;
+        }
+        CompactServerMessageImpl message = new CompactServerMessageImpl();
+        populate(message);
+        Object function = Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{functionClass}, new InvocationHandler()
+        {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+            {
+                return "value";
+            }
+        });
+        // HashMap.computeIfAbsent() stores the field in the inherited hash table.
+        Map.class.getMethod("computeIfAbsent", Object.class, functionClass).invoke(message, "key", function);
+
+        try
+        {
+            message.size();
+            Assert.fail();
+        }
+        catch (IllegalStateException expected)
+        {
+        }
+    }
+
+    @Test
+    public void testGeneratesSameJSON() throws Exception
+    {
+        JettyJSONContextServer jsonContext = new JettyJSONContextServer();
+        CompactServerMessageImpl message = new CompactServerMessageImpl();
+        populate(message);
+        ServerMessage.Mutable[] parsed = jsonContext.parse(jsonContext.generate(message));
+        Map<String, Object> expected = new HashMap<>();
+        populate(expected);
+        Assert.assertEquals(expected.keySet(), parsed[0].keySet());
+        Assert.assertEquals("/foo", parsed[0].getChannel());
+        Assert.assertEquals("bar", parsed[0].get("custom"));
+    }
+
+    @Test
+    public void testFrozenMessageIsImmutable() throws Exception
+    {
+        CompactServerMessageImpl message = new CompactServerMessageImpl();
+        populate(message);
+        message.freeze(message.getJSON());
+
+        try
+        {
+            message.setChannel("/bar");
+            Assert.fail();
+        }
+        catch (UnsupportedOperationException expected)
+        {
+        }
+        try
+        {
+            message.entrySet().iterator().next().setValue("/bar");
+            Assert.fail();
+        }
+        catch (UnsupportedOperationException expected)
+        {
+        }
+        Assert.assertEquals("/foo", message.getChannel());
+    }
+
+    @Test
+    public void testSerialization() throws Exception
+    {
+        CompactServerMessageImpl message = new CompactServerMessageImpl();
+        populate(message);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream output = new ObjectOutputStream(bytes);
+        output.writeObject(message);
+        output.close();
+
+        ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        Object copy = input.readObject();
+        Assert.assertTrue(copy instanceof CompactServerMessageImpl);
+        Assert.assertEquals(message, copy);
+    }
+
+    @Test
+    public void testNewMessageSelectsCompactImplementation() throws Exception
+    {
+        BayeuxServerImpl bayeux = new BayeuxServerImpl();
+        bayeux.setOption(BayeuxServerImpl.COMPACT_MESSAGES_OPTION, true);
+        bayeux.addTransport(new JSONTransport(bayeux));
+        bayeux.start();
+        try
+        {
+            ServerMessage.Mutable message = bayeux.newMessage();
+            Assert.assertTrue(message instanceof CompactServerMessageImpl);
+            message.setChannel(Channel.META_CONNECT);
+            message.setSuccessful(true);
+            bayeux.freeze(message);
+            Assert.assertTrue(message.getJSON().contains("\"successful\":true"));
+        }
+        finally
+        {
+            bayeux.stop();
+        }
+    }
+
+    private void populate(Map<String, Object> message)
+    {
+        message.put(Message.CHANNEL_FIELD, "/foo");
+        message.put(Message.ID_FIELD, 42L);
+        message.put(Message.CLIENT_ID_FIELD, "abc");
+        message.put(Message.SUCCESSFUL_FIELD, null);
+        Map<String, Object> data = new HashMap<>();
+        data.put("value", 1L);
+        message.put(Message.DATA_FIELD, data);
+        message.put("custom", "bar");
+        message.put("other", 2L);
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server;
+
+import org.cometd.bayeux.server.ServerChannel;
+import org.cometd.bayeux.server.ServerMessage;
+import org.cometd.bayeux.server.ServerSession;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class FanOutTest
+{
+    private final BayeuxServerImpl _bayeux = new BayeuxServerImpl();
+
+    @Before
+    public void init() throws Exception
+    {
+        _bayeux.setOption(BayeuxServerImpl.FAN_OUT_THRESHOLD_OPTION, 8);
+        _bayeux.setOption(BayeuxServerImpl.FAN_OUT_PARALLELISM_OPTION, 4);
+        _bayeux.start();
+    }
+
+    @After
+    public void destroy() throws Exception
+    {
+        _bayeux.stop();
+    }
+
+    @Test
+    public void testFanOutPreservesPerSessionOrdering() throws Exception
+    {
+        ServerChannel big = _bayeux.createChannelIfAbsent("/big").getReference();
+        ServerChannel small = _bayeux.createChannelIfAbsent("/small").getReference();
+
+        int sessionCount = 64;
+        int smallSessionCount = sessionCount / 16;
+        int messages = 20;
+        final CountDownLatch latch = new CountDownLatch((sessionCount + smallSessionCount) * messages / 2);
+        List<List<Object>> received = new ArrayList<>();
+        for (int i = 0; i < sessionCount; ++i)
+        {
+            ServerSessionImpl session = newServerSession();
+            final List<Object> data = new ArrayList<>();
+            received.add(data);
+            session.addListener(new ServerSession.MessageListener()
+            {
+                public boolean onMessage(ServerSession to, ServerSession from, ServerMessage message)
+                {
+                    synchronized (data)
+                    {
+                        data.add(message.getData());
+                    }
+                    latch.countDown();
+                    return false;
+                }
+            });
+            big.subscribe(session);
+            // Only a few sessions subscribe to the small channel,
+            // so that messages on that channel are delivered inline.
+            if (i % 16 == 0)
+                small.subscribe(session);
+        }
+
+        for (int i = 0; i < messages; ++i)
+        {
+            ServerChannel channel = i % 2 == 0 ? big : small;
+            channel.publish(null, i);
+        }
+
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+        for (List<Object> data : received)
+        {
+            synchronized (data)
+            {
+                int last = -1;
+                for (Object value : data)
+                {
+                    int current = ((Number)value).intValue();
+                    Assert.assertTrue(data.toString(), current > last);
+                    last = current;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFanOutDeliversToAllSubscribers() throws Exception
+    {
+        ServerChannel channel = _bayeux.createChannelIfAbsent("/foo/bar").getReference();
+        ServerChannel wild = _bayeux.createChannelIfAbsent("/foo/*").getReference();
+
+        int sessionCount = 100;
+        final CountDownLatch latch = new CountDownLatch(sessionCount);
+        ServerSession.QueueListener listener = new ServerSession.QueueListener()
+        {
+            public void queued(ServerSession sender, ServerMessage message)
+            {
+                latch.countDown();
+            }
+        };
+        List<ServerSessionImpl> sessions = new ArrayList<>();
+        for (int i = 0; i < sessionCount; ++i)
+        {
+            ServerSessionImpl session = newServerSession();
+            session.addListener(listener);
+            sessions.add(session);
+            // Subscribe some sessions to both channels, they must receive the message only once.
+            if (i % 2 == 0)
+                channel.subscribe(session);
+            if (i % 3 != 1)
+                wild.subscribe(session);
+            if (!session.getSubscriptions().isEmpty())
+                continue;
+            channel.subscribe(session);
+        }
+
+        channel.publish(null, "data");
+
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        for (ServerSessionImpl session : sessions)
+            Assert.assertEquals(1, session.getQueue().size());
+    }
+
+    private ServerSessionImpl newServerSession()
+    {
+        ServerSessionImpl session = _bayeux.newServerSession();
+        _bayeux.addServerSession(session, _bayeux.newMessage());
+        session.handshake();
+        session.connected();
+        return session;
+    }
+}
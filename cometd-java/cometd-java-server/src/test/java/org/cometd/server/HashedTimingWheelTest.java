@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class HashedTimingWheelTest
+{
+    @Test
+    public void testOnlyExpiringItemsAreVisited() throws Exception
+    {
+        long tick = 1000;
+        Wheel wheel = new Wheel(8, tick, 0);
+        for (int i = 0; i < 100; ++i)
+            wheel.schedule("item" + i, 5 * tick + i);
+        wheel.schedule("soon", 1500);
+
+        // The bucket of the current tick is visited, but its item is not expired yet.
+        wheel.advance(1000);
+        Assert.assertEquals(1, wheel.visited.size());
+        Assert.assertEquals(0, wheel.expired.size());
+
+        wheel.advance(1600);
+        Assert.assertEquals(2, wheel.visited.size());
+        Assert.assertEquals(1, wheel.expired.size());
+        Assert.assertEquals("soon", wheel.expired.get(0));
+        Assert.assertEquals(100, wheel.size());
+    }
+
+    @Test
+    public void testItemScheduledBeyondOneRotationIsNotExpiredEarly() throws Exception
+    {
+        long tick = 1000;
+        Wheel wheel = new Wheel(4, tick, 0);
+        // Same bucket as tick 1, but three rotations later.
+        long deadline = 13 * tick + 500;
+        wheel.schedule("far", deadline);
+
+        for (long now = tick; now < deadline; now += tick)
+            wheel.advance(now);
+        Assert.assertEquals(0, wheel.expired.size());
+        Assert.assertEquals(1, wheel.size());
+
+        wheel.advance(deadline + 1);
+        Assert.assertEquals(1, wheel.expired.size());
+        Assert.assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testRescheduleAndCancel() throws Exception
+    {
+        long tick = 1000;
+        Wheel wheel = new Wheel(8, tick, 0);
+        wheel.schedule("item", 1500);
+        // Rescheduling moves the item to another bucket.
+        wheel.schedule("item", 3500);
+        wheel.advance(2000);
+        Assert.assertEquals(0, wheel.visited.size());
+
+        wheel.advance(3600);
+        Assert.assertEquals(1, wheel.expired.size());
+
+        wheel.schedule("other", 4500);
+        wheel.cancel("other");
+        wheel.advance(5000);
+        Assert.assertEquals(1, wheel.expired.size());
+        Assert.assertEquals(0, wheel.size());
+
+        // A non-positive deadline cancels.
+        wheel.schedule("third", 6500);
+        wheel.schedule("third", 0);
+        Assert.assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testLateAdvanceCatchesUpMissedTicks() throws Exception
+    {
+        long tick = 1000;
+        Wheel wheel = new Wheel(4, tick, 0);
+        wheel.schedule("a", 1500);
+        wheel.schedule("b", 2500);
+        wheel.schedule("c", 9500);
+
+        // Skip more than a rotation at once.
+        wheel.advance(10 * tick);
+        Assert.assertEquals(3, wheel.expired.size());
+    }
+
+    @Test
+    public void testPastDeadlineIsExpiredOnNextAdvance() throws Exception
+    {
+        long tick = 1000;
+        Wheel wheel = new Wheel(4, tick, 0);
+        wheel.advance(5 * tick);
+        wheel.schedule("past", tick);
+        wheel.advance(5 * tick + 1);
+        Assert.assertEquals(1, wheel.expired.size());
+    }
+
+    private static class Wheel extends HashedTimingWheel<String>
+    {
+        private final Map<String, Long> deadlines = new HashMap<>();
+        private final List<String> visited = new ArrayList<>();
+        private final List<String> expired = new ArrayList<>();
+
+        private Wheel(int buckets, long tick, long now)
+        {
+            super(buckets, tick, now);
+        }
+
+        @Override
+        void schedule(String item, long deadline)
+        {
+            deadlines.put(item, deadline);
+            super.schedule(item, deadline);
+        }
+
+        @Override
+        protected boolean expire(String item, long now)
+        {
+            visited.add(item);
+            if (now > deadlines.get(item))
+            {
+                expired.add(item);
+                return false;
+            }
+            return true;
+        }
+    }
+}
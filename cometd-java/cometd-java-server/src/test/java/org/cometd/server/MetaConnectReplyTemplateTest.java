@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server;
+
+import org.cometd.bayeux.Channel;
+import org.cometd.bayeux.Message;
+import org.cometd.bayeux.server.ServerMessage;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+public class MetaConnectReplyTemplateTest
+{
+    private final JettyJSONContextServer _jsonContext = new JettyJSONContextServer();
+
+    @Test
+    public void testTemplateGeneratesSameJSON() throws Exception
+    {
+        for (ServerMessageImpl reply : new ServerMessageImpl[]{new ServerMessageImpl(), new CompactServerMessageImpl()})
+        {
+            reply.setChannel(Channel.META_CONNECT);
+            reply.setSuccessful(true);
+            reply.setId("42");
+            reply.setClientId("3a1b2c3d4e5f");
+            String expected = _jsonContext.generate(reply);
+
+            Assert.assertTrue(MetaConnectReplyTemplate.freeze(reply));
+            Assert.assertEquals(_jsonContext.parse(expected)[0], _jsonContext.parse(reply.getJSON())[0]);
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            reply.writeJSON(output);
+            Assert.assertEquals(reply.getJSON(), new String(output.toByteArray(), Charset.forName("UTF-8")));
+
+            try
+            {
+                reply.setId("43");
+                Assert.fail();
+            }
+            catch (UnsupportedOperationException expected1)
+            {
+            }
+        }
+    }
+
+    @Test
+    public void testTemplateWithoutVariableFields() throws Exception
+    {
+        ServerMessageImpl reply = new ServerMessageImpl();
+        reply.setChannel(Channel.META_CONNECT);
+        reply.setSuccessful(true);
+
+        Assert.assertTrue(MetaConnectReplyTemplate.freeze(reply));
+        ServerMessage.Mutable parsed = _jsonContext.parse(reply.getJSON())[0];
+        Assert.assertEquals(2, parsed.size());
+        Assert.assertEquals(Channel.META_CONNECT, parsed.getChannel());
+        Assert.assertTrue(parsed.isSuccessful());
+    }
+
+    @Test
+    public void testOtherRepliesAreNotMatched() throws Exception
+    {
+        // Unsuccessful reply.
+        ServerMessageImpl reply = newReply();
+        reply.setSuccessful(false);
+        Assert.assertFalse(MetaConnectReplyTemplate.freeze(reply));
+
+        // Reply with advice.
+        reply = newReply();
+        reply.put(Message.ADVICE_FIELD, new HashMap<String, Object>());
+        Assert.assertFalse(MetaConnectReplyTemplate.freeze(reply));
+
+        // Reply modified by an extension.
+        reply = newReply();
+        Map<String, Object> ext = reply.getExt(true);
+        ext.put("ack", 1L);
+        Assert.assertFalse(MetaConnectReplyTemplate.freeze(reply));
+
+        // Reply with an id that needs escaping.
+        reply = newReply();
+        reply.setId("a\"b");
+        Assert.assertFalse(MetaConnectReplyTemplate.freeze(reply));
+
+        // Reply with a non-string id.
+        reply = newReply();
+        reply.put(Message.ID_FIELD, 42L);
+        Assert.assertFalse(MetaConnectReplyTemplate.freeze(reply));
+
+        // Reply with a null field.
+        reply = newReply();
+        reply.put(Message.CLIENT_ID_FIELD, null);
+        Assert.assertFalse(MetaConnectReplyTemplate.freeze(reply));
+
+        // Reply on another channel.
+        reply = newReply();
+        reply.setChannel(Channel.META_SUBSCRIBE);
+        Assert.assertFalse(MetaConnectReplyTemplate.freeze(reply));
+    }
+
+    private ServerMessageImpl newReply()
+    {
+        ServerMessageImpl reply = new ServerMessageImpl();
+        reply.setChannel(Channel.META_CONNECT);
+        reply.setSuccessful(true);
+        reply.setId("1");
+        return reply;
+    }
+}
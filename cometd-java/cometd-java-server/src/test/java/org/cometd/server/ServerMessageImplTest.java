@@ -28,6 +28,8 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
 import java.util.Map;
 
 import static org.junit.Assert.*;
@@ -239,4 +241,37 @@ public class ServerMessageImplTest
         assertTrue(data.containsKey("nullData"));
         assertEquals(2, data.size());
     }
+
+    @Test
+    public void testFrozenMessageJSONBytesAreShared() throws Exception
+    {
+        ServerMessageImpl message = new ServerMessageImpl();
+        message.setChannel("/foo");
+        message.setData("\u20AC");
+        message.freeze(message.getJSON());
+
+        ByteBuffer bytes1 = message.getJSONBytes();
+        ByteBuffer bytes2 = message.getJSONBytes();
+        assertEquals(bytes1, bytes2);
+        assertEquals(message.getJSON(), new String(copy(bytes1), "UTF-8"));
+        try
+        {
+            bytes1.put(0, (byte)0);
+            fail();
+        }
+        catch (ReadOnlyBufferException expected)
+        {
+        }
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        message.writeJSON(output);
+        assertArrayEquals(copy(bytes2), output.toByteArray());
+    }
+
+    private byte[] copy(ByteBuffer buffer)
+    {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
 }
@@ -0,0 +1,349 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server;
+
+import org.cometd.bayeux.server.ServerMessage;
+import org.cometd.bayeux.server.ServerSession;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SessionMessageQueueTest
+{
+    private final BayeuxServerImpl _bayeux = new BayeuxServerImpl();
+
+    @Before
+    public void init() throws Exception
+    {
+        _bayeux.start();
+    }
+
+    @After
+    public void destroy() throws Exception
+    {
+        _bayeux.stop();
+    }
+
+    @Test
+    public void testSizeTracksModifications() throws Exception
+    {
+        SessionMessageQueue queue = new SessionMessageQueue();
+        ServerMessage.Mutable message1 = _bayeux.newMessage();
+        ServerMessage.Mutable message2 = _bayeux.newMessage();
+        ServerMessage.Mutable message3 = _bayeux.newMessage();
+        queue.offer(message1);
+        queue.offer(message2);
+        queue.offer(message3);
+        Assert.assertEquals(3, queue.size());
+
+        Assert.assertSame(message1, queue.poll());
+        Assert.assertEquals(2, queue.size());
+
+        Iterator<ServerMessage> iterator = queue.iterator();
+        iterator.next();
+        iterator.remove();
+        Assert.assertEquals(1, queue.size());
+        Assert.assertSame(message3, queue.peek());
+
+        queue.clear();
+        Assert.assertEquals(0, queue.size());
+        Assert.assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testBytesTrackFrozenMessages() throws Exception
+    {
+        SessionMessageQueue queue = new SessionMessageQueue();
+        ServerMessage.Mutable message1 = _bayeux.newMessage();
+        message1.setChannel("/foo");
+        message1.setData("d\u00E0ta1");
+        _bayeux.freeze(message1);
+        ServerMessage.Mutable message2 = _bayeux.newMessage();
+        message2.setChannel("/foo");
+        message2.setData("d\u00E0ta2");
+        _bayeux.freeze(message2);
+        // Mutable messages are not measured.
+        ServerMessage.Mutable message3 = _bayeux.newMessage();
+        queue.offer(message1, null, 0, Long.MAX_VALUE, 0);
+        queue.offer(message2, null, 0, Long.MAX_VALUE, 0);
+        queue.offer(message3, null, 0, Long.MAX_VALUE, 0);
+        // Messages are measured in UTF-8 bytes, not in chars.
+        long size = message1.getJSON().getBytes("UTF-8").length;
+        Assert.assertEquals(message1.getJSON().length() + 1, size);
+        Assert.assertEquals(2 * size, queue.bytes());
+
+        Assert.assertSame(message1, queue.poll());
+        Assert.assertEquals(size, queue.bytes());
+
+        Iterator<ServerMessage> iterator = queue.iterator();
+        iterator.next();
+        iterator.remove();
+        Assert.assertEquals(0, queue.bytes());
+
+        queue.clear();
+        Assert.assertEquals(0, queue.bytes());
+
+        // Without a byte budget, messages are not measured.
+        queue.offer(message1);
+        Assert.assertEquals(0, queue.bytes());
+        Assert.assertSame(message1, queue.poll());
+        Assert.assertEquals(0, queue.bytes());
+    }
+
+    @Test
+    public void testConcurrentOffersDoNotExceedBudgets() throws Exception
+    {
+        final SessionMessageQueue queue = new SessionMessageQueue();
+        final ServerMessage.Mutable message = _bayeux.newMessage();
+        message.setChannel("/foo");
+        message.setData("data");
+        _bayeux.freeze(message);
+        final long size = SessionMessageQueue.sizeOf(message);
+        final int maxSize = 100;
+        final long maxBytes = 50 * size;
+        final long extraBytes = 10 * size;
+
+        int threads = 8;
+        final CyclicBarrier barrier = new CyclicBarrier(threads);
+        final CountDownLatch latch = new CountDownLatch(threads);
+        final AtomicInteger offered = new AtomicInteger();
+        for (int i = 0; i < threads; ++i)
+        {
+            new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        barrier.await();
+                        for (int j = 0; j < 1000; ++j)
+                        {
+                            if (queue.offer(message, null, maxSize, maxBytes, extraBytes))
+                                offered.incrementAndGet();
+                        }
+                        latch.countDown();
+                    }
+                    catch (Exception x)
+                    {
+                        x.printStackTrace();
+                    }
+                }
+            }.start();
+        }
+
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(40, offered.get());
+        Assert.assertEquals(40, queue.size());
+        Assert.assertEquals(40 * size, queue.bytes());
+
+        // The budget on the number of messages applies as well.
+        SessionMessageQueue small = new SessionMessageQueue();
+        Assert.assertTrue(small.offer(message, null, 1, Long.MAX_VALUE, 0));
+        Assert.assertFalse(small.offer(message, null, 1, Long.MAX_VALUE, 0));
+        Assert.assertEquals(size, small.bytes());
+    }
+
+    @Test
+    public void testConflatedMessagesAreReplaced() throws Exception
+    {
+        SessionMessageQueue queue = new SessionMessageQueue();
+        ServerMessage.Mutable other = _bayeux.newMessage();
+        queue.offer(other);
+        ServerMessage.Mutable last = null;
+        for (int i = 0; i < 1000; ++i)
+        {
+            ServerMessage.Mutable message = _bayeux.newMessage();
+            message.setData(i);
+            Assert.assertSame(last, queue.conflate("key"));
+            Assert.assertTrue(queue.offer(message, "key", 0, 0, 0));
+            last = message;
+        }
+        Assert.assertEquals(2, queue.size());
+
+        Iterator<ServerMessage> iterator = queue.iterator();
+        Assert.assertSame(other, iterator.next());
+        Assert.assertSame(last, iterator.next());
+        Assert.assertFalse(iterator.hasNext());
+        // Removing a conflated message removes it from the index.
+        iterator.remove();
+        Assert.assertNull(queue.conflate("key"));
+        Assert.assertEquals(1, queue.size());
+
+        ServerMessage.Mutable message = _bayeux.newMessage();
+        queue.offer(message, "key", 0, 0, 0);
+        Assert.assertSame(other, queue.poll());
+        Assert.assertSame(message, queue.peek());
+        Assert.assertSame(message, queue.poll());
+        Assert.assertTrue(queue.isEmpty());
+        Assert.assertNull(queue.conflate("key"));
+        Assert.assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testConcurrentDeliveriesAreAllDequeued() throws Exception
+    {
+        final ServerSessionImpl session = newServerSession();
+        // Batch, so that deliveries do not flush.
+        session.startBatch();
+
+        final int threads = 4;
+        final int messages = 10000;
+        final CyclicBarrier barrier = new CyclicBarrier(threads + 1);
+        final CountDownLatch latch = new CountDownLatch(threads);
+        for (int i = 0; i < threads; ++i)
+        {
+            new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        barrier.await();
+                        for (int j = 0; j < messages; ++j)
+                            session.deliver(null, "/foo", j);
+                        latch.countDown();
+                    }
+                    catch (Exception x)
+                    {
+                        x.printStackTrace();
+                    }
+                }
+            }.start();
+        }
+
+        barrier.await();
+        int count = 0;
+        while (latch.getCount() > 0)
+            count += session.takeQueue().size();
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        count += session.takeQueue().size();
+
+        Assert.assertEquals(threads * messages, count);
+        Assert.assertEquals(0, session.getQueue().size());
+    }
+
+    @Test
+    public void testQueueListenerAddedWhileDeliveringSeesEnqueuedOrNotifiedMessages() throws Exception
+    {
+        final ServerSessionImpl session = newServerSession();
+        session.startBatch();
+
+        final int messages = 10000;
+        final CountDownLatch latch = new CountDownLatch(1);
+        new Thread()
+        {
+            @Override
+            public void run()
+            {
+                for (int j = 0; j < messages; ++j)
+                    session.deliver(null, "/foo", j);
+                latch.countDown();
+            }
+        }.start();
+
+        final AtomicInteger queued = new AtomicInteger();
+        int initial;
+        synchronized (session.getLock())
+        {
+            session.addListener(new ServerSession.QueueListener()
+            {
+                public void queued(ServerSession sender, ServerMessage message)
+                {
+                    queued.incrementAndGet();
+                }
+            });
+            // All the messages not notified to the listener must be in the queue.
+            initial = session.getQueue().size();
+        }
+
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        List<ServerMessage> queue = session.takeQueue();
+        Assert.assertEquals(messages, queue.size());
+        Assert.assertEquals(messages, initial + queued.get());
+    }
+
+    @Test
+    public void testQueueListenerIsAddedWhileDeliveringContinuously() throws Exception
+    {
+        final ServerSessionImpl session = newServerSession();
+        session.startBatch();
+
+        int threads = 4;
+        final AtomicBoolean delivering = new AtomicBoolean(true);
+        final CountDownLatch latch = new CountDownLatch(threads);
+        for (int i = 0; i < threads; ++i)
+        {
+            new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    while (delivering.get())
+                    {
+                        session.deliver(null, "/foo", "data");
+                        session.getQueue().poll();
+                    }
+                    latch.countDown();
+                }
+            }.start();
+        }
+
+        try
+        {
+            final CountDownLatch added = new CountDownLatch(1);
+            new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    session.addListener(new ServerSession.QueueListener()
+                    {
+                        public void queued(ServerSession sender, ServerMessage message)
+                        {
+                        }
+                    });
+                    added.countDown();
+                }
+            }.start();
+            Assert.assertTrue(added.await(5, TimeUnit.SECONDS));
+        }
+        finally
+        {
+            delivering.set(false);
+            Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        }
+    }
+
+    private ServerSessionImpl newServerSession()
+    {
+        ServerSessionImpl session = _bayeux.newServerSession();
+        _bayeux.addServerSession(session, _bayeux.newMessage());
+        session.handshake();
+        session.connected();
+        return session;
+    }
+}
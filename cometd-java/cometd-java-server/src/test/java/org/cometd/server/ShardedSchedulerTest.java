@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server;
+
+import org.cometd.server.transport.JSONTransport;
+import org.eclipse.jetty.util.thread.Scheduler;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ShardedSchedulerTest
+{
+    private ShardedScheduler scheduler;
+
+    @Before
+    public void prepare() throws Exception
+    {
+        // Few buckets, so that tasks wrap around the wheel.
+        scheduler = new ShardedScheduler("test", 4, 10, 8);
+        scheduler.start();
+    }
+
+    @After
+    public void dispose() throws Exception
+    {
+        scheduler.stop();
+    }
+
+    @Test
+    public void testTaskIsNotRunBeforeItsDelay() throws Exception
+    {
+        final long delay = 500;
+        final long begin = System.nanoTime();
+        final AtomicInteger elapsed = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(1);
+        scheduler.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                elapsed.set((int)TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
+                latch.countDown();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(elapsed.get() >= delay);
+    }
+
+    @Test
+    public void testCancelledTasksAreNotRun() throws Exception
+    {
+        int count = 1000;
+        final AtomicInteger runs = new AtomicInteger();
+        Runnable task = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                runs.incrementAndGet();
+            }
+        };
+        List<Scheduler.Task> tasks = new ArrayList<>();
+        for (int i = 0; i < count; ++i)
+            tasks.add(scheduler.schedule(task, 100 + i % 200, TimeUnit.MILLISECONDS));
+        for (int i = 0; i < count; i += 2)
+            Assert.assertTrue(tasks.get(i).cancel());
+        // Cancelling twice fails.
+        Assert.assertFalse(tasks.get(0).cancel());
+
+        TimeUnit.MILLISECONDS.sleep(600);
+
+        Assert.assertEquals(count / 2, runs.get());
+        // Cancelling an expired task fails.
+        Assert.assertFalse(tasks.get(1).cancel());
+    }
+
+    @Test
+    public void testTasksFromManyThreadsAreAllRun() throws Exception
+    {
+        int threads = 8;
+        final int tasksPerThread = 1000;
+        final CountDownLatch latch = new CountDownLatch(threads * tasksPerThread);
+        final Runnable task = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                latch.countDown();
+            }
+        };
+        for (int i = 0; i < threads; ++i)
+        {
+            new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for (int j = 0; j < tasksPerThread; ++j)
+                    {
+                        // Some tasks are already due, some wrap around the wheel.
+                        scheduler.schedule(new Runnable()
+                        {
+                            @Override
+                            public void run()
+                            {
+                                task.run();
+                            }
+                        }, j % 300, TimeUnit.MILLISECONDS);
+                    }
+                }
+            }.start();
+        }
+
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testTaskThatThrowsDoesNotStopTheShard() throws Exception
+    {
+        final CountDownLatch latch = new CountDownLatch(1);
+        Runnable task = new Runnable()
+        {
+            private int runs;
+
+            @Override
+            public void run()
+            {
+                if (++runs == 1)
+                    throw new IllegalStateException("explicitly_thrown_by_test");
+                latch.countDown();
+            }
+        };
+        // The same task object is always scheduled on the same shard.
+        scheduler.schedule(task, 10, TimeUnit.MILLISECONDS);
+        scheduler.schedule(task, 50, TimeUnit.MILLISECONDS);
+
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testBayeuxServerWithShardedScheduler() throws Exception
+    {
+        BayeuxServerImpl bayeux = new BayeuxServerImpl();
+        bayeux.setOption(BayeuxServerImpl.SCHEDULER_SHARDS_OPTION, 2);
+        bayeux.setOption(BayeuxServerImpl.SCHEDULER_TICK_OPTION, 5);
+        bayeux.addTransport(new JSONTransport(bayeux));
+        bayeux.start();
+        try
+        {
+            final CountDownLatch latch = new CountDownLatch(1);
+            bayeux.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    latch.countDown();
+                }
+            }, 20);
+            Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        }
+        finally
+        {
+            bayeux.stop();
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server;
+
+import org.cometd.bayeux.server.BayeuxServer;
+import org.cometd.bayeux.server.ServerMessage;
+import org.cometd.bayeux.server.ServerSession;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class SlowConsumerPolicyTest
+{
+    private final BayeuxServerImpl _bayeux = new BayeuxServerImpl();
+
+    @Before
+    public void init() throws Exception
+    {
+        _bayeux.start();
+    }
+
+    @After
+    public void destroy() throws Exception
+    {
+        _bayeux.stop();
+    }
+
+    @Test
+    public void testDropOldest() throws Exception
+    {
+        ServerSessionImpl session = newServerSession(new SlowConsumerPolicy.DropOldest(), 3, -1);
+        for (int i = 0; i < 5; ++i)
+            session.deliver(null, "/foo", i);
+
+        Assert.assertEquals(3, session.getQueue().size());
+        Assert.assertEquals(list(2, 3, 4), dataOf(session.takeQueue()));
+    }
+
+    @Test
+    public void testDropLazy() throws Exception
+    {
+        ServerSessionImpl session = newServerSession(new SlowConsumerPolicy.DropLazy(), 2, -1);
+        session.deliver(null, newMessage("/foo", 0, true));
+        session.deliver(null, newMessage("/foo", 1, false));
+        session.deliver(null, newMessage("/foo", 2, false));
+
+        Assert.assertEquals(list(1, 2), dataOf(session.takeQueue()));
+    }
+
+    @Test
+    public void testConflate() throws Exception
+    {
+        ServerSessionImpl session = newServerSession(new SlowConsumerPolicy.Conflate(), 2, -1);
+        session.deliver(null, "/a", 0);
+        session.deliver(null, "/b", 1);
+        session.deliver(null, "/a", 2);
+        session.deliver(null, "/b", 3);
+
+        List<ServerMessage> queue = session.takeQueue();
+        Assert.assertEquals(2, queue.size());
+        Assert.assertEquals("/a", queue.get(0).getChannel());
+        Assert.assertEquals(list(2, 3), dataOf(queue));
+    }
+
+    @Test
+    public void testByteBudgetAccountsPendingWrites() throws Exception
+    {
+        ServerMessage.Mutable sample = newMessage("/foo", 0, false);
+        _bayeux.freeze(sample);
+        long size = SessionMessageQueue.sizeOf(sample);
+        Assert.assertTrue(size > 0);
+
+        // Room for 3 messages.
+        ServerSessionImpl session = newServerSession(new SlowConsumerPolicy.DropOldest(), -1, 3 * size + size / 2);
+        for (int i = 0; i < 3; ++i)
+            session.deliver(null, "/foo", i);
+        Assert.assertFalse(session.isQueueExceeded(null));
+
+        // The queued messages are taken to be written, but the write does not complete.
+        List<ServerMessage> pending = session.takeQueue();
+        long bytes = session.writePending(pending);
+        Assert.assertEquals(3 * size, bytes);
+        Assert.assertEquals(bytes, session.getPendingWriteBytes());
+
+        // The pending write leaves no room for a new message.
+        session.deliver(null, "/foo", 3);
+        Assert.assertEquals(0, session.getQueue().size());
+
+        session.writeComplete(bytes);
+        Assert.assertEquals(0, session.getPendingWriteBytes());
+        session.deliver(null, "/foo", 4);
+        Assert.assertEquals(list(4), dataOf(session.takeQueue()));
+    }
+
+    @Test
+    public void testMetaMessagesAreNotDropped() throws Exception
+    {
+        ServerSessionImpl session = newServerSession(new SlowConsumerPolicy.DropOldest(), 1, -1);
+        ServerMessage.Mutable meta = _bayeux.newMessage();
+        meta.setChannel("/meta/disconnect");
+        meta.setSuccessful(true);
+        session.deliver(null, meta);
+        session.deliver(null, "/foo", 0);
+
+        Assert.assertEquals(1, session.getQueue().size());
+        Assert.assertTrue(session.getQueue().peek().isMeta());
+    }
+
+    @Test
+    public void testDisconnect() throws Exception
+    {
+        final CountDownLatch latch = new CountDownLatch(1);
+        _bayeux.addListener(new BayeuxServer.SessionListener()
+        {
+            public void sessionAdded(ServerSession session, ServerMessage message)
+            {
+            }
+
+            public void sessionRemoved(ServerSession session, boolean timedout)
+            {
+                latch.countDown();
+            }
+        });
+
+        ServerSessionImpl session = newServerSession(new SlowConsumerPolicy.Disconnect(), 2, -1);
+        for (int i = 0; i < 3; ++i)
+            session.deliver(null, "/foo", i);
+
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Assert.assertNull(_bayeux.getSession(session.getId()));
+    }
+
+    @Test
+    public void testPolicyFromOption() throws Exception
+    {
+        AbstractServerTransport transport = (AbstractServerTransport)_bayeux.getTransport("long-polling");
+        Assert.assertTrue(transport.newSlowConsumerPolicy("conflate") instanceof SlowConsumerPolicy.Conflate);
+        Assert.assertTrue(transport.newSlowConsumerPolicy(SlowConsumerPolicy.Disconnect.class.getName()) instanceof SlowConsumerPolicy.Disconnect);
+        try
+        {
+            transport.newSlowConsumerPolicy("unknown");
+            Assert.fail();
+        }
+        catch (IllegalArgumentException expected)
+        {
+        }
+    }
+
+    private ServerSessionImpl newServerSession(SlowConsumerPolicy policy, int maxQueue, long maxQueueBytes)
+    {
+        _bayeux.getOptions().put(AbstractServerTransport.MAX_QUEUE_OPTION, maxQueue);
+        ServerSessionImpl session = _bayeux.newServerSession();
+        _bayeux.addServerSession(session, _bayeux.newMessage());
+        _bayeux.setCurrentTransport((AbstractServerTransport)_bayeux.getTransport("long-polling"));
+        try
+        {
+            session.handshake();
+        }
+        finally
+        {
+            _bayeux.setCurrentTransport(null);
+        }
+        session.connected();
+        session.setMaxQueueBytes(maxQueueBytes);
+        session.setSlowConsumerPolicy(policy);
+        // Batch, so that deliveries do not flush.
+        session.startBatch();
+        return session;
+    }
+
+    private ServerMessage.Mutable newMessage(String channel, Object data, boolean lazy)
+    {
+        ServerMessage.Mutable message = _bayeux.newMessage();
+        message.setChannel(channel);
+        message.setData(data);
+        message.setLazy(lazy);
+        return message;
+    }
+
+    private List<Object> dataOf(List<ServerMessage> messages)
+    {
+        List<Object> result = new ArrayList<>();
+        for (ServerMessage message : messages)
+            result.add(((Number)message.getData()).intValue());
+        return result;
+    }
+
+    private List<Object> list(Object... values)
+    {
+        List<Object> result = new ArrayList<>();
+        Collections.addAll(result, values);
+        return result;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server;
+
+import org.cometd.bayeux.server.ServerChannel;
+import org.cometd.bayeux.server.ServerMessage;
+import org.cometd.bayeux.server.ServerSession;
+import org.eclipse.jetty.client.api.ContentResponse;
+import org.eclipse.jetty.client.api.Request;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class StreamingJSONContextServerTest extends AbstractBayeuxClientServerTest
+{
+    public StreamingJSONContextServerTest(String serverTransport)
+    {
+        super(serverTransport);
+    }
+
+    @Before
+    public void prepare() throws Exception
+    {
+        Map<String, String> options = new HashMap<>();
+        options.put(AbstractServerTransport.JSON_CONTEXT_OPTION, StreamingJSONContextServer.class.getName());
+        options.put(BayeuxServerImpl.METRICS_OPTION, "true");
+        startServer(options);
+    }
+
+    @Test
+    public void testLargePublishBatch() throws Exception
+    {
+        Request handshake = newBayeuxRequest("[{" +
+                "\"channel\": \"/meta/handshake\"," +
+                "\"version\": \"1.0\"," +
+                "\"minimumVersion\": \"1.0\"," +
+                "\"supportedConnectionTypes\": [\"long-polling\"]" +
+                "}]");
+        ContentResponse response = handshake.send();
+        Assert.assertEquals(200, response.getStatus());
+        String clientId = extractClientId(response);
+
+        final String channelName = "/ingest";
+        int count = 1000;
+        final CountDownLatch latch = new CountDownLatch(count);
+        bayeux.createChannelIfAbsent(channelName).getReference().addListener(new ServerChannel.MessageListener()
+        {
+            public boolean onMessage(ServerSession from, ServerChannel channel, ServerMessage.Mutable message)
+            {
+                Map<String, Object> data = message.getDataAsMap();
+                if (data.get("value") instanceof Long && "€".equals(data.get("unit")))
+                    latch.countDown();
+                return true;
+            }
+        });
+
+        StringBuilder batch = new StringBuilder("[");
+        for (int i = 0; i < count; ++i)
+        {
+            if (i > 0)
+                batch.append(",");
+            batch.append("{\"channel\":\"").append(channelName).append("\",")
+                    .append("\"clientId\":\"").append(clientId).append("\",")
+                    .append("\"data\":{\"value\":").append(i).append(",\"unit\":\"€\"}}");
+        }
+        batch.append("]");
+        response = newBayeuxRequest(batch.toString()).send();
+        Assert.assertEquals(200, response.getStatus());
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+        // The parse time is recorded also when parsing while reading.
+        Assert.assertEquals(2, bayeux.getMetrics().getParseTime().getCount());
+    }
+
+    @Test
+    public void testBadJSON() throws Exception
+    {
+        Request badHandshake = newBayeuxRequest("[{" +
+                "\"channel\": \"/meta/handshake\"," +
+                "\"version\": \"1.0\"");
+        ContentResponse response = badHandshake.send();
+        Assert.assertEquals(400, response.getStatus());
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server;
+
+import org.cometd.bayeux.Channel;
+import org.cometd.bayeux.server.ServerMessage;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.Map;
+
+public class StreamingJSONParserTest
+{
+    private final JettyJSONContextServer _jettyContext = new JettyJSONContextServer();
+
+    @Test
+    public void testParsesLikeJettyJSONContextInAnyChunking() throws Exception
+    {
+        String json = "[" +
+                "{\"channel\":\"/meta/connect\",\"clientId\":\"abc123\",\"connectionType\":\"long-polling\",\"id\":\"2\"," +
+                "\"advice\":{\"timeout\":0},\"ext\":{\"ack\":true}}," +
+                " { \"channel\" : \"/foo/bar\" , \"id\" : 3 , \"data\" : {" +
+                "\"string\":\"a\\\"b\\\\c\\/d\\n\\u00e8\\u20AC\\uD83D\\uDE00\u00e0\"," +
+                "\"long\":-1234567890123,\"double\":1.5e3,\"zero\":0,\"true\":true,\"false\":false,\"null\":null," +
+                "\"array\":[1,\"two\",[3],{\"four\":4},[]],\"object\":{},\"empty\":\"\"}}" +
+                "]";
+        byte[] bytes = json.getBytes(Charset.forName("UTF-8"));
+        ServerMessage.Mutable[] expected = _jettyContext.parse(json);
+
+        for (int chunk = 1; chunk <= bytes.length; ++chunk)
+        {
+            StreamingJSONParser parser = new StreamingJSONParser();
+            for (int offset = 0; offset < bytes.length; offset += chunk)
+                parser.parse(bytes, offset, Math.min(chunk, bytes.length - offset));
+            ServerMessage.Mutable[] messages = parser.complete();
+            assertMessagesEquals(expected, messages);
+        }
+    }
+
+    @Test
+    public void testSingleMessage() throws Exception
+    {
+        ServerMessage.Mutable[] messages = parse("{\"channel\":\"/meta/handshake\",\"id\":\"1\"}");
+        Assert.assertEquals(1, messages.length);
+        Assert.assertTrue(messages[0] instanceof ServerMessageImpl);
+        // Well known strings are shared.
+        Assert.assertSame(Channel.META_HANDSHAKE, messages[0].getChannel());
+    }
+
+    @Test
+    public void testRepeatedKeysAreShared() throws Exception
+    {
+        ServerMessage.Mutable[] messages = parse("[" +
+                "{\"channel\":\"/a\",\"data\":{\"temperature\":1}}," +
+                "{\"channel\":\"/a\",\"data\":{\"temperature\":2}}" +
+                "]");
+        String key1 = messages[0].getDataAsMap().keySet().iterator().next();
+        String key2 = messages[1].getDataAsMap().keySet().iterator().next();
+        Assert.assertEquals("temperature", key1);
+        Assert.assertSame(key1, key2);
+    }
+
+    @Test
+    public void testEmptyContent() throws Exception
+    {
+        Assert.assertNull(parse(""));
+        Assert.assertNull(parse("  \r\n"));
+        Assert.assertNull(parse("null"));
+    }
+
+    @Test
+    public void testInvalidContent() throws Exception
+    {
+        String[] invalids = {
+                "[{\"channel\":\"/foo\"", // Incomplete.
+                "[{\"channel\":\"/foo\"}]]", // Trailing content.
+                "[{\"channel\" \"/foo\"}]", // Missing colon.
+                "[{\"channel\":\"/foo\",}]", // Missing key.
+                "[\"/foo\"]", // Not a message.
+                "\"/foo\"", // Not a message.
+                "[{\"data\":tru}]", // Invalid literal.
+                "[{\"data\":1-2}]", // Invalid number.
+                "[{\"data\":\"\\x\"}]", // Invalid escape.
+        };
+        for (String invalid : invalids)
+        {
+            try
+            {
+                parse(invalid);
+                Assert.fail(invalid);
+            }
+            catch (ParseException expected)
+            {
+            }
+        }
+    }
+
+    private ServerMessage.Mutable[] parse(String json) throws ParseException
+    {
+        byte[] bytes = json.getBytes(Charset.forName("UTF-8"));
+        StreamingJSONParser parser = new StreamingJSONParser();
+        parser.parse(bytes, 0, bytes.length);
+        return parser.complete();
+    }
+
+    private void assertMessagesEquals(ServerMessage.Mutable[] expected, ServerMessage.Mutable[] actual)
+    {
+        Assert.assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; ++i)
+            assertValueEquals(expected[i], actual[i]);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void assertValueEquals(Object expected, Object actual)
+    {
+        if (expected instanceof Object[])
+        {
+            Assert.assertTrue(actual instanceof Object[]);
+            Object[] expectedArray = (Object[])expected;
+            Object[] actualArray = (Object[])actual;
+            Assert.assertEquals(Arrays.toString(expectedArray), expectedArray.length, actualArray.length);
+            for (int i = 0; i < expectedArray.length; ++i)
+                assertValueEquals(expectedArray[i], actualArray[i]);
+        }
+        else if (expected instanceof Map)
+        {
+            Assert.assertTrue(actual instanceof Map);
+            Map<String, Object> expectedMap = (Map<String, Object>)expected;
+            Map<String, Object> actualMap = (Map<String, Object>)actual;
+            Assert.assertEquals(expectedMap.keySet(), actualMap.keySet());
+            for (Map.Entry<String, Object> entry : expectedMap.entrySet())
+                assertValueEquals(entry.getValue(), actualMap.get(entry.getKey()));
+        }
+        else
+        {
+            Assert.assertEquals(expected, actual);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server;
+
+import org.cometd.bayeux.server.ServerSession;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+public class SubscriberSetTest
+{
+    private final BayeuxServerImpl _bayeux = new BayeuxServerImpl();
+
+    @Before
+    public void init() throws Exception
+    {
+        _bayeux.start();
+    }
+
+    @After
+    public void destroy() throws Exception
+    {
+        _bayeux.stop();
+    }
+
+    @Test
+    public void testSnapshotIsReusedUntilModified() throws Exception
+    {
+        SubscriberSet set = new SubscriberSet();
+        Assert.assertEquals(0, set.snapshot().length);
+
+        ServerSessionImpl session1 = newServerSession();
+        Assert.assertTrue(set.add(session1));
+        Assert.assertFalse(set.add(session1));
+
+        ServerSession[][] snapshot1 = set.snapshot();
+        Assert.assertEquals(1, SubscriberSet.size(snapshot1));
+        Assert.assertSame(snapshot1, set.snapshot());
+
+        ServerSessionImpl session2 = newServerSession();
+        set.add(session2);
+        ServerSession[][] snapshot2 = set.snapshot();
+        Assert.assertNotSame(snapshot1, snapshot2);
+        // Subscription order is preserved.
+        Assert.assertArrayEquals(new ServerSession[]{session1, session2}, flatten(snapshot2));
+        // Previous snapshots are not modified.
+        Assert.assertArrayEquals(new ServerSession[]{session1}, flatten(snapshot1));
+
+        Assert.assertTrue(set.remove(session1));
+        Assert.assertFalse(set.remove(session1));
+        Assert.assertFalse(set.contains(session1));
+        Assert.assertArrayEquals(new ServerSession[]{session2}, flatten(set.snapshot()));
+    }
+
+    @Test
+    public void testModificationsCopyOnlyTheAffectedChunk() throws Exception
+    {
+        SubscriberSet set = new SubscriberSet(2);
+        List<ServerSessionImpl> sessions = new ArrayList<>();
+        for (int i = 0; i < 6; ++i)
+        {
+            ServerSessionImpl session = newServerSession();
+            sessions.add(session);
+            set.add(session);
+        }
+
+        ServerSession[][] snapshot1 = set.snapshot();
+        Assert.assertEquals(3, snapshot1.length);
+
+        set.remove(sessions.get(3));
+        ServerSession[][] snapshot2 = set.snapshot();
+        Assert.assertEquals(3, snapshot2.length);
+        Assert.assertSame(snapshot1[0], snapshot2[0]);
+        Assert.assertSame(snapshot1[2], snapshot2[2]);
+
+        // Neighbour chunks that fit in one chunk are merged.
+        set.remove(sessions.get(4));
+        ServerSession[][] snapshot3 = set.snapshot();
+        Assert.assertEquals(2, snapshot3.length);
+        Assert.assertSame(snapshot1[0], snapshot3[0]);
+        Assert.assertArrayEquals(new ServerSession[]{sessions.get(0), sessions.get(1), sessions.get(2), sessions.get(5)}, flatten(snapshot3));
+
+        // New subscribers are appended at the end.
+        ServerSessionImpl session = newServerSession();
+        set.add(session);
+        Assert.assertArrayEquals(new ServerSession[]{sessions.get(0), sessions.get(1), sessions.get(2), sessions.get(5), session}, flatten(set.snapshot()));
+        Assert.assertEquals(5, set.size());
+    }
+
+    @Test
+    public void testRandomModificationsKeepSubscriptionOrder() throws Exception
+    {
+        SubscriberSet set = new SubscriberSet(4);
+        List<ServerSession> expected = new ArrayList<>();
+        List<ServerSessionImpl> sessions = new ArrayList<>();
+        for (int i = 0; i < 64; ++i)
+            sessions.add(newServerSession());
+
+        Random random = new Random();
+        for (int i = 0; i < 10000; ++i)
+        {
+            ServerSessionImpl session = sessions.get(random.nextInt(sessions.size()));
+            if (expected.contains(session))
+            {
+                Assert.assertTrue(set.remove(session));
+                expected.remove(session);
+            }
+            else
+            {
+                Assert.assertTrue(set.add(session));
+                expected.add(session);
+            }
+            Assert.assertArrayEquals(expected.toArray(), flatten(set.snapshot()));
+        }
+    }
+
+    @Test
+    public void testIteratorIsNotAffectedByModifications() throws Exception
+    {
+        SubscriberSet set = new SubscriberSet();
+        ServerSessionImpl session1 = newServerSession();
+        ServerSessionImpl session2 = newServerSession();
+        set.add(session1);
+        set.add(session2);
+
+        int count = 0;
+        for (Iterator<ServerSession> iterator = set.iterator(); iterator.hasNext(); )
+        {
+            ServerSession session = iterator.next();
+            set.add(newServerSession());
+            iterator.remove();
+            Assert.assertFalse(set.contains(session));
+            ++count;
+        }
+        Assert.assertEquals(2, count);
+        Assert.assertEquals(2, set.size());
+    }
+
+    @Test
+    public void testConcurrentSubscribeUnsubscribe() throws Exception
+    {
+        final SubscriberSet set = new SubscriberSet(16);
+        int threads = 4;
+        final int sessionsPerThread = 1000;
+        final CyclicBarrier barrier = new CyclicBarrier(threads + 1);
+        final CountDownLatch latch = new CountDownLatch(threads);
+        final List<ServerSessionImpl> kept = new ArrayList<>();
+        for (int t = 0; t < threads; ++t)
+        {
+            final List<ServerSessionImpl> sessions = new ArrayList<>();
+            for (int i = 0; i < sessionsPerThread; ++i)
+                sessions.add(newServerSession());
+            kept.addAll(sessions.subList(0, sessionsPerThread / 2));
+            new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        barrier.await();
+                        for (ServerSessionImpl session : sessions)
+                            set.add(session);
+                        for (ServerSessionImpl session : sessions.subList(sessionsPerThread / 2, sessionsPerThread))
+                            set.remove(session);
+                        latch.countDown();
+                    }
+                    catch (Exception x)
+                    {
+                        x.printStackTrace();
+                    }
+                }
+            }.start();
+        }
+
+        barrier.await();
+        // Take snapshots concurrently with the modifications.
+        while (latch.getCount() > 0)
+            set.snapshot();
+
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(new HashSet<ServerSession>(kept), new HashSet<>(Arrays.asList(flatten(set.snapshot()))));
+    }
+
+    private ServerSession[] flatten(ServerSession[][] snapshot)
+    {
+        List<ServerSession> result = new ArrayList<>();
+        for (ServerSession[] chunk : snapshot)
+            result.addAll(Arrays.asList(chunk));
+        return result.toArray(new ServerSession[result.size()]);
+    }
+
+    private ServerSessionImpl newServerSession()
+    {
+        ServerSessionImpl session = _bayeux.newServerSession();
+        _bayeux.addServerSession(session, _bayeux.newMessage());
+        session.handshake();
+        return session;
+    }
+}
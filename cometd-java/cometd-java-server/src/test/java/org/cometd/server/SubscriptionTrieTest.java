@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server;
+
+import org.cometd.bayeux.server.ServerSession;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class SubscriptionTrieTest
+{
+    private BayeuxServerImpl _bayeux;
+    private SubscriptionTrie _trie;
+
+    @Before
+    public void init() throws Exception
+    {
+        _bayeux = new BayeuxServerImpl();
+        _bayeux.start();
+        _trie = new SubscriptionTrie();
+    }
+
+    @After
+    public void destroy() throws Exception
+    {
+        _bayeux.stop();
+    }
+
+    @Test
+    public void testLeafAndWildSubscribersAreDeduplicated() throws Exception
+    {
+        ServerChannelImpl fooBar = newChannel("/foo/bar");
+        ServerChannelImpl fooStar = newChannel("/foo/*");
+        ServerChannelImpl fooStarStar = newChannel("/foo/**");
+        ServerChannelImpl starStar = newChannel("/**");
+
+        ServerSessionImpl session1 = newServerSession();
+        ServerSessionImpl session2 = newServerSession();
+        ServerSessionImpl session3 = newServerSession();
+
+        subscribe(fooBar, session1);
+        subscribe(fooStar, session1);
+        subscribe(fooStar, session2);
+        subscribe(fooStarStar, session2);
+        subscribe(starStar, session3);
+        subscribe(starStar, session1);
+
+        ServerSession[] subscribers = subscribers(fooBar);
+        Assert.assertEquals(3, subscribers.length);
+        Assert.assertEquals(new HashSet<>(Arrays.asList(session1, session2, session3)), asSet(subscribers));
+    }
+
+    @Test
+    public void testResolvedSubscribersAreCachedUntilSubscriptionsChange() throws Exception
+    {
+        ServerChannelImpl fooBar = newChannel("/foo/bar");
+        ServerChannelImpl fooStarStar = newChannel("/foo/**");
+
+        ServerSessionImpl session1 = newServerSession();
+        subscribe(fooBar, session1);
+
+        ServerSession[][] subscribers1 = _trie.subscribers(fooBar);
+        Assert.assertSame(subscribers1, _trie.subscribers(fooBar));
+
+        ServerSessionImpl session2 = newServerSession();
+        subscribe(fooStarStar, session2);
+
+        ServerSession[][] subscribers2 = _trie.subscribers(fooBar);
+        Assert.assertNotSame(subscribers1, subscribers2);
+        Assert.assertEquals(2, SubscriberSet.size(subscribers2));
+
+        unsubscribe(fooBar, session1);
+
+        ServerSession[] subscribers3 = subscribers(fooBar);
+        Assert.assertEquals(1, subscribers3.length);
+        Assert.assertSame(session2, subscribers3[0]);
+    }
+
+    @Test
+    public void testRemovedWildChannelDoesNotMatch() throws Exception
+    {
+        ServerChannelImpl fooBar = newChannel("/foo/bar");
+        ServerChannelImpl fooStar = newChannel("/foo/*");
+
+        ServerSessionImpl session = newServerSession();
+        subscribe(fooStar, session);
+        Assert.assertEquals(1, subscribers(fooBar).length);
+
+        _trie.remove(fooStar);
+        Assert.assertEquals(0, subscribers(fooBar).length);
+    }
+
+    @Test
+    public void testShallowWildDoesNotMatchDeeperChannels() throws Exception
+    {
+        ServerChannelImpl fooBarBaz = newChannel("/foo/bar/baz");
+        ServerChannelImpl fooStar = newChannel("/foo/*");
+        ServerChannelImpl fooStarStar = newChannel("/foo/**");
+
+        ServerSessionImpl session1 = newServerSession();
+        subscribe(fooStar, session1);
+        ServerSessionImpl session2 = newServerSession();
+        subscribe(fooStarStar, session2);
+
+        ServerSession[] subscribers = subscribers(fooBarBaz);
+        Assert.assertEquals(1, subscribers.length);
+        Assert.assertSame(session2, subscribers[0]);
+    }
+
+    @Test
+    public void testRemovedChannelStillResolvesWildSubscribers() throws Exception
+    {
+        ServerChannelImpl fooBarBaz = newChannel("/foo/bar/baz");
+        ServerChannelImpl fooStarStar = newChannel("/foo/**");
+
+        ServerSessionImpl session = newServerSession();
+        subscribe(fooStarStar, session);
+
+        // Prunes the /foo/bar node.
+        _trie.remove(fooBarBaz);
+        // Recreates the /foo/bar node.
+        ServerChannelImpl fooBarStarStar = newChannel("/foo/bar/**");
+        ServerSessionImpl session2 = newServerSession();
+        subscribe(fooBarStarStar, session2);
+
+        ServerSession[] subscribers = subscribers(fooBarBaz);
+        Assert.assertEquals(new HashSet<>(Arrays.asList(session, session2)), asSet(subscribers));
+    }
+
+    @Test
+    public void testTemplateChannelMatchesLikeChannelIdWilds() throws Exception
+    {
+        ServerChannelImpl template = newChannel("/foo/{var}");
+        ServerChannelImpl deepTemplate = newChannel("/foo/{var}/baz");
+        ServerChannelImpl fooStar = newChannel("/foo/*");
+        ServerChannelImpl fooStarStar = newChannel("/foo/**");
+
+        ServerSessionImpl session1 = newServerSession();
+        subscribe(fooStar, session1);
+        ServerSessionImpl session2 = newServerSession();
+        subscribe(fooStarStar, session2);
+
+        // ChannelId.getWilds() for /foo/{var} is [/foo/*, /foo/**, /**].
+        Assert.assertEquals(new HashSet<>(Arrays.asList(session1, session2)), asSet(subscribers(template)));
+
+        // ChannelId.getWilds() for /foo/{var}/baz is [/foo/**, /**].
+        ServerSession[] subscribers = subscribers(deepTemplate);
+        Assert.assertEquals(1, subscribers.length);
+        Assert.assertSame(session2, subscribers[0]);
+    }
+
+    @Test
+    public void testInvalidChannelIdIsIgnored() throws Exception
+    {
+        ServerChannelImpl invalid = newChannel("/foo/{var}/*");
+        ServerSessionImpl session = newServerSession();
+        subscribe(invalid, session);
+
+        ServerChannelImpl fooBar = newChannel("/foo/bar");
+        Assert.assertEquals(0, subscribers(fooBar).length);
+
+        _trie.remove(invalid);
+    }
+
+    private ServerChannelImpl newChannel(String name)
+    {
+        ServerChannelImpl channel = new ServerChannelImpl(_bayeux, _bayeux.newChannelId(name));
+        channel.initialized();
+        _trie.add(channel);
+        return channel;
+    }
+
+    private void subscribe(ServerChannelImpl channel, ServerSessionImpl session)
+    {
+        channel.subscribers().add(session);
+        _trie.subscriptionsChanged(channel);
+    }
+
+    private void unsubscribe(ServerChannelImpl channel, ServerSessionImpl session)
+    {
+        channel.subscribers().remove(session);
+        _trie.subscriptionsChanged(channel);
+    }
+
+    private ServerSession[] subscribers(ServerChannelImpl channel)
+    {
+        List<ServerSession> result = new ArrayList<>();
+        for (ServerSession[] chunk : _trie.subscribers(channel))
+            result.addAll(Arrays.asList(chunk));
+        return result.toArray(new ServerSession[result.size()]);
+    }
+
+    private Set<ServerSession> asSet(ServerSession[] sessions)
+    {
+        return new HashSet<>(Arrays.asList(sessions));
+    }
+
+    private ServerSessionImpl newServerSession()
+    {
+        ServerSessionImpl session = _bayeux.newServerSession();
+        _bayeux.addServerSession(session, _bayeux.newMessage());
+        session.handshake();
+        return session;
+    }
+}
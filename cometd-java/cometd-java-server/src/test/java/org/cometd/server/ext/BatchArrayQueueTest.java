@@ -102,4 +102,46 @@ public class BatchArrayQueueTest
         for (String element: queue)
             Assert.assertTrue(element.startsWith("B"));
     }
+
+    @Test
+    public void test_Wrap_Grow_Export_Clear() throws Exception
+    {
+        BatchArrayQueue<String> queue = new BatchArrayQueue<>(4, this);
+
+        // Move the head, so that the elements wrap around the end of the array.
+        queue.offer("X1");
+        queue.offer("X2");
+        queue.offer("X3");
+        queue.clearToBatch(queue.getBatch());
+        queue.nextBatch();
+        Assert.assertEquals(0, queue.size());
+
+        for (int b = 0; b < 5; ++b)
+        {
+            for (int i = 0; i < 3; ++i)
+                queue.offer("B" + queue.getBatch() + "_" + i);
+            queue.nextBatch();
+        }
+        Assert.assertEquals(15, queue.size());
+
+        long batch = queue.getBatch();
+        Queue<String> target = new ArrayQueue<>();
+        queue.exportMessagesToBatch(target, batch - 3);
+        Assert.assertEquals(9, target.size());
+        Assert.assertEquals("B2_0", target.peek());
+
+        queue.clearToBatch(batch - 4);
+        Assert.assertEquals(9, queue.size());
+        Assert.assertEquals("B4_0", queue.peek());
+        Assert.assertEquals(batch - 3, queue.batchOf(0));
+
+        // Clearing to an older batch has no effect.
+        queue.clearToBatch(1);
+        Assert.assertEquals(9, queue.size());
+
+        queue.clearToBatch(batch);
+        Assert.assertTrue(queue.isEmpty());
+        queue.offer("C");
+        Assert.assertEquals("C", queue.poll());
+    }
 }
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server.ext;
+
+import org.cometd.bayeux.server.ServerMessage;
+import org.cometd.server.BayeuxServerImpl;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class MappedMessageLogTest
+{
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+    private final BayeuxServerImpl bayeux = new BayeuxServerImpl();
+    private MappedMessageLog log;
+
+    @Before
+    public void init() throws Exception
+    {
+        bayeux.start();
+    }
+
+    @After
+    public void destroy() throws Exception
+    {
+        if (log != null)
+            log.stop();
+        bayeux.stop();
+    }
+
+    @Test
+    public void testMessagesAreReadBackUntilAcknowledged() throws Exception
+    {
+        startLog(1024);
+        MappedMessageLog.Cursor cursor = log.newCursor();
+        cursor.offer(newMessage("/foo", "data1"));
+        cursor.nextBatch();
+        cursor.offer(newMessage("/foo", "data2"));
+
+        Queue<ServerMessage> queue = new ArrayDeque<>();
+        cursor.exportMessagesToBatch(queue, 1);
+        Assert.assertEquals(1, queue.size());
+        ServerMessage message = queue.poll();
+        Assert.assertEquals("/foo", message.getChannel());
+        Assert.assertEquals("data1", message.getData());
+
+        cursor.clearToBatch(1);
+        Assert.assertEquals(1, cursor.size());
+        cursor.exportMessagesToBatch(queue, 2);
+        Assert.assertEquals("data2", queue.poll().getData());
+    }
+
+    @Test
+    public void testMessageDeliveredToManySessionsIsAppendedOnce() throws Exception
+    {
+        startLog(1024);
+        MappedMessageLog.Cursor cursor1 = log.newCursor();
+        MappedMessageLog.Cursor cursor2 = log.newCursor();
+        ServerMessage message = newMessage("/foo", "data");
+        cursor1.offer(message);
+        cursor2.offer(message);
+
+        Queue<ServerMessage> queue = new ArrayDeque<>();
+        cursor1.exportMessagesToBatch(queue, 1);
+        cursor2.exportMessagesToBatch(queue, 1);
+        Assert.assertEquals(2, queue.size());
+        for (ServerMessage exported : queue)
+            Assert.assertEquals("data", exported.getData());
+        // The next message is appended right after the only copy of the shared message.
+        Assert.assertEquals(4 + message.getJSON().length(), log.append(newMessage("/foo", "data")));
+    }
+
+    @Test
+    public void testSegmentsAreDeletedWhenAllSessionsAcknowledge() throws Exception
+    {
+        // Small segments, so that each holds few messages.
+        startLog(128);
+        MappedMessageLog.Cursor cursor1 = log.newCursor();
+        MappedMessageLog.Cursor cursor2 = log.newCursor();
+        for (int i = 0; i < 20; ++i)
+        {
+            ServerMessage message = newMessage("/foo", "data" + i);
+            cursor1.offer(message);
+            cursor2.offer(message);
+            cursor1.nextBatch();
+            cursor2.nextBatch();
+        }
+        int segments = log.getSegmentCount();
+        Assert.assertTrue(segments > 2);
+        Assert.assertEquals(segments, segmentFiles());
+
+        // Only one session acknowledges: no segment can be deleted.
+        cursor1.clearToBatch(20);
+        Assert.assertEquals(segments, log.getSegmentCount());
+
+        cursor2.clearToBatch(10);
+        int remaining = log.getSegmentCount();
+        Assert.assertTrue(remaining < segments);
+        Assert.assertEquals(remaining, segmentFiles());
+
+        // A removed session releases its entries.
+        cursor2.clear();
+        Assert.assertEquals(1, log.getSegmentCount());
+    }
+
+    @Test
+    public void testMessageLargerThanSegment() throws Exception
+    {
+        startLog(64);
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 256; ++i)
+            builder.append('x');
+        MappedMessageLog.Cursor cursor = log.newCursor();
+        cursor.offer(newMessage("/foo", builder.toString()));
+
+        Queue<ServerMessage> queue = new ArrayDeque<>();
+        cursor.exportMessagesToBatch(queue, 1);
+        Assert.assertEquals(builder.toString(), queue.poll().getData());
+    }
+
+    @Test
+    public void testConcurrentAppendsAndAcknowledgements() throws Exception
+    {
+        startLog(512);
+        final int threads = 8;
+        final int messages = 500;
+        final CyclicBarrier barrier = new CyclicBarrier(threads);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; ++t)
+        {
+            final int worker = t;
+            workers[t] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        MappedMessageLog.Cursor cursor = log.newCursor();
+                        barrier.await();
+                        Queue<ServerMessage> queue = new ArrayDeque<>();
+                        for (int i = 0; i < messages; ++i)
+                        {
+                            cursor.offer(newMessage("/foo", worker + "_" + i));
+                            cursor.nextBatch();
+                            cursor.exportMessagesToBatch(queue, i + 1);
+                            Assert.assertEquals(worker + "_" + i, queue.poll().getData());
+                            cursor.clearToBatch(i + 1);
+                        }
+                    }
+                    catch (Throwable x)
+                    {
+                        failure.compareAndSet(null, x);
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        for (Thread worker : workers)
+            worker.join();
+
+        Assert.assertNull(failure.get());
+        // Only the current segment is left.
+        Assert.assertEquals(1, log.getSegmentCount());
+        Assert.assertEquals(1, segmentFiles());
+    }
+
+    private void startLog(int segmentSize) throws Exception
+    {
+        log = new MappedMessageLog(folder.getRoot(), segmentSize);
+        log.start();
+    }
+
+    private int segmentFiles()
+    {
+        File[] files = folder.getRoot().listFiles();
+        return files == null ? 0 : files.length;
+    }
+
+    private ServerMessage newMessage(String channel, Object data)
+    {
+        ServerMessage.Mutable message = bayeux.newMessage();
+        message.setChannel(channel);
+        message.setData(data);
+        bayeux.freeze(message);
+        return message;
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server.ext;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cometd.bayeux.ChannelId;
+import org.cometd.bayeux.Message;
+import org.cometd.bayeux.server.Authorizer;
+import org.cometd.bayeux.server.BayeuxServer;
+import org.cometd.bayeux.server.ServerChannel;
+import org.cometd.bayeux.server.ServerMessage;
+import org.cometd.bayeux.server.ServerSession;
+import org.cometd.common.JSONContext;
+import org.cometd.common.JettyJSONContextClient;
+import org.cometd.server.AbstractBayeuxClientServerTest;
+import org.eclipse.jetty.client.api.ContentResponse;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RateLimitExtensionTest extends AbstractBayeuxClientServerTest
+{
+    private final JSONContext.Client parser = new JettyJSONContextClient();
+
+    public RateLimitExtensionTest(String serverTransport)
+    {
+        super(serverTransport);
+    }
+
+    @Test
+    public void testExceedingMessagesAreRejected() throws Exception
+    {
+        startServer(null);
+        RateLimitExtension extension = new RateLimitExtension(bayeux);
+        extension.addRule(new RateLimitExtension.Rule("/chat/**", 1, 2));
+        bayeux.addExtension(extension);
+
+        String clientId = handshake();
+        Message.Mutable[] replies = publish(clientId, "/chat/room", 3);
+
+        Assert.assertEquals(3, replies.length);
+        Assert.assertTrue(replies[0].isSuccessful());
+        Assert.assertTrue(replies[1].isSuccessful());
+        Assert.assertFalse(replies[2].isSuccessful());
+        Assert.assertTrue(((String)replies[2].get(Message.ERROR_FIELD)).startsWith("429:"));
+
+        // Channels that do not match are not limited.
+        replies = publish(clientId, "/other", 3);
+        for (Message.Mutable reply : replies)
+            Assert.assertTrue(reply.isSuccessful());
+
+        // Each session has its own bucket.
+        replies = publish(handshake(), "/chat/room", 1);
+        Assert.assertTrue(replies[0].isSuccessful());
+    }
+
+    @Test
+    public void testSharedBucket() throws Exception
+    {
+        startServer(null);
+        RateLimitExtension extension = new RateLimitExtension(bayeux);
+        RateLimitExtension.Rule rule = new RateLimitExtension.Rule("/chat/*", 1, 1);
+        rule.setPerSession(false);
+        extension.addRule(rule);
+        bayeux.addExtension(extension);
+
+        Assert.assertTrue(publish(handshake(), "/chat/room", 1)[0].isSuccessful());
+        Assert.assertFalse(publish(handshake(), "/chat/room", 1)[0].isSuccessful());
+    }
+
+    @Test
+    public void testExceedingMessagesAreDelayed() throws Exception
+    {
+        startServer(null);
+        RateLimitExtension extension = new RateLimitExtension(bayeux);
+        RateLimitExtension.Rule rule = new RateLimitExtension.Rule("/chat/room", 10, 1);
+        rule.setPolicy(RateLimitExtension.Policy.DELAY);
+        rule.setMaxDelay(1000);
+        extension.addRule(rule);
+        bayeux.addExtension(extension);
+
+        int count = 3;
+        final CountDownLatch latch = new CountDownLatch(count);
+        ServerChannel channel = bayeux.createChannelIfAbsent("/chat/room").getReference();
+        channel.addListener(new ServerChannel.MessageListener()
+        {
+            public boolean onMessage(ServerSession from, ServerChannel channel, ServerMessage.Mutable message)
+            {
+                latch.countDown();
+                return true;
+            }
+        });
+
+        long begin = System.nanoTime();
+        Message.Mutable[] replies = publish(handshake(), "/chat/room", count);
+        for (Message.Mutable reply : replies)
+            Assert.assertTrue(reply.isSuccessful());
+
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        // The last message waits for 2 intervals of 100 ms.
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+        Assert.assertTrue(elapsed >= 150);
+    }
+
+    @Test
+    public void testDelayedMessagesArePublishedInOrder() throws Exception
+    {
+        startServer(null);
+        RateLimitExtension extension = new RateLimitExtension(bayeux);
+        RateLimitExtension.Rule rule = new RateLimitExtension.Rule("/chat/room", 1000, 1);
+        rule.setPolicy(RateLimitExtension.Policy.DELAY);
+        rule.setMaxDelay(1000);
+        extension.addRule(rule);
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        extension.setExecutor(new Executor()
+        {
+            @Override
+            public void execute(final Runnable task)
+            {
+                executor.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        // Give the other threads a chance to overtake this one.
+                        sleep((long)(Math.random() * 5));
+                        task.run();
+                    }
+                });
+            }
+        });
+        bayeux.addExtension(extension);
+
+        int count = 50;
+        final CountDownLatch latch = new CountDownLatch(count);
+        final Queue<Object> published = new ConcurrentLinkedQueue<>();
+        ServerChannel channel = bayeux.createChannelIfAbsent("/chat/room").getReference();
+        channel.addListener(new ServerChannel.MessageListener()
+        {
+            public boolean onMessage(ServerSession from, ServerChannel channel, ServerMessage.Mutable message)
+            {
+                published.offer(((Number)message.getData()).intValue());
+                latch.countDown();
+                return true;
+            }
+        });
+
+        Message.Mutable[] replies = publish(handshake(), "/chat/room", count);
+        for (Message.Mutable reply : replies)
+            Assert.assertTrue(reply.isSuccessful());
+
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        List<Object> expected = new ArrayList<>();
+        for (int i = 0; i < count; ++i)
+            expected.add(i);
+        Assert.assertEquals(expected, new ArrayList<>(published));
+        executor.shutdown();
+    }
+
+    @Test
+    public void testDelayedMessagesAreAuthorizedOnceAndPublishedByTheExecutor() throws Exception
+    {
+        startServer(null);
+        final AtomicInteger received = new AtomicInteger();
+        bayeux.addExtension(new BayeuxServer.Extension.Adapter()
+        {
+            @Override
+            public boolean rcv(ServerSession from, ServerMessage.Mutable message)
+            {
+                received.incrementAndGet();
+                return true;
+            }
+        });
+        RateLimitExtension extension = new RateLimitExtension(bayeux);
+        RateLimitExtension.Rule rule = new RateLimitExtension.Rule("/chat/room", 10, 1);
+        rule.setPolicy(RateLimitExtension.Policy.DELAY);
+        extension.addRule(rule);
+        final AtomicInteger executed = new AtomicInteger();
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        extension.setExecutor(new Executor()
+        {
+            @Override
+            public void execute(Runnable task)
+            {
+                executed.incrementAndGet();
+                executor.execute(task);
+            }
+        });
+        bayeux.addExtension(extension);
+
+        ServerChannel channel = bayeux.createChannelIfAbsent("/chat/room").getReference();
+        channel.addAuthorizer(new Authorizer()
+        {
+            @Override
+            public Result authorize(Operation operation, ChannelId channel, ServerSession session, ServerMessage message)
+            {
+                // Deny the last message, which is delayed.
+                return ((Number)message.getData()).intValue() == 2 ? Result.deny("test") : Result.grant();
+            }
+        });
+        final Queue<Object> published = new ConcurrentLinkedQueue<>();
+        channel.addListener(new ServerChannel.MessageListener()
+        {
+            public boolean onMessage(ServerSession from, ServerChannel channel, ServerMessage.Mutable message)
+            {
+                published.offer(((Number)message.getData()).intValue());
+                return true;
+            }
+        });
+
+        Message.Mutable[] replies = publish(handshake(), "/chat/room", 3);
+        Assert.assertTrue(replies[0].isSuccessful());
+        Assert.assertTrue(replies[1].isSuccessful());
+        Assert.assertFalse(replies[2].isSuccessful());
+
+        // Wait for the delayed message.
+        Thread.sleep(500);
+        Assert.assertEquals(Arrays.<Object>asList(0, 1), new ArrayList<>(published));
+        // Each message is received only once.
+        Assert.assertEquals(3, received.get());
+        Assert.assertEquals(1, executed.get());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testDelayBeyondMaxDelayIsRejected() throws Exception
+    {
+        startServer(null);
+        RateLimitExtension extension = new RateLimitExtension(bayeux);
+        RateLimitExtension.Rule rule = new RateLimitExtension.Rule("/chat/room", 1, 1);
+        rule.setPolicy(RateLimitExtension.Policy.DELAY);
+        rule.setMaxDelay(100);
+        extension.addRule(rule);
+        bayeux.addExtension(extension);
+
+        Message.Mutable[] replies = publish(handshake(), "/chat/room", 2);
+        Assert.assertTrue(replies[0].isSuccessful());
+        Assert.assertFalse(replies[1].isSuccessful());
+    }
+
+    private static void sleep(long millis)
+    {
+        try
+        {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException x)
+        {
+            throw new RuntimeException(x);
+        }
+    }
+
+    private String handshake() throws Exception
+    {
+        ContentResponse response = newBayeuxRequest("[{" +
+                "\"channel\": \"/meta/handshake\"," +
+                "\"version\": \"1.0\"," +
+                "\"minimumVersion\": \"1.0\"," +
+                "\"supportedConnectionTypes\": [\"long-polling\"]" +
+                "}]").send();
+        Assert.assertEquals(200, response.getStatus());
+        return extractClientId(response);
+    }
+
+    private Message.Mutable[] publish(String clientId, String channel, int count) throws Exception
+    {
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < count; ++i)
+        {
+            if (i > 0)
+                builder.append(",");
+            builder.append("{")
+                    .append("\"channel\": \"").append(channel).append("\",")
+                    .append("\"clientId\": \"").append(clientId).append("\",")
+                    .append("\"data\": ").append(i)
+                    .append("}");
+        }
+        builder.append("]");
+        ContentResponse response = newBayeuxRequest(builder.toString()).send();
+        Assert.assertEquals(200, response.getStatus());
+        return parser.parse(response.getContentAsString());
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server.transport;
+
+import org.cometd.bayeux.Channel;
+import org.cometd.bayeux.Message;
+import org.cometd.common.JSONContext;
+import org.cometd.common.JettyJSONContextClient;
+import org.cometd.server.AbstractBayeuxClientServerTest;
+import org.cometd.server.ServerSessionImpl;
+import org.eclipse.jetty.client.api.ContentResponse;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.http.HttpMethod;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class EventSourceTransportTest extends AbstractBayeuxClientServerTest
+{
+    private final JSONContext.Client parser = new JettyJSONContextClient();
+
+    public EventSourceTransportTest(String serverTransport)
+    {
+        super(serverTransport);
+    }
+
+    @Before
+    public void prepare() throws Exception
+    {
+        startServer(null);
+        EventSourceTransport transport = new EventSourceTransport(bayeux);
+        transport.init();
+        bayeux.addTransport(transport);
+        List<String> allowed = new ArrayList<>(bayeux.getAllowedTransports());
+        allowed.add(EventSourceTransport.NAME);
+        bayeux.setAllowedTransports(allowed);
+    }
+
+    @Test
+    public void testMessagesAreStreamed() throws Exception
+    {
+        String clientId = handshake();
+        EventStream stream = new EventStream(clientId);
+
+        Message.Mutable[] event = stream.nextEvent();
+        Assert.assertEquals(1, event.length);
+        Assert.assertEquals(Channel.META_CONNECT, event[0].getChannel());
+        Assert.assertTrue(event[0].isSuccessful());
+
+        String channel = "/foo";
+        Message.Mutable[] replies = send("[{" +
+                "\"channel\": \"/meta/subscribe\"," +
+                "\"clientId\": \"" + clientId + "\"," +
+                "\"subscription\": \"" + channel + "\"" +
+                "}]");
+        Assert.assertTrue(replies[0].isSuccessful());
+
+        for (int i = 0; i < 2; ++i)
+        {
+            replies = send("[{" +
+                    "\"channel\": \"" + channel + "\"," +
+                    "\"clientId\": \"" + clientId + "\"," +
+                    "\"data\": " + i +
+                    "}]");
+            // The response to the publish only carries the reply.
+            Assert.assertEquals(1, replies.length);
+            Assert.assertTrue(replies[0].isSuccessful());
+
+            // The message is delivered on the stream, which is not completed.
+            event = stream.nextEvent();
+            Assert.assertEquals(1, event.length);
+            Assert.assertEquals(channel, event[0].getChannel());
+            Assert.assertEquals(i, ((Number)event[0].getData()).intValue());
+        }
+        Assert.assertFalse(stream.isComplete());
+
+        disconnect(clientId);
+        Assert.assertTrue(stream.await());
+    }
+
+    @Test
+    public void testMetaConnectReplyEveryTimeout() throws Exception
+    {
+        String clientId = handshake();
+        EventStream stream = new EventStream(clientId);
+        Assert.assertTrue(stream.nextEvent()[0].isSuccessful());
+
+        long begin = System.nanoTime();
+        Message.Mutable[] event = stream.nextEvent();
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+        Assert.assertEquals(Channel.META_CONNECT, event[0].getChannel());
+        Assert.assertTrue(event[0].isSuccessful());
+        Assert.assertTrue("" + elapsed, elapsed >= timeout - timeout / 10);
+        Assert.assertFalse(stream.isComplete());
+        Assert.assertNotNull(bayeux.getSession(clientId));
+
+        disconnect(clientId);
+        event = stream.nextEvent();
+        Assert.assertEquals(Message.RECONNECT_NONE_VALUE, event[event.length - 1].getAdvice().get(Message.RECONNECT_FIELD));
+        Assert.assertTrue(stream.await());
+    }
+
+    @Test
+    public void testUnknownSessionCompletesStream() throws Exception
+    {
+        EventStream stream = new EventStream("unknown");
+
+        Message.Mutable[] event = stream.nextEvent();
+        Assert.assertFalse(event[0].isSuccessful());
+        Assert.assertEquals(Message.RECONNECT_HANDSHAKE_VALUE, event[0].getAdvice().get(Message.RECONNECT_FIELD));
+        Assert.assertTrue(stream.await());
+    }
+
+    @Test
+    public void testNewStreamClosesPreviousStream() throws Exception
+    {
+        String clientId = handshake();
+        EventStream stream1 = new EventStream(clientId);
+        Assert.assertTrue(stream1.nextEvent()[0].isSuccessful());
+
+        EventStream stream2 = new EventStream(clientId);
+        Assert.assertTrue(stream2.nextEvent()[0].isSuccessful());
+        Assert.assertTrue(stream1.await());
+        Assert.assertFalse(stream2.isComplete());
+
+        disconnect(clientId);
+        Assert.assertTrue(stream2.await());
+    }
+
+    @Test
+    public void testClosedStreamRestoresDelivery() throws Exception
+    {
+        String clientId = handshake();
+        ServerSessionImpl session = (ServerSessionImpl)bayeux.getSession(clientId);
+        Assert.assertFalse(session.isMetaConnectDeliveryOnly());
+
+        EventStream stream1 = new EventStream(clientId);
+        Assert.assertTrue(stream1.nextEvent()[0].isSuccessful());
+        Assert.assertTrue(session.isMetaConnectDeliveryOnly());
+
+        // The replacement stream keeps the delivery on the stream.
+        EventStream stream2 = new EventStream(clientId);
+        Assert.assertTrue(stream2.nextEvent()[0].isSuccessful());
+        Assert.assertTrue(stream1.await());
+        Assert.assertTrue(session.isMetaConnectDeliveryOnly());
+
+        // Without streams, for example after the fall back
+        // to long-polling, messages are delivered as before.
+        session.cancelSchedule();
+        Assert.assertTrue(stream2.await());
+        Assert.assertFalse(session.isMetaConnectDeliveryOnly());
+    }
+
+    private String handshake() throws Exception
+    {
+        ContentResponse response = newBayeuxRequest("[{" +
+                "\"channel\": \"/meta/handshake\"," +
+                "\"version\": \"1.0\"," +
+                "\"minimumVersion\": \"1.0\"," +
+                "\"supportedConnectionTypes\": [\"event-source\"]" +
+                "}]").send();
+        Assert.assertEquals(200, response.getStatus());
+        return extractClientId(response);
+    }
+
+    private void disconnect(String clientId) throws Exception
+    {
+        Message.Mutable[] replies = send("[{" +
+                "\"channel\": \"/meta/disconnect\"," +
+                "\"clientId\": \"" + clientId + "\"" +
+                "}]");
+        Assert.assertTrue(replies[0].isSuccessful());
+    }
+
+    private Message.Mutable[] send(String json) throws Exception
+    {
+        ContentResponse response = newBayeuxRequest(json).send();
+        Assert.assertEquals(200, response.getStatus());
+        return parser.parse(response.getContentAsString());
+    }
+
+    private class EventStream extends Response.Listener.Adapter
+    {
+        private final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+        private final CountDownLatch complete = new CountDownLatch(1);
+        private final StringBuilder buffer = new StringBuilder();
+
+        private EventStream(String clientId)
+        {
+            Request request = httpClient.newRequest(cometdURL)
+                    .method(HttpMethod.GET)
+                    .header(HttpHeader.ACCEPT, EventSourceTransport.MIME_TYPE)
+                    .param(AbstractHttpTransport.MESSAGE_PARAM, "[{" +
+                            "\"channel\": \"/meta/connect\"," +
+                            "\"clientId\": \"" + clientId + "\"," +
+                            "\"connectionType\": \"event-source\"" +
+                            "}]");
+            request.send(this);
+        }
+
+        @Override
+        public void onHeaders(Response response)
+        {
+            Assert.assertTrue(response.getHeaders().get(HttpHeader.CONTENT_TYPE).startsWith(EventSourceTransport.MIME_TYPE));
+        }
+
+        @Override
+        public void onContent(Response response, ByteBuffer content)
+        {
+            buffer.append(StandardCharsets.UTF_8.decode(content));
+            int index;
+            while ((index = buffer.indexOf("\n\n")) >= 0)
+            {
+                String event = buffer.substring(0, index);
+                buffer.delete(0, index + 2);
+                Assert.assertTrue(event.startsWith("data: "));
+                events.offer(event.substring("data: ".length()));
+            }
+        }
+
+        @Override
+        public void onComplete(Result result)
+        {
+            complete.countDown();
+        }
+
+        private Message.Mutable[] nextEvent() throws Exception
+        {
+            String event = events.poll(timeout * 2, TimeUnit.MILLISECONDS);
+            Assert.assertNotNull(event);
+            return parser.parse(event);
+        }
+
+        private boolean isComplete()
+        {
+            return complete.getCount() == 0;
+        }
+
+        private boolean await() throws InterruptedException
+        {
+            return complete.await(5, TimeUnit.SECONDS);
+        }
+    }
+}
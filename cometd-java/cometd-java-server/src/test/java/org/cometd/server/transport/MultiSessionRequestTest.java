@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server.transport;
+
+import org.cometd.bayeux.Channel;
+import org.cometd.bayeux.Message;
+import org.cometd.common.JSONContext;
+import org.cometd.common.JettyJSONContextClient;
+import org.cometd.server.AbstractBayeuxClientServerTest;
+import org.eclipse.jetty.client.api.ContentResponse;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.util.FutureResponseListener;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class MultiSessionRequestTest extends AbstractBayeuxClientServerTest
+{
+    private final JSONContext.Client parser = new JettyJSONContextClient();
+
+    public MultiSessionRequestTest(String serverTransport)
+    {
+        super(serverTransport);
+    }
+
+    @Test
+    public void testHandshakeAndConnectMultipleSessions() throws Exception
+    {
+        startMultiSessionServer();
+
+        Message.Mutable[] replies = send("[" +
+                "{\"id\": \"1\", \"channel\": \"/meta/handshake\", \"version\": \"1.0\", \"supportedConnectionTypes\": [\"long-polling\"]}," +
+                "{\"id\": \"2\", \"channel\": \"/meta/handshake\", \"version\": \"1.0\", \"supportedConnectionTypes\": [\"long-polling\"]}" +
+                "]");
+        Assert.assertEquals(2, replies.length);
+        String clientId1 = replies[0].getClientId();
+        String clientId2 = replies[1].getClientId();
+        Assert.assertNotNull(clientId1);
+        Assert.assertNotNull(clientId2);
+        Assert.assertNotEquals(clientId1, clientId2);
+
+        // The first /meta/connect of each session is not held.
+        replies = send("[" + connect(clientId1, "3", true) + "," + connect(clientId2, "4", true) + "]");
+        Assert.assertEquals(2, replies.length);
+        for (Message.Mutable reply : replies)
+        {
+            Assert.assertEquals(Channel.META_CONNECT, reply.getChannel());
+            Assert.assertTrue(reply.isSuccessful());
+        }
+    }
+
+    @Test
+    public void testHeldConnectIsResumedByAnySession() throws Exception
+    {
+        startMultiSessionServer();
+
+        String clientId1 = handshake();
+        String clientId2 = handshake();
+        send("[" + connect(clientId1, "1", true) + "," + connect(clientId2, "2", true) + "]");
+
+        Request request = newBayeuxRequest("[" + connect(clientId1, "3", false) + "," + connect(clientId2, "4", false) + "]");
+        FutureResponseListener listener = new FutureResponseListener(request);
+        request.send(listener);
+
+        // Make sure the /meta/connects are held.
+        Thread.sleep(timeout / 4);
+        Assert.assertFalse(listener.isDone());
+
+        long begin = System.nanoTime();
+        bayeux.getSession(clientId2).deliver(null, "/foo", "data");
+
+        ContentResponse response = listener.get(timeout / 2, TimeUnit.MILLISECONDS);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+        Assert.assertTrue("" + elapsed, elapsed < timeout / 2);
+        Assert.assertEquals(200, response.getStatus());
+
+        // Each /meta/connect reply is followed by the messages of its session.
+        Message.Mutable[] replies = parser.parse(response.getContentAsString());
+        Assert.assertEquals(3, replies.length);
+        Assert.assertEquals(Channel.META_CONNECT, replies[0].getChannel());
+        Assert.assertEquals("3", replies[0].getId());
+        Assert.assertEquals(Channel.META_CONNECT, replies[1].getChannel());
+        Assert.assertEquals("4", replies[1].getId());
+        Assert.assertEquals("/foo", replies[2].getChannel());
+        Assert.assertEquals("data", replies[2].getData());
+    }
+
+    @Test
+    public void testHeldConnectIsResumedByTimeout() throws Exception
+    {
+        startMultiSessionServer();
+
+        String clientId1 = handshake();
+        String clientId2 = handshake();
+        send("[" + connect(clientId1, "1", true) + "," + connect(clientId2, "2", true) + "]");
+
+        long begin = System.nanoTime();
+        Message.Mutable[] replies = send("[" + connect(clientId1, "3", false) + "," + connect(clientId2, "4", false) + "]");
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+
+        Assert.assertTrue("" + elapsed, elapsed >= timeout - timeout / 10);
+        Assert.assertEquals(2, replies.length);
+        Assert.assertTrue(replies[0].isSuccessful());
+        Assert.assertTrue(replies[1].isSuccessful());
+    }
+
+    @Test
+    public void testMultipleSessionsNotAllowedByDefault() throws Exception
+    {
+        startServer(null);
+
+        ContentResponse response = newBayeuxRequest("[" +
+                "{\"channel\": \"/meta/handshake\", \"version\": \"1.0\", \"supportedConnectionTypes\": [\"long-polling\"]}," +
+                "{\"channel\": \"/meta/handshake\", \"version\": \"1.0\", \"supportedConnectionTypes\": [\"long-polling\"]}" +
+                "]").send();
+
+        Assert.assertNotEquals(200, response.getStatus());
+    }
+
+    private void startMultiSessionServer() throws Exception
+    {
+        Map<String, String> options = new HashMap<>();
+        options.put(AbstractHttpTransport.MULTIPLEXED_SESSIONS_OPTION, "true");
+        startServer(options);
+    }
+
+    private String handshake() throws Exception
+    {
+        Message.Mutable[] replies = send("[{" +
+                "\"channel\": \"/meta/handshake\"," +
+                "\"version\": \"1.0\"," +
+                "\"supportedConnectionTypes\": [\"long-polling\"]" +
+                "}]");
+        return replies[0].getClientId();
+    }
+
+    private String connect(String clientId, String id, boolean first)
+    {
+        return "{" +
+                "\"id\": \"" + id + "\"," +
+                "\"channel\": \"/meta/connect\"," +
+                "\"clientId\": \"" + clientId + "\"," +
+                "\"connectionType\": \"long-polling\"" +
+                (first ? ",\"advice\": {\"timeout\": 0}" : "") +
+                "}";
+    }
+
+    private Message.Mutable[] send(String content) throws Exception
+    {
+        ContentResponse response = newBayeuxRequest(content)
+                .timeout(timeout * 2, TimeUnit.MILLISECONDS)
+                .send();
+        Assert.assertEquals(200, response.getStatus());
+        return parser.parse(response.getContentAsString());
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.server.transport;
+
+import org.cometd.bayeux.Message;
+import org.cometd.common.JSONContext;
+import org.cometd.common.JettyJSONContextClient;
+import org.cometd.server.AbstractBayeuxClientServerTest;
+import org.eclipse.jetty.client.api.ContentResponse;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.http.HttpHeader;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class MultiplexedLongPollTest extends AbstractBayeuxClientServerTest
+{
+    private final JSONContext.Client parser = new JettyJSONContextClient();
+
+    public MultiplexedLongPollTest(String serverTransport)
+    {
+        super(serverTransport);
+    }
+
+    @Test
+    public void testMultiplexedHandshakeDoesNotSetBrowserCookie() throws Exception
+    {
+        startMultiplexedServer();
+
+        handshake();
+
+        Assert.assertTrue(httpClient.getCookieStore().getCookies().isEmpty());
+    }
+
+    @Test
+    public void testMultiplexedHoldsConnectsOfSessionsFromSameBrowser() throws Exception
+    {
+        startMultiplexedServer();
+
+        String clientId1 = handshake();
+        String clientId2 = handshake();
+        Assert.assertTrue(connect(clientId1).isSuccessful());
+        Assert.assertTrue(connect(clientId2).isSuccessful());
+
+        // Hold the /meta/connect of the first session.
+        final CountDownLatch latch = new CountDownLatch(1);
+        newConnectRequest(clientId1).send(new Response.CompleteListener()
+        {
+            @Override
+            public void onComplete(Result result)
+            {
+                latch.countDown();
+            }
+        });
+
+        // The /meta/connect of the second session is held as well.
+        long begin = System.nanoTime();
+        Message.Mutable reply = connect(clientId2);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+
+        Assert.assertTrue(reply.isSuccessful());
+        Map<String, Object> advice = reply.getAdvice();
+        Assert.assertTrue(advice == null || advice.get("multiple-clients") == null);
+        Assert.assertTrue("" + elapsed, elapsed >= (timeout - timeout / 10));
+        Assert.assertTrue(latch.await(timeout, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testNonMultiplexedAdvisesMultipleClients() throws Exception
+    {
+        startServer(null);
+
+        String clientId1 = handshake();
+        String clientId2 = handshake();
+        Assert.assertTrue(connect(clientId1).isSuccessful());
+        Assert.assertTrue(connect(clientId2).isSuccessful());
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        newConnectRequest(clientId1).send(new Response.CompleteListener()
+        {
+            @Override
+            public void onComplete(Result result)
+            {
+                latch.countDown();
+            }
+        });
+        // Make sure the first /meta/connect is held.
+        Thread.sleep(timeout / 4);
+
+        Message.Mutable reply = connect(clientId2);
+
+        Assert.assertEquals(Boolean.TRUE, reply.getAdvice().get("multiple-clients"));
+        Assert.assertTrue(latch.await(timeout * 2, TimeUnit.MILLISECONDS));
+    }
+
+    private void startMultiplexedServer() throws Exception
+    {
+        Map<String, String> options = new HashMap<>();
+        options.put(AbstractHttpTransport.MULTIPLEXED_OPTION, "true");
+        startServer(options);
+    }
+
+    private String handshake() throws Exception
+    {
+        Request handshake = newBayeuxRequest("[{" +
+                "\"channel\": \"/meta/handshake\"," +
+                "\"version\": \"1.0\"," +
+                "\"minimumVersion\": \"1.0\"," +
+                "\"supportedConnectionTypes\": [\"long-polling\"]" +
+                "}]");
+        ContentResponse response = handshake.send();
+        Assert.assertEquals(200, response.getStatus());
+        return extractClientId(response);
+    }
+
+    private Request newConnectRequest(String clientId) throws Exception
+    {
+        Request connect = newBayeuxRequest("[{" +
+                "\"channel\": \"/meta/connect\"," +
+                "\"clientId\": \"" + clientId + "\"," +
+                "\"connectionType\": \"long-polling\"" +
+                "}]");
+        // Both sessions come from the same browser.
+        connect.header(HttpHeader.COOKIE.asString(), "BAYEUX_BROWSER=browser1");
+        return connect.timeout(timeout * 2, TimeUnit.MILLISECONDS);
+    }
+
+    private Message.Mutable connect(String clientId) throws Exception
+    {
+        ContentResponse response = newConnectRequest(clientId).send();
+        Assert.assertEquals(200, response.getStatus());
+        Message.Mutable[] replies = parser.parse(response.getContentAsString());
+        Assert.assertEquals(1, replies.length);
+        return replies[0];
+    }
+}
@@ -21,6 +21,7 @@ import org.cometd.bayeux.Message.Mutable;
 import org.cometd.client.transport.HttpClientTransport;
 import org.cometd.client.transport.MessageClientTransport;
 import org.cometd.client.transport.TransportListener;
+import org.cometd.common.BinaryContext;
 
 import java.io.EOFException;
 import java.io.IOException;
@@ -29,6 +30,7 @@ import java.net.CookiePolicy;
 import java.net.URI;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -39,6 +41,7 @@ public abstract class AbstractWebSocketTransport extends HttpClientTransport imp
     public final static String PREFIX = "ws";
     public final static String NAME = "websocket";
     public final static String PROTOCOL_OPTION = "protocol";
+    public final static String BINARY_CONTEXT_OPTION = "binaryContext";
     public final static String CONNECT_TIMEOUT_OPTION = "connectTimeout";
     public final static String IDLE_TIMEOUT_OPTION = "idleTimeout";
     public final static String MAX_MESSAGE_SIZE_OPTION = "maxMessageSize";
@@ -47,6 +50,7 @@ public abstract class AbstractWebSocketTransport extends HttpClientTransport imp
     private ScheduledExecutorService _scheduler;
     private boolean _shutdownScheduler;
     private String _protocol;
+    private BinaryContext.Client _binaryContext;
     private long _connectTimeout;
     private long _idleTimeout;
     private boolean _stickyReconnect;
@@ -88,6 +92,7 @@ public abstract class AbstractWebSocketTransport extends HttpClientTransport imp
         }
 
         _protocol = getOption(PROTOCOL_OPTION, _protocol);
+        _binaryContext = newBinaryContext(getOption(BINARY_CONTEXT_OPTION));
         setMaxNetworkDelay(15000L);
         _connectTimeout = 30000L;
         _idleTimeout = 60000L;
@@ -99,6 +104,61 @@ public abstract class AbstractWebSocketTransport extends HttpClientTransport imp
         return _protocol;
     }
 
+    /**
+     * @return the binary encoding of messages that is offered to the server
+     * as WebSocket subprotocol, or null if binary messages are not used
+     */
+    public BinaryContext.Client getBinaryContext()
+    {
+        return _binaryContext;
+    }
+
+    /**
+     * @param option the value of the {@link #BINARY_CONTEXT_OPTION}: a {@link BinaryContext.Client}
+     *               instance, or the name of a class that implements it
+     * @return the binary encoding of messages, or null if the option is not set
+     */
+    protected BinaryContext.Client newBinaryContext(Object option)
+    {
+        if (option == null)
+            return null;
+        if (option instanceof BinaryContext.Client)
+            return (BinaryContext.Client)option;
+        try
+        {
+            Class<?> binaryContextClass = Thread.currentThread().getContextClassLoader().loadClass(option.toString().trim());
+            if (BinaryContext.Client.class.isAssignableFrom(binaryContextClass))
+                return (BinaryContext.Client)binaryContextClass.getDeclaredConstructor().newInstance();
+        }
+        catch (Exception x)
+        {
+            throw new IllegalArgumentException("Invalid '" + BINARY_CONTEXT_OPTION + "' parameter: " + option, x);
+        }
+        throw new IllegalArgumentException("Invalid '" + BINARY_CONTEXT_OPTION + "' parameter: " + option);
+    }
+
+    /**
+     * @return the WebSocket subprotocols requested to the server, in order of preference
+     */
+    protected List<String> getSubProtocols()
+    {
+        List<String> result = new ArrayList<>(2);
+        if (_binaryContext != null)
+            result.add(_binaryContext.getProtocol());
+        if (_protocol != null)
+            result.add(_protocol);
+        return result;
+    }
+
+    /**
+     * @param subProtocol the WebSocket subprotocol accepted by the server
+     * @return whether messages are exchanged in binary frames with the given subprotocol
+     */
+    protected boolean isBinary(String subProtocol)
+    {
+        return _binaryContext != null && _binaryContext.getProtocol().equals(subProtocol);
+    }
+
     public long getIdleTimeout()
     {
         return _idleTimeout = getOption(IDLE_TIMEOUT_OPTION, _idleTimeout);
@@ -182,6 +242,16 @@ public abstract class AbstractWebSocketTransport extends HttpClientTransport imp
 
         try
         {
+            if (delegate instanceof BinaryDelegate && ((BinaryDelegate)delegate).isBinary())
+            {
+                byte[] content = _binaryContext.generate(messages);
+                if (logger.isDebugEnabled())
+                    logger.debug("Sending messages {} in {} bytes", messages, content.length);
+                listener.onSending(messages);
+                ((BinaryDelegate)delegate).send(content);
+                return;
+            }
+
             String content = generateJSON(messages);
 
             // The onSending() callback must be invoked before the actual send
@@ -453,6 +523,59 @@ public abstract class AbstractWebSocketTransport extends HttpClientTransport imp
         }
     }
 
+    /**
+     * <p>A {@link Delegate} that can also exchange messages in binary frames,
+     * encoded by the {@link #getBinaryContext() binary context}, when the server
+     * accepts its WebSocket subprotocol.</p>
+     * <p>Delegates that do not extend this class always exchange text frames.</p>
+     */
+    protected abstract class BinaryDelegate extends Delegate
+    {
+        private volatile boolean _binary;
+
+        /**
+         * @return whether messages are exchanged in binary frames
+         */
+        protected boolean isBinary()
+        {
+            return _binary;
+        }
+
+        /**
+         * @param binary whether messages are exchanged in binary frames,
+         *               encoded by the {@link #getBinaryContext() binary context}
+         */
+        protected void setBinary(boolean binary)
+        {
+            _binary = binary;
+        }
+
+        protected void onData(byte[] bytes, int offset, int length)
+        {
+            try
+            {
+                List<Mutable> messages = new ArrayList<>(Arrays.asList(_binaryContext.parse(bytes, offset, length)));
+                if (super.isAttached())
+                {
+                    if (logger.isDebugEnabled())
+                        logger.debug("Received messages {}", messages);
+                    onMessages(messages);
+                }
+                else
+                {
+                    if (logger.isDebugEnabled())
+                        logger.debug("Discarded messages {}", messages);
+                }
+            }
+            catch (ParseException x)
+            {
+                fail(x, "Exception");
+            }
+        }
+
+        protected abstract void send(byte[] content);
+    }
+
     private static class WebSocketExchange
     {
         private final Mutable message;
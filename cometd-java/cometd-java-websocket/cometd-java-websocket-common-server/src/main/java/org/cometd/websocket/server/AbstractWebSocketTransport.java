@@ -19,7 +19,9 @@ import java.io.IOException;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
@@ -33,12 +35,17 @@ import org.cometd.bayeux.Message;
 import org.cometd.bayeux.server.BayeuxContext;
 import org.cometd.bayeux.server.ServerMessage;
 import org.cometd.bayeux.server.ServerSession;
+import org.cometd.common.BinaryContext;
 import org.cometd.server.AbstractServerTransport;
+import org.cometd.server.BayeuxMetrics;
 import org.cometd.server.BayeuxServerImpl;
 import org.cometd.server.ServerSessionImpl;
+import org.cometd.server.ShardedScheduler;
 import org.eclipse.jetty.util.Callback;
 import org.eclipse.jetty.util.ConcurrentArrayQueue;
 import org.eclipse.jetty.util.IteratingCallback;
+import org.eclipse.jetty.util.component.LifeCycle;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -47,18 +54,46 @@ public abstract class AbstractWebSocketTransport<S> extends AbstractServerTransp
     public static final String NAME = "websocket";
     public static final String PREFIX = "ws";
     public static final String PROTOCOL_OPTION = "protocol";
+    public static final String BINARY_CONTEXT_OPTION = "binaryContext";
     public static final String MESSAGES_PER_FRAME_OPTION = "messagesPerFrame";
+    public static final String ADAPTIVE_FRAMING_OPTION = "adaptiveFraming";
+    public static final String MAX_FRAME_BYTES_OPTION = "maxFrameBytes";
+    public static final String MAX_FRAME_LATENCY_OPTION = "maxFrameLatency";
     public static final String BUFFER_SIZE_OPTION = "bufferSize";
     public static final String MAX_MESSAGE_SIZE_OPTION = "maxMessageSize";
     public static final String IDLE_TIMEOUT_OPTION = "idleTimeout";
     public static final String THREAD_POOL_MAX_SIZE = "threadPoolMaxSize";
+    public static final String THREAD_POOL_TYPE_OPTION = "threadPoolType";
+    public static final String THREAD_POOL_TYPE_FIXED = "fixed";
+    public static final String THREAD_POOL_TYPE_JETTY = "jetty";
+    public static final String THREAD_POOL_TYPE_VIRTUAL = "virtual";
+    public static final String SCHEDULER_SHARDS_OPTION = "schedulerShards";
     public static final String COMETD_URL_MAPPING = "cometdURLMapping";
+    public static final String PER_MESSAGE_DEFLATE_OPTION = "perMessageDeflate";
+    public static final String PER_MESSAGE_DEFLATE_CONTEXT_TAKEOVER_OPTION = "perMessageDeflateContextTakeover";
+    public static final String PER_MESSAGE_DEFLATE_CLIENT_MAX_WINDOW_BITS_OPTION = "perMessageDeflateClientMaxWindowBits";
+    public static final String PER_MESSAGE_DEFLATE_MIN_SIZE_OPTION = "perMessageDeflateMinSize";
+    public static final String PER_MESSAGE_DEFLATE = "permessage-deflate";
+    private static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+    private static final String CLIENT_NO_CONTEXT_TAKEOVER = "client_no_context_takeover";
+    private static final String SERVER_MAX_WINDOW_BITS = "server_max_window_bits";
+    private static final String CLIENT_MAX_WINDOW_BITS = "client_max_window_bits";
+    private static final int MAX_WINDOW_BITS = 15;
 
     private final ThreadLocal<BayeuxContext> _bayeuxContext = new ThreadLocal<>();
-    private Executor _executor;
+    private MonitoredExecutor _executor;
     private ScheduledExecutorService _scheduler;
+    private ShardedScheduler _shardedScheduler;
     private String _protocol;
+    private BinaryContext.Server _binaryContext;
     private int _messagesPerFrame;
+    private boolean _adaptiveFraming;
+    private int _maxFrameBytes;
+    private long _maxFrameLatency;
+    private boolean _perMessageDeflate;
+    private boolean _perMessageDeflateContextTakeover;
+    private int _perMessageDeflateClientMaxWindowBits;
+    private int _perMessageDeflateMinSize;
 
     protected AbstractWebSocketTransport(BayeuxServerImpl bayeux)
     {
@@ -70,28 +105,152 @@ public abstract class AbstractWebSocketTransport<S> extends AbstractServerTransp
     public void init()
     {
         super.init();
-        _executor = newExecutor();
+        _executor = new MonitoredExecutor(newExecutor());
         _scheduler = newScheduledExecutor();
+        _shardedScheduler = newShardedScheduler();
         _protocol = getOption(PROTOCOL_OPTION, null);
+        _binaryContext = newBinaryContext(getOption(BINARY_CONTEXT_OPTION));
         _messagesPerFrame = getOption(MESSAGES_PER_FRAME_OPTION, 1);
+        _adaptiveFraming = getOption(ADAPTIVE_FRAMING_OPTION, false);
+        _maxFrameBytes = getOption(MAX_FRAME_BYTES_OPTION, 32 * 1024);
+        _maxFrameLatency = getOption(MAX_FRAME_LATENCY_OPTION, 50L);
+        _perMessageDeflate = getOption(PER_MESSAGE_DEFLATE_OPTION, false);
+        _perMessageDeflateContextTakeover = getOption(PER_MESSAGE_DEFLATE_CONTEXT_TAKEOVER_OPTION, true);
+        int windowBits = getOption(PER_MESSAGE_DEFLATE_CLIENT_MAX_WINDOW_BITS_OPTION, MAX_WINDOW_BITS);
+        if (windowBits < 8 || windowBits > MAX_WINDOW_BITS)
+            throw new IllegalArgumentException("Invalid '" + PER_MESSAGE_DEFLATE_CLIENT_MAX_WINDOW_BITS_OPTION + "' parameter: " + windowBits);
+        _perMessageDeflateClientMaxWindowBits = windowBits;
+        _perMessageDeflateMinSize = getOption(PER_MESSAGE_DEFLATE_MIN_SIZE_OPTION, 0);
     }
 
     @Override
     public void destroy()
     {
         _scheduler.shutdownNow();
+        if (_shardedScheduler != null)
+        {
+            try
+            {
+                _shardedScheduler.stop();
+            }
+            catch (Exception x)
+            {
+                _logger.trace("", x);
+            }
+        }
 
-        Executor threadPool = _executor;
+        Executor threadPool = _executor.getExecutor();
         if (threadPool instanceof ExecutorService)
+        {
             ((ExecutorService)threadPool).shutdown();
+        }
+        else if (threadPool instanceof LifeCycle)
+        {
+            try
+            {
+                ((LifeCycle)threadPool).stop();
+            }
+            catch (Exception x)
+            {
+                _logger.trace("", x);
+            }
+        }
 
         super.destroy();
     }
 
+    /**
+     * <p>Creates the executor of this transport, depending on the
+     * {@link #THREAD_POOL_TYPE_OPTION} option:</p>
+     * <ul>
+     * <li>{@value #THREAD_POOL_TYPE_FIXED}, the default, creates a fixed thread pool
+     * of {@link #THREAD_POOL_MAX_SIZE} threads;</li>
+     * <li>{@value #THREAD_POOL_TYPE_JETTY} creates a Jetty {@link QueuedThreadPool}
+     * that grows up to {@link #THREAD_POOL_MAX_SIZE} threads, and shrinks when idle;</li>
+     * <li>{@value #THREAD_POOL_TYPE_VIRTUAL} creates an executor that runs each
+     * task in a new virtual thread, when the JVM supports virtual threads.</li>
+     * </ul>
+     *
+     * @return a new executor for this transport
+     */
     protected Executor newExecutor()
     {
         int size = getOption(THREAD_POOL_MAX_SIZE, 64);
-        return Executors.newFixedThreadPool(size);
+        String type = getOption(THREAD_POOL_TYPE_OPTION, THREAD_POOL_TYPE_FIXED);
+        switch (type)
+        {
+            case THREAD_POOL_TYPE_FIXED:
+            {
+                return Executors.newFixedThreadPool(size);
+            }
+            case THREAD_POOL_TYPE_JETTY:
+            {
+                QueuedThreadPool threadPool = new QueuedThreadPool(size);
+                threadPool.setName("CometD-WebSocket-" + hashCode());
+                try
+                {
+                    threadPool.start();
+                    return threadPool;
+                }
+                catch (Exception x)
+                {
+                    throw new IllegalStateException(x);
+                }
+            }
+            case THREAD_POOL_TYPE_VIRTUAL:
+            {
+                Executor executor = newVirtualThreadExecutor();
+                if (executor != null)
+                    return executor;
+                _logger.warn("Virtual threads not supported by this JVM, using a fixed thread pool of {} threads", size);
+                return Executors.newFixedThreadPool(size);
+            }
+            default:
+            {
+                throw new IllegalArgumentException("Invalid '" + THREAD_POOL_TYPE_OPTION + "' parameter: " + type);
+            }
+        }
+    }
+
+    private Executor newVirtualThreadExecutor()
+    {
+        try
+        {
+            // Looked up reflectively to keep the compatibility with older JVMs.
+            return (Executor)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (Exception x)
+        {
+            _logger.trace("", x);
+            return null;
+        }
+    }
+
+    /**
+     * <p>Creates the binary encoding of messages of this transport from the
+     * {@link #BINARY_CONTEXT_OPTION} option, either a {@link BinaryContext.Server}
+     * instance or the name of a {@link BinaryContext.Server} class.</p>
+     *
+     * @param option the option value
+     * @return a new binary encoding, or null if binary messages are not supported
+     */
+    protected BinaryContext.Server newBinaryContext(Object option)
+    {
+        if (option == null)
+            return null;
+        if (option instanceof BinaryContext.Server)
+            return (BinaryContext.Server)option;
+        try
+        {
+            Class<?> binaryContextClass = Thread.currentThread().getContextClassLoader().loadClass(option.toString().trim());
+            if (BinaryContext.Server.class.isAssignableFrom(binaryContextClass))
+                return (BinaryContext.Server)binaryContextClass.getDeclaredConstructor().newInstance();
+        }
+        catch (Exception x)
+        {
+            throw new IllegalArgumentException("Invalid '" + BINARY_CONTEXT_OPTION + "' parameter: " + option, x);
+        }
+        throw new IllegalArgumentException("Invalid '" + BINARY_CONTEXT_OPTION + "' parameter: " + option);
     }
 
     protected ScheduledExecutorService newScheduledExecutor()
@@ -99,11 +258,44 @@ public abstract class AbstractWebSocketTransport<S> extends AbstractServerTransp
         return Executors.newSingleThreadScheduledExecutor();
     }
 
+    /**
+     * <p>When the {@link #SCHEDULER_SHARDS_OPTION} is greater than 1, creates the
+     * {@link ShardedScheduler} that holds the {@code /meta/connect} messages
+     * until their timeout expires, instead of the {@link #getScheduler() scheduler}.</p>
+     *
+     * @return a new started sharded scheduler, or null if the timeouts are not sharded
+     */
+    private ShardedScheduler newShardedScheduler()
+    {
+        int shards = getOption(SCHEDULER_SHARDS_OPTION, 1);
+        if (shards <= 1)
+            return null;
+        long tick = getOption(BayeuxServerImpl.SCHEDULER_TICK_OPTION, 10L);
+        ShardedScheduler scheduler = new ShardedScheduler("CometD-WebSocket-Scheduler-" + hashCode(), shards, tick);
+        try
+        {
+            scheduler.start();
+            return scheduler;
+        }
+        catch (Exception x)
+        {
+            throw new IllegalStateException(x);
+        }
+    }
+
     public Executor getExecutor()
     {
         return _executor;
     }
 
+    /**
+     * @return the executor of this transport, that records queue depth and latency
+     */
+    public MonitoredExecutor getMonitoredExecutor()
+    {
+        return _executor;
+    }
+
     public ScheduledExecutorService getScheduler()
     {
         return _scheduler;
@@ -114,11 +306,174 @@ public abstract class AbstractWebSocketTransport<S> extends AbstractServerTransp
         return _protocol;
     }
 
+    /**
+     * @return the binary encoding of messages, used by the connections whose
+     * WebSocket subprotocol is its {@link BinaryContext.Server#getProtocol() protocol},
+     * or null if binary messages are not supported
+     */
+    public BinaryContext.Server getBinaryContext()
+    {
+        return _binaryContext;
+    }
+
+    /**
+     * @return the WebSocket subprotocols supported by this transport,
+     * the configured {@link #getProtocol() protocol} and the binary one
+     */
+    protected List<String> getSubProtocols()
+    {
+        List<String> result = new ArrayList<>(2);
+        if (_protocol != null)
+            result.add(_protocol);
+        if (_binaryContext != null)
+            result.add(_binaryContext.getProtocol());
+        return result;
+    }
+
+    /**
+     * @param subProtocol the negotiated WebSocket subprotocol
+     * @return whether messages are exchanged in binary frames with the given subprotocol
+     */
+    protected boolean isBinary(String subProtocol)
+    {
+        return _binaryContext != null && _binaryContext.getProtocol().equals(subProtocol);
+    }
+
     public int getMessagesPerFrame()
     {
         return _messagesPerFrame;
     }
 
+    /**
+     * @return whether the number of messages per frame adapts to the queue depth
+     * and to the write latency, rather than being {@link #getMessagesPerFrame() fixed}
+     */
+    public boolean isAdaptiveFraming()
+    {
+        return _adaptiveFraming;
+    }
+
+    /**
+     * @return the max number of bytes of the messages coalesced in a frame
+     * when {@link #isAdaptiveFraming() adaptive framing} is enabled
+     */
+    public int getMaxFrameBytes()
+    {
+        return _maxFrameBytes;
+    }
+
+    /**
+     * @return the write latency, in milliseconds, above which the size of the frames
+     * is reduced when {@link #isAdaptiveFraming() adaptive framing} is enabled
+     */
+    public long getMaxFrameLatency()
+    {
+        return _maxFrameLatency;
+    }
+
+    /**
+     * @return whether the permessage-deflate extension is negotiated when offered by clients
+     */
+    public boolean isPerMessageDeflate()
+    {
+        return _perMessageDeflate;
+    }
+
+    /**
+     * @return whether the server reuses the compression context across messages
+     */
+    public boolean isPerMessageDeflateContextTakeover()
+    {
+        return _perMessageDeflateContextTakeover;
+    }
+
+    /**
+     * @return the max LZ77 window bits that clients may use to compress messages
+     */
+    public int getPerMessageDeflateClientMaxWindowBits()
+    {
+        return _perMessageDeflateClientMaxWindowBits;
+    }
+
+    /**
+     * @return the min size in bytes of the messages that are compressed,
+     * where smaller messages are sent uncompressed
+     */
+    public int getPerMessageDeflateMinSize()
+    {
+        return _perMessageDeflateMinSize;
+    }
+
+    /**
+     * <p>Negotiates a permessage-deflate offer made by a client, as specified
+     * by RFC 7692, with the configuration of this transport.</p>
+     * <p>The compressor of the server always uses the largest LZ77 window,
+     * so offers that require a smaller server window are declined.</p>
+     *
+     * @param offer the offered extension parameters, with {@code null} values
+     *              for parameters that have no value
+     * @return the parameters of the accepted extension, or {@code null} if the offer is declined
+     */
+    protected Map<String, String> negotiatePerMessageDeflate(Map<String, String> offer)
+    {
+        if (!isPerMessageDeflate())
+            return null;
+
+        Map<String, String> result = new LinkedHashMap<>();
+        for (Map.Entry<String, String> entry : offer.entrySet())
+        {
+            String name = entry.getKey().trim();
+            String value = entry.getValue();
+            switch (name)
+            {
+                case SERVER_NO_CONTEXT_TAKEOVER:
+                case CLIENT_NO_CONTEXT_TAKEOVER:
+                {
+                    result.put(name, null);
+                    break;
+                }
+                case SERVER_MAX_WINDOW_BITS:
+                {
+                    if (parseWindowBits(value) != MAX_WINDOW_BITS)
+                        return null;
+                    break;
+                }
+                case CLIENT_MAX_WINDOW_BITS:
+                {
+                    int windowBits = getPerMessageDeflateClientMaxWindowBits();
+                    if (value != null && !value.isEmpty())
+                        windowBits = Math.min(windowBits, parseWindowBits(value));
+                    if (windowBits < 0)
+                        return null;
+                    if (windowBits < MAX_WINDOW_BITS)
+                        result.put(name, String.valueOf(windowBits));
+                    break;
+                }
+                default:
+                {
+                    // Unknown parameters make the offer invalid.
+                    return null;
+                }
+            }
+        }
+        if (!isPerMessageDeflateContextTakeover())
+            result.put(SERVER_NO_CONTEXT_TAKEOVER, null);
+        return result;
+    }
+
+    private int parseWindowBits(String value)
+    {
+        try
+        {
+            int result = Integer.parseInt(value == null ? "" : value.trim());
+            return result < 8 || result > MAX_WINDOW_BITS ? -1 : result;
+        }
+        catch (NumberFormatException x)
+        {
+            return -1;
+        }
+    }
+
     protected boolean checkProtocol(List<String> serverProtocols, List<String> clientProtocols)
     {
         if (serverProtocols.isEmpty())
@@ -129,7 +484,9 @@ public abstract class AbstractWebSocketTransport<S> extends AbstractServerTransp
             if (serverProtocols.contains(clientProtocol))
                 return true;
         }
-        return false;
+        // The binary subprotocol is optional, JSON is
+        // the default when no protocol is configured.
+        return getProtocol() == null;
     }
 
     @Override
@@ -164,8 +521,56 @@ public abstract class AbstractWebSocketTransport<S> extends AbstractServerTransp
             _logger.debug("", exception);
     }
 
+    protected ServerMessage.Mutable[] parseMessages(byte[] bytes, int offset, int length) throws ParseException
+    {
+        BayeuxMetrics metrics = getBayeux().getMetrics();
+        if (metrics == null)
+            return _binaryContext.parse(bytes, offset, length);
+        long begin = System.nanoTime();
+        ServerMessage.Mutable[] messages = _binaryContext.parse(bytes, offset, length);
+        metrics.getParseTime().record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - begin));
+        return messages;
+    }
+
     protected abstract void send(S wsSession, ServerSession session, String data, Callback callback);
 
+    /**
+     * <p>Sends the given bytes in a binary frame.</p>
+     *
+     * @param wsSession the WebSocket session
+     * @param session   the Bayeux session
+     * @param data      the messages encoded by the {@link #getBinaryContext() binary context}
+     * @param callback  the callback notified when the send completes
+     */
+    protected abstract void send(S wsSession, ServerSession session, byte[] data, Callback callback);
+
+    /**
+     * <p>Sends the given messages as a JSON array.</p>
+     * <p>The list of messages is cleared when this method returns, so
+     * implementations must not retain it.</p>
+     *
+     * @param wsSession the WebSocket session
+     * @param session   the Bayeux session
+     * @param messages  the messages to send
+     * @param callback  the callback notified when the send completes
+     */
+    protected void send(S wsSession, ServerSession session, List<ServerMessage> messages, Callback callback)
+    {
+        int size = messages.size();
+        // Assume 4 fields of 48 chars per message
+        int capacity = size * 4 * 48;
+        StringBuilder builder = new StringBuilder(capacity);
+        builder.append("[");
+        for (int i = 0; i < size; ++i)
+        {
+            if (i > 0)
+                builder.append(",");
+            builder.append(messages.get(i).getJSON());
+        }
+        builder.append("]");
+        send(wsSession, session, builder.toString(), callback);
+    }
+
     protected void onClose(int code, String reason)
     {
     }
@@ -174,16 +579,35 @@ public abstract class AbstractWebSocketTransport<S> extends AbstractServerTransp
     {
         protected final Logger _logger = LoggerFactory.getLogger(getClass().getName() + "." + Integer.toHexString(System.identityHashCode(this)));
         private final Flusher flusher = new Flusher();
+        private final AdaptiveFraming _framing = isAdaptiveFraming() ? new AdaptiveFraming(getMaxFrameBytes(), getMaxFrameLatency()) : null;
         private final BayeuxContext _context;
         private volatile ServerSessionImpl _session;
         private ServerMessage.Mutable _connectReply;
-        private ScheduledFuture<?> _connectTask;
+        private org.eclipse.jetty.util.thread.Scheduler.Task _connectTask;
+        private volatile boolean _binary;
 
         protected AbstractWebSocketScheduler(BayeuxContext context)
         {
             _context = context;
         }
 
+        /**
+         * @return whether messages are exchanged in binary frames
+         */
+        protected boolean isBinary()
+        {
+            return _binary;
+        }
+
+        /**
+         * @param binary whether messages are exchanged in binary frames,
+         *               encoded by the {@link #getBinaryContext() binary context}
+         */
+        protected void setBinary(boolean binary)
+        {
+            _binary = binary;
+        }
+
         protected void send(S wsSession, List<ServerMessage> messages, int batchSize, Callback callback)
         {
             if (messages.isEmpty())
@@ -194,34 +618,12 @@ public abstract class AbstractWebSocketTransport<S> extends AbstractServerTransp
 
             int size = messages.size();
             int batch = Math.min(batchSize, size);
-            // Assume 4 fields of 48 chars per message
-            int capacity = batch * 4 * 48;
-            StringBuilder builder = new StringBuilder(capacity);
-            builder.append("[");
-            if (batch == 1)
-            {
-                // Common path.
-                ServerMessage serverMessage = messages.remove(0);
-                builder.append(serverMessage.getJSON());
-            }
+            List<ServerMessage> batched = batch == size ? messages : messages.subList(0, batch);
+            if (isBinary())
+                AbstractWebSocketTransport.this.send(wsSession, _session, getBinaryContext().generate(batched), callback);
             else
-            {
-                boolean comma = false;
-                for (int b = 0; b < batch; ++b)
-                {
-                    ServerMessage serverMessage = messages.get(b);
-                    if (comma)
-                        builder.append(",");
-                    comma = true;
-                    builder.append(serverMessage.getJSON());
-                }
-                if (batch == size)
-                    messages.clear();
-                else
-                    messages.subList(0, batch).clear();
-            }
-            builder.append("]");
-            AbstractWebSocketTransport.this.send(wsSession, _session, builder.toString(), callback);
+                AbstractWebSocketTransport.this.send(wsSession, _session, batched, callback);
+            batched.clear();
         }
 
         protected void onClose(int code, String reason)
@@ -246,9 +648,31 @@ public abstract class AbstractWebSocketTransport<S> extends AbstractServerTransp
             _logger.info("WebSocket Error", failure);
         }
 
+        private org.eclipse.jetty.util.thread.Scheduler.Task scheduleMetaConnect(Runnable task, long timeout)
+        {
+            ShardedScheduler shardedScheduler = _shardedScheduler;
+            if (shardedScheduler != null)
+                return shardedScheduler.schedule(task, timeout, TimeUnit.MILLISECONDS);
+            final ScheduledFuture<?> future = getScheduler().schedule(task, timeout, TimeUnit.MILLISECONDS);
+            return new org.eclipse.jetty.util.thread.Scheduler.Task()
+            {
+                @Override
+                public boolean cancel()
+                {
+                    return future.cancel(false);
+                }
+
+                @Override
+                public String toString()
+                {
+                    return future.toString();
+                }
+            };
+        }
+
         protected boolean cancelMetaConnectTask(ServerSessionImpl session)
         {
-            final ScheduledFuture<?> connectTask;
+            final org.eclipse.jetty.util.thread.Scheduler.Task connectTask;
             synchronized (session.getLock())
             {
                 connectTask = _connectTask;
@@ -258,7 +682,7 @@ public abstract class AbstractWebSocketTransport<S> extends AbstractServerTransp
                 return false;
             if (_logger.isDebugEnabled())
                 _logger.debug("Cancelling meta connect task {}", connectTask);
-            connectTask.cancel(false);
+            connectTask.cancel();
             return true;
         }
 
@@ -291,6 +715,34 @@ public abstract class AbstractWebSocketTransport<S> extends AbstractServerTransp
             }
         }
 
+        protected void onMessage(S wsSession, byte[] bytes, int offset, int length)
+        {
+            _bayeuxContext.set(_context);
+            getBayeux().setCurrentTransport(AbstractWebSocketTransport.this);
+            try
+            {
+                ServerMessage.Mutable[] messages = parseMessages(bytes, offset, length);
+                if (_logger.isDebugEnabled())
+                    _logger.debug("Parsed {} binary messages", messages.length);
+                processMessages(wsSession, messages);
+            }
+            catch (ParseException x)
+            {
+                close(1011, x.toString());
+                _logger.warn("Error parsing binary messages", x);
+            }
+            catch (Throwable x)
+            {
+                close(1011, x.toString());
+                handleException(wsSession, _session, x);
+            }
+            finally
+            {
+                _bayeuxContext.set(null);
+                getBayeux().setCurrentTransport(null);
+            }
+        }
+
         private void processMessages(S wsSession, ServerMessage.Mutable[] messages) throws IOException
         {
             ServerSessionImpl session = _session;
@@ -418,7 +870,7 @@ public abstract class AbstractWebSocketTransport<S> extends AbstractServerTransp
 
                     // Delay the connect reply until timeout.
                     long expiration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()) + timeout;
-                    _connectTask = getScheduler().schedule(new MetaConnectReplyTask(reply, expiration), timeout, TimeUnit.MILLISECONDS);
+                    _connectTask = scheduleMetaConnect(new MetaConnectReplyTask(reply, expiration), timeout);
                     if (_logger.isDebugEnabled())
                         _logger.debug("Scheduled meta connect {}", _connectTask);
                     reply = null;
@@ -618,8 +1070,16 @@ public abstract class AbstractWebSocketTransport<S> extends AbstractServerTransp
                     // that these would generate a large websocket message that the client
                     // could not handle, so we need to split the messages into batches.
                     int size = queue.size();
-                    int messagesPerFrame = getMessagesPerFrame();
-                    int batchSize = messagesPerFrame > 0 ? Math.min(messagesPerFrame, size) : size;
+                    int batchSize;
+                    if (_framing != null)
+                    {
+                        batchSize = _framing.batchSize(queue);
+                    }
+                    else
+                    {
+                        int messagesPerFrame = getMessagesPerFrame();
+                        batchSize = messagesPerFrame > 0 ? Math.min(messagesPerFrame, size) : size;
+                    }
                     if (_logger.isDebugEnabled())
                         _logger.debug("Processing queue, batch size {}: {}", batchSize, queue);
                     send(wsSession, queue, batchSize, this);
@@ -627,6 +1087,7 @@ public abstract class AbstractWebSocketTransport<S> extends AbstractServerTransp
                 }
 
                 _entries.poll();
+                entry.written();
 
                 // Start the interval timeout after writing the messages
                 // since they may take time to be written, even in case
@@ -644,6 +1105,29 @@ public abstract class AbstractWebSocketTransport<S> extends AbstractServerTransp
                 send(wsSession, replies, replies.size(), this);
                 return Action.SCHEDULED;
             }
+
+            @Override
+            public void succeeded()
+            {
+                if (_framing != null)
+                    _framing.written();
+                super.succeeded();
+            }
+
+            @Override
+            protected void onCompleteFailure(Throwable x)
+            {
+                // The pending messages will never be written,
+                // release them from the session budgets.
+                while (true)
+                {
+                    Entry<S> entry = _entries.poll();
+                    if (entry == null)
+                        break;
+                    entry.written();
+                }
+                super.onCompleteFailure(x);
+            }
         }
 
         private class Entry<W>
@@ -653,6 +1137,7 @@ public abstract class AbstractWebSocketTransport<S> extends AbstractServerTransp
             private final boolean _startInterval;
             private final List<ServerMessage> _queue;
             private final List<ServerMessage> _replies;
+            private final long _pendingBytes;
 
             private Entry(W wsSession, ServerSessionImpl session, boolean startInterval, List<ServerMessage> queue, List<ServerMessage> replies)
             {
@@ -661,6 +1146,16 @@ public abstract class AbstractWebSocketTransport<S> extends AbstractServerTransp
                 this._startInterval = startInterval;
                 this._queue = queue;
                 this._replies = replies;
+                // Account the messages in the session budgets until they are
+                // written, so that a stalled peer cannot make the server buffer
+                // an unbounded amount of messages in the flusher.
+                this._pendingBytes = session == null ? 0 : session.writePending(queue);
+            }
+
+            private void written()
+            {
+                if (_session != null)
+                    _session.writeComplete(_pendingBytes);
             }
 
             @Override
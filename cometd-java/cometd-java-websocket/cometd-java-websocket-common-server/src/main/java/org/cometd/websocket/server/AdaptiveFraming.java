@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.websocket.server;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.cometd.bayeux.server.ServerMessage;
+
+/**
+ * <p>Decides how many queued messages are coalesced in a single WebSocket frame.</p>
+ * <p>As many queued messages as fit in the current byte budget are sent in
+ * one frame, so that a deep queue is sent with few large frames while a
+ * shallow queue is sent immediately with small frames.</p>
+ * <p>The byte budget adapts to the observed write latency: it is halved when
+ * a frame takes longer than the max latency to be written, so that a slow
+ * connection does not hold the writes of other replies for too long, and it
+ * grows back linearly, up to the max frame size, when frames are written quickly.</p>
+ * <p>Instances are not thread-safe and must be used by one flusher only.</p>
+ */
+class AdaptiveFraming
+{
+    private static final int MIN_FRAME_BYTES = 1024;
+
+    private final int _maxFrameBytes;
+    private final int _minFrameBytes;
+    private final long _maxLatency;
+    private int _frameBytes;
+    private long _writeBegin;
+
+    /**
+     * @param maxFrameBytes the max number of bytes of a frame
+     * @param maxLatency    the max write latency of a frame, in milliseconds
+     */
+    AdaptiveFraming(int maxFrameBytes, long maxLatency)
+    {
+        _maxFrameBytes = maxFrameBytes;
+        _minFrameBytes = Math.min(MIN_FRAME_BYTES, maxFrameBytes);
+        _maxLatency = TimeUnit.MILLISECONDS.toNanos(maxLatency);
+        _frameBytes = maxFrameBytes;
+    }
+
+    /**
+     * @return the current byte budget of a frame
+     */
+    int getFrameBytes()
+    {
+        return _frameBytes;
+    }
+
+    /**
+     * <p>Returns how many messages, from the head of the given queue,
+     * fit in the current byte budget, and marks the beginning of the
+     * write of the frame.</p>
+     *
+     * @param queue the queued messages
+     * @return the number of messages to send in the next frame, at least 1
+     */
+    int batchSize(List<ServerMessage> queue)
+    {
+        int size = queue.size();
+        // Brackets around the messages.
+        int bytes = 2;
+        int result = 0;
+        while (result < size)
+        {
+            // Comma between the messages.
+            bytes += sizeOf(queue.get(result)) + (result > 0 ? 1 : 0);
+            if (result > 0 && bytes > _frameBytes)
+                break;
+            ++result;
+        }
+        _writeBegin = System.nanoTime();
+        return Math.max(1, result);
+    }
+
+    /**
+     * <p>Marks the end of the write of the frame whose size was
+     * computed by the last call to {@link #batchSize(List)}.</p>
+     */
+    void written()
+    {
+        long begin = _writeBegin;
+        if (begin == 0)
+            return;
+        _writeBegin = 0;
+        update(System.nanoTime() - begin);
+    }
+
+    void update(long latency)
+    {
+        if (latency > _maxLatency)
+            _frameBytes = Math.max(_minFrameBytes, _frameBytes / 2);
+        else
+            _frameBytes = Math.min(_maxFrameBytes, _frameBytes + Math.max(1, _maxFrameBytes / 8));
+    }
+
+    private int sizeOf(ServerMessage message)
+    {
+        // Frames are written as text, so the budget is estimated from
+        // the length of the JSON, that frozen messages cache, rather
+        // than from its UTF-8 bytes, that would be encoded only to be
+        // measured; the estimate is exact for ASCII content.
+        return message.getJSON().length();
+    }
+}
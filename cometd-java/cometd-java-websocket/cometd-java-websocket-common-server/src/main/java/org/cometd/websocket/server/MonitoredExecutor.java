@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.websocket.server;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.util.annotation.ManagedAttribute;
+import org.eclipse.jetty.util.annotation.ManagedObject;
+import org.eclipse.jetty.util.annotation.ManagedOperation;
+
+/**
+ * <p>An {@link Executor} that records the queue depth of the tasks submitted
+ * to the {@link #getExecutor() executor it wraps}, and the latency between
+ * the submission of a task and the beginning of its execution.</p>
+ */
+@ManagedObject("An executor that records queue depth and latency")
+public class MonitoredExecutor implements Executor
+{
+    private final AtomicInteger _queued = new AtomicInteger();
+    private final AtomicInteger _maxQueued = new AtomicInteger();
+    private final AtomicLong _tasks = new AtomicLong();
+    private final AtomicLong _totalLatency = new AtomicLong();
+    private final AtomicLong _maxLatency = new AtomicLong();
+    private final Executor _executor;
+
+    public MonitoredExecutor(Executor executor)
+    {
+        _executor = executor;
+    }
+
+    /**
+     * @return the executor that executes the tasks
+     */
+    public Executor getExecutor()
+    {
+        return _executor;
+    }
+
+    @Override
+    public void execute(final Runnable task)
+    {
+        final long begin = System.nanoTime();
+        int queued = _queued.incrementAndGet();
+        updateMax(_maxQueued, queued);
+        try
+        {
+            _executor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    long latency = System.nanoTime() - begin;
+                    _queued.decrementAndGet();
+                    _tasks.incrementAndGet();
+                    _totalLatency.addAndGet(latency);
+                    updateMax(_maxLatency, latency);
+                    task.run();
+                }
+
+                @Override
+                public String toString()
+                {
+                    return task.toString();
+                }
+            });
+        }
+        catch (RejectedExecutionException x)
+        {
+            _queued.decrementAndGet();
+            throw x;
+        }
+    }
+
+    @ManagedAttribute(value = "The number of tasks waiting to be executed", readonly = true)
+    public int getQueueSize()
+    {
+        return _queued.get();
+    }
+
+    @ManagedAttribute(value = "The max number of tasks waiting to be executed", readonly = true)
+    public int getMaxQueueSize()
+    {
+        return _maxQueued.get();
+    }
+
+    @ManagedAttribute(value = "The number of tasks executed", readonly = true)
+    public long getTaskCount()
+    {
+        return _tasks.get();
+    }
+
+    @ManagedAttribute(value = "The average time, in microseconds, tasks waited before being executed", readonly = true)
+    public long getAverageLatency()
+    {
+        long tasks = _tasks.get();
+        return tasks == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(_totalLatency.get() / tasks);
+    }
+
+    @ManagedAttribute(value = "The max time, in microseconds, tasks waited before being executed", readonly = true)
+    public long getMaxLatency()
+    {
+        return TimeUnit.NANOSECONDS.toMicros(_maxLatency.get());
+    }
+
+    @ManagedOperation(value = "Resets the statistics", impact = "ACTION")
+    public void reset()
+    {
+        _maxQueued.set(_queued.get());
+        _tasks.set(0);
+        _totalLatency.set(0);
+        _maxLatency.set(0);
+    }
+
+    private static void updateMax(AtomicInteger max, int value)
+    {
+        while (true)
+        {
+            int current = max.get();
+            if (value <= current || max.compareAndSet(current, value))
+                return;
+        }
+    }
+
+    private static void updateMax(AtomicLong max, long value)
+    {
+        while (true)
+        {
+            long current = max.get();
+            if (value <= current || max.compareAndSet(current, value))
+                return;
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s@%x[queued=%d,tasks=%d,%s]", getClass().getSimpleName(), hashCode(), getQueueSize(), getTaskCount(), _executor);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.websocket.server;
+
+import org.cometd.bayeux.server.ServerMessage;
+import org.cometd.server.ServerMessageImpl;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class AdaptiveFramingTest
+{
+    @Test
+    public void testMessagesAreCoalescedWithinBudget() throws Exception
+    {
+        // Each message is 100 bytes, plus a comma.
+        List<ServerMessage> queue = newQueue(50, 100);
+        AdaptiveFraming framing = new AdaptiveFraming(1024, 1000);
+        // 2 + 10 * 100 + 9 = 1011 bytes.
+        Assert.assertEquals(10, framing.batchSize(queue));
+
+        // A shallow queue is sent entirely.
+        Assert.assertEquals(3, framing.batchSize(newQueue(3, 100)));
+    }
+
+    @Test
+    public void testLargeMessageIsSentAlone() throws Exception
+    {
+        AdaptiveFraming framing = new AdaptiveFraming(1024, 1000);
+        Assert.assertEquals(1, framing.batchSize(newQueue(5, 4096)));
+    }
+
+    @Test
+    public void testBudgetAdaptsToWriteLatency() throws Exception
+    {
+        int maxFrameBytes = 64 * 1024;
+        AdaptiveFraming framing = new AdaptiveFraming(maxFrameBytes, 10);
+        Assert.assertEquals(maxFrameBytes, framing.getFrameBytes());
+
+        long slow = TimeUnit.MILLISECONDS.toNanos(20);
+        framing.update(slow);
+        Assert.assertEquals(maxFrameBytes / 2, framing.getFrameBytes());
+        for (int i = 0; i < 32; ++i)
+            framing.update(slow);
+        // Never below the minimum.
+        Assert.assertEquals(1024, framing.getFrameBytes());
+
+        long fast = TimeUnit.MILLISECONDS.toNanos(1);
+        framing.update(fast);
+        Assert.assertEquals(1024 + maxFrameBytes / 8, framing.getFrameBytes());
+        for (int i = 0; i < 16; ++i)
+            framing.update(fast);
+        // Never above the maximum.
+        Assert.assertEquals(maxFrameBytes, framing.getFrameBytes());
+    }
+
+    @Test
+    public void testWrittenWithoutBatchIsIgnored() throws Exception
+    {
+        AdaptiveFraming framing = new AdaptiveFraming(4096, 0);
+        framing.written();
+        Assert.assertEquals(4096, framing.getFrameBytes());
+    }
+
+    private List<ServerMessage> newQueue(int count, int size)
+    {
+        // {"data":"xxx"} is 11 bytes plus the data.
+        char[] chars = new char[size - 11];
+        Arrays.fill(chars, 'x');
+        String data = new String(chars);
+        List<ServerMessage> result = new ArrayList<>();
+        for (int i = 0; i < count; ++i)
+        {
+            ServerMessageImpl message = new ServerMessageImpl();
+            message.setData(data);
+            Assert.assertEquals(size, message.getJSON().length());
+            result.add(message);
+        }
+        return result;
+    }
+}
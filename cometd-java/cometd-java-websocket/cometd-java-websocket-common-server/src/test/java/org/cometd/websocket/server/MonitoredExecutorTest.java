@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.websocket.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class MonitoredExecutorTest
+{
+    @Test
+    public void testQueueSizeAndLatency() throws Exception
+    {
+        ExecutorService threadPool = Executors.newSingleThreadExecutor();
+        try
+        {
+            MonitoredExecutor executor = new MonitoredExecutor(threadPool);
+            final CountDownLatch started = new CountDownLatch(1);
+            final CountDownLatch blocker = new CountDownLatch(1);
+            executor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    started.countDown();
+                    await(blocker);
+                }
+            });
+            Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+            int count = 10;
+            final CountDownLatch latch = new CountDownLatch(count);
+            for (int i = 0; i < count; ++i)
+            {
+                executor.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        latch.countDown();
+                    }
+                });
+            }
+            Assert.assertEquals(count, executor.getQueueSize());
+            Assert.assertEquals(count, executor.getMaxQueueSize());
+
+            TimeUnit.MILLISECONDS.sleep(50);
+            blocker.countDown();
+            Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+            Assert.assertEquals(0, executor.getQueueSize());
+            Assert.assertEquals(count + 1, executor.getTaskCount());
+            Assert.assertTrue(executor.getMaxLatency() >= TimeUnit.MILLISECONDS.toMicros(50));
+            Assert.assertTrue(executor.getAverageLatency() > 0);
+
+            executor.reset();
+            Assert.assertEquals(0, executor.getTaskCount());
+            Assert.assertEquals(0, executor.getMaxLatency());
+        }
+        finally
+        {
+            threadPool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testRejectedTaskIsNotQueued() throws Exception
+    {
+        ExecutorService threadPool = Executors.newSingleThreadExecutor();
+        threadPool.shutdown();
+        MonitoredExecutor executor = new MonitoredExecutor(threadPool);
+        try
+        {
+            executor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                }
+            });
+            Assert.fail();
+        }
+        catch (RejectedExecutionException expected)
+        {
+        }
+        Assert.assertEquals(0, executor.getQueueSize());
+    }
+
+    private static void await(CountDownLatch latch)
+    {
+        try
+        {
+            latch.await();
+        }
+        catch (InterruptedException x)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
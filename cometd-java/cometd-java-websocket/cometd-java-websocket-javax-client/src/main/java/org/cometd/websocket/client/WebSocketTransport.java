@@ -23,9 +23,9 @@ import org.eclipse.jetty.util.component.ContainerLifeCycle;
 import javax.websocket.*;
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.nio.channels.UnresolvedAddressException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ScheduledExecutorService;
@@ -63,6 +63,8 @@ public class WebSocketTransport extends AbstractWebSocketTransport
         _webSocketContainer.setDefaultMaxSessionIdleTimeout(getIdleTimeout());
         int maxMessageSize = getOption(MAX_MESSAGE_SIZE_OPTION, _webSocketContainer.getDefaultMaxTextMessageBufferSize());
         _webSocketContainer.setDefaultMaxTextMessageBufferSize(maxMessageSize);
+        if (getBinaryContext() != null)
+            _webSocketContainer.setDefaultMaxBinaryMessageBufferSize(maxMessageSize);
 
         _webSocketSupported = true;
         _webSocketConnected = false;
@@ -76,9 +78,8 @@ public class WebSocketTransport extends AbstractWebSocketTransport
                 logger.debug("Opening websocket session to {}", uri);
             _webSocketContainer.setDefaultMaxSessionIdleTimeout(getIdleTimeout());
             ClientEndpointConfig.Configurator configurator = new Configurator();
-            String protocol = getProtocol();
             ClientEndpointConfig config = ClientEndpointConfig.Builder.create()
-                    .preferredSubprotocols(protocol == null ? null : Collections.singletonList(protocol))
+                    .preferredSubprotocols(getSubProtocols())
                     .configurator(configurator).build();
             Delegate delegate = connect(_webSocketContainer, config, uri);
             _webSocketConnected = true;
@@ -116,7 +117,7 @@ public class WebSocketTransport extends AbstractWebSocketTransport
         return new WebSocketDelegate();
     }
 
-    protected class WebSocketDelegate extends Delegate implements MessageHandler.Whole<String>
+    protected class WebSocketDelegate extends BinaryDelegate implements MessageHandler.Whole<String>
     {
         private final Endpoint _endpoint = new WebSocketEndpoint();
         private Session _session;
@@ -128,6 +129,20 @@ public class WebSocketTransport extends AbstractWebSocketTransport
                 _session = session;
             }
             session.addMessageHandler(this);
+            if (WebSocketTransport.this.isBinary(session.getNegotiatedSubprotocol()))
+            {
+                setBinary(true);
+                session.addMessageHandler(new MessageHandler.Whole<ByteBuffer>()
+                {
+                    @Override
+                    public void onMessage(ByteBuffer buffer)
+                    {
+                        byte[] bytes = new byte[buffer.remaining()];
+                        buffer.get(bytes);
+                        onData(bytes, 0, bytes.length);
+                    }
+                });
+            }
             if (logger.isDebugEnabled())
                 logger.debug("Opened websocket session {}", session);
         }
@@ -161,6 +176,27 @@ public class WebSocketTransport extends AbstractWebSocketTransport
             }
         }
 
+        @Override
+        public void send(byte[] content)
+        {
+            Session session;
+            synchronized (this)
+            {
+                session = _session;
+            }
+            try
+            {
+                if (session == null)
+                    throw new IOException("Unconnected");
+
+                session.getAsyncRemote().sendBinary(ByteBuffer.wrap(content)).get();
+            }
+            catch (Throwable x)
+            {
+                fail(x, "Exception");
+            }
+        }
+
         @Override
         protected void shutdown(String reason)
         {
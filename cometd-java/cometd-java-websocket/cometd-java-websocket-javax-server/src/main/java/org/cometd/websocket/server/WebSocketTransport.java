@@ -17,10 +17,11 @@ package org.cometd.websocket.server;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.util.Collections;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Executor;
 
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpSession;
@@ -43,10 +44,12 @@ import org.cometd.bayeux.server.ServerSession;
 import org.cometd.server.AbstractServerTransport;
 import org.cometd.server.BayeuxServerImpl;
 import org.eclipse.jetty.util.Callback;
-import org.eclipse.jetty.util.component.LifeCycle;
 
 public class WebSocketTransport extends AbstractWebSocketTransport<Session>
 {
+    private static final String JETTY_UPGRADE_FILTER = "org.eclipse.jetty.websocket.server.WebSocketUpgradeFilter";
+    private static final String JETTY_PER_MESSAGE_DEFLATE = "org.eclipse.jetty.websocket.common.extensions.compress.PerMessageDeflateExtension";
+
     public WebSocketTransport(BayeuxServerImpl bayeux)
     {
         super(bayeux);
@@ -72,11 +75,15 @@ public class WebSocketTransport extends AbstractWebSocketTransport<Session>
         // JSR 356 does not support a input buffer size option
         int maxMessageSize = getOption(MAX_MESSAGE_SIZE_OPTION, container.getDefaultMaxTextMessageBufferSize());
         container.setDefaultMaxTextMessageBufferSize(maxMessageSize);
+        if (getBinaryContext() != null)
+            container.setDefaultMaxBinaryMessageBufferSize(maxMessageSize);
         long idleTimeout = getOption(IDLE_TIMEOUT_OPTION, container.getDefaultMaxSessionIdleTimeout());
         container.setDefaultMaxSessionIdleTimeout(idleTimeout);
 
-        String protocol = getProtocol();
-        List<String> protocols = protocol == null ? null : Collections.singletonList(protocol);
+        if (isPerMessageDeflate())
+            installPerMessageDeflate(context);
+
+        List<String> protocols = getSubProtocols();
 
         for (String mapping : normalizeURLMapping(cometdURLMapping))
         {
@@ -95,22 +102,32 @@ public class WebSocketTransport extends AbstractWebSocketTransport<Session>
         }
     }
 
-    @Override
-    public void destroy()
+    /**
+     * <p>Jetty does not install the compression extensions by default, and
+     * JSR 356 has no API to install extensions, so the extension is installed
+     * through the Jetty WebSocket factory, when the container is Jetty.</p>
+     *
+     * @param context the servlet context
+     */
+    private void installPerMessageDeflate(ServletContext context)
     {
-        Executor threadPool = getExecutor();
-        if (threadPool instanceof LifeCycle)
+        Object filter = context.getAttribute(JETTY_UPGRADE_FILTER);
+        if (filter == null)
         {
-            try
-            {
-                ((LifeCycle)threadPool).stop();
-            }
-            catch (Exception x)
-            {
-                _logger.trace("", x);
-            }
+            _logger.info("Could not install the {} extension in a container other than Jetty", PER_MESSAGE_DEFLATE);
+            return;
+        }
+        try
+        {
+            Object factory = filter.getClass().getMethod("getFactory").invoke(filter);
+            Object extensions = factory.getClass().getMethod("getExtensionFactory").invoke(factory);
+            Class<?> extension = filter.getClass().getClassLoader().loadClass(JETTY_PER_MESSAGE_DEFLATE);
+            extensions.getClass().getMethod("register", String.class, Class.class).invoke(extensions, PER_MESSAGE_DEFLATE, extension);
+        }
+        catch (Exception x)
+        {
+            _logger.info("Could not install the " + PER_MESSAGE_DEFLATE + " extension", x);
         }
-        super.destroy();
     }
 
     protected boolean checkOrigin(String origin)
@@ -128,7 +145,21 @@ public class WebSocketTransport extends AbstractWebSocketTransport<Session>
             _logger.debug("Sending {}", data);
 
         // Async write.
-        wsSession.getAsyncRemote().sendText(data, new SendHandler()
+        wsSession.getAsyncRemote().sendText(data, newSendHandler(wsSession, session, callback));
+    }
+
+    @Override
+    protected void send(Session wsSession, ServerSession session, byte[] data, Callback callback)
+    {
+        if (_logger.isDebugEnabled())
+            _logger.debug("Sending {} bytes", data.length);
+
+        wsSession.getAsyncRemote().sendBinary(ByteBuffer.wrap(data), newSendHandler(wsSession, session, callback));
+    }
+
+    private SendHandler newSendHandler(final Session wsSession, final ServerSession session, final Callback callback)
+    {
+        return new SendHandler()
         {
             @Override
             public void onResult(SendResult result)
@@ -144,7 +175,7 @@ public class WebSocketTransport extends AbstractWebSocketTransport<Session>
                     callback.failed(failure);
                 }
             }
-        });
+        };
     }
 
     private class WebSocketScheduler extends Endpoint implements AbstractServerTransport.Scheduler, MessageHandler.Whole<String>
@@ -182,6 +213,29 @@ public class WebSocketTransport extends AbstractWebSocketTransport<Session>
         {
             _wsSession = wsSession;
             wsSession.addMessageHandler(this);
+            if (isBinary(wsSession.getNegotiatedSubprotocol()))
+            {
+                delegate.setBinary(true);
+                wsSession.addMessageHandler(new MessageHandler.Whole<ByteBuffer>()
+                {
+                    @Override
+                    public void onMessage(ByteBuffer buffer)
+                    {
+                        if (_logger.isDebugEnabled())
+                            _logger.debug("WebSocket Binary message on {}/{}", WebSocketTransport.this.hashCode(), WebSocketScheduler.this.hashCode());
+                        if (buffer.hasArray())
+                        {
+                            delegate.onMessage(_wsSession, buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                        }
+                        else
+                        {
+                            byte[] bytes = new byte[buffer.remaining()];
+                            buffer.get(bytes);
+                            delegate.onMessage(_wsSession, bytes, 0, bytes.length);
+                        }
+                    }
+                });
+            }
         }
 
         @Override
@@ -266,7 +320,27 @@ public class WebSocketTransport extends AbstractWebSocketTransport<Session>
         @Override
         public List<Extension> getNegotiatedExtensions(List<Extension> installed, List<Extension> requested)
         {
-            return super.getNegotiatedExtensions(installed, requested);
+            List<Extension> negotiated = new ArrayList<>();
+            boolean deflate = false;
+            for (Extension extension : super.getNegotiatedExtensions(installed, requested))
+            {
+                if (PER_MESSAGE_DEFLATE.equals(extension.getName()))
+                {
+                    // Clients may offer the extension multiple times, in order of preference.
+                    if (deflate)
+                        continue;
+                    Map<String, String> offer = new LinkedHashMap<>();
+                    for (Extension.Parameter parameter : extension.getParameters())
+                        offer.put(parameter.getName(), parameter.getValue());
+                    Map<String, String> parameters = negotiatePerMessageDeflate(offer);
+                    if (parameters == null)
+                        continue;
+                    deflate = true;
+                    extension = new NegotiatedExtension(extension.getName(), parameters);
+                }
+                negotiated.add(extension);
+            }
+            return negotiated;
         }
 
         @Override
@@ -296,6 +370,46 @@ public class WebSocketTransport extends AbstractWebSocketTransport<Session>
         }
     }
 
+    private static class NegotiatedExtension implements Extension
+    {
+        private final String name;
+        private final List<Parameter> parameters = new ArrayList<>();
+
+        private NegotiatedExtension(String name, Map<String, String> parameters)
+        {
+            this.name = name;
+            for (final Map.Entry<String, String> entry : parameters.entrySet())
+            {
+                this.parameters.add(new Parameter()
+                {
+                    @Override
+                    public String getName()
+                    {
+                        return entry.getKey();
+                    }
+
+                    @Override
+                    public String getValue()
+                    {
+                        return entry.getValue();
+                    }
+                });
+            }
+        }
+
+        @Override
+        public String getName()
+        {
+            return name;
+        }
+
+        @Override
+        public List<Parameter> getParameters()
+        {
+            return parameters;
+        }
+    }
+
     private static class ContextHolder
     {
         private static final ThreadLocal<ContextHolder> holder = new ThreadLocal<>();
@@ -30,6 +30,7 @@ import java.net.ConnectException;
 import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.nio.channels.UnresolvedAddressException;
 import java.util.HashMap;
 import java.util.List;
@@ -70,6 +71,8 @@ public class JettyWebSocketTransport extends AbstractWebSocketTransport implemen
         _webSocketClient.getPolicy().setIdleTimeout(getIdleTimeout());
         int maxMessageSize = getOption(MAX_MESSAGE_SIZE_OPTION, _webSocketClient.getPolicy().getMaxTextMessageSize());
         _webSocketClient.getPolicy().setMaxTextMessageSize(maxMessageSize);
+        if (getBinaryContext() != null)
+            _webSocketClient.getPolicy().setMaxBinaryMessageSize(maxMessageSize);
         _webSocketClient.setCookieStore(getCookieStore());
 
         _webSocketSupported = true;
@@ -85,9 +88,9 @@ public class JettyWebSocketTransport extends AbstractWebSocketTransport implemen
             _webSocketClient.setConnectTimeout(getConnectTimeout());
             _webSocketClient.getPolicy().setIdleTimeout(getIdleTimeout());
             ClientUpgradeRequest request = new ClientUpgradeRequest();
-            String protocol = getProtocol();
-            if (protocol != null)
-                request.setSubProtocols(protocol);
+            List<String> protocols = getSubProtocols();
+            if (!protocols.isEmpty())
+                request.setSubProtocols(protocols);
             Delegate delegate = connect(_webSocketClient, request, uri);
             _webSocketConnected = true;
             return delegate;
@@ -152,7 +155,7 @@ public class JettyWebSocketTransport extends AbstractWebSocketTransport implemen
         storeCookies(response.getHeaders());
     }
 
-    protected class JettyWebSocketDelegate extends Delegate implements WebSocketListener
+    protected class JettyWebSocketDelegate extends BinaryDelegate implements WebSocketListener
     {
         private Session _session;
 
@@ -163,6 +166,7 @@ public class JettyWebSocketTransport extends AbstractWebSocketTransport implemen
             {
                 _session = session;
             }
+            setBinary(JettyWebSocketTransport.this.isBinary(session.getUpgradeResponse().getAcceptedSubProtocol()));
             if (logger.isDebugEnabled())
                 logger.debug("Opened websocket session {}", session);
         }
@@ -182,6 +186,8 @@ public class JettyWebSocketTransport extends AbstractWebSocketTransport implemen
         @Override
         public void onWebSocketBinary(byte[] payload, int offset, int len)
         {
+            if (isBinary())
+                onData(payload, offset, len);
         }
 
         @Override
@@ -212,6 +218,27 @@ public class JettyWebSocketTransport extends AbstractWebSocketTransport implemen
             }
         }
 
+        @Override
+        public void send(byte[] content)
+        {
+            Session session;
+            synchronized (this)
+            {
+                session = _session;
+            }
+            try
+            {
+                if (session == null)
+                    throw new IOException("Unconnected");
+
+                session.getRemote().sendBytesByFuture(ByteBuffer.wrap(content)).get();
+            }
+            catch (Throwable x)
+            {
+                fail(x, "Exception");
+            }
+        }
+
         @Override
         protected void shutdown(String reason)
         {
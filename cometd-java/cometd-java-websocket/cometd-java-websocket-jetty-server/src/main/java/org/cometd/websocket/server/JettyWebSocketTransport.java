@@ -19,11 +19,15 @@ import org.cometd.bayeux.server.ServerMessage;
 import org.cometd.bayeux.server.ServerSession;
 import org.cometd.server.BayeuxServerImpl;
 import org.eclipse.jetty.util.Callback;
-import org.eclipse.jetty.util.component.LifeCycle;
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.WebSocketListener;
 import org.eclipse.jetty.websocket.api.WebSocketPolicy;
 import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.api.extensions.Extension;
+import org.eclipse.jetty.websocket.api.extensions.ExtensionConfig;
+import org.eclipse.jetty.websocket.api.extensions.OutgoingFrames;
+import org.eclipse.jetty.websocket.common.WebSocketSession;
+import org.eclipse.jetty.websocket.common.extensions.ExtensionStack;
 import org.eclipse.jetty.websocket.server.WebSocketUpgradeFilter;
 import org.eclipse.jetty.websocket.server.pathmap.ServletPathSpec;
 import org.eclipse.jetty.websocket.servlet.ServletUpgradeRequest;
@@ -31,9 +35,10 @@ import org.eclipse.jetty.websocket.servlet.ServletUpgradeResponse;
 import org.eclipse.jetty.websocket.servlet.WebSocketCreator;
 
 import javax.servlet.ServletContext;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Executor;
 
 public class JettyWebSocketTransport extends AbstractWebSocketTransport<Session>
 {
@@ -64,9 +69,15 @@ public class JettyWebSocketTransport extends AbstractWebSocketTransport<Session>
         policy.setInputBufferSize(bufferSize);
         int maxMessageSize = getOption(MAX_MESSAGE_SIZE_OPTION, policy.getMaxTextMessageSize());
         policy.setMaxTextMessageSize(maxMessageSize);
+        if (getBinaryContext() != null)
+            policy.setMaxBinaryMessageSize(maxMessageSize);
         long idleTimeout = getOption(IDLE_TIMEOUT_OPTION, policy.getIdleTimeout());
         policy.setIdleTimeout((int)idleTimeout);
 
+        // Jetty does not install the compression extensions by default.
+        if (isPerMessageDeflate())
+            wsFilter.getFactory().getExtensionFactory().register(PER_MESSAGE_DEFLATE, PerMessageDeflateExtension.class);
+
         for (String mapping : normalizeURLMapping(cometdURLMapping))
         {
             wsFilter.addMapping(new ServletPathSpec(mapping), new WebSocketCreator()
@@ -80,12 +91,24 @@ public class JettyWebSocketTransport extends AbstractWebSocketTransport<Session>
                     if (checkOrigin(request, origin))
                     {
                         modifyUpgrade(request, response);
+                        if (!response.isExtensionsNegotiated())
+                            negotiateExtensions(request, response);
 
                         List<String> allowedTransports = getBayeux().getAllowedTransports();
                         if (allowedTransports.contains(getName()))
                         {
                             WebSocketContext handshake = new WebSocketContext(context, request);
-                            return new WebSocketScheduler(handshake);
+                            WebSocketScheduler scheduler = new WebSocketScheduler(handshake);
+                            for (String subProtocol : request.getSubProtocols())
+                            {
+                                if (isBinary(subProtocol))
+                                {
+                                    response.setAcceptedSubProtocol(subProtocol);
+                                    scheduler.setBinary(true);
+                                    break;
+                                }
+                            }
+                            return scheduler;
                         }
                         else
                         {
@@ -108,22 +131,28 @@ public class JettyWebSocketTransport extends AbstractWebSocketTransport<Session>
     {
     }
 
-    @Override
-    public void destroy()
+    private void negotiateExtensions(ServletUpgradeRequest request, ServletUpgradeResponse response)
     {
-        Executor threadPool = getExecutor();
-        if (threadPool instanceof LifeCycle)
+        List<ExtensionConfig> negotiated = new ArrayList<>();
+        boolean deflate = false;
+        for (ExtensionConfig extension : request.getExtensions())
         {
-            try
+            if (PER_MESSAGE_DEFLATE.equals(extension.getName()))
             {
-                ((LifeCycle)threadPool).stop();
-            }
-            catch (Exception x)
-            {
-                _logger.trace("", x);
+                // Clients may offer the extension multiple times, in order of preference.
+                if (deflate)
+                    continue;
+                Map<String, String> parameters = negotiatePerMessageDeflate(extension.getParameters());
+                if (parameters == null)
+                    continue;
+                deflate = true;
+                extension = new ExtensionConfig(extension.getName());
+                for (Map.Entry<String, String> entry : parameters.entrySet())
+                    extension.setParameter(entry.getKey(), entry.getValue());
             }
+            negotiated.add(extension);
         }
-        super.destroy();
+        response.setExtensions(negotiated);
     }
 
     protected boolean checkOrigin(ServletUpgradeRequest request, String origin)
@@ -162,7 +191,20 @@ public class JettyWebSocketTransport extends AbstractWebSocketTransport<Session>
 //        }
 
         // Async version.
-        wsSession.getRemote().sendString(data, new WriteCallback()
+        wsSession.getRemote().sendString(data, newWriteCallback(wsSession, session, callback));
+    }
+
+    @Override
+    protected void send(Session wsSession, ServerSession session, byte[] data, Callback callback)
+    {
+        if (_logger.isDebugEnabled())
+            _logger.debug("Sending {} bytes", data.length);
+        wsSession.getRemote().sendBytes(ByteBuffer.wrap(data), newWriteCallback(wsSession, session, callback));
+    }
+
+    private WriteCallback newWriteCallback(final Session wsSession, final ServerSession session, final Callback callback)
+    {
+        return new WriteCallback()
         {
             @Override
             public void writeSuccess()
@@ -176,7 +218,7 @@ public class JettyWebSocketTransport extends AbstractWebSocketTransport<Session>
                 handleException(wsSession, session, x);
                 callback.failed(x);
             }
-        });
+        };
     }
 
     private class WebSocketScheduler extends AbstractWebSocketScheduler implements WebSocketListener
@@ -191,11 +233,25 @@ public class JettyWebSocketTransport extends AbstractWebSocketTransport<Session>
         public void onWebSocketConnect(Session session)
         {
             _wsSession = session;
+            if (session instanceof WebSocketSession)
+            {
+                OutgoingFrames outgoing = ((WebSocketSession)session).getOutgoingHandler();
+                if (outgoing instanceof ExtensionStack)
+                {
+                    for (Extension extension : ((ExtensionStack)outgoing).getExtensions())
+                    {
+                        if (extension instanceof PerMessageDeflateExtension)
+                            ((PerMessageDeflateExtension)extension).setMinSize(getPerMessageDeflateMinSize());
+                    }
+                }
+            }
         }
 
         @Override
         public void onWebSocketBinary(byte[] payload, int offset, int len)
         {
+            if (isBinary())
+                onMessage(_wsSession, payload, offset, len);
         }
 
         public void onWebSocketText(String data)
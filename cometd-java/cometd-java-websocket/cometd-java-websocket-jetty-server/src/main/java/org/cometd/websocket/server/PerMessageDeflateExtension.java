@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.websocket.server;
+
+import org.eclipse.jetty.websocket.api.BatchMode;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.api.extensions.ExtensionConfig;
+import org.eclipse.jetty.websocket.api.extensions.Frame;
+import org.eclipse.jetty.websocket.common.OpCode;
+
+/**
+ * <p>A permessage-deflate extension that, in addition to Jetty's:</p>
+ * <ul>
+ * <li>retains the {@code client_max_window_bits} parameter negotiated
+ * by {@link JettyWebSocketTransport}, so that clients compress with a smaller
+ * window;</li>
+ * <li>sends uncompressed the messages whose size is below a threshold,
+ * since compressing them costs more CPU than the bandwidth it saves.</li>
+ * </ul>
+ */
+public class PerMessageDeflateExtension extends org.eclipse.jetty.websocket.common.extensions.compress.PerMessageDeflateExtension
+{
+    private static final String CLIENT_MAX_WINDOW_BITS = "client_max_window_bits";
+
+    private volatile int minSize;
+
+    public int getMinSize()
+    {
+        return minSize;
+    }
+
+    public void setMinSize(int minSize)
+    {
+        this.minSize = minSize;
+    }
+
+    @Override
+    public void setConfig(ExtensionConfig config)
+    {
+        String windowBits = config.getParameter(CLIENT_MAX_WINDOW_BITS, null);
+        super.setConfig(config);
+        // The inflater handles any window size, so only the negotiated response needs the parameter.
+        if (windowBits != null && !windowBits.isEmpty())
+            getConfig().setParameter(CLIENT_MAX_WINDOW_BITS, windowBits);
+    }
+
+    @Override
+    public void outgoingFrame(Frame frame, WriteCallback callback, BatchMode batchMode)
+    {
+        // Only whole messages can be sent uncompressed: fragmented messages
+        // must be compressed from the first to the last frame.
+        // The transport writes one message at a time, so bypassing the
+        // compression queue does not reorder the messages.
+        byte opCode = frame.getOpCode();
+        if ((opCode == OpCode.TEXT || opCode == OpCode.BINARY) && frame.isFin() && frame.getPayloadLength() < minSize)
+            getNextOutgoing().outgoingFrame(frame, callback, batchMode);
+        else
+            super.outgoingFrame(frame, callback, batchMode);
+    }
+}
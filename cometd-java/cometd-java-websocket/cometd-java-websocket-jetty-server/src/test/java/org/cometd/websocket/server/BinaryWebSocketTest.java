@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.websocket.server;
+
+import org.cometd.bayeux.Channel;
+import org.cometd.bayeux.Message;
+import org.cometd.bayeux.client.ClientSessionChannel;
+import org.cometd.client.BayeuxClient;
+import org.cometd.common.CBORContext;
+import org.cometd.common.CBORContextClient;
+import org.cometd.common.HashMapMessage;
+import org.cometd.server.CBORContextServer;
+import org.cometd.websocket.ClientServerWebSocketTest;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WebSocketAdapter;
+import org.eclipse.jetty.websocket.client.ClientUpgradeRequest;
+import org.eclipse.jetty.websocket.client.WebSocketClient;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class BinaryWebSocketTest extends ClientServerWebSocketTest
+{
+    private final CBORContextClient binaryContext = new CBORContextClient();
+
+    public BinaryWebSocketTest(String wsTransportType)
+    {
+        super(wsTransportType);
+    }
+
+    @Test
+    public void testBinarySubProtocolIsNegotiated() throws Exception
+    {
+        prepareAndStart(binaryOptions());
+
+        WebSocketClient client = new WebSocketClient();
+        client.start();
+        try
+        {
+            ClientUpgradeRequest request = new ClientUpgradeRequest();
+            request.setSubProtocols(CBORContext.PROTOCOL);
+            final BlockingQueue<byte[]> frames = new LinkedBlockingQueue<>();
+            final BlockingQueue<String> texts = new LinkedBlockingQueue<>();
+            URI uri = URI.create(cometdURL.replace("http", "ws"));
+            Session session = client.connect(new WebSocketAdapter()
+            {
+                @Override
+                public void onWebSocketBinary(byte[] payload, int offset, int length)
+                {
+                    frames.offer(Arrays.copyOfRange(payload, offset, offset + length));
+                }
+
+                @Override
+                public void onWebSocketText(String message)
+                {
+                    texts.offer(message);
+                }
+            }, uri, request).get(5, TimeUnit.SECONDS);
+            Assert.assertEquals(CBORContext.PROTOCOL, session.getUpgradeResponse().getAcceptedSubProtocol());
+
+            Message.Mutable handshake = new HashMapMessage();
+            handshake.setChannel(Channel.META_HANDSHAKE);
+            handshake.put(Message.VERSION_FIELD, "1.0");
+            handshake.put(Message.SUPPORTED_CONNECTION_TYPES_FIELD, new String[]{"websocket"});
+            byte[] bytes = binaryContext.generate(Collections.singletonList(handshake));
+            session.getRemote().sendBytes(ByteBuffer.wrap(bytes));
+
+            byte[] frame = frames.poll(5, TimeUnit.SECONDS);
+            Assert.assertNotNull(frame);
+            Message.Mutable[] replies = binaryContext.parse(frame, 0, frame.length);
+            Assert.assertEquals(1, replies.length);
+            Assert.assertEquals(Channel.META_HANDSHAKE, replies[0].getChannel());
+            Assert.assertTrue(replies[0].isSuccessful());
+            Assert.assertTrue(texts.isEmpty());
+
+            session.close();
+        }
+        finally
+        {
+            client.stop();
+        }
+    }
+
+    @Test
+    public void testBayeuxClientWithBinaryMessages() throws Exception
+    {
+        prepareAndStart(binaryOptions());
+
+        Map<String, Object> options = new HashMap<>();
+        options.put(org.cometd.websocket.client.AbstractWebSocketTransport.BINARY_CONTEXT_OPTION, binaryContext);
+        BayeuxClient client = new BayeuxClient(cometdURL, newWebSocketTransport(options));
+        assertPublishAndReceive(client);
+    }
+
+    @Test
+    public void testBayeuxClientWithBinaryContextClassName() throws Exception
+    {
+        prepareAndStart(binaryOptions());
+
+        Map<String, Object> options = new HashMap<>();
+        options.put(org.cometd.websocket.client.AbstractWebSocketTransport.BINARY_CONTEXT_OPTION, CBORContextClient.class.getName());
+        org.cometd.websocket.client.AbstractWebSocketTransport transport = (org.cometd.websocket.client.AbstractWebSocketTransport)newWebSocketTransport(options);
+        BayeuxClient client = new BayeuxClient(cometdURL, transport);
+        assertPublishAndReceive(client);
+        Assert.assertTrue(transport.getBinaryContext() instanceof CBORContextClient);
+    }
+
+    @Test
+    public void testJSONClientWithBinaryServer() throws Exception
+    {
+        prepareAndStart(binaryOptions());
+
+        assertPublishAndReceive(newBayeuxClient());
+    }
+
+    @Test
+    public void testBinaryClientWithJSONServer() throws Exception
+    {
+        prepareAndStart(null);
+
+        Map<String, Object> options = new HashMap<>();
+        options.put(org.cometd.websocket.client.AbstractWebSocketTransport.BINARY_CONTEXT_OPTION, binaryContext);
+        BayeuxClient client = new BayeuxClient(cometdURL, newWebSocketTransport(options));
+        assertPublishAndReceive(client);
+    }
+
+    private void assertPublishAndReceive(BayeuxClient client) throws Exception
+    {
+        client.handshake();
+        Assert.assertTrue(client.waitFor(5000, BayeuxClient.State.CONNECTED));
+
+        final String channelName = "/binary";
+        final CountDownLatch subscribed = new CountDownLatch(1);
+        final CountDownLatch received = new CountDownLatch(1);
+        final AtomicReference<Object> data = new AtomicReference<>();
+        client.getChannel(channelName).subscribe(new ClientSessionChannel.MessageListener()
+        {
+            public void onMessage(ClientSessionChannel channel, Message message)
+            {
+                data.set(message.getData());
+                received.countDown();
+            }
+        }, new ClientSessionChannel.MessageListener()
+        {
+            public void onMessage(ClientSessionChannel channel, Message message)
+            {
+                if (message.isSuccessful())
+                    subscribed.countDown();
+            }
+        });
+        Assert.assertTrue(subscribed.await(5, TimeUnit.SECONDS));
+
+        Map<String, Object> payload = new HashMap<>();
+        payload.put("text", "hello");
+        payload.put("count", 42);
+        client.getChannel(channelName).publish(payload);
+
+        Assert.assertTrue(received.await(5, TimeUnit.SECONDS));
+        @SuppressWarnings("unchecked")
+        Map<String, Object> result = (Map<String, Object>)data.get();
+        Assert.assertEquals("hello", result.get("text"));
+        Assert.assertEquals(42L, ((Number)result.get("count")).longValue());
+
+        disconnectBayeuxClient(client);
+    }
+
+    private Map<String, String> binaryOptions()
+    {
+        Map<String, String> options = new HashMap<>();
+        options.put("ws." + AbstractWebSocketTransport.BINARY_CONTEXT_OPTION, CBORContextServer.class.getName());
+        return options;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.websocket.server;
+
+import org.cometd.websocket.ClientServerWebSocketTest;
+import org.eclipse.jetty.io.MappedByteBufferPool;
+import org.eclipse.jetty.websocket.api.BatchMode;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WebSocketAdapter;
+import org.eclipse.jetty.websocket.api.WebSocketPolicy;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.api.extensions.ExtensionConfig;
+import org.eclipse.jetty.websocket.api.extensions.Frame;
+import org.eclipse.jetty.websocket.api.extensions.OutgoingFrames;
+import org.eclipse.jetty.websocket.client.ClientUpgradeRequest;
+import org.eclipse.jetty.websocket.client.WebSocketClient;
+import org.eclipse.jetty.websocket.common.frames.TextFrame;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class PerMessageDeflateWebSocketTest extends ClientServerWebSocketTest
+{
+    public PerMessageDeflateWebSocketTest(String wsTransportType)
+    {
+        super(wsTransportType);
+    }
+
+    @Test
+    public void testPerMessageDeflateDisabledByDefault() throws Exception
+    {
+        prepareAndStart(null);
+
+        Assert.assertNull(connect("permessage-deflate"));
+    }
+
+    @Test
+    public void testPerMessageDeflateEnabled() throws Exception
+    {
+        prepareAndStart(deflateOptions());
+
+        ExtensionConfig extension = connect("permessage-deflate");
+        Assert.assertNotNull(extension);
+        Assert.assertFalse(extension.getParameters().containsKey("server_no_context_takeover"));
+    }
+
+    @Test
+    public void testPerMessageDeflateParameters() throws Exception
+    {
+        Map<String, String> options = deflateOptions();
+        options.put("ws." + AbstractWebSocketTransport.PER_MESSAGE_DEFLATE_CONTEXT_TAKEOVER_OPTION, "false");
+        options.put("ws." + AbstractWebSocketTransport.PER_MESSAGE_DEFLATE_CLIENT_MAX_WINDOW_BITS_OPTION, "10");
+        prepareAndStart(options);
+
+        ExtensionConfig extension = connect("permessage-deflate; client_max_window_bits");
+        Assert.assertNotNull(extension);
+        Assert.assertTrue(extension.getParameters().containsKey("server_no_context_takeover"));
+        // Jetty's JSR 356 implementation drops the window bits from the response.
+        if (WEBSOCKET_JETTY.equals(wsTransportType))
+            Assert.assertEquals(10, extension.getParameter("client_max_window_bits", 0));
+    }
+
+    @Test
+    public void testOfferWithSmallServerWindowIsDeclined() throws Exception
+    {
+        prepareAndStart(deflateOptions());
+
+        Assert.assertNull(connect("permessage-deflate; server_max_window_bits=10"));
+    }
+
+    @Test
+    public void testSmallMessagesAreNotCompressed() throws Exception
+    {
+        prepareAndStart(null);
+        Assume.assumeTrue(WEBSOCKET_JETTY.equals(wsTransportType));
+
+        PerMessageDeflateExtension extension = new PerMessageDeflateExtension();
+        extension.setPolicy(WebSocketPolicy.newServerPolicy());
+        extension.setBufferPool(new MappedByteBufferPool());
+        extension.setConfig(ExtensionConfig.parse("permessage-deflate"));
+        extension.setMinSize(64);
+        final List<Frame> frames = new ArrayList<>();
+        extension.setNextOutgoingFrames(new OutgoingFrames()
+        {
+            @Override
+            public void outgoingFrame(Frame frame, WriteCallback callback, BatchMode batchMode)
+            {
+                frames.add(frame);
+                if (callback != null)
+                    callback.writeSuccess();
+            }
+        });
+
+        extension.outgoingFrame(new TextFrame().setPayload("[{\"channel\":\"/meta/connect\"}]"), null, BatchMode.OFF);
+        char[] chars = new char[128];
+        Arrays.fill(chars, 'x');
+        extension.outgoingFrame(new TextFrame().setPayload("[{\"data\":\"" + new String(chars) + "\"}]"), null, BatchMode.OFF);
+
+        Assert.assertEquals(2, frames.size());
+        Assert.assertFalse(frames.get(0).isRsv1());
+        Assert.assertTrue(frames.get(1).isRsv1());
+    }
+
+    private Map<String, String> deflateOptions()
+    {
+        Map<String, String> options = new HashMap<>();
+        options.put("ws." + AbstractWebSocketTransport.PER_MESSAGE_DEFLATE_OPTION, "true");
+        return options;
+    }
+
+    private ExtensionConfig connect(String offer) throws Exception
+    {
+        WebSocketClient client = new WebSocketClient();
+        client.getExtensionFactory().register("permessage-deflate", org.eclipse.jetty.websocket.common.extensions.compress.PerMessageDeflateExtension.class);
+        client.start();
+        try
+        {
+            ClientUpgradeRequest request = new ClientUpgradeRequest();
+            request.addExtensions(offer);
+            final BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+            URI uri = URI.create(cometdURL.replace("http", "ws"));
+            Session session = client.connect(new WebSocketAdapter()
+            {
+                @Override
+                public void onWebSocketText(String message)
+                {
+                    messages.offer(message);
+                }
+            }, uri, request).get(5, TimeUnit.SECONDS);
+
+            // Make sure that messages can be exchanged with the negotiated extensions.
+            session.getRemote().sendString("[{" +
+                    "\"channel\":\"/meta/handshake\"," +
+                    "\"version\":\"1.0\"," +
+                    "\"supportedConnectionTypes\":[\"websocket\"]" +
+                    "}]");
+            String reply = messages.poll(5, TimeUnit.SECONDS);
+            Assert.assertNotNull(reply);
+            Assert.assertTrue(reply.contains("\"successful\":true"));
+
+            ExtensionConfig result = null;
+            for (ExtensionConfig extension : session.getUpgradeResponse().getExtensions())
+            {
+                if ("permessage-deflate".equals(extension.getName()))
+                    result = extension;
+            }
+            session.close();
+            return result;
+        }
+        finally
+        {
+            client.stop();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.websocket.server;
+
+import org.cometd.bayeux.Message;
+import org.cometd.bayeux.client.ClientSessionChannel;
+import org.cometd.client.BayeuxClient;
+import org.cometd.server.AbstractServerTransport;
+import org.cometd.server.ServerSessionImpl;
+import org.cometd.server.SlowConsumerPolicy;
+import org.cometd.websocket.ClientServerWebSocketTest;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class SlowConsumerWebSocketTest extends ClientServerWebSocketTest
+{
+    public SlowConsumerWebSocketTest(String wsTransportType)
+    {
+        super(wsTransportType);
+    }
+
+    @Test
+    public void testPendingWritesAreReleased() throws Exception
+    {
+        Map<String, String> options = new HashMap<>();
+        options.put(AbstractServerTransport.SLOW_CONSUMER_POLICY_OPTION, "dropOldest");
+        options.put(AbstractServerTransport.MAX_QUEUE_BYTES_OPTION, String.valueOf(1024 * 1024));
+        prepareAndStart(options);
+
+        BayeuxClient client = newBayeuxClient();
+        client.handshake();
+        Assert.assertTrue(client.waitFor(5000, BayeuxClient.State.CONNECTED));
+
+        final String channelName = "/slow";
+        final int count = 500;
+        final List<Object> received = new CopyOnWriteArrayList<>();
+        final CountDownLatch latch = new CountDownLatch(count);
+        final CountDownLatch subscribeLatch = new CountDownLatch(1);
+        client.getChannel(channelName).subscribe(new ClientSessionChannel.MessageListener()
+        {
+            public void onMessage(ClientSessionChannel channel, Message message)
+            {
+                received.add(message.getData());
+                latch.countDown();
+            }
+        }, new ClientSessionChannel.MessageListener()
+        {
+            public void onMessage(ClientSessionChannel channel, Message message)
+            {
+                subscribeLatch.countDown();
+            }
+        });
+        Assert.assertTrue(subscribeLatch.await(5, TimeUnit.SECONDS));
+
+        final ServerSessionImpl session = (ServerSessionImpl)bayeux.getSession(client.getId());
+        Assert.assertEquals(1024 * 1024, session.getMaxQueueBytes());
+        Assert.assertTrue(session.getSlowConsumerPolicy() instanceof SlowConsumerPolicy.DropOldest);
+        session.batch(new Runnable()
+        {
+            public void run()
+            {
+                for (int i = 0; i < count; ++i)
+                    session.deliver(null, channelName, "message_" + i);
+            }
+        });
+
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < count; ++i)
+            Assert.assertEquals("message_" + i, received.get(i));
+
+        // Once the writes complete, nothing is accounted anymore.
+        long begin = System.nanoTime();
+        while (session.getPendingWriteBytes() > 0 && System.nanoTime() - begin < TimeUnit.SECONDS.toNanos(5))
+            TimeUnit.MILLISECONDS.sleep(10);
+        Assert.assertEquals(0, session.getPendingWriteBytes());
+
+        disconnectBayeuxClient(client);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cometd.websocket.server;
+
+import org.cometd.client.BayeuxClient;
+import org.cometd.websocket.ClientServerWebSocketTest;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class WebSocketTransportExecutorTest extends ClientServerWebSocketTest
+{
+    public WebSocketTransportExecutorTest(String wsTransportType)
+    {
+        super(wsTransportType);
+    }
+
+    @Test
+    public void testJettyThreadPoolAndShardedScheduler() throws Exception
+    {
+        Map<String, String> options = new HashMap<>();
+        options.put("ws." + AbstractWebSocketTransport.THREAD_POOL_TYPE_OPTION, AbstractWebSocketTransport.THREAD_POOL_TYPE_JETTY);
+        options.put("ws." + AbstractWebSocketTransport.SCHEDULER_SHARDS_OPTION, "4");
+        prepareAndStart(options);
+
+        AbstractWebSocketTransport<?> transport = (AbstractWebSocketTransport<?>)bayeux.getTransport("websocket");
+        Assert.assertSame(transport.getMonitoredExecutor(), transport.getExecutor());
+        final QueuedThreadPool threadPool = (QueuedThreadPool)transport.getMonitoredExecutor().getExecutor();
+        Assert.assertTrue(threadPool.isRunning());
+
+        BayeuxClient client = newBayeuxClient();
+        client.handshake();
+        Assert.assertTrue(client.waitFor(5000, BayeuxClient.State.CONNECTED));
+        disconnectBayeuxClient(client);
+        Assert.assertTrue(client.waitFor(5000, BayeuxClient.State.DISCONNECTED));
+
+        server.stop();
+        Assert.assertTrue(threadPool.isStopped());
+        Assert.assertTrue(transport.getScheduler().isShutdown());
+    }
+
+    @Test
+    public void testVirtualThreadPool() throws Exception
+    {
+        Map<String, String> options = new HashMap<>();
+        options.put("ws." + AbstractWebSocketTransport.THREAD_POOL_TYPE_OPTION, AbstractWebSocketTransport.THREAD_POOL_TYPE_VIRTUAL);
+        prepareAndStart(options);
+
+        // Falls back to a fixed thread pool on JVMs without virtual threads.
+        AbstractWebSocketTransport<?> transport = (AbstractWebSocketTransport<?>)bayeux.getTransport("websocket");
+        Assert.assertNotNull(transport.getMonitoredExecutor().getExecutor());
+
+        BayeuxClient client = newBayeuxClient();
+        client.handshake();
+        Assert.assertTrue(client.waitFor(5000, BayeuxClient.State.CONNECTED));
+        disconnectBayeuxClient(client);
+    }
+}
@@ -2125,4 +2125,5 @@ org.cometd.CometD = function(name)
 
     // Use an alias to be less dependent on browser's quirks.
     org.cometd.WebSocket = window.WebSocket;
+    org.cometd.EventSource = window.EventSource;
 };
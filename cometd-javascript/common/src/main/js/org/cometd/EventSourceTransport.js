@@ -0,0 +1,217 @@
+/**
+ * Transport that receives messages from the server via a Server-Sent Events stream.
+ * The /meta/connect message opens the stream, and the server replies to it on the
+ * stream every timeout, while other messages are delivered on the stream as soon
+ * as they are available; all other messages are sent by the long-polling transport.
+ * This transport must be enabled explicitly with <code>cometd.eventSourceEnabled = true</code>.
+ */
+org.cometd.EventSourceTransport = function()
+{
+    var _super = new org.cometd.LongPollingTransport();
+    var _self = org.cometd.Transport.derive(_super);
+    var _cometd;
+    var _eventSource = null;
+    // The /meta/connect envelope waiting for a /meta/connect reply on the stream.
+    var _connectEnvelope = null;
+    var _connectTimeout = null;
+    // The callback that handles the messages that are not /meta/connect replies.
+    var _successCallback = null;
+
+    _self.registered = function(type, cometd)
+    {
+        _super.registered(type, cometd);
+        _cometd = cometd;
+    };
+
+    _self.accept = function(version, crossDomain, url)
+    {
+        // Using !! to return a boolean (and not the EventSource object).
+        return !!org.cometd.EventSource && _cometd.eventSourceEnabled === true && _super.accept(version, crossDomain, url);
+    };
+
+    function _clearConnectTimeout()
+    {
+        if (_connectTimeout !== null)
+        {
+            this.clearTimeout(_connectTimeout);
+            _connectTimeout = null;
+        }
+    }
+
+    function _close()
+    {
+        if (_eventSource)
+        {
+            var eventSource = _eventSource;
+            _eventSource = null;
+            eventSource.onmessage = null;
+            eventSource.onerror = null;
+            try
+            {
+                eventSource.close();
+            }
+            catch (x)
+            {
+                this._debug(x);
+            }
+        }
+    }
+
+    function _failConnect(failure)
+    {
+        _clearConnectTimeout.call(this);
+        var envelope = _connectEnvelope;
+        _connectEnvelope = null;
+        if (envelope)
+        {
+            envelope.onFailure(null, envelope.messages, failure);
+        }
+    }
+
+    function _onEvent(data)
+    {
+        this._debug('Transport', this.getType(), 'received event', data);
+        var messages = this.convertToMessages(data);
+        var received = [];
+        for (var i = 0; i < messages.length; ++i)
+        {
+            var message = messages[i];
+            if (message.channel === '/meta/connect')
+            {
+                var envelope = _connectEnvelope;
+                if (!envelope)
+                {
+                    // Heartbeat replies are only relevant when a /meta/connect is pending.
+                    continue;
+                }
+                _clearConnectTimeout.call(this);
+                _connectEnvelope = null;
+                message.id = envelope.messages[0].id;
+                _successCallback = envelope.onSuccess;
+                // Deliver in order the messages that preceded the reply.
+                received.push(message);
+                envelope.onSuccess(received);
+                received = [];
+            }
+            else
+            {
+                received.push(message);
+            }
+        }
+        if (received.length > 0 && _successCallback)
+        {
+            _successCallback(received);
+        }
+    }
+
+    function _open(envelope)
+    {
+        var url = envelope.url;
+        url += (url.indexOf('?') < 0 ? '?' : '&') + 'message=' + encodeURIComponent(org.cometd.JSON.toJSON(envelope.messages));
+        this._debug('Transport', this.getType(), 'opening stream', url);
+
+        var eventSource = new org.cometd.EventSource(url, { withCredentials: true });
+        var self = this;
+        eventSource.onmessage = function(event)
+        {
+            if (eventSource !== _eventSource)
+            {
+                return;
+            }
+            try
+            {
+                _onEvent.call(self, event.data);
+            }
+            catch (x)
+            {
+                self._debug(x);
+                _close.call(self);
+                _failConnect.call(self, { exception: x });
+            }
+        };
+        eventSource.onerror = function()
+        {
+            if (eventSource !== _eventSource)
+            {
+                return;
+            }
+            self._debug('Transport', self.getType(), 'stream closed');
+            // Close the stream to prevent the automatic reconnection
+            // by the browser, as CometD handles the reconnection.
+            _close.call(self);
+            _failConnect.call(self, { reason: 'Stream closed' });
+        };
+        _eventSource = eventSource;
+    }
+
+    function _connect(envelope)
+    {
+        var self = this;
+        if (_connectEnvelope)
+        {
+            throw 'Concurrent metaConnect requests not allowed, request id=' + _connectEnvelope.messages[0].id + ' not yet completed';
+        }
+        _connectEnvelope = envelope;
+        _successCallback = envelope.onSuccess;
+
+        if (!_eventSource)
+        {
+            try
+            {
+                _open.call(this, envelope);
+            }
+            catch (x)
+            {
+                this._debug(x);
+                _connectEnvelope = null;
+                // Keep the semantic of calling response callbacks asynchronously after the request
+                this.setTimeout(function()
+                {
+                    envelope.onFailure(null, envelope.messages, { exception: x });
+                }, 0);
+                return;
+            }
+        }
+
+        var delay = this.getConfiguration().maxNetworkDelay + this.getAdvice().timeout;
+        _connectTimeout = this.setTimeout(function()
+        {
+            _connectTimeout = null;
+            var errorMessage = 'Stream of transport ' + self.getType() + ' exceeded ' + delay + ' ms max network delay';
+            self._debug(errorMessage);
+            _close.call(self);
+            _failConnect.call(self, { reason: errorMessage });
+        }, delay);
+    }
+
+    _self.send = function(envelope, metaConnect)
+    {
+        if (metaConnect)
+        {
+            this._debug('Transport', this.getType(), 'streaming', envelope);
+            _connect.call(this, envelope);
+        }
+        else
+        {
+            _super.send.call(this, envelope, metaConnect);
+        }
+    };
+
+    _self.abort = function()
+    {
+        _close.call(this);
+        _failConnect.call(this, { reason: 'abort' });
+        _super.abort.call(this);
+    };
+
+    _self.reset = function()
+    {
+        _super.reset();
+        _close.call(this);
+        _clearConnectTimeout.call(this);
+        _connectEnvelope = null;
+        _successCallback = null;
+    };
+
+    return _self;
+};
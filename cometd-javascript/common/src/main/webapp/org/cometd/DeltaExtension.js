@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2008-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+(function()
+{
+    function bind(org_cometd)
+    {
+        /**
+         * This client-side extension enables the client to receive delta-encoded
+         * messages from the server, where the data of a message is replaced by the
+         * differences from the data of the previous message on the same channel.
+         * For delta-encoded messages to work, the server must be configured with the
+         * correspondent server-side delta extension. If both client and server support
+         * the delta extension, the data of the messages is rebuilt before listeners
+         * are notified, so that listeners always receive the whole data.
+         * When a delta cannot be applied, for example because a previous message was
+         * lost or because the number of key frames sent by the server on the channel
+         * is not the number of key frames received, the message is discarded and the client asks the server to send a key
+         * frame for that channel, in the next message sent to the server.
+         * The state of the channels that match a subscription is dropped when the
+         * unsubscription succeeds, as the server does.
+         */
+        return org_cometd.DeltaExtension = function()
+        {
+            var _cometd;
+            var _serverSupportsDeltas = false;
+            var _snapshots = {};
+            var _resyncs = [];
+
+            function _debug(text, args)
+            {
+                _cometd._debug(text, args);
+            }
+
+            function _isObject(value)
+            {
+                return typeof value === 'object' && value !== null && !org_cometd.Utils.isArray(value);
+            }
+
+            function _copy(data)
+            {
+                return _cometd._mixin(true, {}, data);
+            }
+
+            function _unescape(segment)
+            {
+                // JSON Pointer (RFC 6901) unescaping.
+                return segment.replace(/~1/g, '/').replace(/~0/g, '~');
+            }
+
+            function _apply(data, patch)
+            {
+                if (!org_cometd.Utils.isArray(patch))
+                {
+                    throw 'Invalid patch ' + patch;
+                }
+                for (var i = 0; i < patch.length; ++i)
+                {
+                    var operation = patch[i];
+                    var path = operation.path;
+                    if (!org_cometd.Utils.isString(path) || path.charAt(0) !== '/')
+                    {
+                        throw 'Invalid path ' + path;
+                    }
+                    var segments = path.substring(1).split('/');
+                    var target = data;
+                    for (var j = 0; j < segments.length - 1; ++j)
+                    {
+                        target = target[_unescape(segments[j])];
+                        if (!_isObject(target))
+                        {
+                            throw 'Invalid path ' + path;
+                        }
+                    }
+                    var name = _unescape(segments[segments.length - 1]);
+                    var exists = target.hasOwnProperty(name);
+                    switch (operation.op)
+                    {
+                        case 'add':
+                            target[name] = operation.value;
+                            break;
+                        case 'replace':
+                            if (!exists)
+                            {
+                                throw 'Invalid path ' + path;
+                            }
+                            target[name] = operation.value;
+                            break;
+                        case 'remove':
+                            if (!exists)
+                            {
+                                throw 'Invalid path ' + path;
+                            }
+                            delete target[name];
+                            break;
+                        default:
+                            throw 'Invalid operation ' + operation.op;
+                    }
+                }
+            }
+
+            function _matches(subscription, channel)
+            {
+                if (subscription === channel)
+                {
+                    return true;
+                }
+                var length = subscription.length;
+                if (subscription.substring(length - 3) === '/**')
+                {
+                    return channel.indexOf(subscription.substring(0, length - 2)) === 0;
+                }
+                if (subscription.substring(length - 2) === '/*')
+                {
+                    var prefix = subscription.substring(0, length - 1);
+                    return channel.indexOf(prefix) === 0 && channel.indexOf('/', prefix.length) < 0;
+                }
+                return false;
+            }
+
+            function _unsubscribed(subscription)
+            {
+                var subscriptions = org_cometd.Utils.isArray(subscription) ? subscription : [subscription];
+                for (var channel in _snapshots)
+                {
+                    if (_snapshots.hasOwnProperty(channel))
+                    {
+                        for (var i = 0; i < subscriptions.length; ++i)
+                        {
+                            if (_matches(subscriptions[i], channel))
+                            {
+                                delete _snapshots[channel];
+                                break;
+                            }
+                        }
+                    }
+                }
+            }
+
+            this.registered = function(name, cometd)
+            {
+                _cometd = cometd;
+                _debug('DeltaExtension: executing registration callback');
+            };
+
+            this.unregistered = function()
+            {
+                _debug('DeltaExtension: executing unregistration callback');
+                _cometd = null;
+            };
+
+            this.incoming = function(message)
+            {
+                var channel = message.channel;
+                if (channel == '/meta/handshake')
+                {
+                    _serverSupportsDeltas = !!(message.ext && message.ext.delta === true);
+                    _debug('DeltaExtension: server supports deltas', _serverSupportsDeltas);
+                }
+                // The server drops the state of the channels that match
+                // the subscription, so the next message is a key frame.
+                else if (channel == '/meta/unsubscribe')
+                {
+                    if (message.successful && message.subscription)
+                    {
+                        _unsubscribed(message.subscription);
+                    }
+                }
+                // Publish replies, without data, are not part of the sequence.
+                else if (_serverSupportsDeltas && channel.indexOf('/meta/') !== 0 && message.data !== undefined)
+                {
+                    var snapshot = _snapshots[channel];
+                    if (!snapshot)
+                    {
+                        snapshot = _snapshots[channel] = { data: null, deltas: 0, epoch: 0 };
+                    }
+                    var delta = message.ext && message.ext.delta;
+                    if (_isObject(delta))
+                    {
+                        if (snapshot.data !== null && delta.epoch === snapshot.epoch && delta.seq === snapshot.deltas + 1)
+                        {
+                            try
+                            {
+                                _apply(snapshot.data, message.data);
+                                snapshot.deltas += 1;
+                                delete message.ext.delta;
+                                message.data = _copy(snapshot.data);
+                                return message;
+                            }
+                            catch (x)
+                            {
+                                _debug('DeltaExtension: could not apply delta', x);
+                            }
+                        }
+                        // Align with the key frames sent by the server,
+                        // so that the key frame of the resync matches.
+                        if (typeof delta.epoch === 'number')
+                        {
+                            snapshot.epoch = delta.epoch;
+                        }
+                        snapshot.data = null;
+                        if (org_cometd.Utils.inArray(channel, _resyncs) < 0)
+                        {
+                            _resyncs.push(channel);
+                        }
+                        _debug('DeltaExtension: resynchronizing channel', channel);
+                        return null;
+                    }
+                    // Messages with object data are key frames, and start a
+                    // new sequence of deltas; messages with other data do not.
+                    if (_isObject(message.data))
+                    {
+                        snapshot.data = _copy(message.data);
+                        snapshot.deltas = 0;
+                        snapshot.epoch += 1;
+                    }
+                    else
+                    {
+                        snapshot.data = null;
+                    }
+                }
+                return message;
+            };
+
+            this.outgoing = function(message)
+            {
+                var channel = message.channel;
+                if (channel == '/meta/handshake')
+                {
+                    if (!message.ext)
+                    {
+                        message.ext = {};
+                    }
+                    message.ext.delta = _cometd && _cometd.deltaEnabled !== false;
+                    _snapshots = {};
+                    _resyncs = [];
+                }
+                else if (_serverSupportsDeltas && _resyncs.length > 0)
+                {
+                    if (!message.ext)
+                    {
+                        message.ext = {};
+                    }
+                    message.ext.delta = { resync: _resyncs };
+                    _resyncs = [];
+                }
+                return message;
+            };
+        };
+    }
+
+    if (typeof define === 'function' && define.amd)
+    {
+        define(['org/cometd'], bind);
+    }
+    else
+    {
+        bind(org.cometd);
+    }
+})();
@@ -24,30 +24,38 @@ define(['org/cometd', 'dojo/json', 'dojox', 'dojo/_base/xhr', 'dojo/request/scri
     {
         var cometd = new org_cometd.CometD(name);
 
+        function _xhrSend(packet)
+        {
+            var deferred = dojoXHR.post({
+                url: packet.url,
+                sync: packet.sync === true,
+                contentType: 'application/json;charset=UTF-8',
+                headers: packet.headers,
+                postData: packet.body,
+                withCredentials: true,
+                handleAs: 'json',
+                load: packet.onSuccess,
+                error: function(error)
+                {
+                    packet.onError(error.message, deferred ? deferred.ioArgs.error : error);
+                }
+            });
+            return deferred.ioArgs.xhr;
+        }
+
         function LongPollingTransport()
         {
             var _super = new org_cometd.LongPollingTransport();
             var that = org_cometd.Transport.derive(_super);
+            that.xhrSend = _xhrSend;
+            return that;
+        }
 
-            that.xhrSend = function(packet)
-            {
-                var deferred = dojoXHR.post({
-                    url: packet.url,
-                    sync: packet.sync === true,
-                    contentType: 'application/json;charset=UTF-8',
-                    headers: packet.headers,
-                    postData: packet.body,
-                    withCredentials: true,
-                    handleAs: 'json',
-                    load: packet.onSuccess,
-                    error: function(error)
-                    {
-                        packet.onError(error.message, deferred ? deferred.ioArgs.error : error);
-                    }
-                });
-                return deferred.ioArgs.xhr;
-            };
-
+        function EventSourceTransport()
+        {
+            var _super = new org_cometd.EventSourceTransport();
+            var that = org_cometd.Transport.derive(_super);
+            that.xhrSend = _xhrSend;
             return that;
         }
 
@@ -81,6 +89,10 @@ define(['org/cometd', 'dojo/json', 'dojox', 'dojo/_base/xhr', 'dojo/request/scri
         {
             cometd.registerTransport('websocket', new org_cometd.WebSocketTransport());
         }
+        if (org_cometd.EventSource)
+        {
+            cometd.registerTransport('event-source', new EventSourceTransport());
+        }
         cometd.registerTransport('long-polling', new LongPollingTransport());
         cometd.registerTransport('callback-polling', new CallbackPollingTransport());
 
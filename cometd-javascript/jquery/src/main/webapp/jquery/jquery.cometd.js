@@ -37,40 +37,48 @@
         }
 
         // Remap toolkit-specific transport calls.
+        function _xhrSend(packet)
+        {
+            return $.ajax({
+                url: packet.url,
+                async: packet.sync !== true,
+                type: 'POST',
+                contentType: 'application/json;charset=UTF-8',
+                data: packet.body,
+                global: false,
+                xhrFields: {
+                    // For asynchronous calls.
+                    withCredentials: true
+                },
+                beforeSend: function(xhr)
+                {
+                    // For synchronous calls.
+                    xhr.withCredentials = true;
+                    _setHeaders(xhr, packet.headers);
+                    // Returning false will abort the XHR send.
+                    return true;
+                },
+                success: packet.onSuccess,
+                error: function(xhr, reason, exception)
+                {
+                    packet.onError(reason, exception);
+                }
+            });
+        }
+
         function LongPollingTransport()
         {
             var _super = new org_cometd.LongPollingTransport();
             var that = org_cometd.Transport.derive(_super);
+            that.xhrSend = _xhrSend;
+            return that;
+        }
 
-            that.xhrSend = function(packet)
-            {
-                return $.ajax({
-                    url: packet.url,
-                    async: packet.sync !== true,
-                    type: 'POST',
-                    contentType: 'application/json;charset=UTF-8',
-                    data: packet.body,
-                    global: false,
-                    xhrFields: {
-                        // For asynchronous calls.
-                        withCredentials: true
-                    },
-                    beforeSend: function(xhr)
-                    {
-                        // For synchronous calls.
-                        xhr.withCredentials = true;
-                        _setHeaders(xhr, packet.headers);
-                        // Returning false will abort the XHR send.
-                        return true;
-                    },
-                    success: packet.onSuccess,
-                    error: function(xhr, reason, exception)
-                    {
-                        packet.onError(reason, exception);
-                    }
-                });
-            };
-
+        function EventSourceTransport()
+        {
+            var _super = new org_cometd.EventSourceTransport();
+            var that = org_cometd.Transport.derive(_super);
+            that.xhrSend = _xhrSend;
             return that;
         }
 
@@ -117,6 +125,10 @@
             {
                 cometd.registerTransport('websocket', new org_cometd.WebSocketTransport());
             }
+            if (org_cometd.EventSource)
+            {
+                cometd.registerTransport('event-source', new EventSourceTransport());
+            }
             cometd.registerTransport('long-polling', new LongPollingTransport());
             cometd.registerTransport('callback-polling', new CallbackPollingTransport());
 